@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.api;
+
+import com.fnproject.fn.api.exception.FunctionInputHandlingException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads request bodies into arrays, sized up front when the length of the body is known
+ */
+final class BodyBuffers {
+    // some VMs reserve header words in arrays
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int INITIAL_SIZE = 8192;
+
+    private BodyBuffers() {
+    }
+
+    /**
+     * Reads a body to its end, or to its declared length
+     *
+     * @param in     the body
+     * @param length the declared length of the body or -1 if it is not known
+     * @return a buffer wrapping the bytes that were read
+     * @throws IOException if reading failed
+     */
+    static ByteBuffer read(InputStream in, long length) throws IOException {
+        if (length > MAX_ARRAY_SIZE) {
+            throw new FunctionInputHandlingException("Body of " + length + " bytes is too large to read into memory");
+        }
+        byte[] buf = new byte[length >= 0 ? (int) length : INITIAL_SIZE];
+        int count = 0;
+        while (count < buf.length || length < 0) {
+            if (count == buf.length) {
+                if (buf.length == MAX_ARRAY_SIZE) {
+                    throw new FunctionInputHandlingException("Body is too large to read into memory");
+                }
+                buf = Arrays.copyOf(buf, (int) Math.min(MAX_ARRAY_SIZE, buf.length * 2L));
+            }
+            int read = in.read(buf, count, buf.length - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+}
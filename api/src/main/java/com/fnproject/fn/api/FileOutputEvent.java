@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.api;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An output event whose body is a region of a file, either opened from a path when the body is written or an already
+ * open channel
+ */
+final class FileOutputEvent implements OutputEvent {
+    private final Path path;
+    private final FileChannel channel;
+    private final long position;
+    private final long count;
+    private final Status status;
+    private final Headers headers;
+
+    FileOutputEvent(Path path, FileChannel channel, long position, long count, Status status, Headers headers) {
+        this.path = path;
+        this.channel = channel;
+        this.position = position;
+        this.count = count;
+        this.status = status;
+        this.headers = headers;
+    }
+
+    @Override
+    public Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public long getContentLength() {
+        return count;
+    }
+
+    @Override
+    public void writeToOutput(OutputStream out) throws IOException {
+        writeToChannel(Channels.newChannel(out));
+    }
+
+    @Override
+    public void writeToChannel(WritableByteChannel target) throws IOException {
+        if (channel != null) {
+            transfer(channel, target);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            transfer(file, target);
+        }
+    }
+
+    private void transfer(FileChannel file, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long n;
+            if (target instanceof FileTransferChannel) {
+                n = ((FileTransferChannel) target).transferFrom(file, position + sent, count - sent);
+            } else {
+                n = file.transferTo(position + sent, count - sent, target);
+            }
+            if (n <= 0) {
+                throw new EOFException("File ended after " + sent + " of " + count + " bytes");
+            }
+            sent += n;
+        }
+    }
+}
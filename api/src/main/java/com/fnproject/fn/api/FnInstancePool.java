@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.api;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation to be used on user function classes whose instances must not be shared between concurrent calls.
+ * <p>
+ * By default the runtime creates a single instance of the function class and uses it for every call. When the
+ * runtime is configured to run calls concurrently, an annotated class instead gets a pool of up to {@link #value()}
+ * instances, and each call is given an instance that no other call is using. Calls that arrive while every instance
+ * is in use wait for one to be returned.
+ * <p>
+ * Pooled instances are created as they are first needed, using the same constructor rules as the single instance.
+ * Instance {@link FnConfiguration} methods are called on each instance as it is created, static configuration
+ * methods are only called once.
+ * <p>
+ * This annotation has no effect on functions whose function method is static.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface FnInstancePool {
+    /**
+     * The maximum number of instances of the function class, this must be at least one
+     *
+     * @return the pool size
+     */
+    int value();
+}
@@ -16,17 +16,19 @@
 
 package com.fnproject.fn.api;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 /**
  * Represents a set of String-String[] header attributes, per HTTP headers.
  * <p>
  * Internally header keys are always canonicalized using HTTP header conventions
  * <p>
- * Headers objects are immutable
+ * Headers objects are immutable, use a {@link Builder} to construct headers from many values at once
  * <p>
  * Keys are are stored and compared in a case-insensitive way and are canonicalised according to  RFC 7230 conventions such that  :
  *
@@ -39,40 +41,158 @@ import java.util.stream.Stream;
  * Where keys do not comply with HTTP header naming they are left as is.
  */
 public final class Headers implements Serializable {
-    private static final Headers emptyHeaders = new Headers(Collections.emptyMap());
-    private Map<String, List<String>> headers;
-
-    private Headers(Map<String, List<String>> headersIn) {
-        this.headers = headersIn;
+    private static final long serialVersionUID = 3889056580660327108L;
+    // headers are serialized as a map of keys to values, as they were before they were stored in arrays
+    private static final ObjectStreamField[] serialPersistentFields = {new ObjectStreamField("headers", Map.class)};
+
+    private static final Headers emptyHeaders = new Headers(new String[0], new String[0], new int[]{0});
+
+    // keys are canonical and sorted, the values of keys[i] are values[starts[i]] to values[starts[i + 1] - 1]
+    private String[] keys;
+    private String[] values;
+    private int[] starts;
+    private transient Map<String, List<String>> map;
+
+    private Headers(String[] keys, String[] values, int[] starts) {
+        this.keys = keys;
+        this.values = values;
+        this.starts = starts;
     }
 
-    private static Pattern headerName = Pattern.compile("[A-Za-z0-9!#%&'*+-.^_`|~]+");
-
     public Map getAll() {
-        return headers;
+        return asMap();
     }
 
     /**
      * Calculates the canonical key  (cf RFC 7230) for a header
      * <p>
      * If the header contains invalid characters it returns the original header
+     * <p>
+     * Common header names and recently seen ones resolve to a shared instance of their canonical key without
+     * allocating
      *
      * @param key the header key to canonicalise
      * @return a canonical key or the original key if the input contains invalid character
      */
     public static String canonicalKey(String key) {
-        if (!headerName.matcher(key).matches()) {
+        int length = key.length();
+        if (length == 0) {
             return key;
         }
-        String parts[] = key.split("-", -1);
-        for (int i = 0; i < parts.length; i++) {
-            String p = parts[i];
-            if (p.length() > 0) {
-                parts[i] = p.substring(0, 1).toUpperCase() + p.substring(1).toLowerCase();
+
+        int hash = 0;
+        boolean canonical = true;
+        boolean partStart = true;
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c >= TOKEN_CHARS.length || !TOKEN_CHARS[c]) {
+                return key;
+            }
+            if (c >= 'A' && c <= 'Z') {
+                canonical &= partStart;
+                c = (char) (c + ('a' - 'A'));
+            } else if (c >= 'a' && c <= 'z') {
+                canonical &= !partStart;
+            }
+            hash = 31 * hash + c;
+            partStart = c == '-';
+        }
+        hash ^= hash >>> 16;
+
+        for (int i = hash & (knownKeys.length - 1); knownKeys[i] != null; i = (i + 1) & (knownKeys.length - 1)) {
+            if (isSameKey(knownKeys[i], key)) {
+                return knownKeys[i];
+            }
+        }
+
+        int slot = hash & (cachedKeys.length - 1);
+        String cached = cachedKeys[slot];
+        if (cached != null && isSameKey(cached, key)) {
+            return cached;
+        }
+        String result = canonical ? key : toCanonical(key);
+        if (length <= MAX_CACHED_KEY_LENGTH) {
+            cachedKeys[slot] = result;
+        }
+        return result;
+    }
+
+    // valid header name characters, cf RFC 7230 tchar, with ',' which has always been accepted
+    private static final boolean[] TOKEN_CHARS = new boolean[128];
+    // common keys in canonical form, an open addressed table that is never modified once built
+    private static final String[] knownKeys;
+    // recently canonicalised keys, a direct mapped cache so it never grows, slots are overwritten as keys collide
+    private static final String[] cachedKeys = new String[1024];
+    private static final int MAX_CACHED_KEY_LENGTH = 64;
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            TOKEN_CHARS[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            TOKEN_CHARS[c] = true;
+            TOKEN_CHARS[c - 'a' + 'A'] = true;
+        }
+        for (char c : "!#%&'*+,-.^_`|~".toCharArray()) {
+            TOKEN_CHARS[c] = true;
+        }
+
+        String[] known = {
+          "Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Cache-Control", "Connection",
+          "Content-Encoding", "Content-Length", "Content-Type", "Cookie", "Date", "Host", "Opc-Request-Id",
+          "Te", "Transfer-Encoding", "User-Agent", "X-Forwarded-For",
+          "Fn-Call-Id", "Fn-Deadline", "Fn-Fdk-Runtime", "Fn-Fdk-Version", "Fn-Http-Method", "Fn-Http-Request-Url",
+          "Fn-Http-Status", "Fn-Intent", "Fn-Invoke-Type", "Fnproject-Flowid",
+          "Fn-Http-H-Accept", "Fn-Http-H-Accept-Encoding", "Fn-Http-H-Authorization", "Fn-Http-H-Content-Length",
+          "Fn-Http-H-Content-Type", "Fn-Http-H-Cookie", "Fn-Http-H-User-Agent", "Fn-Http-H-X-Forwarded-For",
+          "X-B3-Flags", "X-B3-Parentspanid", "X-B3-Sampled", "X-B3-Spanid", "X-B3-Traceid"
+        };
+        knownKeys = new String[128];
+        for (String k : known) {
+            int hash = 0;
+            for (int i = 0; i < k.length(); i++) {
+                hash = 31 * hash + Character.toLowerCase(k.charAt(i));
+            }
+            hash ^= hash >>> 16;
+            int i = hash & (knownKeys.length - 1);
+            while (knownKeys[i] != null) {
+                i = (i + 1) & (knownKeys.length - 1);
+            }
+            knownKeys[i] = k;
+        }
+    }
+
+    /**
+     * @return true if the key canonicalises to canonKey, the key must only contain token characters
+     */
+    private static boolean isSameKey(String canonKey, String key) {
+        if (canonKey.length() != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char a = canonKey.charAt(i);
+            char b = key.charAt(i);
+            if (a != b && !(((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z')) && (b ^ 0x20) == a)) {
+                return false;
             }
         }
-        return String.join("-", parts);
+        return true;
+    }
 
+    private static String toCanonical(String key) {
+        char[] chars = new char[key.length()];
+        boolean partStart = true;
+        for (int i = 0; i < chars.length; i++) {
+            char c = key.charAt(i);
+            if (partStart && c >= 'a' && c <= 'z') {
+                c = (char) (c - ('a' - 'A'));
+            } else if (!partStart && c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            }
+            chars[i] = c;
+            partStart = c == '-';
+        }
+        return new String(chars);
     }
 
     /**
@@ -84,9 +204,9 @@ public final class Headers implements Serializable {
      */
     public static Headers fromMap(Map<String, String> headers) {
         Objects.requireNonNull(headers, "headersIn");
-        Map<String, List<String>> h = new HashMap<>();
-        headers.forEach((k, v) -> h.put(canonicalKey(k), Collections.singletonList(v)));
-        return new Headers(Collections.unmodifiableMap(new HashMap<>(h)));
+        Builder b = new Builder();
+        headers.forEach((k, v) -> b.put(canonicalKey(k), v));
+        return b.build();
     }
 
     /**
@@ -97,10 +217,10 @@ public final class Headers implements Serializable {
      * @return {@code Headers} built from headers map
      */
     public static Headers fromMultiHeaderMap(Map<String, List<String>> headers) {
-        Map<String, List<String>> hm = new HashMap<>();
-
-        headers.forEach((k, vs) -> hm.put(canonicalKey(k), new ArrayList<>(vs)));
-        return new Headers(Collections.unmodifiableMap(new HashMap<>(Objects.requireNonNull(headers))));
+        Objects.requireNonNull(headers, "headers");
+        Builder b = new Builder();
+        headers.forEach((k, vs) -> b.put(canonicalKey(k), vs));
+        return b.build();
     }
 
     /**
@@ -112,21 +232,44 @@ public final class Headers implements Serializable {
         return emptyHeaders;
     }
 
+    /**
+     * Creates a builder for a new headers object
+     *
+     * @return an empty builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a builder that starts with these headers
+     *
+     * @return a builder containing these headers
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
 
     /**
      * Sets a map of headers, overwriting any headers in the current headers with the respective values
+     * <p>
+     * A key that is set to an empty list of values is removed
      *
      * @param vals a map of headers
      * @return a new headers object with thos headers set
      */
     public Headers setHeaders(Map<String, List<String>> vals) {
         Objects.requireNonNull(vals, "vals");
-        Map<String, List<String>> nm = new HashMap<>(headers);
+        if (vals.isEmpty()) {
+            return this;
+        }
+        Builder b = new Builder(this);
         vals.forEach((k, vs) -> {
             vs.forEach(v -> Objects.requireNonNull(v, "header list contains null entries"));
-            nm.put(canonicalKey(k), vs);
+            b.put(canonicalKey(k), vs);
         });
-        return new Headers(nm);
+        return b.build();
     }
 
     /**
@@ -141,27 +284,7 @@ public final class Headers implements Serializable {
      */
     public Headers addHeader(String key, String v1, String... vs) {
         Objects.requireNonNull(key, "key");
-        Objects.requireNonNull(key, "value");
-
-        String canonKey = canonicalKey(key);
-
-        Map<String, List<String>> nm = new HashMap<>(headers);
-        List<String> current = nm.get(canonKey);
-
-        if (current == null) {
-            List<String> s = new ArrayList<>();
-            s.add(v1);
-            s.addAll(Arrays.asList(vs));
-
-            nm.put(canonKey, Collections.unmodifiableList(s));
-        } else {
-            List<String> s = new ArrayList<>(current);
-            s.add(v1);
-            s.addAll(Arrays.asList(vs));
-            nm.put(canonKey, Collections.unmodifiableList(s));
-        }
-        return new Headers(nm);
-
+        return withValues(canonicalKey(key), checkedValues(v1, vs), true);
     }
 
     /**
@@ -176,15 +299,7 @@ public final class Headers implements Serializable {
      */
     public Headers setHeader(String key, String v1, String... vs) {
         Objects.requireNonNull(key, "key");
-        Objects.requireNonNull(v1, "v1");
-        Stream.of(vs).forEach((v) -> Objects.requireNonNull(v, "vs"));
-
-        Map<String, List<String>> nm = new HashMap<>(headers);
-        List<String> s = new ArrayList<>();
-        s.add(v1);
-        s.addAll(Arrays.asList(vs));
-        nm.put(canonicalKey(key), Collections.unmodifiableList(s));
-        return new Headers(Collections.unmodifiableMap(nm));
+        return withValues(canonicalKey(key), checkedValues(v1, vs), false);
     }
 
 
@@ -203,12 +318,57 @@ public final class Headers implements Serializable {
         if (vs.size() == 0) {
             throw new IllegalArgumentException("can't set keys to an empty list");
         }
-        vs.forEach((v) -> Objects.requireNonNull(v, "vs"));
+        String[] vals = vs.toArray(new String[0]);
+        for (String v : vals) {
+            Objects.requireNonNull(v, "vs");
+        }
+        return withValues(canonicalKey(key), vals, false);
+    }
 
-        Map<String, List<String>> nm = new HashMap<>(headers);
-        nm.put(canonicalKey(key), Collections.unmodifiableList(new ArrayList<>(vs)));
-        return new Headers(Collections.unmodifiableMap(nm));
+    private static String[] checkedValues(String v1, String[] vs) {
+        Objects.requireNonNull(v1, "v1");
+        String[] vals = new String[vs.length + 1];
+        vals[0] = v1;
+        for (int i = 0; i < vs.length; i++) {
+            vals[i + 1] = Objects.requireNonNull(vs[i], "vs");
+        }
+        return vals;
+    }
 
+    /**
+     * Copies these headers with the values of one key replaced or appended to, without going through a builder
+     */
+    private Headers withValues(String canonKey, String[] vals, boolean append) {
+        int i = indexOf(canonKey);
+        int pos = i >= 0 ? i : -(i + 1);
+        int start = starts[pos];
+        int oldCount = i >= 0 ? starts[i + 1] - start : 0;
+        int kept = append ? oldCount : 0;
+        int delta = kept + vals.length - oldCount;
+
+        String[] newKeys = keys;
+        if (i < 0) {
+            newKeys = new String[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, pos);
+            newKeys[pos] = canonKey;
+            System.arraycopy(keys, pos, newKeys, pos + 1, keys.length - pos);
+        }
+
+        String[] newValues = new String[values.length + delta];
+        System.arraycopy(values, 0, newValues, 0, start + kept);
+        System.arraycopy(vals, 0, newValues, start + kept, vals.length);
+        System.arraycopy(values, start + oldCount, newValues, start + kept + vals.length, values.length - start - oldCount);
+
+        int[] newStarts = new int[newKeys.length + 1];
+        System.arraycopy(starts, 0, newStarts, 0, pos + 1);
+        int shift = i < 0 ? 1 : 0;
+        for (int j = pos + 1; j < starts.length; j++) {
+            newStarts[j + shift] = starts[j] + delta;
+        }
+        if (i < 0) {
+            newStarts[pos + 1] = start + vals.length;
+        }
+        return new Headers(newKeys, newValues, newStarts);
     }
 
     /**
@@ -222,15 +382,10 @@ public final class Headers implements Serializable {
     public Headers removeHeader(String key) {
         Objects.requireNonNull(key, "key");
 
-        String canonKey = canonicalKey(key);
-        if (!headers.containsKey(canonKey)) {
+        if (indexOf(canonicalKey(key)) < 0) {
             return this;
         }
-
-        Map<String, List<String>> nm = new HashMap<>(headers);
-        nm.remove(canonKey);
-        return new Headers(Collections.unmodifiableMap(nm));
-
+        return new Builder(this).removeHeader(key).build();
     }
 
     /**
@@ -246,13 +401,12 @@ public final class Headers implements Serializable {
      */
     public Optional<String> get(String key) {
         Objects.requireNonNull(key, "Key cannot be null");
-        String canonKey = canonicalKey(key);
 
-        List<String> val = headers.get(canonKey);
-        if (val == null){
+        int i = indexOf(canonicalKey(key));
+        if (i < 0) {
             return Optional.empty();
         }
-        return Optional.of(val.get(0));
+        return Optional.of(values[starts[i]]);
     }
 
     /**
@@ -261,16 +415,21 @@ public final class Headers implements Serializable {
      * @return a collection of keys
      */
     public Collection<String> keys() {
-        return headers.keySet();
+        return asMap().keySet();
     }
 
     /**
      * Returns the headers as a  map
      *
-     * @return a map of key-values
+     * @return an unmodifiable map of key-values
      */
     public Map<String, List<String>> asMap() {
-        return headers;
+        Map<String, List<String>> m = map;
+        if (m == null) {
+            m = new HeadersMap();
+            map = m;
+        }
+        return m;
     }
 
     /**
@@ -279,11 +438,28 @@ public final class Headers implements Serializable {
      * @return a possibly empty list of values
      */
     public List<String> getAllValues(String key) {
-        return headers.getOrDefault(canonicalKey(key), Collections.emptyList());
+        int i = indexOf(canonicalKey(key));
+        if (i < 0) {
+            return Collections.emptyList();
+        }
+        return valuesAt(i);
+    }
+
+    private int indexOf(String canonKey) {
+        return Arrays.binarySearch(keys, canonKey);
+    }
+
+    private List<String> valuesAt(int i) {
+        int start = starts[i];
+        int end = starts[i + 1];
+        if (end - start == 1) {
+            return Collections.singletonList(values[start]);
+        }
+        return Collections.unmodifiableList(Arrays.asList(values).subList(start, end));
     }
 
     public int hashCode() {
-        return headers.hashCode();
+        return asMap().hashCode();
     }
 
 
@@ -294,12 +470,286 @@ public final class Headers implements Serializable {
         if (other == this) {
             return true;
         }
-        return headers.equals(((Headers) other).headers);
+        Headers h = (Headers) other;
+        return Arrays.equals(keys, h.keys) && Arrays.equals(starts, h.starts) && Arrays.equals(values, h.values);
     }
 
     @Override
     public String toString() {
-        return Objects.toString(headers);
+        return asMap().toString();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        Map<String, List<String>> m = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            m.put(keys[i], new ArrayList<>(valuesAt(i)));
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("headers", m);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        Map<String, List<String>> m = (Map<String, List<String>>) in.readFields().get("headers", null);
+        Builder b = new Builder();
+        if (m != null) {
+            m.forEach((k, vs) -> b.put(canonicalKey(k), vs));
+        }
+        Headers h = b.build();
+        keys = h.keys;
+        values = h.values;
+        starts = h.starts;
+    }
+
+    /**
+     * A read-only map view of the headers
+     */
+    private final class HeadersMap extends AbstractMap<String, List<String>> {
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOf((String) key) >= 0;
+        }
+
+        @Override
+        public List<String> get(Object key) {
+            int i = key instanceof String ? indexOf((String) key) : -1;
+            return i < 0 ? null : valuesAt(i);
+        }
+
+        @Override
+        public Set<Entry<String, List<String>>> entrySet() {
+            return new AbstractSet<Entry<String, List<String>>>() {
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+
+                @Override
+                public Iterator<Entry<String, List<String>>> iterator() {
+                    return new Iterator<Entry<String, List<String>>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < keys.length;
+                        }
+
+                        @Override
+                        public Entry<String, List<String>> next() {
+                            if (next >= keys.length) {
+                                throw new NoSuchElementException();
+                            }
+                            int i = next++;
+                            return new SimpleImmutableEntry<>(keys[i], valuesAt(i));
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Builds a headers object from many header values without copying the headers for each value
+     * <p>
+     * Keys are canonicalised as they are added, and the values of each key are kept in the order they were added.
+     * A builder may be used to build more than one headers object.
+     */
+    public static final class Builder {
+        // one entry per header value, in the order they were added
+        private String[] names;
+        private String[] values;
+        private int size;
+
+        private Builder() {
+            names = new String[16];
+            values = new String[16];
+        }
+
+        private Builder(Headers headers) {
+            int count = headers.values.length;
+            names = new String[count + 8];
+            values = new String[count + 8];
+            for (int i = 0; i < headers.keys.length; i++) {
+                for (int j = headers.starts[i]; j < headers.starts[i + 1]; j++) {
+                    names[j] = headers.keys[i];
+                }
+            }
+            System.arraycopy(headers.values, 0, values, 0, count);
+            size = count;
+        }
+
+        /**
+         * Adds values to a header, after any values it already has
+         *
+         * @param key header key
+         * @param v1  header value
+         * @param vs  additional header values
+         * @return this builder
+         */
+        public Builder addHeader(String key, String v1, String... vs) {
+            Objects.requireNonNull(key, "key");
+            Objects.requireNonNull(v1, "v1");
+            for (String v : vs) {
+                Objects.requireNonNull(v, "vs");
+            }
+
+            String canonKey = canonicalKey(key);
+            append(canonKey, v1);
+            for (String v : vs) {
+                append(canonKey, v);
+            }
+            return this;
+        }
+
+        /**
+         * Sets the values of a header, replacing any values it already has
+         *
+         * @param key header key
+         * @param v1  header value
+         * @param vs  additional header values
+         * @return this builder
+         */
+        public Builder setHeader(String key, String v1, String... vs) {
+            Objects.requireNonNull(key, "key");
+            Objects.requireNonNull(v1, "v1");
+            for (String v : vs) {
+                Objects.requireNonNull(v, "vs");
+            }
+
+            String canonKey = canonicalKey(key);
+            remove(canonKey);
+            append(canonKey, v1);
+            for (String v : vs) {
+                append(canonKey, v);
+            }
+            return this;
+        }
+
+        /**
+         * Sets the values of a header, replacing any values it already has
+         *
+         * @param key header key
+         * @param vs  header values, this must not be empty
+         * @return this builder
+         */
+        public Builder setHeader(String key, Collection<String> vs) {
+            Objects.requireNonNull(key, "key");
+            Objects.requireNonNull(vs, "vs");
+            if (vs.size() == 0) {
+                throw new IllegalArgumentException("can't set keys to an empty list");
+            }
+            vs.forEach((v) -> Objects.requireNonNull(v, "vs"));
+
+            put(canonicalKey(key), vs);
+            return this;
+        }
+
+        /**
+         * Removes all values of a header
+         *
+         * @param key header key
+         * @return this builder
+         */
+        public Builder removeHeader(String key) {
+            Objects.requireNonNull(key, "key");
+
+            remove(canonicalKey(key));
+            return this;
+        }
+
+        /**
+         * Creates a headers object with the headers added to this builder
+         *
+         * @return the headers
+         */
+        public Headers build() {
+            if (size == 0) {
+                return emptyHeaders;
+            }
+
+            // a stable insertion sort, the values of each key stay in the order they were added
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                String name = names[i];
+                int lo = 0;
+                int hi = i;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (names[order[mid]].compareTo(name) <= 0) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                System.arraycopy(order, lo, order, lo + 1, i - lo);
+                order[lo] = i;
+            }
+
+            int distinct = 1;
+            for (int i = 1; i < size; i++) {
+                if (!names[order[i]].equals(names[order[i - 1]])) {
+                    distinct++;
+                }
+            }
+
+            String[] keys = new String[distinct];
+            String[] sortedValues = new String[size];
+            int[] starts = new int[distinct + 1];
+            int k = -1;
+            for (int i = 0; i < size; i++) {
+                String name = names[order[i]];
+                if (k < 0 || !keys[k].equals(name)) {
+                    keys[++k] = name;
+                    starts[k] = i;
+                }
+                sortedValues[i] = values[order[i]];
+            }
+            starts[distinct] = size;
+            return new Headers(keys, sortedValues, starts);
+        }
+
+        private void put(String canonKey, String v) {
+            remove(canonKey);
+            append(canonKey, v);
+        }
+
+        private void put(String canonKey, Collection<String> vs) {
+            remove(canonKey);
+            for (String v : vs) {
+                append(canonKey, v);
+            }
+        }
+
+        private void append(String canonKey, String v) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            names[size] = canonKey;
+            values[size] = v;
+            size++;
+        }
+
+        private void remove(String canonKey) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!names[i].equals(canonKey)) {
+                    names[kept] = names[i];
+                    values[kept] = values[i];
+                    kept++;
+                }
+            }
+            Arrays.fill(names, kept, size, null);
+            Arrays.fill(values, kept, size, null);
+            size = kept;
+        }
     }
 
 }
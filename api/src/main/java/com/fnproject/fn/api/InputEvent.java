@@ -16,8 +16,12 @@
 
 package com.fnproject.fn.api;
 
+import com.fnproject.fn.api.exception.FunctionInputHandlingException;
+
 import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.function.Function;
 
@@ -34,6 +38,40 @@ public interface InputEvent extends Closeable {
      */
     <T> T consumeBody(Function<InputStream, T> dest);
 
+    /**
+     * Consume the whole body associated with this event into a buffer
+     * <p>
+     * When the length of the body is known the buffer is allocated once at that size and the body is read straight into
+     * it. This consumes the body so may only be done once per request, in place of {@link #consumeBody(Function)}.
+     * <p>
+     * The buffer may be read-only and need not be backed by an accessible array, callers that need the body in an array
+     * should check {@link ByteBuffer#hasArray()} and copy the buffer's contents when it returns false. The default
+     * implementation always returns a writable array backed buffer.
+     *
+     * @return a buffer holding the body between its position and limit
+     * @throws FunctionInputHandlingException if the body could not be read or is too large to hold in one buffer
+     */
+    default ByteBuffer consumeBodyAsByteBuffer() {
+        long length = getContentLength();
+        return consumeBody(in -> {
+            try {
+                return BodyBuffers.read(in, length);
+            } catch (IOException e) {
+                throw new FunctionInputHandlingException("Error reading input stream", e);
+            }
+        });
+    }
+
+    /**
+     * The length of the body in bytes as declared by the request
+     * <p>
+     * This is -1 when the length is not known before the body is read, for instance when the body is chunked
+     *
+     * @return the length of the body or -1 if it is not known
+     */
+    default long getContentLength() {
+        return -1;
+    }
 
 
     /**
@@ -16,6 +16,8 @@
 
 package com.fnproject.fn.api;
 
+import java.time.Duration;
+import java.time.Instant;
 
 /**
  * Context wrapper around a single invocation.
@@ -48,6 +50,28 @@ public interface InvocationContext {
      */
     Headers getRequestHeaders();
 
+    /**
+     * Returns the deadline by which the platform expects this invocation to complete
+     * <p>
+     * The platform discards the response of an invocation that overruns its deadline.
+     *
+     * @return the deadline of the invocation, or {@link Instant#MAX} if it has none
+     */
+    default Instant getDeadline() {
+        return Instant.MAX;
+    }
+
+    /**
+     * Returns the time remaining until the deadline of this invocation, this can be used to bound the timeouts of
+     * calls the function makes to other services
+     *
+     * @return the time remaining, or zero if the deadline has passed
+     */
+    default Duration getRemainingTime() {
+        Duration remaining = Duration.between(Instant.now(), getDeadline());
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
+
     /**
      * Sets the response content type,  this will override the default content type of the output
      *
@@ -19,6 +19,12 @@ package com.fnproject.fn.api;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -29,6 +35,40 @@ public interface OutputEvent {
 
     String CONTENT_TYPE_HEADER = "Content-Type";
 
+    /**
+     * Writes the body of an output event to a stream
+     * <p>
+     * Writers may be called at most once, after the response headers have been prepared, and write directly to the response
+     */
+    interface BodyWriter {
+        /**
+         * Write the body to a stream
+         *
+         * @param out the stream to write the body to - this should not be closed by the writer
+         * @throws IOException OutputStream exceptions percolate up through this method
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A channel that can send regions of files itself, for instance using sendfile(2)
+     * <p>
+     * Codecs may pass a channel implementing this to {@link #writeToChannel(WritableByteChannel)}, events with file
+     * bodies then hand their file to the channel rather than copying it through buffers
+     */
+    interface FileTransferChannel extends WritableByteChannel {
+        /**
+         * Send bytes from a file, this does not change the position of the file channel
+         *
+         * @param file     the file to send from
+         * @param position the position in the file to start from
+         * @param count    the maximum number of bytes to send
+         * @return the number of bytes sent, which may be less than count and is zero at the end of the file
+         * @throws IOException if the file could not be read or the bytes could not be sent
+         */
+        long transferFrom(FileChannel file, long position, long count) throws IOException;
+    }
+
     /**
      * The outcome status of this function event
      * This determines how the platform will reflect this error to the customer and how it will treat the container after an error
@@ -109,6 +149,31 @@ public interface OutputEvent {
      */
     void writeToOutput(OutputStream out) throws IOException;
 
+    /**
+     * Write the body of the output to a channel
+     * <p>
+     * Codecs that write to channels call this in place of {@link #writeToOutput(OutputStream)}. Events created from
+     * files or byte buffers write their content to the channel directly, by default the body is written to a stream
+     * over the channel, or to the channel itself if it is also an {@link OutputStream}.
+     *
+     * @param channel a channel to emit the body of the event - this should not be closed
+     * @throws IOException channel exceptions percolate up through this method
+     */
+    default void writeToChannel(WritableByteChannel channel) throws IOException {
+        writeToOutput(channel instanceof OutputStream ? (OutputStream) channel : Channels.newOutputStream(channel));
+    }
+
+    /**
+     * The length of the body in bytes if it is known before the body is written
+     * <p>
+     * Codecs use this to frame the response, events with an unknown length are streamed (e.g. using chunked encoding)
+     *
+     * @return the number of bytes that {@link #writeToOutput(OutputStream)} will write or -1 if this is not known in advance
+     */
+    default long getContentLength() {
+        return -1;
+    }
+
 
     /**
      * Creates a new output event based on this one with the headers overriding
@@ -135,6 +200,16 @@ public interface OutputEvent {
             public void writeToOutput(OutputStream out) throws IOException {
                 a.writeToOutput(out);
             }
+
+            @Override
+            public void writeToChannel(WritableByteChannel channel) throws IOException {
+                a.writeToChannel(channel);
+            }
+
+            @Override
+            public long getContentLength() {
+                return a.getContentLength();
+            }
         };
     }
 
@@ -182,6 +257,186 @@ public interface OutputEvent {
             public void writeToOutput(OutputStream out) throws IOException {
                 out.write(bytes);
             }
+
+            @Override
+            public long getContentLength() {
+                return bytes.length;
+            }
+        };
+    }
+
+    /**
+     * Create an output event whose body is written directly to the response by a {@link BodyWriter}
+     * <p>
+     * The body is not buffered by the FDK, this allows large responses to be streamed with constant memory use
+     *
+     * @param writer      a writer that emits the body of the event
+     * @param status      the status code of this event
+     * @param contentType the content type to present on HTTP responses or null
+     * @return a new output event
+     */
+    static OutputEvent fromBodyWriter(BodyWriter writer, Status status, String contentType) {
+        return fromBodyWriter(writer, status, contentType, Headers.emptyHeaders());
+    }
+
+    /**
+     * Create an output event whose body is written directly to the response by a {@link BodyWriter}
+     * <p>
+     * The body is not buffered by the FDK, this allows large responses to be streamed with constant memory use
+     *
+     * @param writer      a writer that emits the body of the event
+     * @param status      the status code of this event
+     * @param contentType the content type to present on HTTP responses or null
+     * @param headers     any additional headers to supply with HTTP responses
+     * @return a new output event
+     */
+    static OutputEvent fromBodyWriter(final BodyWriter writer, final Status status, final String contentType, final Headers headers) {
+        Objects.requireNonNull(writer, "writer");
+        Objects.requireNonNull(status, "status");
+        Objects.requireNonNull(headers, "headers");
+
+        final Headers newHeaders = contentType == null ? headers : headers.setHeader(CONTENT_TYPE_HEADER, contentType);
+        return new OutputEvent() {
+
+            @Override
+            public Status getStatus() {
+                return status;
+            }
+
+            @Override
+            public Headers getHeaders() {
+                return newHeaders;
+            }
+
+            @Override
+            public void writeToOutput(OutputStream out) throws IOException {
+                writer.writeTo(out);
+            }
+        };
+    }
+
+    /**
+     * Create an output event whose body is the content of a file
+     * <p>
+     * The file is opened when the body is written and its content is not copied through the Java heap where the codec
+     * supports this
+     *
+     * @param path        the file to send
+     * @param status      the status code of this event
+     * @param contentType the content type to present on HTTP responses or null
+     * @return a new output event
+     * @throws IOException if the size of the file can't be read
+     */
+    static OutputEvent fromFile(Path path, Status status, String contentType) throws IOException {
+        return fromFile(path, status, contentType, Headers.emptyHeaders());
+    }
+
+    /**
+     * Create an output event whose body is the content of a file
+     * <p>
+     * The file is opened when the body is written and its content is not copied through the Java heap where the codec
+     * supports this. The length of the body is the size of the file when the event is created.
+     *
+     * @param path        the file to send
+     * @param status      the status code of this event
+     * @param contentType the content type to present on HTTP responses or null
+     * @param headers     any additional headers to supply with HTTP responses
+     * @return a new output event
+     * @throws IOException if the size of the file can't be read
+     */
+    static OutputEvent fromFile(Path path, Status status, String contentType, Headers headers) throws IOException {
+        Objects.requireNonNull(path, "path");
+        Objects.requireNonNull(status, "status");
+        Objects.requireNonNull(headers, "headers");
+
+        return new FileOutputEvent(path, null, 0, Files.size(path), status, contentType == null ? headers : headers.setHeader(CONTENT_TYPE_HEADER, contentType));
+    }
+
+    /**
+     * Create an output event whose body is a region of an open file
+     * <p>
+     * The channel is read with positional reads and is not closed, so one channel can be shared by the events of
+     * concurrent calls, for instance to serve a cached asset
+     *
+     * @param channel     the file to send from
+     * @param position    the position of the first byte to send
+     * @param count       the number of bytes to send
+     * @param status      the status code of this event
+     * @param contentType the content type to present on HTTP responses or null
+     * @param headers     any additional headers to supply with HTTP responses
+     * @return a new output event
+     */
+    static OutputEvent fromFileChannel(FileChannel channel, long position, long count, Status status, String contentType, Headers headers) {
+        Objects.requireNonNull(channel, "channel");
+        Objects.requireNonNull(status, "status");
+        Objects.requireNonNull(headers, "headers");
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("position and count must not be negative");
+        }
+
+        return new FileOutputEvent(null, channel, position, count, status, contentType == null ? headers : headers.setHeader(CONTENT_TYPE_HEADER, contentType));
+    }
+
+    /**
+     * Create an output event from the remaining bytes of a byte buffer
+     *
+     * @param buffer      the buffer to write to the output, its position is not changed
+     * @param status      the status code of this event
+     * @param contentType the content type to present on HTTP responses or null
+     * @return a new output event
+     */
+    static OutputEvent fromByteBuffer(ByteBuffer buffer, Status status, String contentType) {
+        return fromByteBuffer(buffer, status, contentType, Headers.emptyHeaders());
+    }
+
+    /**
+     * Create an output event from the remaining bytes of a byte buffer
+     * <p>
+     * Direct and memory-mapped buffers are written to the response without being copied through the Java heap where the
+     * codec supports this
+     *
+     * @param buffer      the buffer to write to the output, its position is not changed
+     * @param status      the status code of this event
+     * @param contentType the content type to present on HTTP responses or null
+     * @param headers     any additional headers to supply with HTTP responses
+     * @return a new output event
+     */
+    static OutputEvent fromByteBuffer(ByteBuffer buffer, Status status, String contentType, Headers headers) {
+        Objects.requireNonNull(buffer, "buffer");
+        Objects.requireNonNull(status, "status");
+        Objects.requireNonNull(headers, "headers");
+
+        final ByteBuffer body = buffer.duplicate();
+        final Headers newHeaders = contentType == null ? headers : headers.setHeader(CONTENT_TYPE_HEADER, contentType);
+        return new OutputEvent() {
+
+            @Override
+            public Status getStatus() {
+                return status;
+            }
+
+            @Override
+            public Headers getHeaders() {
+                return newHeaders;
+            }
+
+            @Override
+            public void writeToOutput(OutputStream out) throws IOException {
+                writeToChannel(Channels.newChannel(out));
+            }
+
+            @Override
+            public void writeToChannel(WritableByteChannel channel) throws IOException {
+                ByteBuffer src = body.duplicate();
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            }
+
+            @Override
+            public long getContentLength() {
+                return body.remaining();
+            }
         };
     }
 
@@ -208,6 +463,11 @@ public interface OutputEvent {
             public void writeToOutput(OutputStream out) throws IOException {
 
             }
+
+            @Override
+            public long getContentLength() {
+                return 0;
+            }
         };
     }
 }
@@ -111,8 +111,11 @@ public interface RuntimeContext {
     /**
      * Add an {@link InputCoercion}. {@link InputCoercion} instances added here will be
      * tried in order, and before any of the built-in {@link InputCoercion} are tried.
+     * <p>
+     * Coercions are added while the function is configured, for instance by an {@link FnConfiguration} method.
      *
      * @param ic The {@link InputCoercion} to add
+     * @throws IllegalStateException if the function has already been configured
      */
     void addInputCoercion(InputCoercion ic);
 
@@ -132,8 +135,11 @@ public interface RuntimeContext {
     /**
      * Add an {@link OutputCoercion}. {@link OutputCoercion} instances added here will be
      * tried in order, before any of the builtin {@link OutputCoercion} are tried.
+     * <p>
+     * Coercions are added while the function is configured, for instance by an {@link FnConfiguration} method.
      *
      * @param oc The {@link OutputCoercion} to add
+     * @throws IllegalStateException if the function has already been configured
      */
     void addOutputCoercion(OutputCoercion oc);
 
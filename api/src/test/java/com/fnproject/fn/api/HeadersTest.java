@@ -18,6 +18,14 @@ package com.fnproject.fn.api;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
@@ -44,5 +52,132 @@ public class HeadersTest {
         }
     }
 
+    @Test
+    public void shouldCanonicalizeHeadersAsTheRegularExpressionDid() {
+        Random random = new Random(42);
+        String chars = "aZz09-!#%&'*+,.^_`|~ :/\u00e9\u212a";
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder key = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                key.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            assertThat(Headers.canonicalKey(key.toString())).isEqualTo(regexCanonicalKey(key.toString()));
+        }
+    }
+
+    @Test
+    public void shouldResolveKnownAndRepeatedKeysToTheSameInstance() {
+        assertThat(Headers.canonicalKey("content-type")).isSameAs(Headers.canonicalKey("CONTENT-TYPE"));
+        assertThat(Headers.canonicalKey("fn-call-id")).isEqualTo("Fn-Call-Id").isSameAs(Headers.canonicalKey("Fn-Call-ID"));
+        assertThat(Headers.canonicalKey("x-b3-traceid")).isSameAs(Headers.canonicalKey("X-B3-TraceId"));
+
+        String custom = Headers.canonicalKey("my-custom-header");
+        assertThat(custom).isEqualTo("My-Custom-Header").isSameAs(Headers.canonicalKey("MY-CUSTOM-HEADER"));
+    }
+
+    private static String regexCanonicalKey(String key) {
+        if (!key.matches("[A-Za-z0-9!#%&'*+-.^_`|~]+")) {
+            return key;
+        }
+        String parts[] = key.split("-", -1);
+        for (int i = 0; i < parts.length; i++) {
+            String p = parts[i];
+            if (p.length() > 0) {
+                parts[i] = p.substring(0, 1).toUpperCase() + p.substring(1).toLowerCase();
+            }
+        }
+        return String.join("-", parts);
+    }
+
+    @Test
+    public void shouldBuildHeadersWithValuesInTheOrderTheyWereAdded() {
+        Headers h = Headers.builder()
+          .addHeader("x-b", "1")
+          .addHeader("X-A", "2")
+          .addHeader("x-B", "3", "4")
+          .build();
+
+        assertThat(h.keys()).containsExactly("X-A", "X-B");
+        assertThat(h.getAllValues("X-B")).containsExactly("1", "3", "4");
+        assertThat(h.get("x-a")).contains("2");
+        assertThat(h.get("x-c")).isEmpty();
+        assertThat(h.getAllValues("x-c")).isEmpty();
+    }
+
+    @Test
+    public void shouldSetAndRemoveHeadersInABuilder() {
+        Headers h = Headers.fromMap(Collections.singletonMap("content-type", "text/plain")).toBuilder()
+          .addHeader("X-A", "1")
+          .setHeader("x-a", "2")
+          .addHeader("X-Gone", "3")
+          .removeHeader("x-gone")
+          .build();
+
+        assertThat(h.asMap()).containsOnlyKeys("Content-Type", "X-A");
+        assertThat(h.getAllValues("X-A")).containsExactly("2");
+    }
+
+    @Test
+    public void shouldBeEqualToHeadersWithTheSameValues() {
+        Headers built = Headers.builder().addHeader("A", "1").addHeader("B", "2", "3").build();
+        Headers copied = Headers.emptyHeaders().setHeader("b", Arrays.asList("2", "3")).addHeader("a", "1");
+
+        assertThat(built).isEqualTo(copied);
+        assertThat(built.hashCode()).isEqualTo(copied.hashCode());
+        assertThat(built.asMap()).isEqualTo(copied.asMap());
+        assertThat(built.toString()).isEqualTo("{A=[1], B=[2, 3]}");
+    }
+
+    @Test
+    public void shouldUpdateSingleHeadersAsABuilderWould() {
+        Random random = new Random(7);
+        String[] keys = {"a", "B", "c", "D", "e"};
+        Headers h = Headers.emptyHeaders();
+        Headers.Builder b = Headers.builder();
+        for (int i = 0; i < 1000; i++) {
+            String key = keys[random.nextInt(keys.length)];
+            String value = Integer.toString(i);
+            switch (random.nextInt(4)) {
+                case 0:
+                    h = h.addHeader(key, value);
+                    b.addHeader(key, value);
+                    break;
+                case 1:
+                    h = h.setHeader(key, value, value);
+                    b.setHeader(key, value, value);
+                    break;
+                case 2:
+                    h = h.setHeader(key, Collections.singletonList(value));
+                    b.setHeader(key, Collections.singletonList(value));
+                    break;
+                default:
+                    h = h.removeHeader(key);
+                    b.removeHeader(key);
+            }
+            assertThat(h).isEqualTo(b.build());
+        }
+    }
+
+    @Test
+    public void shouldCanonicalizeMultiHeaderMaps() {
+        Headers h = Headers.fromMultiHeaderMap(Collections.singletonMap("x-multi", Arrays.asList("a", "b")));
+
+        assertThat(h.getAllValues("X-Multi")).containsExactly("a", "b");
+        assertThat(h.keys()).containsExactly("X-Multi");
+    }
+
+    @Test
+    public void shouldSerializeHeaders() throws Exception {
+        Headers h = Headers.builder().addHeader("A", "1").addHeader("B", "2", "3").build();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(h);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertThat(in.readObject()).isEqualTo(h);
+        }
+    }
 
 }
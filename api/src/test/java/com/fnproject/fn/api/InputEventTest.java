@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.api;
+
+import com.fnproject.fn.api.exception.FunctionInputHandlingException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InputEventTest {
+
+    private static InputEvent event(byte[] body, long contentLength) {
+        return new InputEvent() {
+            @Override
+            public <T> T consumeBody(Function<InputStream, T> dest) {
+                // hand out the body in small reads like a socket would
+                return dest.apply(new FilterInputStream(new ByteArrayInputStream(body)) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        return super.read(b, off, Math.min(len, 1000));
+                    }
+                });
+            }
+
+            @Override
+            public long getContentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public String getCallID() {
+                return "callID";
+            }
+
+            @Override
+            public Instant getDeadline() {
+                return Instant.now();
+            }
+
+            @Override
+            public Headers getHeaders() {
+                return Headers.emptyHeaders();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    @Test
+    public void shouldReadBodiesOfKnownLengthIntoAnExactlySizedArray() {
+        byte[] body = body(100_000);
+
+        ByteBuffer buf = event(body, body.length).consumeBodyAsByteBuffer();
+
+        assertThat(buf.hasArray()).isTrue();
+        assertThat(buf.array()).isEqualTo(body);
+        assertThat(buf.position()).isEqualTo(0);
+        assertThat(buf.remaining()).isEqualTo(body.length);
+    }
+
+    @Test
+    public void shouldReadBodiesOfUnknownLength() {
+        for (int size : new int[]{0, 1, 8192, 100_000}) {
+            byte[] body = body(size);
+
+            ByteBuffer buf = event(body, -1).consumeBodyAsByteBuffer();
+
+            assertThat(Arrays.copyOfRange(buf.array(), buf.arrayOffset() + buf.position(), buf.arrayOffset() + buf.limit())).isEqualTo(body);
+        }
+    }
+
+    @Test
+    public void shouldReadNoFurtherThanTheDeclaredLength() {
+        ByteBuffer buf = event(body(10), 4).consumeBodyAsByteBuffer();
+
+        assertThat(buf.remaining()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldRejectBodiesTooLargeForAnArray() {
+        assertThatThrownBy(() -> event(new byte[0], Integer.MAX_VALUE + 1L).consumeBodyAsByteBuffer())
+            .isInstanceOf(FunctionInputHandlingException.class);
+    }
+}
@@ -28,10 +28,10 @@ import com.fnproject.fn.runtime.exception.PlatformCommunicationException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.*;
 
 import static com.fnproject.fn.runtime.flow.RemoteFlowApiClient.CONTENT_TYPE_JAVA_OBJECT;
@@ -45,6 +45,9 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
     private static final String DEFAULT_COMPLETER_BASE_URL = "http://completer-svc:8081";
     private static final String COMPLETER_BASE_URL = "COMPLETER_BASE_URL";
     public static final String FLOW_ID_HEADER = "Fnproject-FlowId";
+    // locks rather than monitors are held while creating clients and flows, so that calls running on virtual threads
+    // don't pin their carrier threads while waiting
+    private static final Lock factoryLock = new ReentrantLock();
 
 
     FlowContinuationInvoker() {
@@ -55,26 +58,36 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
         private final String completerBaseUrl;
         private transient CompleterClient completerClient;
         private transient BlobStoreClient blobClient;
+        private final Lock lock = new ReentrantLock();
 
         URLCompleterClientFactory(String completerBaseUrl) {
             this.completerBaseUrl = completerBaseUrl;
         }
 
         @Override
-        public synchronized CompleterClient getCompleterClient() {
-            if (this.completerClient == null) {
-                this.completerClient = new RemoteFlowApiClient(completerBaseUrl + "/v1",
-                  getBlobStoreClient(), new HttpClient());
+        public CompleterClient getCompleterClient() {
+            lock.lock();
+            try {
+                if (this.completerClient == null) {
+                    this.completerClient = new RemoteFlowApiClient(completerBaseUrl + "/v1",
+                      getBlobStoreClient(), new HttpClient());
+                }
+                return this.completerClient;
+            } finally {
+                lock.unlock();
             }
-            return this.completerClient;
         }
 
-        public synchronized BlobStoreClient getBlobStoreClient() {
-
-            if (this.blobClient == null) {
-                this.blobClient = new RemoteBlobStoreClient(completerBaseUrl + "/blobs", new HttpClient());
+        public BlobStoreClient getBlobStoreClient() {
+            lock.lock();
+            try {
+                if (this.blobClient == null) {
+                    this.blobClient = new RemoteBlobStoreClient(completerBaseUrl + "/blobs", new HttpClient());
+                }
+                return this.blobClient;
+            } finally {
+                lock.unlock();
             }
-            return this.blobClient;
         }
 
 
@@ -85,11 +98,16 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
      *
      * @param completerBaseUrl the completer base URL to use if and when creating the factory
      */
-    private static synchronized CompleterClientFactory getOrCreateCompleterClientFactory(String completerBaseUrl) {
-        if (FlowRuntimeGlobals.getCompleterClientFactory() == null) {
-            FlowRuntimeGlobals.setCompleterClientFactory(new URLCompleterClientFactory(completerBaseUrl));
+    private static CompleterClientFactory getOrCreateCompleterClientFactory(String completerBaseUrl) {
+        factoryLock.lock();
+        try {
+            if (FlowRuntimeGlobals.getCompleterClientFactory() == null) {
+                FlowRuntimeGlobals.setCompleterClientFactory(new URLCompleterClientFactory(completerBaseUrl));
+            }
+            return FlowRuntimeGlobals.getCompleterClientFactory();
+        } finally {
+            factoryLock.unlock();
         }
-        return FlowRuntimeGlobals.getCompleterClientFactory();
     }
 
 
@@ -111,13 +129,19 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
             final FlowId flowId = new FlowId(graphIdOption.get());
             Flows.FlowSource attachedSource = new Flows.FlowSource() {
                 Flow runtime;
+                final Lock lock = new ReentrantLock();
 
                 @Override
-                public synchronized Flow currentFlow() {
-                    if (runtime == null) {
-                        runtime = new RemoteFlow(flowId);
+                public Flow currentFlow() {
+                    lock.lock();
+                    try {
+                        if (runtime == null) {
+                            runtime = new RemoteFlow(flowId);
+                        }
+                        return runtime;
+                    } finally {
+                        lock.unlock();
                     }
-                    return runtime;
                 }
             };
 
@@ -163,7 +187,7 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
                             Object[] args = invokeStageRequest.args.stream().map(arg -> arg.toJava(flowId, blobClient, getClass().getClassLoader())).toArray();
 
 
-                            OutputEvent result = invokeContinuation(blobClient, flowId, continuation, matchingDispatchPattern.getInvokeMethod(continuation), args);
+                            OutputEvent result = invokeContinuation(blobClient, flowId, continuation, matchingDispatchPattern, args);
 
                             return Optional.of(result);
 
@@ -183,28 +207,34 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
         } else {
             Flows.FlowSource deferredSource = new Flows.FlowSource() {
                 Flow runtime;
+                final Lock lock = new ReentrantLock();
 
                 @Override
-                public synchronized Flow currentFlow() {
-                    if (runtime == null) {
-                        String functionId = ctx.getRuntimeContext().getFunctionID();
-                        CompleterClientFactory factory = getOrCreateCompleterClientFactory(completerBaseUrl);
-                        final FlowId flowId = factory.getCompleterClient().createFlow(functionId);
-                        runtime = new RemoteFlow(flowId);
-
-                        InvocationListener flowInvocationListener = new InvocationListener() {
-                            @Override
-                            public void onSuccess() {
-                                factory.getCompleterClient().commit(flowId);
-                            }
+                public Flow currentFlow() {
+                    lock.lock();
+                    try {
+                        if (runtime == null) {
+                            String functionId = ctx.getRuntimeContext().getFunctionID();
+                            CompleterClientFactory factory = getOrCreateCompleterClientFactory(completerBaseUrl);
+                            final FlowId flowId = factory.getCompleterClient().createFlow(functionId);
+                            runtime = new RemoteFlow(flowId);
+
+                            InvocationListener flowInvocationListener = new InvocationListener() {
+                                @Override
+                                public void onSuccess() {
+                                    factory.getCompleterClient().commit(flowId);
+                                }
 
-                            public void onFailure() {
-                                factory.getCompleterClient().commit(flowId);
-                            }
-                        };
-                        ctx.addListener(flowInvocationListener);
+                                public void onFailure() {
+                                    factory.getCompleterClient().commit(flowId);
+                                }
+                            };
+                            ctx.addListener(flowInvocationListener);
+                        }
+                        return runtime;
+                    } finally {
+                        lock.unlock();
                     }
-                    return runtime;
                 }
             };
 
@@ -214,21 +244,18 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
         }
     }
 
-    private OutputEvent invokeContinuation(BlobStoreClient blobStoreClient, FlowId flowId, Object instance, Method m, Object[] args) {
+    private OutputEvent invokeContinuation(BlobStoreClient blobStoreClient, FlowId flowId, Object instance, DispatchPattern dispatchPattern, Object[] args) {
         Object result;
         try {
-            m.setAccessible(true);
-            result = m.invoke(instance, args);
-        } catch (InvocationTargetException ite) {
-            APIModel.Datum datum = APIModel.datumFromJava(flowId, ite.getCause(), blobStoreClient);
+            result = dispatchPattern.invoke(instance, args);
+        } catch (Throwable t) {
+            APIModel.Datum datum = APIModel.datumFromJava(flowId, t, blobStoreClient);
 
             throw new InternalFunctionInvocationException(
               "Error invoking flows lambda",
-              ite.getCause(),
+              t,
               constructOutputEvent(datum, false)
             );
-        } catch (Exception ex) {
-            throw new PlatformException(ex);
         }
 
         APIModel.Datum resultDatum = APIModel.datumFromJava(flowId, result, blobStoreClient);
@@ -259,6 +286,11 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
             out.write(body);
         }
 
+        @Override
+        public long getContentLength() {
+            return body.length;
+        }
+
         @Override
         public Headers getHeaders() {
             return headers;
@@ -289,20 +321,61 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
 
         int numArguments();
 
-        Method getInvokeMethod(Object instance);
+        Object invoke(Object instance, Object[] args) throws Exception;
     }
 
     /**
      * Calling conventions for different target objects
+     * <p>
+     * Continuations are called through their functional interface rather than reflectively.
      */
+    @SuppressWarnings("unchecked")
     private enum Dispatchers implements DispatchPattern {
-        CallableDispatch(Callable.class, 0, "call"),
-        FunctionDispatch(Function.class, 1, "apply"),
-        BiFunctionDispatch(BiFunction.class, 2, "apply"),
-        RunnableDispatch(Runnable.class, 0, "run"),
-        ConsumerDispatch(Consumer.class, 1, "accept"),
-        BiConsumerDispatch(BiConsumer.class, 2, "accept"),
-        SupplierDispatch(Supplier.class, 0, "get");
+        CallableDispatch(Callable.class, 0) {
+            @Override
+            public Object invoke(Object instance, Object[] args) throws Exception {
+                return ((Callable<Object>) instance).call();
+            }
+        },
+        FunctionDispatch(Function.class, 1) {
+            @Override
+            public Object invoke(Object instance, Object[] args) {
+                return ((Function<Object, Object>) instance).apply(args[0]);
+            }
+        },
+        BiFunctionDispatch(BiFunction.class, 2) {
+            @Override
+            public Object invoke(Object instance, Object[] args) {
+                return ((BiFunction<Object, Object, Object>) instance).apply(args[0], args[1]);
+            }
+        },
+        RunnableDispatch(Runnable.class, 0) {
+            @Override
+            public Object invoke(Object instance, Object[] args) {
+                ((Runnable) instance).run();
+                return null;
+            }
+        },
+        ConsumerDispatch(Consumer.class, 1) {
+            @Override
+            public Object invoke(Object instance, Object[] args) {
+                ((Consumer<Object>) instance).accept(args[0]);
+                return null;
+            }
+        },
+        BiConsumerDispatch(BiConsumer.class, 2) {
+            @Override
+            public Object invoke(Object instance, Object[] args) {
+                ((BiConsumer<Object, Object>) instance).accept(args[0], args[1]);
+                return null;
+            }
+        },
+        SupplierDispatch(Supplier.class, 0) {
+            @Override
+            public Object invoke(Object instance, Object[] args) {
+                return ((Supplier<Object>) instance).get();
+            }
+        };
 
 
         @Override
@@ -314,26 +387,12 @@ public final class FlowContinuationInvoker implements FunctionInvoker {
             return numArguments;
         }
 
-        public Method getInvokeMethod(Object instance) {
-            try {
-                Class<?> args[] = new Class[numArguments];
-                for (int i = 0; i < args.length; i++) {
-                    args[i] = Object.class;
-                }
-                return instance.getClass().getMethod(methodName, args);
-            } catch (Exception e) {
-                throw new IllegalStateException("Unable to find method " + methodName + " on " + instance.getClass());
-            }
-        }
-
         private final Class<?> matchType;
         private final int numArguments;
-        private final String methodName;
 
-        Dispatchers(Class<?> matchType, int numArguments, String methodName) {
+        Dispatchers(Class<?> matchType, int numArguments) {
             this.matchType = matchType;
             this.numArguments = numArguments;
-            this.methodName = methodName;
         }
     }
 }
@@ -15,16 +15,24 @@
  */
 
 
+#include <stdlib.h>
 #include <sys/socket.h>
 #include <sys/types.h>
 #include <sys/errno.h>
 #include <sys/un.h>
 #include <sys/time.h>
+#include <poll.h>
+#include <fcntl.h>
+#include <time.h>
 #include <unistd.h>
 #include <jni.h>
 #include <strings.h>
 #include <limits.h>
 #include <sys/stat.h>
+#include <sys/uio.h>
+#ifdef __linux__
+#include <sys/sendfile.h>
+#endif
 
 #ifdef  US_DEBUG
 #define debuglog(...) fprintf (stderr, __VA_ARGS__)
@@ -209,77 +217,83 @@ Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_listen(JNIEnv *jenv, jclass j
 
 
 
-//    public static native int accept(int socket, long timeoutMs) throws UnixSocketException;
-// returns 0 in case that the accept timed out
-JNIEXPORT jint JNICALL
-Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_accept(JNIEnv *jenv, jclass jClass, jint jsocket, jlong timeoutMs) {
-    errno = 0;
-
+/**
+ * Waits for a listening socket to have a connection to accept, or for a wakeup descriptor to become readable
+ * @param wakeFd  a descriptor to watch alongside the socket or -1
+ * @param timeoutMs how long to wait, zero waits indefinitely
+ * @return 1 if the socket is ready, 0 on timeout or wakeup or -1 if an exception was thrown
+ */
+static int awaitAccept(JNIEnv *jenv, jint jsocket, jint wakeFd, jlong timeoutMs) {
     if (timeoutMs < 0) {
         throwIllegalArgumentException(jenv, "Invalid timeout");
         return -1;
     }
 
-    struct timeval startTime;
-
-    if (gettimeofday(&startTime, NULL) < 0) {
-        throwIOException(jenv, "Failed to get time");
-        return -1;
+    struct timespec deadline;
+    if (timeoutMs > 0) {
+        if (clock_gettime(CLOCK_MONOTONIC, &deadline) < 0) {
+            throwIOException(jenv, "Failed to get time");
+            return -1;
+        }
+        deadline.tv_sec += timeoutMs / 1000;
+        deadline.tv_nsec += (timeoutMs % 1000) * 1000000;
+        if (deadline.tv_nsec >= 1000000000) {
+            deadline.tv_sec++;
+            deadline.tv_nsec -= 1000000000;
+        }
     }
 
-    struct timeval timeoutAbs;
-    timeoutAbs.tv_sec = timeoutMs / 1000;
-    timeoutAbs.tv_usec = (int) (timeoutMs % 1000) * 1000;
-
-
-    int rv;
-
-    struct timeval *toPtr = NULL;
-    struct timeval actualTo;
-
-
-    do {
-        errno = 0;
+    struct pollfd fds[2];
+    fds[0].fd = jsocket;
+    fds[0].events = POLLIN;
+    fds[1].fd = wakeFd;
+    fds[1].events = POLLIN;
+    nfds_t nfds = wakeFd >= 0 ? 2 : 1;
 
+    while (1) {
+        int waitMs = -1;
         if (timeoutMs > 0) {
-            struct timeval nowTime, used;
-            if (gettimeofday(&nowTime, NULL) < 0) {
+            struct timespec now;
+            if (clock_gettime(CLOCK_MONOTONIC, &now) < 0) {
                 throwIOException(jenv, "Failed to get time");
                 return -1;
             }
-
-            timersub(&nowTime, &startTime, &used);
-            timersub(&timeoutAbs, &used, &actualTo);
-            if (actualTo.tv_sec < 0 || (actualTo.tv_sec == 0 && actualTo.tv_usec ==0) ) {
-                // hit end of poll in loop
+            long long remainingNs = (deadline.tv_sec - now.tv_sec) * 1000000000LL + (deadline.tv_nsec - now.tv_nsec);
+            if (remainingNs <= 0) {
                 return 0;
-
             }
-            toPtr = &actualTo;
+            // round up so that the full timeout has passed when poll times out
+            long long remaining = (remainingNs + 999999) / 1000000;
+            waitMs = remaining > INT_MAX ? INT_MAX : (int) remaining;
         }
 
-        fd_set set;
-        FD_ZERO(&set); /* clear the set */
-        FD_SET(jsocket, &set); /* add our file descriptor to the set */
-
-        rv = select(jsocket + 1, &set, NULL, NULL, toPtr);
-        debuglog("XXX %d Got result from select %d : %s\n",jsocket,rv,strerror(errno));
-
-        if(!FD_ISSET(jsocket,&set)){
-            continue;
+        errno = 0;
+        fds[0].revents = 0;
+        fds[1].revents = 0;
+        int rv = poll(fds, nfds, waitMs);
+        debuglog("XXX %d Got result from poll %d : %s\n",jsocket,rv,strerror(errno));
+
+        if (rv < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            throwIOException(jenv, "Error in poll");
+            return -1;
+        }
+        if (nfds == 2 && fds[1].revents != 0) {
+            return 0;
+        }
+        if (fds[0].revents != 0) {
+            // errors on the socket are reported by accept
+            return 1;
         }
-    } while (rv == -1 && errno == EINTR);
-
-    if (rv < 0) {
-        throwIOException(jenv, "Error in select");
-        return -1;
-    } else if (rv == 0) {
-        return 0; // timeout
     }
+}
 
-
+static jint acceptConnection(JNIEnv *jenv, jint jsocket) {
     int result;
     do {
+        errno = 0;
         struct sockaddr_un addr;
         bzero(&addr, sizeof(struct sockaddr_un));
         socklen_t rlen = sizeof(struct sockaddr_un);
@@ -294,7 +308,73 @@ Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_accept(JNIEnv *jenv, jclass j
     return result;
 }
 
+//    public static native int accept(int socket, long timeoutMs) throws UnixSocketException;
+// returns 0 in case that the accept timed out
+JNIEXPORT jint JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_accept(JNIEnv *jenv, jclass jClass, jint jsocket, jlong timeoutMs) {
+    int rv = awaitAccept(jenv, jsocket, -1, timeoutMs);
+    if (rv <= 0) {
+        return rv;
+    }
+    return acceptConnection(jenv, jsocket);
+}
+
+//    public static native int acceptOrWake(int socket, int wakeFd, long timeoutMs) throws UnixSocketException;
+// returns 0 in case that the accept timed out or wakeFd became readable
+JNIEXPORT jint JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_acceptOrWake(JNIEnv *jenv, jclass jClass, jint jsocket, jint wakeFd,
+                                                                jlong timeoutMs) {
+    int rv = awaitAccept(jenv, jsocket, wakeFd, timeoutMs);
+    if (rv <= 0) {
+        return rv;
+    }
+    return acceptConnection(jenv, jsocket);
+}
+
+//    public static native void pipe(int[] fds) throws UnixSocketException;
+JNIEXPORT void JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_pipe(JNIEnv *jenv, jclass jClass, jintArray jfds) {
+    errno = 0;
+    if (jfds == NULL) {
+        throwNPE(jenv, "fds is null");
+        return;
+    }
+    if ((*jenv)->GetArrayLength(jenv, jfds) < 2) {
+        throwIllegalArgumentException(jenv, "fds must have room for two descriptors");
+        return;
+    }
+
+    int fds[2];
+    if (pipe(fds) < 0) {
+        throwIOException(jenv, "Error creating pipe");
+        return;
+    }
+    // wakeups must never block the waker, and a full pipe is already a pending wakeup
+    if (fcntl(fds[0], F_SETFD, FD_CLOEXEC) < 0 || fcntl(fds[1], F_SETFD, FD_CLOEXEC) < 0
+        || fcntl(fds[1], F_SETFL, O_NONBLOCK) < 0) {
+        throwIOException(jenv, "Error configuring pipe");
+        close(fds[0]);
+        close(fds[1]);
+        return;
+    }
+    jint result[2] = {fds[0], fds[1]};
+    (*jenv)->SetIntArrayRegion(jenv, jfds, 0, 2, result);
+}
+
+//    public static native void wakeup(int pipeFd) throws UnixSocketException;
+JNIEXPORT void JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_wakeup(JNIEnv *jenv, jclass jClass, jint pipeFd) {
+    char b = 1;
+    ssize_t rv;
+    do {
+        errno = 0;
+        rv = write(pipeFd, &b, 1);
+    } while (rv == -1 && errno == EINTR);
 
+    if (rv < 0 && errno != EAGAIN) {
+        throwIOException(jenv, "Error writing to wakeup pipe");
+    }
+}
 
 //    public static native int recv(int socket, byte[] buffer, jint offset, jint length) throws UnixSocketException;
 JNIEXPORT jint JNICALL
@@ -410,6 +490,385 @@ Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_send(JNIEnv *jenv, jclass jCl
 
 
 
+
+/**
+ * Resolves a region of a direct byte buffer, throwing the appropriate java exception if the buffer or the region is invalid
+ * @return the address of the start of the region or NULL if an exception was thrown
+ */
+jbyte *directBufferRegion(JNIEnv *jenv, jobject jbuf, jint offset, jint length) {
+    if (jbuf == NULL) {
+        throwNPE(jenv, "buffer is null");
+        return NULL;
+    }
+
+    if (offset < 0 || length <= 0) {
+        throwIllegalArgumentException(jenv, "Invalid offset, length");
+        return NULL;
+    }
+
+    jbyte *buf = (*jenv)->GetDirectBufferAddress(jenv, jbuf);
+    if (buf == NULL) {
+        throwIllegalArgumentException(jenv, "Buffer is not a direct buffer");
+        return NULL;
+    }
+
+    jlong bufLen = (*jenv)->GetDirectBufferCapacity(jenv, jbuf);
+    if ((offset >= bufLen) || (length > (bufLen - offset))) {
+        throwIllegalArgumentException(jenv, "Invalid offset or length, beyond end of buffer");
+        return NULL;
+    }
+    return &(buf[offset]);
+}
+
+//    public static native int recvBuffer(int socket, ByteBuffer buffer, int offset, int length) throws UnixSocketException;
+JNIEXPORT jint JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_recvBuffer(JNIEnv *jenv, jclass jClass, jint jsocket, jobject jbuf,
+                                                              jint offset, jint length) {
+    errno = 0;
+
+    jbyte *buf = directBufferRegion(jenv, jbuf, offset, length);
+    if (buf == NULL) {
+        return -1;
+    }
+
+    ssize_t rcount;
+    do {
+        rcount = read(jsocket, buf, (size_t) length);
+        debuglog("XXX %d Got result from read %ld : %s\n",jsocket,rcount,strerror(errno));
+    } while (rcount == -1 && errno == EINTR);
+
+    if (rcount == 0) {
+        // EOF in c is -1 in java
+        return -1;
+    } else if (rcount < 0) {
+        if (errno == EAGAIN) {
+            throwSocketTimeoutException(jenv, "Timeout reading from socket");
+            return -1;
+        }
+        throwIOException(jenv, "Error reading from socket");
+        return -1;
+    }
+    return (jint) rcount;
+}
+
+//    public static native int sendBuffer(int socket, ByteBuffer buffer, int offset, int length) throws UnixSocketException;
+JNIEXPORT jint JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_sendBuffer(JNIEnv *jenv, jclass jClass, jint jsocket, jobject jbuf,
+                                                              jint offset, jint length) {
+    errno = 0;
+
+    jbyte *buf = directBufferRegion(jenv, jbuf, offset, length);
+    if (buf == NULL) {
+        return -1;
+    }
+
+    ssize_t wcount;
+    do {
+        wcount = write(jsocket, buf, (size_t) length);
+        debuglog("XXX %d Got result from write %ld : %s\n",jsocket,wcount,strerror(errno));
+    } while (wcount == -1 && errno == EINTR);
+
+    if (wcount < 0) {
+        if (errno == EAGAIN) {
+            throwSocketTimeoutException(jenv, "Timeout writing to socket");
+            return -1;
+        }
+        throwIOException(jenv, "Error writing to socket");
+        return -1;
+    }
+    return (jint) wcount;
+}
+
+// the most buffers that can be passed to a single vectored read or write, keeps the iovec array on the stack
+#define MAX_IO_VECTORS 16
+// the most bytes of a byte array that a single vectored read or write copies, callers loop over partial transfers
+#define MAX_ARRAY_REGION 65536
+
+static jclass byteArrayClass = NULL;
+
+/**
+ * The regions of a vectored read or write, byte arrays are copied through native memory that is held from
+ * vectorRegions until releaseVectorRegions
+ */
+struct ioVector {
+    jint count;
+    struct iovec iov[MAX_IO_VECTORS];
+    jbyteArray arrays[MAX_IO_VECTORS];
+    jint offsets[MAX_IO_VECTORS];
+    jbyte *copies[MAX_IO_VECTORS];
+};
+
+/**
+ * Frees the copies of byte array regions made by vectorRegions
+ * @param received  the number of bytes a read placed in the regions, these are copied back to the arrays, 0 for writes
+ */
+void releaseVectorRegions(JNIEnv *jenv, struct ioVector *vec, ssize_t received) {
+    for (int i = 0; i < vec->count; i++) {
+        size_t n = received > 0 ? (size_t) received : 0;
+        if (n > vec->iov[i].iov_len) {
+            n = vec->iov[i].iov_len;
+        }
+        if (vec->copies[i] != NULL) {
+            if (n > 0) {
+                (*jenv)->SetByteArrayRegion(jenv, vec->arrays[i], vec->offsets[i], (jsize) n, vec->copies[i]);
+            }
+            free(vec->copies[i]);
+            vec->copies[i] = NULL;
+        }
+        received -= (ssize_t) n;
+    }
+}
+
+/**
+ * Resolves the regions for a vectored read or write, each element of jbufs is either a direct ByteBuffer or a byte[]
+ *
+ * Only the [offset, offset + length) slice of a byte array is copied, to or from native memory of at most
+ * MAX_ARRAY_REGION bytes, rather than pinning or copying the whole array. A region cut short this way is the last of
+ * the vector, so that a transfer never skips the rest of it.
+ * @param send  whether the regions are to be written, in which case byte array slices are copied in
+ * @return 0 on success or -1 if an exception was thrown, in which case nothing is held
+ */
+int vectorRegions(JNIEnv *jenv, jobjectArray jbufs, jintArray joffsets, jintArray jlengths, jint count,
+                  jboolean send, struct ioVector *vec) {
+    vec->count = 0;
+    if (jbufs == NULL || joffsets == NULL || jlengths == NULL) {
+        throwNPE(jenv, "buffers are null");
+        return -1;
+    }
+    if (count <= 0 || count > MAX_IO_VECTORS || count > (*jenv)->GetArrayLength(jenv, jbufs) ||
+        count > (*jenv)->GetArrayLength(jenv, joffsets) || count > (*jenv)->GetArrayLength(jenv, jlengths)) {
+        throwIllegalArgumentException(jenv, "Invalid buffer count");
+        return -1;
+    }
+    if (byteArrayClass == NULL) {
+        jclass cls = (*jenv)->FindClass(jenv, "[B");
+        if (cls == NULL) { // JVM exception
+            return -1;
+        }
+        byteArrayClass = (jclass) (*jenv)->NewGlobalRef(jenv, cls);
+        if (byteArrayClass == NULL) {
+            return -1;
+        }
+    }
+
+    jint offsets[MAX_IO_VECTORS];
+    jint lengths[MAX_IO_VECTORS];
+    (*jenv)->GetIntArrayRegion(jenv, joffsets, 0, count, offsets);
+    (*jenv)->GetIntArrayRegion(jenv, jlengths, 0, count, lengths);
+
+    for (int i = 0; i < count; i++) {
+        jobject buf = (*jenv)->GetObjectArrayElement(jenv, jbufs, i);
+        vec->arrays[i] = NULL;
+        vec->copies[i] = NULL;
+        vec->offsets[i] = offsets[i];
+        if (buf != NULL && (*jenv)->IsInstanceOf(jenv, buf, byteArrayClass)) {
+            jint bufLen = (*jenv)->GetArrayLength(jenv, (jbyteArray) buf);
+            if (offsets[i] < 0 || lengths[i] <= 0 || offsets[i] >= bufLen || lengths[i] > (bufLen - offsets[i])) {
+                throwIllegalArgumentException(jenv, "Invalid offset or length, beyond end of buffer");
+                return -1;
+            }
+            vec->arrays[i] = (jbyteArray) buf;
+        } else {
+            jbyte *region = directBufferRegion(jenv, buf, offsets[i], lengths[i]);
+            if (region == NULL) {
+                return -1;
+            }
+            vec->iov[i].iov_base = region;
+        }
+        vec->iov[i].iov_len = (size_t) lengths[i];
+    }
+
+    for (int i = 0; i < count; i++) {
+        if (vec->arrays[i] == NULL) {
+            continue;
+        }
+        jint length = lengths[i] < MAX_ARRAY_REGION ? lengths[i] : MAX_ARRAY_REGION;
+        jbyte *copy = malloc((size_t) length);
+        if (copy == NULL) {
+            vec->count = i;
+            releaseVectorRegions(jenv, vec, 0);
+            throwSingleArgStringException(jenv, "java/lang/OutOfMemoryError", "Unable to allocate a buffer for a byte array");
+            return -1;
+        }
+        if (send) {
+            (*jenv)->GetByteArrayRegion(jenv, vec->arrays[i], offsets[i], length, copy);
+        }
+        vec->copies[i] = copy;
+        vec->iov[i].iov_base = copy;
+        vec->iov[i].iov_len = (size_t) length;
+        if (length < lengths[i]) {
+            // the rest of this array, and any regions after it, are transferred by a later call
+            count = i + 1;
+            break;
+        }
+    }
+    vec->count = count;
+    return 0;
+}
+
+//    public static native long recvBuffers(int socket, Object[] buffers, int[] offsets, int[] lengths, int count) throws UnixSocketException;
+JNIEXPORT jlong JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_recvBuffers(JNIEnv *jenv, jclass jClass, jint jsocket,
+                                                               jobjectArray jbufs, jintArray joffsets,
+                                                               jintArray jlengths, jint count) {
+    errno = 0;
+
+    struct ioVector vec;
+    if (vectorRegions(jenv, jbufs, joffsets, jlengths, count, JNI_FALSE, &vec) < 0) {
+        return -1;
+    }
+
+    ssize_t rcount;
+    do {
+        rcount = readv(jsocket, vec.iov, vec.count);
+        debuglog("XXX %d Got result from readv %ld : %s\n",jsocket,rcount,strerror(errno));
+    } while (rcount == -1 && errno == EINTR);
+
+    int err = errno;
+    releaseVectorRegions(jenv, &vec, rcount);
+    errno = err;
+
+    if (rcount == 0) {
+        // EOF in c is -1 in java
+        return -1;
+    } else if (rcount < 0) {
+        if (errno == EAGAIN) {
+            throwSocketTimeoutException(jenv, "Timeout reading from socket");
+            return -1;
+        }
+        throwIOException(jenv, "Error reading from socket");
+        return -1;
+    }
+    return (jlong) rcount;
+}
+
+//    public static native long sendBuffers(int socket, Object[] buffers, int[] offsets, int[] lengths, int count) throws UnixSocketException;
+JNIEXPORT jlong JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_sendBuffers(JNIEnv *jenv, jclass jClass, jint jsocket,
+                                                               jobjectArray jbufs, jintArray joffsets,
+                                                               jintArray jlengths, jint count) {
+    errno = 0;
+
+    struct ioVector vec;
+    if (vectorRegions(jenv, jbufs, joffsets, jlengths, count, JNI_TRUE, &vec) < 0) {
+        return -1;
+    }
+
+    ssize_t wcount;
+    do {
+        wcount = writev(jsocket, vec.iov, vec.count);
+        debuglog("XXX %d Got result from writev %ld : %s\n",jsocket,wcount,strerror(errno));
+    } while (wcount == -1 && errno == EINTR);
+
+    int err = errno;
+    releaseVectorRegions(jenv, &vec, 0);
+    errno = err;
+
+    if (wcount < 0) {
+        if (errno == EAGAIN) {
+            throwSocketTimeoutException(jenv, "Timeout writing to socket");
+            return -1;
+        }
+        throwIOException(jenv, "Error writing to socket");
+        return -1;
+    }
+    return (jlong) wcount;
+}
+
+//    public static native long sendFile(int socket, int fileFd, long position, long count) throws UnixSocketException;
+JNIEXPORT jlong JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_sendFile(JNIEnv *jenv, jclass jClass, jint jsocket, jint jfile,
+                                                            jlong position, jlong count) {
+    errno = 0;
+    if (position < 0 || count < 0) {
+        throwIllegalArgumentException(jenv, "Invalid position, count");
+        return -1;
+    }
+
+#ifdef __linux__
+    off_t offset = (off_t) position;
+    ssize_t wcount;
+    do {
+        wcount = sendfile(jsocket, jfile, &offset, (size_t) count);
+        debuglog("XXX %d Got result from sendfile %ld : %s\n",jsocket,wcount,strerror(errno));
+    } while (wcount == -1 && errno == EINTR);
+
+    if (wcount < 0) {
+        if (errno == EAGAIN) {
+            throwSocketTimeoutException(jenv, "Timeout writing to socket");
+            return -1;
+        }
+        throwIOException(jenv, "Error sending file to socket");
+        return -1;
+    }
+    // zero at the end of the file
+    return (jlong) wcount;
+#else
+    throwIOException(jenv, "sendfile is not supported on this platform");
+    return -1;
+#endif
+}
+
+static jclass fileChannelImplClass = NULL;
+static jfieldID fileChannelFdField = NULL;
+static jfieldID fileDescriptorFdField = NULL;
+
+//    public static native int fileDescriptor(FileChannel channel);
+JNIEXPORT jint JNICALL
+Java_com_fnproject_fn_runtime_ntv_UnixSocketNative_fileDescriptor(JNIEnv *jenv, jclass jClass, jobject jchannel) {
+    if (jchannel == NULL) {
+        throwNPE(jenv, "channel is null");
+        return -1;
+    }
+
+#ifdef __linux__
+    // the descriptor of the JDK's FileChannelImpl is private, JNI field access isn't subject to access checks
+    if (fileDescriptorFdField == NULL) {
+        jclass implClass = (*jenv)->FindClass(jenv, "sun/nio/ch/FileChannelImpl");
+        if (implClass == NULL) {
+            (*jenv)->ExceptionClear(jenv);
+            return -1;
+        }
+        jfieldID channelFdField = (*jenv)->GetFieldID(jenv, implClass, "fd", "Ljava/io/FileDescriptor;");
+        if (channelFdField == NULL) {
+            (*jenv)->ExceptionClear(jenv);
+            return -1;
+        }
+        jclass descriptorClass = (*jenv)->FindClass(jenv, "java/io/FileDescriptor");
+        if (descriptorClass == NULL) {
+            (*jenv)->ExceptionClear(jenv);
+            return -1;
+        }
+        jfieldID descriptorFdField = (*jenv)->GetFieldID(jenv, descriptorClass, "fd", "I");
+        if (descriptorFdField == NULL) {
+            (*jenv)->ExceptionClear(jenv);
+            return -1;
+        }
+        fileChannelImplClass = (*jenv)->NewGlobalRef(jenv, implClass);
+        if (fileChannelImplClass == NULL) {
+            (*jenv)->ExceptionClear(jenv);
+            return -1;
+        }
+        fileChannelFdField = channelFdField;
+        fileDescriptorFdField = descriptorFdField;
+    }
+
+    if (!(*jenv)->IsInstanceOf(jenv, jchannel, fileChannelImplClass)) {
+        // not a JDK file channel
+        return -1;
+    }
+
+    jobject descriptor = (*jenv)->GetObjectField(jenv, jchannel, fileChannelFdField);
+    if (descriptor == NULL) {
+        return -1;
+    }
+    return (*jenv)->GetIntField(jenv, descriptor, fileDescriptorFdField);
+#else
+    // without sendfile there is no use for the descriptor, callers copy the file instead
+    return -1;
+#endif
+}
+
 //     public static native  close(int socket);
 
 JNIEXPORT void JNICALL
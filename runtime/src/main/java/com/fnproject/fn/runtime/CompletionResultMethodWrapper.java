@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.api.MethodWrapper;
+import com.fnproject.fn.api.TypeWrapper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Presents a method returning a {@link CompletionStage} as one returning the value the stage completes with, so that
+ * the value is coerced as if the method had returned it directly
+ */
+final class CompletionResultMethodWrapper implements MethodWrapper {
+    private final MethodWrapper method;
+    private final TypeWrapper resultType;
+
+    CompletionResultMethodWrapper(MethodWrapper method) {
+        this.method = method;
+        this.resultType = MethodTypeWrapper.fromCompletionResult(method);
+    }
+
+    /**
+     * @return true if a method returns a {@link CompletionStage}
+     */
+    static boolean isAsync(MethodWrapper method) {
+        return CompletionStage.class.isAssignableFrom(method.getTargetMethod().getReturnType());
+    }
+
+    @Override
+    public Class<?> getTargetClass() {
+        return method.getTargetClass();
+    }
+
+    @Override
+    public Method getTargetMethod() {
+        return method.getTargetMethod();
+    }
+
+    @Override
+    public TypeWrapper getParamType(int index) {
+        return method.getParamType(index);
+    }
+
+    @Override
+    public TypeWrapper getReturnType() {
+        return resultType;
+    }
+
+    @Override
+    public int getParameterCount() {
+        return method.getParameterCount();
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.exception.FunctionInitializationException;
+import com.fnproject.fn.runtime.exception.InternalFunctionInvocationException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enforces the deadline the platform sets for each call with the Fn-Deadline header
+ * <p>
+ * When env["FDK_ENFORCE_DEADLINES"] is true, calls that have overrun their deadline are answered with a timeout
+ * rather than continuing to read their input, call the function or write its result. A function that is still
+ * running at its deadline is interrupted, and the result of an asynchronous function is cancelled.
+ */
+final class Deadlines {
+    static final String ENFORCE_DEADLINES = "FDK_ENFORCE_DEADLINES";
+
+    private Deadlines() {
+    }
+
+    static boolean parseEnforced(String value) {
+        if (value == null || value.trim().isEmpty() || value.trim().equalsIgnoreCase("false")) {
+            return false;
+        }
+        if (value.trim().equalsIgnoreCase("true")) {
+            return true;
+        }
+        throw new FunctionInitializationException("Invalid value for " + ENFORCE_DEADLINES + " - it should be true or false :'" + value + "'");
+    }
+
+    static boolean hasExpired(Instant deadline) {
+        return !Instant.now().isBefore(deadline);
+    }
+
+    /**
+     * @throws InternalFunctionInvocationException with a timeout result if the deadline has passed
+     */
+    static void check(Instant deadline, String phase) {
+        if (hasExpired(deadline)) {
+            throw exceeded(deadline, phase);
+        }
+    }
+
+    static InternalFunctionInvocationException exceeded(Instant deadline, String phase) {
+        return new InternalFunctionInvocationException("Deadline " + deadline + " exceeded " + phase, null, OutputEvent.emptyResult(OutputEvent.Status.FunctionTimeout));
+    }
+
+    /**
+     * Interrupts the current thread if it is still running when the deadline passes
+     *
+     * @return an interrupter to close once the work is done, this clears any interrupt it caused
+     */
+    static Interrupter interruptAt(Instant deadline) {
+        return new Interrupter(deadline);
+    }
+
+    /**
+     * @return a stage completing as the given stage does, or with a timeout if the deadline passes first in which case
+     * the given stage is cancelled
+     */
+    static <T> CompletionStage<T> within(CompletionStage<T> stage, Instant deadline) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = Timer.INSTANCE.schedule(() -> {
+            if (result.completeExceptionally(exceeded(deadline, "before the function's result completed"))) {
+                try {
+                    stage.toCompletableFuture().cancel(true);
+                } catch (UnsupportedOperationException ignored) {
+                    // the stage can't be cancelled, its result is ignored
+                }
+            }
+        }, nanosUntil(deadline), TimeUnit.NANOSECONDS);
+        stage.whenComplete((value, error) -> {
+            timeout.cancel(false);
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    private static long nanosUntil(Instant deadline) {
+        try {
+            return Math.max(0, Duration.between(Instant.now(), deadline).toNanos());
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Interrupts a thread at a deadline unless it is closed first
+     */
+    static final class Interrupter implements AutoCloseable {
+        private static final int RUNNING = 0;
+        private static final int INTERRUPTING = 1;
+        private static final int INTERRUPTED = 2;
+        private static final int CLOSED = 3;
+
+        private final Thread thread = Thread.currentThread();
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private final ScheduledFuture<?> timer;
+
+        private Interrupter(Instant deadline) {
+            timer = Timer.INSTANCE.schedule(this::interrupt, nanosUntil(deadline), TimeUnit.NANOSECONDS);
+        }
+
+        private void interrupt() {
+            if (state.compareAndSet(RUNNING, INTERRUPTING)) {
+                thread.interrupt();
+                state.set(INTERRUPTED);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (state.compareAndSet(RUNNING, CLOSED)) {
+                timer.cancel(false);
+                return;
+            }
+            while (state.get() != INTERRUPTED) {
+                Thread.yield();
+            }
+            // the interrupt was meant for the function, not for the runtime code that follows it
+            Thread.interrupted();
+        }
+    }
+
+    private static final class Timer {
+        static final ScheduledThreadPoolExecutor INSTANCE;
+
+        static {
+            INSTANCE = new ScheduledThreadPoolExecutor(1, (r) -> {
+                Thread t = new Thread(r, "fn-deadline-timer");
+                t.setDaemon(true);
+                return t;
+            });
+            // most calls finish well before their deadline, their timers are dropped rather than left queued
+            INSTANCE.setRemoveOnCancelPolicy(true);
+        }
+    }
+}
@@ -29,10 +29,14 @@ import java.util.Arrays;
 public class DefaultMethodWrapper implements MethodWrapper {
     private final Class<?> srcClass;
     private final Method srcMethod;
+    // resolving generic types is costly so each is resolved once, concurrent callers may both resolve the same type
+    private final TypeWrapper[] paramTypes;
+    private volatile TypeWrapper returnType;
 
     public DefaultMethodWrapper(Class<?> srcClass, Method srcMethod) {
         this.srcClass = srcClass;
         this.srcMethod = srcMethod;
+        this.paramTypes = new TypeWrapper[srcMethod.getParameterCount()];
     }
 
     public DefaultMethodWrapper(Class<?> srcClass, String srcMethod) {
@@ -55,12 +59,27 @@ public class DefaultMethodWrapper implements MethodWrapper {
 
     @Override
     public TypeWrapper getParamType(int index) {
-        return MethodTypeWrapper.fromParameter(this, index);
+        TypeWrapper type = paramTypes[index];
+        if (type == null) {
+            type = MethodTypeWrapper.fromParameter(this, index);
+            paramTypes[index] = type;
+        }
+        return type;
     }
 
     @Override
     public TypeWrapper getReturnType() {
-        return MethodTypeWrapper.fromReturnType(this);
+        TypeWrapper type = returnType;
+        if (type == null) {
+            type = MethodTypeWrapper.fromReturnType(this);
+            returnType = type;
+        }
+        return type;
+    }
+
+    @Override
+    public int getParameterCount() {
+        return paramTypes.length;
     }
 
     @Override
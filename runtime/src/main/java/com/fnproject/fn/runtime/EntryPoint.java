@@ -23,9 +23,15 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
@@ -48,6 +54,10 @@ import com.fnproject.fn.runtime.exception.InvalidEntryPointException;
 public class EntryPoint {
 
 
+    // selects the JDK unix socket transport rather than the native library when set to "nio"
+    private static final String TRANSPORT = "FDK_TRANSPORT";
+    private static final String NIO_TRANSPORT = "nio";
+
     // regex to sanitize version properties on the off chance they fall outside of acceptable header values
     private static final Pattern safeVersion = Pattern.compile("[^\\w ()._-]+");
 
@@ -66,7 +76,19 @@ public class EntryPoint {
                 jvmVersion + ")");
             String runtimeVersion = "java/" + jvmName + " " + jvmVersion;
 
-            codec = new HTTPStreamCodec(System.getenv(), fdkVersion, runtimeVersion);
+            String transport = System.getenv().getOrDefault(TRANSPORT, "");
+            if (transport.equalsIgnoreCase(NIO_TRANSPORT) && NIOHTTPStreamCodec.isSupported()) {
+                codec = new NIOHTTPStreamCodec(System.getenv(), fdkVersion, runtimeVersion);
+            } else {
+                if (transport.equalsIgnoreCase(NIO_TRANSPORT)) {
+                    System.err.println(TRANSPORT + "=" + NIO_TRANSPORT + " requires Java 16 or later, using the native transport");
+                }
+                if (System.getenv().getOrDefault(NIOHTTPStreamCodec.VIRTUAL_THREADS, "").trim().equalsIgnoreCase("true")) {
+                    // blocking in the native library would pin the virtual thread to its carrier
+                    System.err.println(NIOHTTPStreamCodec.VIRTUAL_THREADS + "=true requires " + TRANSPORT + "=" + NIO_TRANSPORT + ", using platform threads");
+                }
+                codec = new HTTPStreamCodec(System.getenv(), fdkVersion, runtimeVersion);
+            }
         } else {
             throw new FunctionInputHandlingException("Unsupported function format:" + format);
         }
@@ -129,42 +151,101 @@ public class EntryPoint {
             final Map<String, String> configFromEnvVars = Collections.unmodifiableMap(excludeInternalConfigAndHeaders(env));
             Consumer<InputEvent> logFramer = logFramer(configFromEnvVars);
             codec.runCodec(new EventCodec.Handler() {
-                FunctionRuntimeContext _runtimeContext;
+                volatile FunctionRuntimeContext _runtimeContext;
+                // a lock rather than a monitor so virtual threads waiting for initialization don't pin their carriers
+                final Lock initLock = new ReentrantLock();
 
                 // Create runtime context within first call to ensure that init errors are propagated
                 private FunctionRuntimeContext getRuntimeContext() {
-                    if (_runtimeContext == null) {
-                        FunctionLoader functionLoader = new FunctionLoader();
-
-                        MethodWrapper method = functionLoader.loadClass(cls, mth);
-                        FunctionRuntimeContext runtimeContext = new FunctionRuntimeContext(method, configFromEnvVars);
-                        FnFeature f = method.getTargetClass().getAnnotation(FnFeature.class);
-                        if (f != null) {
-                            enableFeature(runtimeContext, f);
-                        }
-                        FnFeatures fs = method.getTargetClass().getAnnotation(FnFeatures.class);
-                        if (fs != null) {
-                            for (FnFeature fnFeature : fs.value()) {
-                                enableFeature(runtimeContext, fnFeature);
+                    FunctionRuntimeContext runtimeContext = _runtimeContext;
+                    if (runtimeContext != null) {
+                        return runtimeContext;
+                    }
+                    return initRuntimeContext();
+                }
+
+                // calls may arrive concurrently, only the first of these initializes the function
+                private FunctionRuntimeContext initRuntimeContext() {
+                    initLock.lock();
+                    try {
+                        if (_runtimeContext == null) {
+                            FunctionLoader functionLoader = new FunctionLoader();
+
+                            MethodWrapper method = functionLoader.loadClass(cls, mth);
+                            FunctionRuntimeContext runtimeContext = new FunctionRuntimeContext(method, configFromEnvVars);
+                            FnFeature f = method.getTargetClass().getAnnotation(FnFeature.class);
+                            if (f != null) {
+                                enableFeature(runtimeContext, f);
+                            }
+                            FnFeatures fs = method.getTargetClass().getAnnotation(FnFeatures.class);
+                            if (fs != null) {
+                                for (FnFeature fnFeature : fs.value()) {
+                                    enableFeature(runtimeContext, fnFeature);
+                                }
                             }
-                        }
 
-                        FunctionConfigurer functionConfigurer = new FunctionConfigurer();
-                        functionConfigurer.configure(runtimeContext);
-                        _runtimeContext = runtimeContext;
+                            FunctionConfigurer functionConfigurer = new FunctionConfigurer();
+                            functionConfigurer.configure(runtimeContext);
+                            _runtimeContext = runtimeContext;
+                        }
+                        return _runtimeContext;
+                    } finally {
+                        initLock.unlock();
                     }
-                    return _runtimeContext;
                 }
 
                 @Override
                 public OutputEvent handle(InputEvent evt) {
+                    try {
+                        return handleAsync(evt).toCompletableFuture().join();
+                    } catch (CompletionException e) {
+                        // only unchecked exceptions are thrown while completing a call
+                        if (e.getCause() instanceof Error) {
+                            throw (Error) e.getCause();
+                        }
+                        throw (RuntimeException) e.getCause();
+                    }
+                }
+
+                @Override
+                public CompletionStage<OutputEvent> handleAsync(InputEvent evt) {
                     try {
                         // output log frame prior to any user code execution
                         logFramer.accept(evt);
                         FunctionRuntimeContext runtimeContext = getRuntimeContext();
                         FunctionInvocationContext fic = runtimeContext.newInvocationContext(evt);
+                        CompletionStage<OutputEvent> invocation;
+                        try {
+                            invocation = runtimeContext.tryInvokeAsync(evt, fic);
+                        } catch (RuntimeException e) {
+                            CompletableFuture<OutputEvent> failed = new CompletableFuture<>();
+                            failed.completeExceptionally(e);
+                            invocation = failed;
+                        }
+                        CompletableFuture<OutputEvent> result = invocation.toCompletableFuture();
+                        if (result.isDone() && !result.isCompletedExceptionally()) {
+                            // synchronous functions complete here without chaining another stage
+                            return CompletableFuture.completedFuture(completeInvocation(evt, fic, result.join(), null));
+                        }
+                        return invocation.handle((output, error) -> completeInvocation(evt, fic, output, error));
+                    } catch (RuntimeException e) {
+                        return CompletableFuture.completedFuture(errorOutput(e));
+                    }
+                }
+
+                /**
+                 * Completes a call once the function's output is available, the input is closed at this point
+                 */
+                private OutputEvent completeInvocation(InputEvent evt, FunctionInvocationContext fic, OutputEvent output, Throwable error) {
+                    try {
                         try (InputEvent myEvt = evt) {
-                            OutputEvent output = runtimeContext.tryInvoke(evt, fic);
+                            if (error != null) {
+                                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                                if (cause instanceof Error) {
+                                    throw (Error) cause;
+                                }
+                                throw (RuntimeException) cause;
+                            }
                             if (output == null) {
                                 throw new FunctionInputHandlingException("No invoker found for input event");
                             }
@@ -176,7 +257,11 @@ public class EntryPoint {
                                 fic.fireOnFailedInvocation();
                             }
 
-                            return output.withHeaders(output.getHeaders().setHeaders(fic.getAdditionalResponseHeaders()));
+                            Map<String, List<String>> additionalHeaders = fic.getAdditionalResponseHeaders();
+                            if (additionalHeaders.isEmpty()) {
+                                return output;
+                            }
+                            return output.withHeaders(output.getHeaders().setHeaders(additionalHeaders));
 
 
                         } catch (IOException err) {
@@ -187,20 +272,31 @@ public class EntryPoint {
                             fic.fireOnFailedInvocation();
                             throw e;
                         }
-                    } catch (InternalFunctionInvocationException fie) {
+                    } catch (RuntimeException e) {
+                        return errorOutput(e);
+                    }
+                }
+
+                /**
+                 * Converts a failed call to an error response, rethrowing exceptions that are not expected
+                 */
+                private OutputEvent errorOutput(RuntimeException e) {
+                    if (e instanceof InternalFunctionInvocationException) {
+                        InternalFunctionInvocationException fie = (InternalFunctionInvocationException) e;
                         loggingOutput.println("An error occurred in function: " + filterStackTraceToOnlyIncludeUsersCode(fie));
                         loggingOutput.flush();
                         // Here: completer-invoked continuations are *always* reported as successful to the Fn platform;
                         // the completer interprets the embedded HTTP-framed response.
                         lastStatus.set(fie.toOutput().isSuccess() ? 0 : 1);
                         return fie.toOutput();
-                    } catch (FunctionLoadException | FunctionInputHandlingException | FunctionOutputHandlingException e) {
+                    } else if (e instanceof FunctionLoadException || e instanceof FunctionInputHandlingException || e instanceof FunctionOutputHandlingException) {
                         // catch all block;
                         loggingOutput.println(filterStackTraceToOnlyIncludeUsersCode(e));
                         loggingOutput.flush();
                         lastStatus.set(2);
                         return new InternalFunctionInvocationException("Error initializing function", e).toOutput();
                     }
+                    throw e;
                 }
 
             });
@@ -19,6 +19,9 @@ package com.fnproject.fn.runtime;
 import com.fnproject.fn.api.InputEvent;
 import com.fnproject.fn.api.OutputEvent;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Event Codec - deals with different calling conventions between fn and the function docker container
  */
@@ -37,6 +40,19 @@ public interface EventCodec {
          * @return an output event indicating the result of calling a function or an error
          */
         OutputEvent handle(InputEvent event);
+
+        /**
+         * Handle a function input event, the response may be produced after this returns
+         * <p>
+         * This allows codecs that serve calls concurrently to use the calling thread for other calls while a function
+         * that returns a {@link java.util.concurrent.CompletionStage} is in flight. By default this calls {@link #handle(InputEvent)}.
+         *
+         * @param event the event to handle
+         * @return a stage that completes with an output event indicating the result of calling a function or an error
+         */
+        default CompletionStage<OutputEvent> handleAsync(InputEvent event) {
+            return CompletableFuture.completedFuture(handle(event));
+        }
     }
 
     /**
@@ -17,7 +17,9 @@
 package com.fnproject.fn.runtime;
 
 import com.fnproject.fn.api.FnConfiguration;
+import com.fnproject.fn.api.FnInstancePool;
 import com.fnproject.fn.api.MethodWrapper;
+import com.fnproject.fn.api.RuntimeContext;
 import com.fnproject.fn.api.exception.FunctionConfigurationException;
 
 import java.lang.reflect.InvocationTargetException;
@@ -25,7 +27,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * Loads function entry points based on their class name and method name creating a {@link FunctionRuntimeContext}
@@ -40,7 +42,33 @@ public class FunctionConfigurer {
      */
     public void configure(FunctionRuntimeContext runtimeContext) {
         validateConfigurationMethods(runtimeContext.getMethodWrapper());
+        validateInstancePool(runtimeContext.getMethodWrapper().getTargetClass());
+        // created now so that a function method the runtime cannot call fails the function's initialization
+        runtimeContext.getMethodCaller();
         applyUserConfigurationMethod(runtimeContext.getMethodWrapper(), runtimeContext);
+        runtimeContext.setInstanceConfigurer((instance) -> configureInstance(runtimeContext, instance));
+        // resolved once the configuration methods have added their coercions and set up the object mapper
+        runtimeContext.resolveCoercionPlans();
+        if (!Modifier.isStatic(runtimeContext.getMethodWrapper().getTargetMethod().getModifiers())) {
+            // the pool is created along with the function rather than by its first call
+            runtimeContext.getInstancePool();
+        }
+    }
+
+    /**
+     * Calls the instance configuration methods on a further instance of the function class, this is used for the
+     * instances of a {@link FnInstancePool}
+     * <p>
+     * The function itself was configured along with its first instance, so these methods are given a context that
+     * ignores the coercions, invokers and attributes they add.
+     *
+     * @param runtimeContext The runtime context the instance belongs to
+     * @param instance       The new instance
+     */
+    void configureInstance(FunctionRuntimeContext runtimeContext, Object instance) {
+        configurationMethods(runtimeContext.getMethodWrapper())
+                .filter((m) -> !Modifier.isStatic(m.getModifiers()))
+                .forEach((configMethod) -> invokeConfigurationMethod(configMethod, instance, runtimeContext.getPooledInstanceContext()));
     }
 
 
@@ -68,9 +96,24 @@ public class FunctionConfigurer {
         }
     }
 
+    /**
+     * @throws FunctionConfigurationException if the function class has an {@link FnInstancePool} annotation with a
+     *                                        size of less than one
+     */
+    static void validateInstancePool(Class<?> functionClass) {
+        FnInstancePool pool = functionClass.getAnnotation(FnInstancePool.class);
+        if (pool != null && pool.value() < 1) {
+            throw new FunctionConfigurationException("The instance pool size of " + functionClass + " must be at least one, it is " + pool.value());
+        }
+    }
+
     private void applyUserConfigurationMethod(MethodWrapper targetClass, FunctionRuntimeContext runtimeContext) {
+        configurationMethods(targetClass)
+                .forEach(configMethod -> invokeConfigurationMethod(configMethod, runtimeContext.getInvokeInstance().orElse(null), runtimeContext));
+    }
 
-        Arrays.stream(targetClass.getTargetClass().getMethods())
+    private Stream<Method> configurationMethods(MethodWrapper targetClass) {
+        return Arrays.stream(targetClass.getTargetClass().getMethods())
                 .filter(this::isConfigurationMethod)
                 .sorted(Comparator.<Method>comparingInt((m) -> Modifier.isStatic(m.getModifiers()) ? 0 : 1) // run static methods first
                         .thenComparing(Comparator.<Method>comparingInt((m) -> { // depth first in implementation
@@ -81,25 +124,24 @@ public class FunctionConfigurer {
                                 cc = cc.getSuperclass();
                             }
                             return depth;
-                        })))
-                .forEach(configMethod -> {
-                    try {
-                        Optional<Object> fnInstance = runtimeContext.getInvokeInstance();
-
-                        // Allow the runtime context parameter to be optional
-                        if (configMethod.getParameterCount() == 0) {
-                            configMethod.invoke(fnInstance.orElse(null));
-                        } else {
-                            configMethod.invoke(fnInstance.orElse(null), runtimeContext);
-                        }
-
-                    } catch ( InvocationTargetException e){
-                        throw new FunctionConfigurationException("Error invoking configuration method: " + configMethod.getName(), e.getCause());
-
-                    } catch (IllegalAccessException e) {
-                        throw new FunctionConfigurationException("Error invoking configuration method: " + configMethod.getName(), e);
-                    }
-                });
+                        })));
+    }
+
+    private void invokeConfigurationMethod(Method configMethod, Object fnInstance, RuntimeContext runtimeContext) {
+        try {
+            // Allow the runtime context parameter to be optional
+            if (configMethod.getParameterCount() == 0) {
+                configMethod.invoke(fnInstance);
+            } else {
+                configMethod.invoke(fnInstance, runtimeContext);
+            }
+
+        } catch ( InvocationTargetException e){
+            throw new FunctionConfigurationException("Error invoking configuration method: " + configMethod.getName(), e.getCause());
+
+        } catch (IllegalAccessException e) {
+            throw new FunctionConfigurationException("Error invoking configuration method: " + configMethod.getName(), e);
+        }
     }
 
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.runtime.exception.InternalFunctionInvocationException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of function instances for classes annotated with {@link com.fnproject.fn.api.FnInstancePool}
+ * <p>
+ * Each call checks out an instance that no other call is using and returns it when the call completes. Instances are
+ * created by the factory as they are first needed, and idle instances are reused most recently returned first so
+ * that a lightly loaded function keeps using the same few instances.
+ */
+final class FunctionInstancePool {
+    private final Semaphore available;
+    private final Deque<Object> idle = new ConcurrentLinkedDeque<>();
+    private final Supplier<Object> factory;
+
+    /**
+     * @param size    the maximum number of instances
+     * @param first   an instance that has already been created, this counts towards the size
+     * @param factory creates and configures further instances
+     */
+    FunctionInstancePool(int size, Object first, Supplier<Object> factory) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Instance pool size must be at least one");
+        }
+        this.available = new Semaphore(size, true);
+        this.factory = factory;
+        idle.push(first);
+    }
+
+    /**
+     * Takes an instance from the pool, waiting for one to be returned if they are all in use
+     *
+     * @param deadline if not null, waiting stops once the deadline passes
+     * @return an instance that must be passed to {@link #release(Object)} once the call has finished with it
+     * @throws InternalFunctionInvocationException if no instance becomes available before the deadline or the
+     *                                             thread is interrupted while waiting
+     */
+    Object checkout(Instant deadline) {
+        try {
+            if (deadline == null) {
+                available.acquire();
+            } else {
+                long remaining = Math.max(0, Duration.between(Instant.now(), deadline).toNanos());
+                if (!available.tryAcquire(remaining, TimeUnit.NANOSECONDS)) {
+                    throw Deadlines.exceeded(deadline, "while waiting for a function instance");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalFunctionInvocationException("Interrupted while waiting for a function instance", e);
+        }
+
+        Object instance = idle.poll();
+        if (instance == null) {
+            try {
+                instance = factory.get();
+            } catch (RuntimeException | Error e) {
+                available.release();
+                throw e;
+            }
+        }
+        return instance;
+    }
+
+    void release(Object instance) {
+        idle.push(instance);
+        available.release();
+    }
+}
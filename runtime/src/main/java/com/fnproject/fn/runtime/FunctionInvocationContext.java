@@ -21,26 +21,42 @@ import com.fnproject.fn.api.InputEvent;
 import com.fnproject.fn.api.InvocationContext;
 import com.fnproject.fn.api.InvocationListener;
 
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Function invocation context implementation,
  * Delegates invocation callbacks to configured listeners
  */
 public class FunctionInvocationContext implements InvocationContext, FunctionInvocationCallback {
+    // most calls add no listeners or headers, so their collections are only created when the first is added
+    private static final AtomicReferenceFieldUpdater<FunctionInvocationContext, List<InvocationListener>> LISTENERS =
+      updater(List.class, "invocationListeners");
+    private static final AtomicReferenceFieldUpdater<FunctionInvocationContext, Map<String, List<String>>> HEADERS =
+      updater(Map.class, "additionalResponseHeaders");
+
     private final FunctionRuntimeContext runtimeContext;
-    private final List<InvocationListener> invocationListeners = new CopyOnWriteArrayList<>();
+    private volatile List<InvocationListener> invocationListeners;
 
     private final InputEvent event;
-    private final Map<String, List<String>> additionalResponseHeaders = new ConcurrentHashMap<>();
+    private volatile Map<String, List<String>> additionalResponseHeaders;
 
     FunctionInvocationContext(FunctionRuntimeContext ctx, InputEvent event) {
         this.runtimeContext = ctx;
         this.event = event;
     }
 
+    /**
+     * Creates an updater for a field whose type is a parameterized type of the given class
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> AtomicReferenceFieldUpdater<FunctionInvocationContext, V> updater(Class<? super V> fieldClass, String fieldName) {
+        return (AtomicReferenceFieldUpdater<FunctionInvocationContext, V>) AtomicReferenceFieldUpdater.newUpdater(FunctionInvocationContext.class, fieldClass, fieldName);
+    }
+
     @Override
     public FunctionRuntimeContext getRuntimeContext() {
         return runtimeContext;
@@ -48,6 +64,9 @@ public class FunctionInvocationContext implements InvocationContext, FunctionInv
 
     @Override
     public void addListener(InvocationListener listener) {
+        if (invocationListeners == null) {
+            LISTENERS.compareAndSet(this, null, new CopyOnWriteArrayList<>());
+        }
         invocationListeners.add(listener);
     }
 
@@ -56,12 +75,17 @@ public class FunctionInvocationContext implements InvocationContext, FunctionInv
         return event.getHeaders();
     }
 
+    @Override
+    public Instant getDeadline() {
+        return event.getDeadline();
+    }
+
     @Override
     public void addResponseHeader(String key, String value) {
         Objects.requireNonNull(key, "key");
         Objects.requireNonNull(value, "value");
 
-        additionalResponseHeaders.merge(key, Collections.singletonList(value), (a, b) -> {
+        responseHeaders().merge(key, Collections.singletonList(value), (a, b) -> {
             List<String> l = new ArrayList<>(a);
             l.addAll(b);
             return l;
@@ -71,9 +95,17 @@ public class FunctionInvocationContext implements InvocationContext, FunctionInv
     /**
      * returns the internal map of added response headers
      *
-     * @return mutable map of internal response headers
+     * @return map of internal response headers, this is empty and immutable if no headers have been added
      */
     Map<String, List<String>> getAdditionalResponseHeaders() {
+        Map<String, List<String>> headers = additionalResponseHeaders;
+        return headers == null ? Collections.emptyMap() : headers;
+    }
+
+    private Map<String, List<String>> responseHeaders() {
+        if (additionalResponseHeaders == null) {
+            HEADERS.compareAndSet(this, null, new ConcurrentHashMap<>());
+        }
         return additionalResponseHeaders;
     }
 
@@ -85,15 +117,19 @@ public class FunctionInvocationContext implements InvocationContext, FunctionInv
 
         String cKey = Headers.canonicalKey(key);
         if (value == null) {
-            additionalResponseHeaders.remove(cKey);
+            getAdditionalResponseHeaders().remove(cKey);
             return;
         }
-        additionalResponseHeaders.put(cKey, Collections.singletonList(value));
+        responseHeaders().put(cKey, Collections.singletonList(value));
     }
 
     @Override
     public void fireOnSuccessfulInvocation() {
-        for (InvocationListener listener : invocationListeners) {
+        List<InvocationListener> listeners = invocationListeners;
+        if (listeners == null) {
+            return;
+        }
+        for (InvocationListener listener : listeners) {
             try {
                 listener.onSuccess();
             } catch (Exception ignored) {
@@ -103,7 +139,11 @@ public class FunctionInvocationContext implements InvocationContext, FunctionInv
 
     @Override
     public void fireOnFailedInvocation() {
-        for (InvocationListener listener : invocationListeners) {
+        List<InvocationListener> listeners = invocationListeners;
+        if (listeners == null) {
+            return;
+        }
+        for (InvocationListener listener : listeners) {
             try {
                 listener.onFailure();
             } catch (Exception ignored) {
@@ -20,37 +20,70 @@ import com.fnproject.fn.api.*;
 import com.fnproject.fn.api.exception.FunctionConfigurationException;
 import com.fnproject.fn.api.exception.FunctionInputHandlingException;
 import com.fnproject.fn.runtime.coercion.*;
+import com.fnproject.fn.runtime.coercion.jackson.BinaryFormatCoercion;
 import com.fnproject.fn.runtime.coercion.jackson.JacksonCoercion;
 import com.fnproject.fn.runtime.exception.FunctionClassInstantiationException;
+import com.fnproject.fn.runtime.exception.InvalidFunctionDefinitionException;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class FunctionRuntimeContext implements RuntimeContext {
 
     private final Map<String, String> config;
     private final MethodWrapper method;
-    private final Map<String, Object>  attributes = new HashMap<>();
-    private final List<FunctionInvoker> preCallHandlers = new ArrayList<>();
-    private final List<FunctionInvoker> configuredInvokers = new ArrayList<>();
-
-    private Object instance;
-
-    private final List<InputCoercion> builtinInputCoercions = Arrays.asList(new ContextCoercion(), new StringCoercion(), new ByteArrayCoercion(), new InputEventCoercion(), JacksonCoercion.instance());
-    private final List<InputCoercion> userInputCoercions = new LinkedList<>();
-    private final List<OutputCoercion> builtinOutputCoercions = Arrays.asList(new StringCoercion(), new ByteArrayCoercion(), new VoidCoercion(), new OutputEventCoercion(), JacksonCoercion.instance());
-    private final List<OutputCoercion> userOutputCoercions = new LinkedList<>();
+    // the codec may invoke the function concurrently, so all shared state here must be thread-safe
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final List<FunctionInvoker> preCallHandlers = new CopyOnWriteArrayList<>();
+    private final List<FunctionInvoker> configuredInvokers = new CopyOnWriteArrayList<>();
+    private final List<InvocationFilter> filters = new CopyOnWriteArrayList<>();
+
+    private volatile Object instance;
+    // user constructors may block, a lock rather than a monitor doesn't pin the carrier of a waiting virtual thread
+    private final Lock instanceLock = new ReentrantLock();
+    private volatile FunctionInstancePool instancePool;
+    private volatile boolean instancePoolResolved;
+    private volatile Consumer<Object> instanceConfigurer;
+    private final RuntimeContext pooledInstanceContext = new PooledInstanceContext(this);
+
+    private final List<InputCoercion> builtinInputCoercions = Arrays.asList(new ContextCoercion(), new StringCoercion(), new ByteArrayCoercion(), new InputEventCoercion(), BinaryFormatCoercion.instance(), JacksonCoercion.instance());
+    private final List<InputCoercion> userInputCoercions = new CopyOnWriteArrayList<>();
+    private final List<OutputCoercion> builtinOutputCoercions = Arrays.asList(new StringCoercion(), new ByteArrayCoercion(), new VoidCoercion(), new OutputEventCoercion(), BinaryFormatCoercion.instance(), JacksonCoercion.instance());
+    private final List<OutputCoercion> userOutputCoercions = new CopyOnWriteArrayList<>();
+    // the coercions for the function method, resolved once the function is configured
+    private volatile List<List<InputCoercion>> inputCoercionPlan;
+    private volatile List<OutputCoercion> outputCoercionPlan;
+    private volatile MethodCaller methodCaller;
+    private volatile MethodWrapper resultMethod;
+    private final boolean deadlinesEnforced;
 
     public FunctionRuntimeContext(MethodWrapper method, Map<String, String> config) {
         this.method = method;
         this.config = Objects.requireNonNull(config);
+        this.deadlinesEnforced = Deadlines.parseEnforced(config.get(Deadlines.ENFORCE_DEADLINES));
         configuredInvokers.add(new MethodFunctionInvoker());
     }
 
+    /**
+     * @return true if calls that overrun their deadline should be stopped, see {@link Deadlines}
+     */
+    boolean isDeadlineEnforced() {
+        return deadlinesEnforced;
+    }
+
     @Override
     public String getAppID() {
         return config.getOrDefault("FN_APP_ID", "");
@@ -75,42 +108,141 @@ public class FunctionRuntimeContext implements RuntimeContext {
     public Optional<Object> getInvokeInstance() {
         if (!Modifier.isStatic(getMethod().getTargetMethod().getModifiers())) {
             if (instance == null) {
-                try {
-                    Constructor<?> constructors[] = getMethod().getTargetClass().getConstructors();
-                    if (constructors.length == 1) {
-                        Constructor<?> ctor = constructors[0];
-                        if (ctor.getParameterTypes().length == 0) {
-                            instance = ctor.newInstance();
-                        } else if (ctor.getParameterTypes().length == 1) {
-                            if (RuntimeContext.class.isAssignableFrom(ctor.getParameterTypes()[0])) {
-                                instance = ctor.newInstance(FunctionRuntimeContext.this);
-                            } else {
-                                if (getMethod().getTargetClass().getEnclosingClass() != null && !Modifier.isStatic(getMethod().getTargetClass().getModifiers())) {
-                                    throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as it is a non-static inner class");
-                                } else {
-                                    throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as its constructor takes an unrecognized argument of type " + constructors[0].getParameterTypes()[0] + ". Function classes should have a single public constructor that takes either no arguments or a RuntimeContext argument");
-                                }
-                            }
-                        } else {
-                            throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as its constructor takes more than one argument. Function classes should have a single public constructor that takes either no arguments or a RuntimeContext argument");
-                        }
+                createInstance();
+            }
+            return Optional.of(instance);
+        }
+        return Optional.empty();
+    }
+
+    private void createInstance() {
+        instanceLock.lock();
+        try {
+            if (instance == null) {
+                instance = newInstance(this);
+            }
+        } finally {
+            instanceLock.unlock();
+        }
+    }
+
+    private Object newInstance(RuntimeContext constructorContext) {
+        try {
+            Constructor<?> constructors[] = getMethod().getTargetClass().getConstructors();
+            if (constructors.length == 1) {
+                Constructor<?> ctor = constructors[0];
+                if (ctor.getParameterTypes().length == 0) {
+                    return ctor.newInstance();
+                } else if (ctor.getParameterTypes().length == 1) {
+                    if (RuntimeContext.class.isAssignableFrom(ctor.getParameterTypes()[0])) {
+                        return ctor.newInstance(constructorContext);
                     } else {
-                        if (constructors.length == 0) {
-                            throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as it has no public constructors. Function classes should have a single public constructor that takes either no arguments or a RuntimeContext argument");
+                        if (getMethod().getTargetClass().getEnclosingClass() != null && !Modifier.isStatic(getMethod().getTargetClass().getModifiers())) {
+                            throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as it is a non-static inner class");
                         } else {
-                            throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as it has multiple public constructors. Function classes should have a single public constructor that takes either no arguments or a RuntimeContext argument");
-
+                            throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as its constructor takes an unrecognized argument of type " + constructors[0].getParameterTypes()[0] + ". Function classes should have a single public constructor that takes either no arguments or a RuntimeContext argument");
                         }
                     }
-                } catch (InvocationTargetException e) {
-                    throw new FunctionClassInstantiationException("An error occurred in the function constructor while instantiating " + getMethod().getTargetClass(), e.getCause());
-                } catch (InstantiationException | IllegalAccessException e) {
-                    throw new FunctionClassInstantiationException("The function class " + getMethod().getTargetClass() + " could not be instantiated", e);
+                } else {
+                    throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as its constructor takes more than one argument. Function classes should have a single public constructor that takes either no arguments or a RuntimeContext argument");
+                }
+            } else {
+                if (constructors.length == 0) {
+                    throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as it has no public constructors. Function classes should have a single public constructor that takes either no arguments or a RuntimeContext argument");
+                } else {
+                    throw new FunctionClassInstantiationException("The function " + getMethod().getTargetClass() + " cannot be instantiated as it has multiple public constructors. Function classes should have a single public constructor that takes either no arguments or a RuntimeContext argument");
+
                 }
             }
-            return Optional.of(instance);
+        } catch (InvocationTargetException e) {
+            throw new FunctionClassInstantiationException("An error occurred in the function constructor while instantiating " + getMethod().getTargetClass(), e.getCause());
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new FunctionClassInstantiationException("The function class " + getMethod().getTargetClass() + " could not be instantiated", e);
         }
-        return Optional.empty();
+    }
+
+    /**
+     * @return the context that the constructor and configuration methods of further pooled instances are given, this
+     * ignores any changes they make to the function's configuration
+     */
+    RuntimeContext getPooledInstanceContext() {
+        return pooledInstanceContext;
+    }
+
+    /**
+     * Sets how further instances of the function class are configured once they have been constructed
+     *
+     * @param instanceConfigurer calls the instance configuration methods on an instance
+     */
+    void setInstanceConfigurer(Consumer<Object> instanceConfigurer) {
+        this.instanceConfigurer = instanceConfigurer;
+    }
+
+    /**
+     * Takes the function instance for a call
+     * <p>
+     * This is the instance from {@link #getInvokeInstance()} unless the function class is annotated with
+     * {@link FnInstancePool}, in which case it is an instance from the pool that no other call is using.
+     *
+     * @param deadline if not null, the time after which the call stops waiting for a pooled instance
+     * @return the instance to call, or null if the function method is static
+     */
+    Object checkoutInstance(Instant deadline) {
+        if (Modifier.isStatic(getMethod().getTargetMethod().getModifiers())) {
+            return null;
+        }
+        FunctionInstancePool pool = getInstancePool();
+        if (pool == null) {
+            return getInvokeInstance().get();
+        }
+        return pool.checkout(deadline);
+    }
+
+    /**
+     * Returns an instance taken by {@link #checkoutInstance(Instant)} once its call has finished with it
+     */
+    void releaseInstance(Object instance) {
+        FunctionInstancePool pool = instancePool;
+        if (pool != null && instance != null) {
+            pool.release(instance);
+        }
+    }
+
+    /**
+     * Gets the instance pool of a function class annotated with {@link FnInstancePool}, creating it if need be
+     * <p>
+     * {@link FunctionConfigurer} creates the pool when the function is configured, otherwise it is created by the first
+     * call.
+     *
+     * @return the pool, or null if the function class is not pooled
+     * @throws FunctionConfigurationException if the size of the pool is less than one
+     */
+    FunctionInstancePool getInstancePool() {
+        if (!instancePoolResolved) {
+            instanceLock.lock();
+            try {
+                if (!instancePoolResolved) {
+                    FunctionConfigurer.validateInstancePool(getMethod().getTargetClass());
+                    FnInstancePool annotation = getMethod().getTargetClass().getAnnotation(FnInstancePool.class);
+                    if (annotation != null) {
+                        instancePool = new FunctionInstancePool(annotation.value(), getInvokeInstance().get(), this::newConfiguredInstance);
+                    }
+                    instancePoolResolved = true;
+                }
+            } finally {
+                instanceLock.unlock();
+            }
+        }
+        return instancePool;
+    }
+
+    private Object newConfiguredInstance() {
+        Object pooled = newInstance(pooledInstanceContext);
+        Consumer<Object> configurer = instanceConfigurer;
+        if (configurer != null) {
+            configurer.accept(pooled);
+        }
+        return pooled;
     }
 
     @Override
@@ -135,12 +267,20 @@ public class FunctionRuntimeContext implements RuntimeContext {
     public void setAttribute(String att, Object val) {
         Objects.requireNonNull(att);
 
-        attributes.put(att, val);
+        if (val == null) {
+            attributes.remove(att);
+        } else {
+            attributes.put(att, val);
+        }
     }
 
     @Override
     public void addInputCoercion(InputCoercion ic) {
-        userInputCoercions.add(Objects.requireNonNull(ic));
+        Objects.requireNonNull(ic);
+        if (inputCoercionPlan != null) {
+            throw new IllegalStateException("Input coercions can only be added while the function is being configured");
+        }
+        userInputCoercions.add(ic);
     }
 
     @Override
@@ -167,7 +307,11 @@ public class FunctionRuntimeContext implements RuntimeContext {
 
     @Override
     public void addOutputCoercion(OutputCoercion oc) {
-        userOutputCoercions.add(Objects.requireNonNull(oc));
+        Objects.requireNonNull(oc);
+        if (outputCoercionPlan != null) {
+            throw new IllegalStateException("Output coercions can only be added while the function is being configured");
+        }
+        userOutputCoercions.add(oc);
     }
 
 
@@ -190,25 +334,77 @@ public class FunctionRuntimeContext implements RuntimeContext {
         return method;
     }
 
+    /**
+     * Adds a filter around calls to the function's invokers, filters are applied in the order they are added
+     */
+    void addInvocationFilter(InvocationFilter filter) {
+        filters.add(Objects.requireNonNull(filter));
+    }
+
     public FunctionInvocationContext newInvocationContext(InputEvent inputEvent) {
         return new FunctionInvocationContext(this, inputEvent);
     }
 
-    public OutputEvent tryInvoke(InputEvent evt, InvocationContext entryPoint) {
-        for (FunctionInvoker invoker : preCallHandlers) {
-            Optional<OutputEvent> result = invoker.tryInvoke(entryPoint, evt);
+    /**
+     * Invokes the function, the result is available once any {@link java.util.concurrent.CompletionStage} returned by
+     * the function has completed and been coerced
+     *
+     * @param evt        the event to invoke the function with
+     * @param entryPoint the invocation context of the call
+     * @return the result of the first invoker to handle the event, or a stage completed with null if no invoker handled it
+     */
+    public CompletionStage<OutputEvent> tryInvokeAsync(InputEvent evt, InvocationContext entryPoint) {
+        if (filters.isEmpty()) {
+            return invokeAsync(evt, entryPoint);
+        }
+        return filter(0, entryPoint, evt);
+    }
+
+    private CompletionStage<OutputEvent> filter(int index, InvocationContext ctx, InputEvent evt) {
+        if (index == filters.size()) {
+            return invokeAsync(evt, ctx);
+        }
+        return filters.get(index).filter(ctx, evt, (nextCtx, nextEvt) -> filter(index + 1, nextCtx, nextEvt));
+    }
+
+    private CompletionStage<OutputEvent> invokeAsync(InputEvent evt, InvocationContext entryPoint) {
+        // indexed rather than iterated, so a call allocates no iterators, invokers are only ever added to these lists
+        for (int i = 0; i < preCallHandlers.size(); i++) {
+            Optional<OutputEvent> result = preCallHandlers.get(i).tryInvoke(entryPoint, evt);
             if (result.isPresent()) {
-                return result.get();
+                return CompletableFuture.completedFuture(result.get());
             }
         }
 
-        for (FunctionInvoker invoker : configuredInvokers) {
+        for (int i = 0; i < configuredInvokers.size(); i++) {
+            FunctionInvoker invoker = configuredInvokers.get(i);
+            if (invoker instanceof MethodFunctionInvoker) {
+                return ((MethodFunctionInvoker) invoker).tryInvokeAsync(entryPoint, evt);
+            }
             Optional<OutputEvent> result = invoker.tryInvoke(entryPoint, evt);
             if (result.isPresent()) {
-                return result.get();
+                return CompletableFuture.completedFuture(result.get());
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Invokes the function, waiting for the result of functions that complete asynchronously
+     *
+     * @param evt        the event to invoke the function with
+     * @param entryPoint the invocation context of the call
+     * @return the result of the first invoker to handle the event, or null if no invoker handled it
+     */
+    public OutputEvent tryInvoke(InputEvent evt, InvocationContext entryPoint) {
+        try {
+            return tryInvokeAsync(evt, entryPoint).toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
             }
+            throw (RuntimeException) e.getCause();
         }
-        return null;
     }
 
     @Override
@@ -233,4 +429,102 @@ public class FunctionRuntimeContext implements RuntimeContext {
     public MethodWrapper getMethodWrapper() {
         return method;
     }
+
+    /**
+     * Gets the caller for the function method, this is created when the function is configured or else on first use
+     *
+     * @return the caller
+     * @throws InvalidFunctionDefinitionException if the runtime cannot call the method
+     */
+    MethodCaller getMethodCaller() {
+        MethodCaller caller = methodCaller;
+        if (caller == null) {
+            try {
+                caller = MethodCaller.forMethod(method.getTargetMethod());
+            } catch (IllegalAccessException e) {
+                throw new InvalidFunctionDefinitionException("The function method " + method + " cannot be called", e);
+            }
+            methodCaller = caller;
+        }
+        return caller;
+    }
+
+    /**
+     * @return the function method as output coercions see it once its result is available, this is the method itself
+     * unless it returns a {@link java.util.concurrent.CompletionStage}
+     */
+    MethodWrapper getResultMethod() {
+        MethodWrapper result = resultMethod;
+        if (result == null) {
+            result = CompletionResultMethodWrapper.isAsync(method) ? new CompletionResultMethodWrapper(method) : method;
+            resultMethod = result;
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the input and output coercions of the function method, {@link FunctionConfigurer} does this once the
+     * function's configuration methods have run
+     * <p>
+     * Coercions are resolved once for all parameters, so binding annotations are only read and instantiated once, and
+     * coercions that are {@link BindableCoercion}s are bound to their parameter or to the method's result. Coercions can
+     * no longer be added once they are resolved.
+     */
+    void resolveCoercionPlans() {
+        int count = method.getParameterCount();
+        List<List<InputCoercion>> params = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            List<InputCoercion> coercions = new ArrayList<>(getInputCoercions(method, i));
+            for (int j = 0; j < coercions.size(); j++) {
+                if (coercions.get(j) instanceof BindableCoercion) {
+                    coercions.set(j, ((BindableCoercion) coercions.get(j)).bindParameter(this, method, i));
+                }
+            }
+            params.add(Collections.unmodifiableList(coercions));
+        }
+
+        List<OutputCoercion> results = new ArrayList<>(getOutputCoercions(method.getTargetMethod()));
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) instanceof BindableCoercion) {
+                // bound to the result as it is once any CompletionStage the method returns completes
+                results.set(i, ((BindableCoercion) results.get(i)).bindResult(this, getResultMethod()));
+            }
+        }
+
+        inputCoercionPlan = Collections.unmodifiableList(params);
+        outputCoercionPlan = Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Gets the input coercions for a parameter of the function method, as {@link #getInputCoercions(MethodWrapper, int)}
+     * <p>
+     * These are resolved by {@link #resolveCoercionPlans()}, or by the first call to a context that was not configured.
+     *
+     * @param param the index of the parameter
+     * @return an unmodifiable list of the coercions to try in order
+     */
+    List<InputCoercion> getInputCoercionPlan(int param) {
+        List<List<InputCoercion>> plan = inputCoercionPlan;
+        if (plan == null) {
+            resolveCoercionPlans();
+            plan = inputCoercionPlan;
+        }
+        return plan.get(param);
+    }
+
+    /**
+     * Gets the output coercions for the function method, as {@link #getOutputCoercions(Method)}
+     * <p>
+     * These are resolved by {@link #resolveCoercionPlans()}, or by the first call to a context that was not configured.
+     *
+     * @return an unmodifiable list of the coercions to try in order
+     */
+    List<OutputCoercion> getOutputCoercionPlan() {
+        List<OutputCoercion> plan = outputCoercionPlan;
+        if (plan == null) {
+            resolveCoercionPlans();
+            plan = outputCoercionPlan;
+        }
+        return plan;
+    }
 }
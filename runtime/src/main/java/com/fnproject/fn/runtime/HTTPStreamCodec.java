@@ -17,55 +17,30 @@
 package com.fnproject.fn.runtime;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.attribute.PosixFilePermissions;
-import java.time.Instant;
-import java.time.format.DateTimeParseException;
-import java.time.temporal.ChronoUnit;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.fasterxml.jackson.core.io.CharTypes;
-import com.fnproject.fn.api.Headers;
-import com.fnproject.fn.api.InputEvent;
-import com.fnproject.fn.api.OutputEvent;
 import com.fnproject.fn.api.exception.FunctionInputHandlingException;
-import com.fnproject.fn.api.exception.FunctionOutputHandlingException;
 import com.fnproject.fn.runtime.exception.FunctionIOException;
 import com.fnproject.fn.runtime.exception.FunctionInitializationException;
 import com.fnproject.fn.runtime.ntv.UnixServerSocket;
 import com.fnproject.fn.runtime.ntv.UnixSocket;
-import org.apache.http.Header;
-import org.apache.http.HttpEntityEnclosingRequest;
-import org.apache.http.HttpException;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpRequestInterceptor;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpResponseInterceptor;
-import org.apache.http.HttpVersion;
-import org.apache.http.ParseException;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.DefaultBHttpServerConnection;
-import org.apache.http.impl.io.EmptyInputStream;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.message.BasicStatusLine;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HttpService;
-import org.apache.http.protocol.ImmutableHttpProcessor;
-import org.apache.http.protocol.UriHttpRequestHandlerMapper;
 
 /**
  * Fn HTTP Stream over Unix domain sockets  codec
@@ -73,7 +48,13 @@ import org.apache.http.protocol.UriHttpRequestHandlerMapper;
  * <p>
  * This creates a new unix socket on the address specified by env["FN_LISTENER"] - and accepts requests.
  * <p>
- * This currently only handles exactly one concurrent connection
+ * By default this handles exactly one connection at a time. Setting env["FDK_MAX_CONCURRENCY"] to N accepts up to N
+ * connections from the platform and serves them concurrently from a pool of N worker threads - functions must be
+ * thread-safe to use this. env["FDK_LISTEN_BACKLOG"] sets how many connections the kernel queues before they are
+ * accepted, this defaults to the maximum concurrency.
+ * <p>
+ * Large request bodies may be spilled to disk or rejected, see {@link RequestBodyPolicy}. Calls that overrun their
+ * deadline may be stopped, see {@link Deadlines}.
  * <p>
  * Created on 24/08/2018.
  * <p>
@@ -83,8 +64,8 @@ public final class HTTPStreamCodec implements EventCodec, Closeable {
 
     public static final String HTTP_STREAM_FORMAT = "http-stream";
     private static final String FN_LISTENER = "FN_LISTENER";
-    private static final Set<String> stripInputHeaders;
-    private static final Set<String> stripOutputHeaders;
+    static final String MAX_CONCURRENCY = "FDK_MAX_CONCURRENCY";
+    static final String LISTEN_BACKLOG = "FDK_LISTEN_BACKLOG";
     private final Map<String, String> env;
     private final String fdkVersion;
     private final String runtimeVersion;
@@ -93,30 +74,18 @@ public final class HTTPStreamCodec implements EventCodec, Closeable {
     private final CompletableFuture<Boolean> stopped = new CompletableFuture<>();
     private final UnixServerSocket socket;
     private final File tempFile;
+    private final int maxConcurrency;
+    private final RequestBodyPolicy bodyPolicy;
+    private final boolean enforceDeadlines;
+    private final Set<UnixSocket> activeConnections = ConcurrentHashMap.newKeySet();
+    private static final int BUFFER_SIZE = 65536;
+    // a thread serves one connection at a time so its buffers can be reused from one connection to the next
+    private final ThreadLocal<ConnectionState> connectionState = ThreadLocal.withInitial(ConnectionState::new);
 
 
-    static {
-        Set<String> hin = new HashSet<>();
-        hin.add("Host");
-        hin.add("Accept-Encoding");
-        hin.add("Transfer-Encoding");
-        hin.add("User-Agent");
-        hin.add("Connection");
-        hin.add("TE");
-
-        stripInputHeaders = Collections.unmodifiableSet(hin);
-
-        Set<String> hout = new HashSet<>();
-        hout.add("Content-Length");
-        hout.add("Transfer-Encoding");
-        hout.add("Connection");
-        hout.add("Fn-Fdk-Version");
-
-        stripOutputHeaders = Collections.unmodifiableSet(hout);
-    }
 
 
-    private String randomString() {
+    static String randomString() {
         int leftLimit = 97;
         int rightLimit = 122;
         int targetStringLength = 10;
@@ -148,6 +117,10 @@ public final class HTTPStreamCodec implements EventCodec, Closeable {
             throw new FunctionInitializationException("Invalid listener address - it should start with unix:/ :'" + listenerAddress + "'");
         }
         String listenerFile = listenerAddress.substring("unix:".length());
+        maxConcurrency = parseMaxConcurrency(env.get(MAX_CONCURRENCY));
+        int backlog = parseListenBacklog(env.get(LISTEN_BACKLOG), maxConcurrency);
+        bodyPolicy = RequestBodyPolicy.fromEnv(env);
+        enforceDeadlines = Deadlines.parseEnforced(env.get(Deadlines.ENFORCE_DEADLINES));
 
         socketFile = new File(listenerFile);
 
@@ -157,7 +130,7 @@ public final class HTTPStreamCodec implements EventCodec, Closeable {
         tempFile = new File(listenerDir, randomString() + ".sock");
         try {
 
-            serverSocket = UnixServerSocket.listen(tempFile.getAbsolutePath(), 1);
+            serverSocket = UnixServerSocket.listen(tempFile.getAbsolutePath(), backlog);
             // Adjust socket permissions and move file
             Files.setPosixFilePermissions(tempFile.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
             Files.createSymbolicLink(socketFile.toPath(), tempFile.toPath().getFileName());
@@ -178,211 +151,169 @@ public final class HTTPStreamCodec implements EventCodec, Closeable {
     }
 
 
-    private String jsonError(String message, String detail) {
-        if (message == null) {
-            message = "";
-        }
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("{ \"message\":\"");
-        CharTypes.appendQuoted(sb, message);
-        sb.append("\"");
-
-        if (detail != null) {
-            sb.append(", \"detail\":\"");
-            CharTypes.appendQuoted(sb, detail);
-            sb.append("\"");
-        }
-
-        sb.append("}");
-        return sb.toString();
-    }
-
     @Override
     public void runCodec(Handler h) {
 
-        UriHttpRequestHandlerMapper mapper = new UriHttpRequestHandlerMapper();
-        mapper.register("/call", ((request, response, context) -> {
-            InputEvent evt;
-            try {
-                evt = readEvent(request);
-            } catch (FunctionInputHandlingException e) {
-                response.setStatusCode(500);
-                response.setEntity(new StringEntity(jsonError("Invalid input for function", e.getMessage()), ContentType.APPLICATION_JSON));
-                return;
-            }
-
-            OutputEvent outEvt;
-
-            try {
-                outEvt = h.handle(evt);
-            } catch (Exception e) {
-                response.setStatusCode(500);
-                response.setEntity(new StringEntity(jsonError("Unhandled internal error in FDK", e.getMessage()), ContentType.APPLICATION_JSON));
-                return;
-            }
-
-            try {
-                writeEvent(outEvt, response);
-            } catch (Exception e) {
-                // TODO strange edge cases might appear with headers where the response is half written here
-                response.setStatusCode(500);
-                response.setEntity(new StringEntity(jsonError("Unhandled internal error while writing FDK response", e.getMessage()), ContentType.APPLICATION_JSON));
-            }
+        HttpCallDispatcher dispatcher = new HttpCallDispatcher(h, fdkVersion, runtimeVersion, bodyPolicy, enforceDeadlines);
+
+        // one permit per connection we are prepared to serve, the accept loop only accepts when a worker is free
+        Semaphore permits = new Semaphore(maxConcurrency);
+        ExecutorService workers = null;
+        if (maxConcurrency > 1) {
+            AtomicInteger threadCount = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(maxConcurrency, (r) -> {
+                Thread t = new Thread(r, "fn-codec-worker-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
         }
-        ));
-
-        ImmutableHttpProcessor requestProcess = new ImmutableHttpProcessor(new HttpRequestInterceptor[0], new HttpResponseInterceptor[0]);
-        HttpService svc = new HttpService(requestProcess, mapper);
 
         try {
 
             while (!stopping.get()) {
-                try (UnixSocket sock = socket.accept(100)) {
-                    if (sock == null) {
-                        // timeout during accept, try again
-                        continue;
-                    }
-                    // TODO tweak these properly
-                    sock.setSendBufferSize(65535);
-                    sock.setReceiveBufferSize(65535);
-
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
 
-                    if (stopping.get()) {
-                        // ignore IO errors on stop
-                        return;
-                    }
-                    try {
-                        DefaultBHttpServerConnection con = new DefaultBHttpServerConnection(65535);
-                        con.bind(sock);
-                        while (!sock.isClosed()) {
-                            try {
-                                svc.handleRequest(con, new BasicHttpContext());
-                            } catch (HttpException e) {
-                                sock.close();
-                                throw e;
-                            }
-                        }
-                    } catch (HttpException | IOException e) {
-                        System.err.println("FDK Got Exception while handling HTTP request" + e.getMessage());
-                        e.printStackTrace();
-                        // we continue here and leave the container hot
-                    }
+                UnixSocket sock;
+                try {
+                    // waits until a connection arrives or close() wakes us up
+                    sock = socket.accept(0);
                 } catch (IOException e) {
+                    permits.release();
                     if (stopping.get()) {
                         // ignore IO errors on stop
                         return;
                     }
                     throw new FunctionIOException("failed to accept connection from platform, terminating", e);
                 }
+                if (sock == null) {
+                    // woken up by close()
+                    permits.release();
+                    continue;
+                }
 
+                if (workers == null) {
+                    try {
+                        serveConnection(dispatcher, sock);
+                    } finally {
+                        permits.release();
+                    }
+                } else {
+                    workers.execute(() -> {
+                        try {
+                            serveConnection(dispatcher, sock);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
             }
         } finally {
+            if (workers != null) {
+                workers.shutdown();
+                try {
+                    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
             stopped.complete(true);
         }
 
 
     }
 
-
-    private String getRequiredEnv(String name) {
-        String val = env.get(name);
-        if (val == null) {
-            throw new FunctionInputHandlingException("Required environment variable " + name + " is not set - are you running a function outside of fn run?");
+    /**
+     * Serves requests from a single connection until the platform closes it or the codec is stopped
+     */
+    private void serveConnection(HttpCallDispatcher dispatcher, UnixSocket sock) {
+        activeConnections.add(sock);
+        try (UnixSocket s = sock) {
+            if (stopping.get()) {
+                // ignore connections accepted while stopping
+                return;
+            }
+            // TODO tweak these properly
+            s.setSendBufferSize(65535);
+            s.setReceiveBufferSize(65535);
+
+            ConnectionState state = connectionState.get();
+            HttpConnectionInput in = new HttpConnectionInput(s.getByteChannel(), state.inputBuffer);
+            HttpConnectionOutput out = new HttpConnectionOutput(s.getByteChannel(), state.outputBuffer);
+            boolean keepAlive = true;
+            while (keepAlive && !stopping.get() && in.readHead(state.head)) {
+                keepAlive = dispatcher.dispatch(state.head, in, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!stopping.get()) {
+                System.err.println("FDK Got Exception while handling HTTP request" + e.getMessage());
+                e.printStackTrace();
+            }
+            // we continue here and leave the container hot
+        } finally {
+            activeConnections.remove(sock);
         }
-        return val;
     }
 
-    private static String getRequiredHeader(HttpRequest request, String headerName) {
-        Header header = request.getFirstHeader(headerName);
-        if (header == null) {
-            throw new FunctionInputHandlingException("Required FDK header variable " + headerName + " is not set, check you are using the latest fn and FDK versions");
-        }
-        return header.getValue();
+    /**
+     * Buffers and parser state for the connection a thread is serving
+     */
+    private static final class ConnectionState {
+        final ByteBuffer inputBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final HttpRequestHead head = new HttpRequestHead();
     }
 
-    private InputEvent readEvent(HttpRequest request) {
-
-        InputStream bodyStream;
-        if (request instanceof HttpEntityEnclosingRequest) {
-            HttpEntityEnclosingRequest entityEnclosingRequest = (HttpEntityEnclosingRequest) request;
-            try {
-                bodyStream = entityEnclosingRequest.getEntity().getContent();
-            } catch (IOException exception) {
-                throw new FunctionInputHandlingException("error handling input", exception);
-            }
-        } else {
-            bodyStream = EmptyInputStream.INSTANCE;
-        }
-
+    static int parseMaxConcurrency(String value) {
+        return parsePositiveInt(MAX_CONCURRENCY, value, 1);
+    }
 
-        String deadline = getRequiredHeader(request, "Fn-Deadline");
-        String callID = getRequiredHeader(request, "Fn-Call-Id");
+    /**
+     * The number of connections the kernel queues for the codec to accept, this defaults to the maximum concurrency
+     */
+    static int parseListenBacklog(String value, int maxConcurrency) {
+        return parsePositiveInt(LISTEN_BACKLOG, value, maxConcurrency);
+    }
 
-        if (callID == null) {
-            callID = "";
+    private static int parsePositiveInt(String name, String value, int defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
         }
-        Instant deadlineDate = Instant.now().plus(1, ChronoUnit.HOURS);
-        if (deadline != null) {
-            try {
-                deadlineDate = Instant.parse(deadline);
-            } catch (DateTimeParseException e) {
-                throw new FunctionInputHandlingException("Invalid deadline date format", e);
-            }
+        int result;
+        try {
+            result = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new FunctionInitializationException("Invalid value for " + name + " - it should be a positive integer :'" + value + "'");
         }
-        Headers headersIn = Headers.emptyHeaders();
-
-
-        for (Header h : request.getAllHeaders()) {
-            if (stripInputHeaders.contains(Headers.canonicalKey(h.getName()))) {
-                continue;
-            }
-            headersIn = headersIn.addHeader(h.getName(), h.getValue());
+        if (result < 1) {
+            throw new FunctionInitializationException("Invalid value for " + name + " - it should be a positive integer :'" + value + "'");
         }
-
-        return new ReadOnceInputEvent(bodyStream, headersIn, callID, deadlineDate);
-
+        return result;
     }
 
-    private void writeEvent(OutputEvent evt, HttpResponse response) {
-
-        evt.getHeaders().asMap()
-            .entrySet()
-            .stream()
-            .filter(e -> !stripOutputHeaders.contains(e.getKey()))
-            .flatMap(e -> e.getValue().stream().map((v) -> new BasicHeader(e.getKey(), v)))
-            .forEachOrdered(response::addHeader);
-
-        ContentType contentType = evt.getContentType().map(c -> {
-            try {
-                return ContentType.parse(c);
-            } catch (ParseException e) {
-                return ContentType.DEFAULT_BINARY;
-            }
-        }).orElse(ContentType.DEFAULT_BINARY);
-
-        response.setHeader("Content-Type", contentType.toString());
-        response.setHeader("Fn-Fdk-Version", fdkVersion);
-        response.setHeader("Fn-Fdk-Runtime", runtimeVersion);
-
-        response.setStatusLine(new BasicStatusLine(HttpVersion.HTTP_1_1, evt.getStatus().getCode(), evt.getStatus().name()));
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        // TODO remove output buffering here - possibly change OutputEvent contract to support providing an InputStream?
-        try {
-            evt.writeToOutput(bos);
-        } catch (IOException e) {
-            throw new FunctionOutputHandlingException("Error writing output", e);
+    private String getRequiredEnv(String name) {
+        String val = env.get(name);
+        if (val == null) {
+            throw new FunctionInputHandlingException("Required environment variable " + name + " is not set - are you running a function outside of fn run?");
         }
-        byte[] data = bos.toByteArray();
-        response.setEntity(new ByteArrayEntity(data, contentType));
-
+        return val;
     }
 
-
     @Override
     public void close() throws IOException {
         if (stopping.compareAndSet(false, true)) {
             socket.close();
+            for (UnixSocket active : activeConnections) {
+                // wakes up kept-alive connections that are waiting for their next request
+                try {
+                    active.shutdownInput();
+                } catch (IOException ignored) {
+                }
+            }
 
             try {
                 stopped.get();
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.io.CharTypes;
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.api.exception.FunctionInputHandlingException;
+import org.apache.http.ParseException;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Implements the Fn HTTP stream contract for a single request
+ * <p>
+ * This converts a parsed request into an {@link InputEvent}, calls the handler and writes the resulting
+ * {@link OutputEvent} as the response.
+ */
+final class HttpCallDispatcher {
+    static final String CALL_PATH = "/call";
+    static final Set<String> stripInputHeaders;
+    static final Set<String> stripOutputHeaders;
+    private static final String JSON_CONTENT_TYPE = ContentType.APPLICATION_JSON.toString();
+    private static final byte[][] STATUS_LINES;
+    // content types are parsed once and kept as encoded header lines, the cache stops growing once full
+    private static final int MAX_CACHED_CONTENT_TYPES = 256;
+    private static final ConcurrentMap<String, byte[]> contentTypeLines = new ConcurrentHashMap<>();
+    private static final byte[] DEFAULT_CONTENT_TYPE_LINE = headerLine("Content-Type", ContentType.DEFAULT_BINARY.toString());
+    // the bodies of rejected requests are discarded up to this size so the client can finish sending and read the
+    // response, the connection is closed on anything larger
+    private static final long MAX_DISCARDED_BODY = 2 * 1024 * 1024;
+
+    static {
+        Set<String> hin = new HashSet<>();
+        hin.add("Host");
+        hin.add("Accept-Encoding");
+        hin.add("Transfer-Encoding");
+        hin.add("User-Agent");
+        hin.add("Connection");
+        hin.add("TE");
+
+        stripInputHeaders = Collections.unmodifiableSet(hin);
+
+        Set<String> hout = new HashSet<>();
+        hout.add("Content-Length");
+        hout.add("Content-Type");
+        hout.add("Transfer-Encoding");
+        hout.add("Connection");
+        hout.add("Fn-Fdk-Version");
+        hout.add("Fn-Fdk-Runtime");
+
+        stripOutputHeaders = Collections.unmodifiableSet(hout);
+
+        OutputEvent.Status[] statuses = OutputEvent.Status.values();
+        STATUS_LINES = new byte[statuses.length][];
+        for (OutputEvent.Status status : statuses) {
+            STATUS_LINES[status.ordinal()] = ("HTTP/1.1 " + status.getCode() + " " + status.name() + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final EventCodec.Handler handler;
+    private final byte[] fdkHeaderLines;
+    private final RequestBodyPolicy bodyPolicy;
+    private final boolean enforceDeadlines;
+
+    HttpCallDispatcher(EventCodec.Handler handler, String fdkVersion, String runtimeVersion, RequestBodyPolicy bodyPolicy, boolean enforceDeadlines) {
+        this.handler = Objects.requireNonNull(handler, "handler");
+        this.bodyPolicy = Objects.requireNonNull(bodyPolicy, "bodyPolicy");
+        this.enforceDeadlines = enforceDeadlines;
+        Objects.requireNonNull(fdkVersion, "fdkVersion");
+        Objects.requireNonNull(runtimeVersion, "runtimeVersion");
+        // these are the same on every response so are only encoded once
+        this.fdkHeaderLines = concat(headerLine("Fn-Fdk-Version", fdkVersion), headerLine("Fn-Fdk-Runtime", runtimeVersion));
+    }
+
+    /**
+     * Handles one request on a connection, including writing the response and skipping any of the request body the
+     * function did not read
+     * <p>
+     * This waits for the result of functions that complete asynchronously
+     *
+     * @param head the parsed request head
+     * @param in   the connection's input, positioned at the start of the request body
+     * @param out  the connection's output
+     * @return true if the connection can be used for another request
+     * @throws IOException if the connection failed, the connection must be closed
+     */
+    boolean dispatch(HttpRequestHead head, HttpConnectionInput in, HttpConnectionOutput out) throws IOException {
+        return dispatchAsync(head, in, () -> out, null).join();
+    }
+
+    /**
+     * Handles one request on a connection without waiting for functions that complete asynchronously
+     * <p>
+     * If the function has not completed when the handler returns, the response is written by a task run on the
+     * executor once it has, and the connection belongs to that task until the returned stage completes.
+     *
+     * @param head     the parsed request head
+     * @param in       the connection's input, positioned at the start of the request body
+     * @param output   supplies the connection's output for the thread writing to it
+     * @param executor runs the rest of the call once the function completes, or null to wait for the function on this thread
+     * @return a stage that completes with true if the connection can be used for another request, or exceptionally
+     * with the error if the connection failed and must be closed
+     * @throws IOException if the connection failed before the function was called, the connection must be closed
+     */
+    CompletableFuture<Boolean> dispatchAsync(HttpRequestHead head, HttpConnectionInput in, Supplier<HttpConnectionOutput> output, Executor executor) throws IOException {
+        boolean keepAlive = head.isKeepAlive();
+        HttpConnectionOutput out = output.get();
+        if (!head.isChunked() && bodyPolicy.isTooLarge(head.getContentLength())) {
+            // rejected without calling the function, a client waiting to continue won't send the body
+            boolean reuse = keepAlive && !head.isExpectContinue() && head.getContentLength() <= MAX_DISCARDED_BODY && discardBody(in.bodyStream(head));
+            writeError(out, 413, "Payload Too Large", jsonError("Request body is too large", "The limit is " + bodyPolicy.getMaxBodySize() + " bytes"), !reuse);
+            return CompletableFuture.completedFuture(reuse);
+        }
+        InputStream body = in.bodyStream(head);
+        InputEvent evt = null;
+        boolean skipBody = true;
+        boolean completed = true;
+        try {
+            if (head.isExpectContinue()) {
+                out.sendContinue();
+            }
+
+            if (!head.isPath(CALL_PATH)) {
+                writeError(out, 404, "Not Found", jsonError("Unknown path", head.getPath()), !keepAlive);
+                return CompletableFuture.completedFuture(keepAlive);
+            }
+
+            try {
+                Instant deadline = readDeadline(head);
+                if (enforceDeadlines && Deadlines.hasExpired(deadline)) {
+                    // the platform has given up on the call so the function is not called
+                    writeError(out, 504, "Gateway Timeout", jsonError("Deadline exceeded", "The deadline was " + deadline), !keepAlive);
+                    return CompletableFuture.completedFuture(keepAlive);
+                }
+                evt = readEvent(head, body, deadline);
+            } catch (RequestBodyPolicy.BodyTooLargeException e) {
+                // the rest of the body may be unbounded so the connection is not reused
+                skipBody = false;
+                discardBody(body);
+                writeError(out, 413, "Payload Too Large", jsonError("Request body is too large", e.getMessage()), true);
+                return CompletableFuture.completedFuture(false);
+            } catch (FunctionInputHandlingException e) {
+                writeError(out, 500, "Internal Server Error", jsonError("Invalid input for function", e.getMessage()), !keepAlive);
+                return CompletableFuture.completedFuture(keepAlive);
+            }
+
+            CompletableFuture<OutputEvent> outEvt;
+            try {
+                outEvt = handler.handleAsync(evt).toCompletableFuture();
+            } catch (Exception e) {
+                writeError(out, 500, "Internal Server Error", jsonError("Unhandled internal error in FDK", e.getMessage()), !keepAlive);
+                return CompletableFuture.completedFuture(keepAlive);
+            }
+
+            if (executor == null || outEvt.isDone()) {
+                return CompletableFuture.completedFuture(respond(outEvt, out, keepAlive));
+            }
+
+            // the body and event are released by the task that writes the response
+            completed = false;
+            InputEvent pendingEvt = evt;
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            outEvt.whenCompleteAsync((ignored, error) -> {
+                boolean reuse;
+                try {
+                    try {
+                        reuse = respond(outEvt, output.get(), keepAlive);
+                    } finally {
+                        release(pendingEvt, body, true);
+                    }
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                    return;
+                }
+                // completed only once the body has been released, as the connection's input then moves on
+                result.complete(reuse);
+            }, executor);
+            return result;
+        } finally {
+            if (completed) {
+                release(evt, body, skipBody);
+            }
+        }
+    }
+
+    /**
+     * Writes the response for a function that has completed
+     *
+     * @return true if the connection can be used for another request
+     */
+    private boolean respond(CompletableFuture<OutputEvent> result, HttpConnectionOutput out, boolean keepAlive) throws IOException {
+        OutputEvent outEvt;
+        try {
+            outEvt = result.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            writeError(out, 500, "Internal Server Error", jsonError("Unhandled internal error in FDK", cause.getMessage()), !keepAlive);
+            return keepAlive;
+        }
+
+        try {
+            writeEvent(outEvt, out, !keepAlive);
+        } catch (Exception e) {
+            if (out.isCommitted()) {
+                // part of the response has been sent, the only way to signal the error is to abort the connection
+                throw e instanceof IOException ? (IOException) e : new IOException("Error writing output", e);
+            }
+            out.reset();
+            writeError(out, 500, "Internal Server Error", jsonError("Unhandled internal error while writing FDK response", e.getMessage()), !keepAlive);
+        }
+        return keepAlive;
+    }
+
+    private static void release(InputEvent evt, InputStream body, boolean skipBody) throws IOException {
+        try {
+            if (evt != null) {
+                // releases any copy of the body that was spilled to disk
+                evt.close();
+            }
+        } finally {
+            if (skipBody) {
+                // skips any input the function did not read so the connection is positioned at the next request
+                body.close();
+            }
+        }
+    }
+
+    /**
+     * Reads and discards up to {@link #MAX_DISCARDED_BODY} bytes of a body
+     *
+     * @return true if the whole body was read
+     */
+    private static boolean discardBody(InputStream body) throws IOException {
+        byte[] buf = new byte[8192];
+        long remaining = MAX_DISCARDED_BODY;
+        int read;
+        while ((read = body.read(buf, 0, (int) Math.min(buf.length, remaining + 1))) >= 0) {
+            remaining -= read;
+            if (remaining < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Instant readDeadline(HttpRequestHead head) {
+        String deadline = getRequiredHeader(head, "Fn-Deadline");
+
+        Instant deadlineDate = Instant.now().plus(1, ChronoUnit.HOURS);
+        if (deadline != null) {
+            try {
+                deadlineDate = Instant.parse(deadline);
+            } catch (DateTimeParseException e) {
+                throw new FunctionInputHandlingException("Invalid deadline date format", e);
+            }
+        }
+        return deadlineDate;
+    }
+
+    private InputEvent readEvent(HttpRequestHead head, InputStream body, Instant deadlineDate) throws IOException {
+        String callID = getRequiredHeader(head, "Fn-Call-Id");
+
+        Headers.Builder headersIn = Headers.builder();
+        for (int i = 0; i < head.getHeaderCount(); i++) {
+            String name = head.getHeaderName(i);
+            if (stripInputHeaders.contains(Headers.canonicalKey(name))) {
+                continue;
+            }
+            headersIn.addHeader(name, head.getHeaderValue(i));
+        }
+
+        // a request with neither a length nor chunked encoding has no body
+        long contentLength = head.isChunked() ? -1 : Math.max(head.getContentLength(), 0);
+        return bodyPolicy.createEvent(body, contentLength, headersIn.build(), callID, deadlineDate);
+    }
+
+    private void writeEvent(OutputEvent evt, HttpConnectionOutput out, boolean close) throws IOException {
+        out.writeStatusLine(STATUS_LINES[evt.getStatus().ordinal()]);
+        Map<String, List<String>> headers = evt.getHeaders().asMap();
+        if (!headers.isEmpty()) {
+            for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+                if (stripOutputHeaders.contains(e.getKey())) {
+                    continue;
+                }
+                List<String> values = e.getValue();
+                for (int i = 0; i < values.size(); i++) {
+                    out.writeHeader(e.getKey(), values.get(i));
+                }
+            }
+        }
+        out.writeHeaderLines(contentTypeLine(evt));
+        out.writeHeaderLines(fdkHeaderLines);
+
+        out.endHead(evt.getContentLength(), close);
+        evt.writeToChannel(out.bodyChannel());
+        out.finish();
+    }
+
+    private void writeError(HttpConnectionOutput out, int code, String reason, String json, boolean close) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        out.writeStatus(code, reason);
+        out.writeHeader("Content-Type", JSON_CONTENT_TYPE);
+        out.endHead(body.length, close).write(body);
+        out.finish();
+    }
+
+    private static String getRequiredHeader(HttpRequestHead head, String headerName) {
+        String value = head.getFirstHeader(headerName);
+        if (value == null) {
+            throw new FunctionInputHandlingException("Required FDK header variable " + headerName + " is not set, check you are using the latest fn and FDK versions");
+        }
+        return value;
+    }
+
+    /**
+     * @return the encoded Content-Type header line for an event
+     */
+    private static byte[] contentTypeLine(OutputEvent evt) {
+        String raw = evt.getContentType().orElse(null);
+        if (raw == null) {
+            return DEFAULT_CONTENT_TYPE_LINE;
+        }
+        byte[] line = contentTypeLines.get(raw);
+        if (line == null) {
+            line = headerLine("Content-Type", contentType(evt));
+            if (contentTypeLines.size() < MAX_CACHED_CONTENT_TYPES) {
+                contentTypeLines.putIfAbsent(raw, line);
+            }
+        }
+        return line;
+    }
+
+    private static byte[] headerLine(String name, String value) {
+        return (name + ": " + value + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * @return the normalized content type of an event, defaulting to application/octet-stream if it is missing or invalid
+     */
+    static String contentType(OutputEvent evt) {
+        ContentType contentType = evt.getContentType().map(c -> {
+            try {
+                return ContentType.parse(c);
+            } catch (ParseException | UnsupportedCharsetException e) {
+                return ContentType.DEFAULT_BINARY;
+            }
+        }).orElse(ContentType.DEFAULT_BINARY);
+        return contentType.toString();
+    }
+
+    static String jsonError(String message, String detail) {
+        if (message == null) {
+            message = "";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ \"message\":\"");
+        CharTypes.appendQuoted(sb, message);
+        sb.append("\"");
+
+        if (detail != null) {
+            sb.append(", \"detail\":\"");
+            CharTypes.appendQuoted(sb, detail);
+            sb.append("\"");
+        }
+
+        sb.append("}");
+        return sb.toString();
+    }
+}
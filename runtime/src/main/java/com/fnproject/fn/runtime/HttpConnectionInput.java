@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.Objects;
+
+/**
+ * The receiving side of an HTTP connection
+ * <p>
+ * Bytes are read from the channel into a single buffer which is shared between request heads and bodies, any bytes
+ * read beyond the end of one request stay in the buffer for the next.
+ * <p>
+ * On a {@link ScatteringByteChannel}, large reads of a body are made straight into the caller's array, reading ahead
+ * into the buffer in the same call.
+ */
+final class HttpConnectionInput {
+    // smaller reads are served from the buffer
+    private static final int MIN_SCATTER_READ = 4096;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buf;
+    private final ScatteringByteChannel scatteringChannel;
+    private final ByteBuffer[] scatter = new ByteBuffer[2];
+
+    HttpConnectionInput(ReadableByteChannel channel, ByteBuffer buf) {
+        this.channel = Objects.requireNonNull(channel, "channel");
+        this.buf = Objects.requireNonNull(buf, "buf");
+        this.scatteringChannel = channel instanceof ScatteringByteChannel ? (ScatteringByteChannel) channel : null;
+        // read mode, nothing buffered
+        buf.clear().limit(0);
+    }
+
+    /**
+     * Reads more bytes from the channel into the buffer
+     *
+     * @return the number of bytes read, which may be zero if the channel is non-blocking, or -1 on EOF
+     * @throws IOException on read errors
+     */
+    int fill() throws IOException {
+        buf.compact();
+        try {
+            return channel.read(buf);
+        } finally {
+            buf.flip();
+        }
+    }
+
+    /**
+     * @return true if there are buffered bytes that have not been consumed
+     */
+    boolean hasBuffered() {
+        return buf.hasRemaining();
+    }
+
+    /**
+     * Tries to parse a request head from the buffered bytes without reading from the channel
+     *
+     * @param head the head to parse into
+     * @return true if a complete head was parsed
+     * @throws ProtocolException if the head is malformed or too large to buffer
+     */
+    boolean parseHead(HttpRequestHead head) throws ProtocolException {
+        if (head.parse(buf)) {
+            return true;
+        }
+        if (buf.position() == 0 && buf.limit() == buf.capacity()) {
+            throw new ProtocolException("Request head is larger than " + buf.capacity() + " bytes");
+        }
+        return false;
+    }
+
+    /**
+     * Reads a request head, reading from the channel until one is complete
+     *
+     * @param head the head to parse into
+     * @return true if a head was read, false if the connection was closed cleanly between requests
+     * @throws IOException if the connection failed or closed part way through a head
+     */
+    boolean readHead(HttpRequestHead head) throws IOException {
+        while (!parseHead(head)) {
+            if (fill() < 0) {
+                if (buf.hasRemaining()) {
+                    throw new ProtocolException("Connection closed part way through a request head");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a stream for the body of a request, closing the stream skips any unread part of the body
+     *
+     * @param head the head of the request
+     * @return a stream over the request body
+     */
+    InputStream bodyStream(HttpRequestHead head) {
+        if (head.isChunked()) {
+            return new ChunkedBody();
+        }
+        return new FixedLengthBody(Math.max(head.getContentLength(), 0));
+    }
+
+    private boolean ensureBuffered() throws IOException {
+        while (!buf.hasRemaining()) {
+            if (fill() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads into an array when nothing is buffered, any bytes beyond len are read into the buffer
+     *
+     * @return the number of bytes read into the array
+     */
+    private int scatterRead(byte[] b, int off, int len) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+        scatter[0] = dst;
+        scatter[1] = buf;
+        buf.clear();
+        try {
+            while (dst.position() == off) {
+                if (scatteringChannel.read(scatter) < 0) {
+                    throw new ProtocolException("Connection closed part way through a request body");
+                }
+            }
+        } finally {
+            buf.flip();
+            scatter[0] = null;
+            scatter[1] = null;
+        }
+        return dst.position() - off;
+    }
+
+    private int readByte() throws IOException {
+        if (!ensureBuffered()) {
+            throw new ProtocolException("Connection closed part way through a request body");
+        }
+        return buf.get() & 0xFF;
+    }
+
+    private final class FixedLengthBody extends InputStream {
+        private long remaining;
+
+        FixedLengthBody(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = readByte();
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.requireNonNull(b);
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int wanted = (int) Math.min(len, remaining);
+            if (!buf.hasRemaining() && scatteringChannel != null && wanted >= MIN_SCATTER_READ) {
+                int count = scatterRead(b, off, wanted);
+                remaining -= count;
+                return count;
+            }
+            if (!ensureBuffered()) {
+                throw new ProtocolException("Connection closed part way through a request body");
+            }
+            int count = Math.min(wanted, buf.remaining());
+            buf.get(b, off, count);
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && remaining > 0) {
+                if (!ensureBuffered()) {
+                    throw new ProtocolException("Connection closed part way through a request body");
+                }
+                int count = (int) Math.min(Math.min(n - skipped, remaining), buf.remaining());
+                buf.position(buf.position() + count);
+                remaining -= count;
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, buf.remaining());
+        }
+
+        @Override
+        public void close() throws IOException {
+            skip(remaining);
+        }
+    }
+
+    private final class ChunkedBody extends InputStream {
+        // bytes left in the current chunk, -1 before the first chunk
+        private long chunkRemaining = -1;
+        private boolean done;
+
+        /**
+         * @return false once the last chunk has been read
+         */
+        private boolean nextChunk() throws IOException {
+            if (done) {
+                return false;
+            }
+            if (chunkRemaining == 0) {
+                // CRLF after the previous chunk's data
+                readLineEnd();
+            }
+            long size = readChunkSize();
+            if (size == 0) {
+                // skip any trailers
+                while (!readLineIsEmpty()) {
+                    // ignored
+                }
+                done = true;
+                return false;
+            }
+            chunkRemaining = size;
+            return true;
+        }
+
+        private long readChunkSize() throws IOException {
+            long size = 0;
+            int digits = 0;
+            int c;
+            while ((c = readByte()) != '\n') {
+                if (c == ';') {
+                    // chunk extensions are ignored
+                    while (readByte() != '\n') {
+                        // ignored
+                    }
+                    break;
+                }
+                int d = Character.digit(c, 16);
+                if (d >= 0 && digits >= 0) {
+                    if (++digits > 15) {
+                        throw new ProtocolException("Chunk size too large");
+                    }
+                    size = (size << 4) + d;
+                } else if (c == '\r' || c == ' ' || c == '\t') {
+                    digits = digits > 0 ? -1 : digits;
+                } else {
+                    throw new ProtocolException("Invalid chunk size");
+                }
+            }
+            if (digits == 0) {
+                throw new ProtocolException("Invalid chunk size");
+            }
+            return size;
+        }
+
+        private void readLineEnd() throws IOException {
+            int c = readByte();
+            if (c == '\r') {
+                c = readByte();
+            }
+            if (c != '\n') {
+                throw new ProtocolException("Missing CRLF after chunk");
+            }
+        }
+
+        private boolean readLineIsEmpty() throws IOException {
+            int count = 0;
+            int c;
+            while ((c = readByte()) != '\n') {
+                if (c != '\r') {
+                    count++;
+                }
+            }
+            return count == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (chunkRemaining <= 0 && !nextChunk()) {
+                return -1;
+            }
+            int b = readByte();
+            chunkRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.requireNonNull(b);
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (chunkRemaining <= 0 && !nextChunk()) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureBuffered()) {
+                throw new ProtocolException("Connection closed part way through a request body");
+            }
+            int count = (int) Math.min(Math.min(len, chunkRemaining), buf.remaining());
+            buf.get(b, off, count);
+            chunkRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.max(0, Math.min(chunkRemaining, buf.remaining()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            while (chunkRemaining > 0 || nextChunk()) {
+                if (!ensureBuffered()) {
+                    throw new ProtocolException("Connection closed part way through a request body");
+                }
+                int count = (int) Math.min(chunkRemaining, buf.remaining());
+                buf.position(buf.position() + count);
+                chunkRemaining -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.api.OutputEvent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The sending side of an HTTP connection
+ * <p>
+ * A response head and its body are written into a single buffer which is only sent when it fills or the response is
+ * finished, so small responses leave in one write. Until the buffer is first sent the response is not committed and can
+ * be discarded with {@link #reset()}.
+ * <p>
+ * Nothing is allocated per response, callers can write pre-encoded status and header lines for values that don't
+ * change between responses.
+ * <p>
+ * Bodies are framed with a Content-Length when their length is known and are chunked otherwise, chunk sizes are written
+ * in place in front of each buffer's worth of data.
+ * <p>
+ * On a {@link GatheringByteChannel}, body writes that don't fit in the buffer are sent together with what is buffered
+ * in a single gathering write rather than being copied through the buffer.
+ * <p>
+ * The body stream is also an {@link OutputEvent.FileTransferChannel}, when the connection's channel is one too, file
+ * bodies are sent by the connection's channel straight from the file, otherwise they are read into the buffer.
+ */
+final class HttpConnectionOutput {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // fixed width chunk size, leading zeros are permitted by RFC 7230 4.1
+    private static final int CHUNK_HEADER_SIZE = 8 + CRLF.length;
+    // the most bytes of a heap buffer sent by one gathering write, channels copy heap buffers to native memory to send
+    // them, so bounding this keeps each write's copy small however large the body
+    private static final int MAX_HEAP_GATHER = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buf;
+    private final Body body = new Body();
+    private final GatheringByteChannel gatheringChannel;
+    private final OutputEvent.FileTransferChannel transferChannel;
+    private final ByteBuffer[] gather = new ByteBuffer[3];
+    private final ByteBuffer crlf = ByteBuffer.wrap(CRLF);
+
+    private boolean committed;
+    private boolean chunked;
+    private int chunkStart = -1;
+    private long declaredLength;
+    private long written;
+
+    HttpConnectionOutput(WritableByteChannel channel, ByteBuffer buf) {
+        this.channel = Objects.requireNonNull(channel, "channel");
+        this.buf = Objects.requireNonNull(buf, "buf");
+        this.gatheringChannel = channel instanceof GatheringByteChannel ? (GatheringByteChannel) channel : null;
+        this.transferChannel = channel instanceof OutputEvent.FileTransferChannel ? (OutputEvent.FileTransferChannel) channel : null;
+        buf.clear();
+    }
+
+    /**
+     * Sends an interim 100 Continue response, this does not commit the final response
+     *
+     * @throws IOException if sending failed
+     */
+    void sendContinue() throws IOException {
+        writeBytes(CONTINUE, 0, CONTINUE.length);
+        flushBuffer();
+        committed = false;
+    }
+
+    /**
+     * Starts a response, writing its status line
+     *
+     * @param code   the status code
+     * @param reason the reason phrase
+     * @throws IOException if the buffer had to be sent and sending failed
+     */
+    void writeStatus(int code, String reason) throws IOException {
+        startResponse();
+        writeAscii("HTTP/1.1 ");
+        writeDecimal(code);
+        writeByte(' ');
+        writeAscii(reason);
+        writeBytes(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * Starts a response with a pre-encoded status line
+     *
+     * @param statusLine the complete status line in ASCII, including its CRLF
+     * @throws IOException if the buffer had to be sent and sending failed
+     */
+    void writeStatusLine(byte[] statusLine) throws IOException {
+        startResponse();
+        writeBytes(statusLine, 0, statusLine.length);
+    }
+
+    private void startResponse() {
+        chunked = false;
+        chunkStart = -1;
+        declaredLength = -1;
+        written = 0;
+    }
+
+    /**
+     * Writes a header line, the name and value must not contain line breaks
+     */
+    void writeHeader(String name, String value) throws IOException {
+        writeAscii(name);
+        writeByte(':');
+        writeByte(' ');
+        writeAscii(value);
+        writeBytes(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * Writes pre-encoded header lines
+     *
+     * @param headerLines one or more complete header lines in ASCII, each ending with CRLF
+     * @throws IOException if the buffer had to be sent and sending failed
+     */
+    void writeHeaderLines(byte[] headerLines) throws IOException {
+        writeBytes(headerLines, 0, headerLines.length);
+    }
+
+    /**
+     * Ends the response head, adding the framing headers for the body
+     *
+     * @param contentLength the length of the body or -1 if it is not known, in which case the body is chunked
+     * @param close         whether to tell the client that the connection will be closed after this response
+     * @return a stream for the body, this is only valid until the response is finished
+     * @throws IOException if the buffer had to be sent and sending failed
+     */
+    OutputStream endHead(long contentLength, boolean close) throws IOException {
+        if (close) {
+            writeBytes(CONNECTION_CLOSE, 0, CONNECTION_CLOSE.length);
+        }
+        if (contentLength >= 0) {
+            writeBytes(CONTENT_LENGTH, 0, CONTENT_LENGTH.length);
+            writeDecimal(contentLength);
+            writeBytes(CRLF, 0, CRLF.length);
+        } else {
+            writeBytes(TRANSFER_ENCODING_CHUNKED, 0, TRANSFER_ENCODING_CHUNKED.length);
+        }
+        writeBytes(CRLF, 0, CRLF.length);
+
+        declaredLength = contentLength;
+        chunked = contentLength < 0;
+        if (chunked) {
+            startChunk();
+        }
+        return body;
+    }
+
+    /**
+     * Returns the body of the current response as a channel, this is the same as the stream returned by
+     * {@link #endHead(long, boolean)} and is also an {@link OutputEvent.FileTransferChannel}
+     */
+    WritableByteChannel bodyChannel() {
+        return body;
+    }
+
+    /**
+     * Completes the current response and sends anything still buffered
+     *
+     * @throws IOException if sending failed or a fixed length body was not the declared length, in either case the
+     *                     connection can't be reused
+     */
+    void finish() throws IOException {
+        if (chunked) {
+            endChunk();
+            chunked = false;
+            writeBytes(LAST_CHUNK, 0, LAST_CHUNK.length);
+        } else if (declaredLength >= 0 && written != declaredLength) {
+            throw new IOException("Response body was " + written + " bytes, expected " + declaredLength);
+        }
+        flushBuffer();
+        committed = false;
+    }
+
+    /**
+     * @return true if part of the current response has been sent
+     */
+    boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * Discards the current response, which must not have been committed
+     */
+    void reset() {
+        if (committed) {
+            throw new IllegalStateException("Response has already been committed");
+        }
+        buf.clear();
+        chunked = false;
+        chunkStart = -1;
+    }
+
+    private void startChunk() throws IOException {
+        if (buf.remaining() < CHUNK_HEADER_SIZE + CRLF.length + 1) {
+            flushBuffer();
+        }
+        chunkStart = buf.position();
+        buf.position(chunkStart + CHUNK_HEADER_SIZE);
+    }
+
+    private void endChunk() {
+        int size = buf.position() - chunkStart - CHUNK_HEADER_SIZE;
+        if (size == 0) {
+            // an empty chunk would end the body, drop the reserved header instead
+            buf.position(chunkStart);
+        } else {
+            putChunkHeader(chunkStart, size);
+            buf.put(CRLF);
+        }
+        chunkStart = -1;
+    }
+
+    private void putChunkHeader(int index, int size) {
+        for (int i = 7; i >= 0; i--) {
+            buf.put(index + i, HEX[size & 0xF]);
+            size >>>= 4;
+        }
+        buf.put(index + 8, CRLF[0]);
+        buf.put(index + 9, CRLF[1]);
+    }
+
+    private void flushBuffer() throws IOException {
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+                committed = true;
+            }
+        } finally {
+            buf.clear();
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (!buf.hasRemaining()) {
+            flushBuffer();
+        }
+        buf.put((byte) b);
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeDecimal(long value) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            writeByte((int) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buf.hasRemaining()) {
+                flushBuffer();
+            }
+            int count = Math.min(len, buf.remaining());
+            buf.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Writes body bytes into the buffer, framing them as chunks if necessary
+     */
+    private void writeBody(byte[] b, int off, int len) throws IOException {
+        countBody(len);
+        if (gatheringChannel != null && len > buf.remaining() - CRLF.length) {
+            gatherBody(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (!chunked) {
+            writeBytes(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            int count = Math.min(len, bodySpace());
+            buf.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer as body bytes, like {@link #writeBody(byte[], int, int)}
+     */
+    private void writeBody(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        countBody(len);
+        if (gatheringChannel != null && len > buf.remaining() - CRLF.length) {
+            gatherBody(src);
+            return;
+        }
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                src.limit(src.position() + Math.min(src.remaining(), bodySpace()));
+                buf.put(src);
+                src.limit(limit);
+            }
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    private void countBody(long len) throws IOException {
+        written += len;
+        if (declaredLength >= 0 && written > declaredLength) {
+            throw new IOException("Response body is longer than the declared length " + declaredLength);
+        }
+    }
+
+    /**
+     * Returns the number of body bytes that can be put in the buffer, sending the buffer first if it is full
+     */
+    private int bodySpace() throws IOException {
+        while (true) {
+            // leave room to terminate the chunk
+            int space = chunked ? buf.remaining() - CRLF.length : buf.remaining();
+            if (space > 0) {
+                return space;
+            }
+            flushBody();
+        }
+    }
+
+    /**
+     * Sends what is buffered followed by body bytes that don't fit in the buffer in one gathering write, as a chunk of
+     * their own if the body is chunked
+     * <p>
+     * Heap buffers are sent at most {@link #MAX_HEAP_GATHER} bytes at a time.
+     */
+    private void gatherBody(ByteBuffer src) throws IOException {
+        int parts = 0;
+        if (chunked) {
+            endChunk();
+            if (buf.remaining() < CHUNK_HEADER_SIZE) {
+                flushBuffer();
+            }
+            int header = buf.position();
+            buf.position(header + CHUNK_HEADER_SIZE);
+            putChunkHeader(header, src.remaining());
+        }
+        buf.flip();
+        gather[parts++] = buf;
+        gather[parts++] = src;
+        if (chunked) {
+            crlf.clear();
+            gather[parts++] = crlf;
+        }
+        int end = src.limit();
+        try {
+            do {
+                int sliceEnd = src.isDirect() ? end : (int) Math.min(end, (long) src.position() + MAX_HEAP_GATHER);
+                src.limit(sliceEnd);
+                // the chunk's trailing CRLF is only sent along with the end of the body
+                gatheringChannel.write(gather, 0, sliceEnd == end ? parts : 2);
+                committed = true;
+                src.limit(end);
+            } while (gather[parts - 1].hasRemaining());
+        } finally {
+            src.limit(end);
+            buf.clear();
+            Arrays.fill(gather, null);
+        }
+        if (chunked) {
+            startChunk();
+        }
+    }
+
+    /**
+     * Sends part of a file as body bytes
+     *
+     * @return the number of bytes sent, zero at the end of the file
+     */
+    private long transferBody(FileChannel file, long position, long count) throws IOException {
+        if (transferChannel == null) {
+            return readBody(file, position, count);
+        }
+        // the length of a chunk has to be known before it is sent, so send whatever of the region the file has now
+        count = Math.min(count, Math.max(file.size() - position, 0));
+        if (chunked) {
+            count = Math.min(count, Integer.MAX_VALUE);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        countBody(count);
+        if (chunked) {
+            endChunk();
+            if (buf.remaining() < CHUNK_HEADER_SIZE) {
+                flushBuffer();
+            }
+            int header = buf.position();
+            buf.position(header + CHUNK_HEADER_SIZE);
+            putChunkHeader(header, (int) count);
+        }
+        flushBuffer();
+        long sent = 0;
+        while (sent < count) {
+            long n = transferChannel.transferFrom(file, position + sent, count - sent);
+            if (n <= 0) {
+                // the file was truncated while it was being sent, the response can't be completed
+                throw new EOFException("File ended after " + sent + " of " + count + " bytes");
+            }
+            sent += n;
+            committed = true;
+        }
+        if (chunked) {
+            buf.put(CRLF);
+            startChunk();
+        }
+        return count;
+    }
+
+    /**
+     * Reads part of a file into the buffer as body bytes
+     */
+    private long readBody(FileChannel file, long position, long count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        int space = bodySpace();
+        int limit = buf.limit();
+        int read;
+        try {
+            buf.limit(buf.position() + (int) Math.min(count, space));
+            read = file.read(buf, position);
+        } finally {
+            buf.limit(limit);
+        }
+        if (read <= 0) {
+            return 0;
+        }
+        countBody(read);
+        return read;
+    }
+
+    /**
+     * Sends the body written so far, committing the response
+     */
+    private void flushBody() throws IOException {
+        if (chunked) {
+            endChunk();
+            flushBuffer();
+            startChunk();
+        } else {
+            flushBuffer();
+        }
+    }
+
+    private final class Body extends OutputStream implements OutputEvent.FileTransferChannel {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            writeBody(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.requireNonNull(b);
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            writeBody(b, off, len);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int len = src.remaining();
+            writeBody(src);
+            return len;
+        }
+
+        @Override
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            return transferBody(file, position, count);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBody();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // the connection outlives the response body
+        }
+    }
+}
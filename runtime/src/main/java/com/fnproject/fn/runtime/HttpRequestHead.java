@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The request line and headers of an HTTP/1.1 request
+ * <p>
+ * This is a minimal parser for the requests the Fn agent sends to functions, it parses complete request heads out of a
+ * buffer and works the same way whether the buffer was filled by blocking or non-blocking reads. Instances are reused
+ * for each request on a connection.
+ * <p>
+ * The head is copied into a reusable array and headers are recorded as offsets into it, so parsing does not allocate
+ * once the arrays have grown to fit the connection's requests. Strings are only created when a name or value is asked
+ * for.
+ */
+final class HttpRequestHead {
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+    private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length");
+    private static final byte[] TRANSFER_ENCODING = ascii("Transfer-Encoding");
+    private static final byte[] CONNECTION = ascii("Connection");
+    private static final byte[] EXPECT = ascii("Expect");
+    private static final byte[] CHUNKED = ascii("chunked");
+    private static final byte[] IDENTITY = ascii("identity");
+    private static final byte[] CLOSE = ascii("close");
+    private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+    private static final byte[] CONTINUE = ascii("100-continue");
+
+    private byte[] bytes = new byte[1024];
+    private int methodEnd;
+    private int pathStart;
+    private int pathEnd;
+    private boolean http11;
+    private long contentLength;
+    private boolean chunked;
+    private boolean keepAlive;
+    private boolean expectContinue;
+
+    // offsets of each header's name and value within bytes, four entries per header
+    private int[] headers = new int[4 * 16];
+    private int headerCount;
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parses a request head starting at the buffer's position
+     * <p>
+     * If the buffer contains a complete head it is parsed, the buffer's position is moved to the first byte after the
+     * head and true is returned. Otherwise the buffer is left unchanged and false is returned.
+     *
+     * @param buf a buffer in read mode
+     * @return true if a complete head was parsed
+     * @throws ProtocolException if the head is malformed
+     */
+    boolean parse(ByteBuffer buf) throws ProtocolException {
+        int start = skipEmptyLines(buf);
+        int end = findEndOfHead(buf, start);
+        if (end < 0) {
+            return false;
+        }
+        reset();
+
+        int len = end - start;
+        if (bytes.length < len) {
+            bytes = new byte[Math.max(len, bytes.length * 2)];
+        }
+        for (int i = 0; i < len; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+
+        int pos = 0;
+        boolean first = true;
+        while (pos < len) {
+            int nl = indexOf(bytes, pos, len, (byte) '\n');
+            int lineEnd = nl;
+            if (lineEnd > pos && bytes[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (first) {
+                parseRequestLine(pos, lineEnd);
+                first = false;
+            } else if (lineEnd > pos) {
+                parseHeader(pos, lineEnd);
+            }
+            pos = nl + 1;
+        }
+        buf.position(end);
+        return true;
+    }
+
+    private void reset() {
+        methodEnd = 0;
+        pathStart = 0;
+        pathEnd = 0;
+        http11 = false;
+        headerCount = 0;
+        contentLength = -1;
+        chunked = false;
+        keepAlive = true;
+        expectContinue = false;
+    }
+
+    /**
+     * Skips empty lines before the request line (RFC 7230 3.5) so they are not mistaken for the end of the head
+     */
+    private static int skipEmptyLines(ByteBuffer buf) {
+        int limit = buf.limit();
+        int start = buf.position();
+        while (start < limit && (buf.get(start) == '\r' || buf.get(start) == '\n')) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return the index of the first byte after the blank line ending the head, or -1 if the head is incomplete
+     */
+    private static int findEndOfHead(ByteBuffer buf, int start) {
+        int limit = buf.limit();
+        for (int i = start; i < limit; i++) {
+            if (buf.get(i) == '\n') {
+                if (i + 1 < limit && buf.get(i + 1) == '\n') {
+                    return i + 2;
+                }
+                if (i + 2 < limit && buf.get(i + 1) == '\r' && buf.get(i + 2) == '\n') {
+                    return i + 3;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void parseRequestLine(int start, int end) throws ProtocolException {
+        int sp1 = indexOf(bytes, start, end, (byte) ' ');
+        int sp2 = indexOf(bytes, sp1 + 1, end, (byte) ' ');
+        if (sp1 <= start || sp2 >= end || sp2 == sp1 + 1) {
+            throw new ProtocolException("Invalid request line: " + string(start, end));
+        }
+        methodEnd = sp1;
+        pathStart = sp1 + 1;
+        // the query string is not part of the path
+        pathEnd = indexOf(bytes, pathStart, sp2, (byte) '?');
+
+        if (equalsIgnoreCase(sp2 + 1, end, HTTP_1_1)) {
+            http11 = true;
+        } else if (equalsIgnoreCase(sp2 + 1, end, HTTP_1_0)) {
+            http11 = false;
+            keepAlive = false;
+        } else {
+            throw new ProtocolException("Unsupported HTTP version: " + string(sp2 + 1, end));
+        }
+    }
+
+    private void parseHeader(int start, int end) throws ProtocolException {
+        int colon = indexOf(bytes, start, end, (byte) ':');
+        if (colon <= start || colon == end || bytes[start] == ' ' || bytes[start] == '\t') {
+            throw new ProtocolException("Invalid header line: " + string(start, end));
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && (bytes[valueStart] == ' ' || bytes[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (bytes[valueEnd - 1] == ' ' || bytes[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        int i = 4 * headerCount;
+        if (headers.length < i + 4) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        headers[i] = start;
+        headers[i + 1] = colon;
+        headers[i + 2] = valueStart;
+        headers[i + 3] = valueEnd;
+        headerCount++;
+
+        if (equalsIgnoreCase(start, colon, CONTENT_LENGTH)) {
+            long length = parseLength(valueStart, valueEnd);
+            if (contentLength >= 0 && contentLength != length) {
+                throw new ProtocolException("Invalid Content-Length: " + string(valueStart, valueEnd));
+            }
+            contentLength = length;
+        } else if (equalsIgnoreCase(start, colon, TRANSFER_ENCODING)) {
+            if (valueEnd - valueStart >= CHUNKED.length && equalsIgnoreCase(valueEnd - CHUNKED.length, valueEnd, CHUNKED)) {
+                chunked = true;
+            } else if (!equalsIgnoreCase(valueStart, valueEnd, IDENTITY)) {
+                throw new ProtocolException("Unsupported Transfer-Encoding: " + string(valueStart, valueEnd));
+            }
+        } else if (equalsIgnoreCase(start, colon, CONNECTION)) {
+            if (equalsIgnoreCase(valueStart, valueEnd, CLOSE)) {
+                keepAlive = false;
+            } else if (equalsIgnoreCase(valueStart, valueEnd, KEEP_ALIVE)) {
+                keepAlive = true;
+            }
+        } else if (equalsIgnoreCase(start, colon, EXPECT)) {
+            expectContinue = http11 && equalsIgnoreCase(valueStart, valueEnd, CONTINUE);
+        }
+    }
+
+    private long parseLength(int start, int end) throws ProtocolException {
+        // at most 18 digits so the value can't overflow
+        if (start == end || end - start > 18) {
+            throw new ProtocolException("Invalid Content-Length: " + string(start, end));
+        }
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new ProtocolException("Invalid Content-Length: " + string(start, end));
+            }
+            length = length * 10 + d;
+        }
+        return length;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (toLower(bytes[start + i]) != toLower(expected[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String expected) {
+        if (end - start != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            char c = expected.charAt(i);
+            if (c > 0x7F || toLower(bytes[start + i]) != toLower((byte) c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private String string(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    String getMethod() {
+        return string(0, methodEnd);
+    }
+
+    /**
+     * @return the request path, excluding any query string
+     */
+    String getPath() {
+        return string(pathStart, pathEnd);
+    }
+
+    /**
+     * Compares the request path with a string without creating a string for the path
+     *
+     * @param path an ASCII path
+     * @return true if the request path, excluding any query string, is exactly path
+     */
+    boolean isPath(String path) {
+        if (pathEnd - pathStart != path.length()) {
+            return false;
+        }
+        for (int i = 0; i < path.length(); i++) {
+            if (bytes[pathStart + i] != path.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isHttp11() {
+        return http11;
+    }
+
+    int getHeaderCount() {
+        return headerCount;
+    }
+
+    String getHeaderName(int i) {
+        checkHeaderIndex(i);
+        return string(headers[4 * i], headers[4 * i + 1]);
+    }
+
+    String getHeaderValue(int i) {
+        checkHeaderIndex(i);
+        return string(headers[4 * i + 2], headers[4 * i + 3]);
+    }
+
+    private void checkHeaderIndex(int i) {
+        if (i < 0 || i >= headerCount) {
+            throw new IndexOutOfBoundsException("Header " + i + " of " + headerCount);
+        }
+    }
+
+    /**
+     * @param name a header name, matched case-insensitively
+     * @return the index of the first header with the name or -1 if it is not present
+     */
+    int indexOfHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(headers[4 * i], headers[4 * i + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name a header name, matched case-insensitively
+     * @return the first value of the header or null if it is not present
+     */
+    String getFirstHeader(String name) {
+        int i = indexOfHeader(name);
+        return i < 0 ? null : getHeaderValue(i);
+    }
+
+    /**
+     * @return the declared length of the body or -1 if the request does not specify one
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+
+    boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @return true unless the client asked for the connection to be closed after this request
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    boolean isExpectContinue() {
+        return expectContinue;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import java.util.concurrent.CompletionStage;
+
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.InvocationContext;
+import com.fnproject.fn.api.OutputEvent;
+
+/**
+ * Wraps each call that {@link FunctionRuntimeContext} makes to the function's invokers
+ * <p>
+ * A filter may answer a call itself or pass it on, possibly with a different input event, to the next filter or, after
+ * the last filter, to the invokers. Filters are applied in the order they were added, the first being outermost.
+ */
+interface InvocationFilter {
+
+    /**
+     * @param ctx  the invocation context of the call
+     * @param evt  the input event of the call
+     * @param next the rest of the chain
+     * @return a stage that completes with the response to the call, or with null if no invoker handled it
+     */
+    CompletionStage<OutputEvent> filter(InvocationContext ctx, InputEvent evt, Chain next);
+
+    /**
+     * The filters and invokers after a filter
+     */
+    interface Chain {
+        CompletionStage<OutputEvent> proceed(InvocationContext ctx, InputEvent evt);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Calls a function method
+ * <p>
+ * Public methods of public classes with up to two arguments (counting the receiver of an instance method) are called
+ * through an accessor spun for the method by {@link LambdaMetafactory}. The accessor calls the method directly, so as
+ * the caller is the only one of its type in the runtime the JIT can inline the function method into the call.
+ * <p>
+ * Other methods are called through a {@link MethodHandle} adapted once to take a receiver and an array of arguments,
+ * this skips the access checks and argument copying of {@link Method#invoke} but the handle is not a constant to the
+ * JIT so the method is not inlined.
+ * <p>
+ * In either case exceptions thrown by the method are not wrapped.
+ */
+interface MethodCaller {
+
+    /**
+     * Calls the method
+     *
+     * @param instance the receiver, this is ignored for static methods
+     * @param args     the arguments to the method
+     * @return the result of the method, or null if it is void
+     * @throws Throwable anything thrown by the method
+     */
+    Object call(Object instance, Object[] args) throws Throwable;
+
+    /**
+     * @param method the method to call, this must be accessible to the runtime
+     * @return a caller for the method
+     * @throws IllegalAccessException if the runtime cannot call the method
+     */
+    static MethodCaller forMethod(Method method) throws IllegalAccessException {
+        Objects.requireNonNull(method, "method");
+        MethodHandle mh = MethodHandles.lookup().unreflect(method);
+        MethodCaller accessor = Accessors.forMethod(method, mh);
+        if (accessor != null) {
+            return accessor;
+        }
+        return new HandleCaller(method, mh);
+    }
+
+    /**
+     * Calls a method through its method handle
+     */
+    final class HandleCaller implements MethodCaller {
+        private final MethodHandle handle;
+
+        private HandleCaller(Method method, MethodHandle mh) {
+            if (Modifier.isStatic(method.getModifiers())) {
+                // static methods ignore the receiver, as with Method.invoke
+                mh = MethodHandles.dropArguments(mh, 0, Object.class);
+            }
+            // primitives are boxed and unboxed and void methods return null
+            mh = mh.asType(mh.type().generic());
+            this.handle = mh.asSpreader(Object[].class, method.getParameterCount());
+        }
+
+        @Override
+        public Object call(Object instance, Object[] args) throws Throwable {
+            return (Object) handle.invokeExact(instance, args);
+        }
+    }
+
+    /**
+     * Spins accessors for methods as implementations of the {@code java.util.function} interfaces
+     * <p>
+     * The spun classes do not check the exceptions they throw, so checked exceptions from the method pass through the
+     * interfaces unwrapped.
+     */
+    final class Accessors {
+        private Accessors() {
+        }
+
+        /**
+         * @return an accessor for the method, or null if the method must be called through its handle
+         */
+        static MethodCaller forMethod(Method method, MethodHandle mh) {
+            if (!canSpin(method)) {
+                return null;
+            }
+            boolean isVoid = method.getReturnType() == void.class;
+            try {
+                if (Modifier.isStatic(method.getModifiers())) {
+                    switch (method.getParameterCount()) {
+                        case 0:
+                            if (isVoid) {
+                                Runnable run = spin(Runnable.class, "run", mh);
+                                return (instance, args) -> {
+                                    run.run();
+                                    return null;
+                                };
+                            }
+                            Supplier<?> get = spin(Supplier.class, "get", mh);
+                            return (instance, args) -> get.get();
+                        case 1:
+                            if (isVoid) {
+                                Consumer<Object> accept = spin(Consumer.class, "accept", mh);
+                                return (instance, args) -> {
+                                    accept.accept(args[0]);
+                                    return null;
+                                };
+                            }
+                            Function<Object, ?> apply = spin(Function.class, "apply", mh);
+                            return (instance, args) -> apply.apply(args[0]);
+                        case 2:
+                            if (isVoid) {
+                                BiConsumer<Object, Object> biAccept = spin(BiConsumer.class, "accept", mh);
+                                return (instance, args) -> {
+                                    biAccept.accept(args[0], args[1]);
+                                    return null;
+                                };
+                            }
+                            BiFunction<Object, Object, ?> biApply = spin(BiFunction.class, "apply", mh);
+                            return (instance, args) -> biApply.apply(args[0], args[1]);
+                        default:
+                            return null;
+                    }
+                }
+                switch (method.getParameterCount()) {
+                    case 0:
+                        if (isVoid) {
+                            Consumer<Object> accept = spin(Consumer.class, "accept", mh);
+                            return (instance, args) -> {
+                                accept.accept(instance);
+                                return null;
+                            };
+                        }
+                        Function<Object, ?> apply = spin(Function.class, "apply", mh);
+                        return (instance, args) -> apply.apply(instance);
+                    case 1:
+                        if (isVoid) {
+                            BiConsumer<Object, Object> biAccept = spin(BiConsumer.class, "accept", mh);
+                            return (instance, args) -> {
+                                biAccept.accept(instance, args[0]);
+                                return null;
+                            };
+                        }
+                        BiFunction<Object, Object, ?> biApply = spin(BiFunction.class, "apply", mh);
+                        return (instance, args) -> biApply.apply(instance, args[0]);
+                    default:
+                        return null;
+                }
+            } catch (Throwable e) {
+                // the method is still callable through its handle
+                return null;
+            }
+        }
+
+        /**
+         * The spun class is defined alongside the runtime, so it can only call public methods of public classes that
+         * the runtime's class loader resolves to the same class
+         */
+        private static boolean canSpin(Method method) {
+            Class<?> declaringClass = method.getDeclaringClass();
+            if (!Modifier.isPublic(method.getModifiers()) || !Modifier.isPublic(declaringClass.getModifiers())) {
+                return false;
+            }
+            try {
+                return Class.forName(declaringClass.getName(), false, MethodCaller.class.getClassLoader()) == declaringClass;
+            } catch (ClassNotFoundException | LinkageError e) {
+                return false;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T spin(Class<? super T> type, String name, MethodHandle mh) throws Throwable {
+            MethodType erased = mh.type().generic();
+            MethodType instantiated = mh.type().wrap();
+            if (mh.type().returnType() == void.class) {
+                erased = erased.changeReturnType(void.class);
+                instantiated = instantiated.changeReturnType(void.class);
+            }
+            return (T) LambdaMetafactory.metafactory(MethodHandles.lookup(), name, MethodType.methodType(type),
+              erased, mh, instantiated).getTarget().invoke();
+        }
+    }
+}
@@ -17,13 +17,19 @@
 package com.fnproject.fn.runtime;
 
 
-import java.lang.reflect.InvocationTargetException;
+import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 import com.fnproject.fn.api.FunctionInvoker;
+import com.fnproject.fn.api.InputCoercion;
 import com.fnproject.fn.api.InputEvent;
 import com.fnproject.fn.api.InvocationContext;
 import com.fnproject.fn.api.MethodWrapper;
+import com.fnproject.fn.api.OutputCoercion;
 import com.fnproject.fn.api.OutputEvent;
 import com.fnproject.fn.api.RuntimeContext;
 import com.fnproject.fn.api.exception.FunctionInputHandlingException;
@@ -35,12 +41,16 @@ import com.fnproject.fn.runtime.exception.InternalFunctionInvocationException;
  * <p>
  * <p>
  * This handles the binding and invocation of function calls via java methods.
+ * <p>
+ * Methods may return a {@link CompletionStage}, the value it completes with is coerced to the function's output.
  */
 public class MethodFunctionInvoker implements FunctionInvoker {
 
 
     /**
      * Invoke the function wrapped by this loader
+     * <p>
+     * This waits for the result of functions that return a {@link CompletionStage}
      *
      * @param evt The function event
      * @return the function response
@@ -50,19 +60,123 @@ public class MethodFunctionInvoker implements FunctionInvoker {
     public Optional<OutputEvent> tryInvoke(InvocationContext ctx, InputEvent evt) throws InternalFunctionInvocationException {
         FunctionRuntimeContext runtimeContext = (FunctionRuntimeContext) ctx.getRuntimeContext();
         MethodWrapper method = runtimeContext.getMethodWrapper();
+        Instant deadline = runtimeContext.isDeadlineEnforced() ? evt.getDeadline() : null;
+        Object rawResult = invoke(ctx, runtimeContext, method, evt, deadline);
 
-        Object[] userFunctionParams = coerceParameters(ctx, method, evt);
+        MethodWrapper resultMethod = runtimeContext.getResultMethod();
+        if (resultMethod == method) {
+            return coerceReturnValue(ctx, method, rawResult);
+        }
+        try {
+            return Optional.of(whenResultCompletes(ctx, resultMethod, rawResult, deadline).toCompletableFuture().join());
+        } catch (CompletionException e) {
+            // only unchecked exceptions are thrown while completing the result
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
 
+    /**
+     * Invoke the function wrapped by this loader without waiting for the result of functions that return a
+     * {@link CompletionStage}
+     *
+     * @param ctx The invocation context of the call
+     * @param evt The function event
+     * @return a stage that completes with the function response once the function's result has been coerced, or
+     * completes exceptionally with {@link InternalFunctionInvocationException} if the function's result completes exceptionally
+     * @throws InternalFunctionInvocationException if the invocation fails
+     */
+    public CompletionStage<OutputEvent> tryInvokeAsync(InvocationContext ctx, InputEvent evt) throws InternalFunctionInvocationException {
+        FunctionRuntimeContext runtimeContext = (FunctionRuntimeContext) ctx.getRuntimeContext();
+        MethodWrapper method = runtimeContext.getMethodWrapper();
+        Instant deadline = runtimeContext.isDeadlineEnforced() ? evt.getDeadline() : null;
+        Object rawResult = invoke(ctx, runtimeContext, method, evt, deadline);
+
+        MethodWrapper resultMethod = runtimeContext.getResultMethod();
+        if (resultMethod == method) {
+            return CompletableFuture.completedFuture(coerceReturnValue(ctx, method, rawResult).get());
+        }
+        return whenResultCompletes(ctx, resultMethod, rawResult, deadline);
+    }
+
+    /**
+     * Calls the function, if a deadline is given the call is abandoned once it passes and the function is interrupted
+     * if it is running at the time
+     * <p>
+     * The function instance is returned to the runtime context once the call, or the stage it returns, completes.
+     */
+    private Object invoke(InvocationContext ctx, FunctionRuntimeContext runtimeContext, MethodWrapper method, InputEvent evt, Instant deadline) {
+        if (deadline != null) {
+            Deadlines.check(deadline, "before reading the function's input");
+        }
+        Object[] userFunctionParams = coerceParameters(ctx, method, evt);
+        MethodCaller caller = runtimeContext.getMethodCaller();
+        boolean async = runtimeContext.getResultMethod() != method;
+        Object instance = runtimeContext.checkoutInstance(deadline);
         Object rawResult;
+        try {
+            rawResult = call(caller, instance, userFunctionParams, deadline, async);
+        } catch (RuntimeException | Error e) {
+            runtimeContext.releaseInstance(instance);
+            throw e;
+        }
+        if (async && rawResult != null) {
+            ((CompletionStage<?>) rawResult).whenComplete((value, error) -> runtimeContext.releaseInstance(instance));
+        } else {
+            runtimeContext.releaseInstance(instance);
+        }
+        return rawResult;
+    }
 
+    private static Object call(MethodCaller caller, Object instance, Object[] userFunctionParams, Instant deadline, boolean async) {
+        if (deadline == null) {
+            return call(caller, instance, userFunctionParams);
+        }
+
+        Deadlines.check(deadline, "before calling the function");
+        Object rawResult;
+        try (Deadlines.Interrupter ignored = Deadlines.interruptAt(deadline)) {
+            rawResult = call(caller, instance, userFunctionParams);
+        } catch (InternalFunctionInvocationException e) {
+            // failures caused by the interrupt are reported as the timeout
+            Deadlines.check(deadline, "while the function was running");
+            throw e;
+        }
+        if (!async) {
+            // a result for a call that has overrun is discarded by the platform, so it isn't written
+            Deadlines.check(deadline, "while the function was running");
+        }
+        return rawResult;
+    }
 
+    private static Object call(MethodCaller caller, Object instance, Object[] userFunctionParams) {
         try {
-            rawResult = method.getTargetMethod().invoke(ctx.getRuntimeContext().getInvokeInstance().orElse(null), userFunctionParams);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new InternalFunctionInvocationException(e.getCause().getMessage(), e.getCause());
+            return caller.call(instance, userFunctionParams);
+        } catch (Throwable e) {
+            throw new InternalFunctionInvocationException(e.getMessage(), e);
         }
+    }
 
-        return coerceReturnValue(ctx, method, rawResult);
+    /**
+     * Coerces the value a function's {@link CompletionStage} completes with on the thread that completes it
+     */
+    private CompletionStage<OutputEvent> whenResultCompletes(InvocationContext ctx, MethodWrapper resultMethod, Object rawResult, Instant deadline) {
+        CompletionStage<?> result = rawResult == null ? CompletableFuture.completedFuture(null) : (CompletionStage<?>) rawResult;
+        if (deadline != null) {
+            result = Deadlines.within(result, deadline);
+        }
+        return result.handle((value, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof InternalFunctionInvocationException) {
+                    throw (InternalFunctionInvocationException) cause;
+                }
+                throw new InternalFunctionInvocationException(cause.getMessage(), cause);
+            }
+            return coerceReturnValue(ctx, resultMethod, value).get();
+        });
     }
 
     protected Object[] coerceParameters(InvocationContext ctx, MethodWrapper targetMethod, InputEvent evt) {
@@ -81,30 +195,43 @@ public class MethodFunctionInvoker implements FunctionInvoker {
     }
 
     private Object coerceParameter(InvocationContext ctx, MethodWrapper targetMethod, int param, InputEvent evt) {
-        RuntimeContext runtimeContext = ctx.getRuntimeContext();
-
-        return runtimeContext.getInputCoercions(targetMethod, param)
-                .stream()
-                .map((c) -> c.tryCoerceParam(ctx, param, evt, targetMethod))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .findFirst()
-                .orElseThrow(() -> new FunctionInputHandlingException("No type coercion for argument " + param + " of " + targetMethod + " of found"));
+        List<InputCoercion> coercions = inputCoercions(ctx.getRuntimeContext(), targetMethod, param);
+        for (int i = 0; i < coercions.size(); i++) {
+            Optional<?> result = coercions.get(i).tryCoerceParam(ctx, param, evt, targetMethod);
+            if (result.isPresent()) {
+                return result.get();
+            }
+        }
+        throw new FunctionInputHandlingException("No type coercion for argument " + param + " of " + targetMethod + " of found");
+    }
+
+    private static List<InputCoercion> inputCoercions(RuntimeContext runtimeContext, MethodWrapper targetMethod, int param) {
+        if (runtimeContext instanceof FunctionRuntimeContext && runtimeContext.getMethod() == targetMethod) {
+            return ((FunctionRuntimeContext) runtimeContext).getInputCoercionPlan(param);
+        }
+        return runtimeContext.getInputCoercions(targetMethod, param);
     }
 
     protected Optional<OutputEvent> coerceReturnValue(InvocationContext ctx, MethodWrapper method, Object rawResult) {
         try {
-            return Optional.of(ctx.getRuntimeContext().getOutputCoercions(method.getTargetMethod())
-                    .stream()
-                    .map((c) -> c.wrapFunctionResult(ctx, method, rawResult))
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .findFirst()
-                    .orElseThrow(() -> new FunctionOutputHandlingException("No coercion found for return type")));
-
+            List<OutputCoercion> coercions = outputCoercions(ctx.getRuntimeContext(), method);
+            for (int i = 0; i < coercions.size(); i++) {
+                Optional<OutputEvent> result = coercions.get(i).wrapFunctionResult(ctx, method, rawResult);
+                if (result.isPresent()) {
+                    return result;
+                }
+            }
+            throw new FunctionOutputHandlingException("No coercion found for return type");
         } catch (RuntimeException e) {
             throw new FunctionOutputHandlingException("An exception was thrown during Output Coercion: " + e.getMessage(), e);
         }
     }
 
+    private static List<OutputCoercion> outputCoercions(RuntimeContext runtimeContext, MethodWrapper method) {
+        // the plan only depends on the target method so it also applies to the result of an asynchronous function
+        if (runtimeContext instanceof FunctionRuntimeContext && runtimeContext.getMethod().getTargetMethod() == method.getTargetMethod()) {
+            return ((FunctionRuntimeContext) runtimeContext).getOutputCoercionPlan();
+        }
+        return runtimeContext.getOutputCoercions(method.getTargetMethod());
+    }
 }
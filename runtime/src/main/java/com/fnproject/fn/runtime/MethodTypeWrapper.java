@@ -22,6 +22,7 @@ import net.jodah.typetools.TypeResolver;
 
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
 
 public final class MethodTypeWrapper implements TypeWrapper {
     private final Class<?> parameterClass;
@@ -59,4 +60,19 @@ public final class MethodTypeWrapper implements TypeWrapper {
 
     }
 
+    /**
+     * @return the type of the value that the {@link java.util.concurrent.CompletionStage} returned by a method completes with
+     */
+    static TypeWrapper fromCompletionResult(MethodWrapper method) {
+        Type type = method.getTargetMethod().getGenericReturnType();
+        if (!(type instanceof ParameterizedType)) {
+            return new MethodTypeWrapper(Object.class);
+        }
+        Type resultType = ((ParameterizedType) type).getActualTypeArguments()[0];
+        if (resultType instanceof WildcardType) {
+            resultType = ((WildcardType) resultType).getUpperBounds()[0];
+        }
+        return new MethodTypeWrapper(resolveType(resultType, method));
+    }
+
 }
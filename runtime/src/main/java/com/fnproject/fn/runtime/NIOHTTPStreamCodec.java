@@ -0,0 +1,692 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.exception.FunctionIOException;
+import com.fnproject.fn.runtime.exception.FunctionInitializationException;
+import com.fnproject.fn.runtime.ntv.DirectBufferPool;
+
+/**
+ * Fn HTTP Stream over Unix domain sockets codec using the JDK's own unix domain socket support (JDK 16 and later)
+ * <p>
+ * This behaves like {@link HTTPStreamCodec} but needs no native library. A single thread accepts connections and waits
+ * for requests on all of them, so idle keep-alive connections don't tie up threads. Once a request head has been read
+ * the request is handed to a pool of worker threads which read the body, call the function and write the response.
+ * <p>
+ * There are env["FDK_MAX_CONCURRENCY"] workers (one by default), functions must be thread-safe if this is raised.
+ * Functions that return a {@link java.util.concurrent.CompletionStage} don't hold a worker while they complete, so
+ * the workers can start other calls meanwhile.
+ * <p>
+ * On Java 21 and later, setting env["FDK_VIRTUAL_THREADS"] to true instead serves each connection from its own virtual
+ * thread with blocking reads and writes, up to env["FDK_MAX_CONCURRENCY"] connections at a time. Calls that block on
+ * I/O then park their virtual thread rather than holding a platform thread, so the concurrency can be set much higher.
+ */
+public final class NIOHTTPStreamCodec implements EventCodec, Closeable {
+    private static final String FN_LISTENER = "FN_LISTENER";
+    static final String VIRTUAL_THREADS = "FDK_VIRTUAL_THREADS";
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    // resolved reflectively as the FDK is built for Java 8
+    private static final Method unixDomainAddressOf;
+    private static final Method openServerSocketChannel;
+    private static final ProtocolFamily unixProtocolFamily;
+
+    static {
+        Method addressOf = null;
+        Method open = null;
+        ProtocolFamily unix = null;
+        try {
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            open = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            unix = StandardProtocolFamily.valueOf("UNIX");
+        } catch (ReflectiveOperationException | IllegalArgumentException ignored) {
+            addressOf = null;
+            open = null;
+        }
+        unixDomainAddressOf = addressOf;
+        openServerSocketChannel = open;
+        unixProtocolFamily = unix;
+    }
+
+    private final String fdkVersion;
+    private final String runtimeVersion;
+    private final int maxConcurrency;
+    private final RequestBodyPolicy bodyPolicy;
+    private final boolean enforceDeadlines;
+    private final AtomicBoolean stopping = new AtomicBoolean(false);
+    private final CompletableFuture<Boolean> stopped = new CompletableFuture<>();
+    private final File socketFile;
+    private final File tempFile;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    // creates a virtual thread for each connection, null when connections are served by the worker pool
+    private final ThreadFactory connectionThreads;
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // connections handed back by workers to wait for their next request
+    private final Queue<Connection> returned = new ConcurrentLinkedQueue<>();
+    // calls whose functions are completing asynchronously, these don't hold a worker
+    private final Set<CompletableFuture<Boolean>> inFlight = ConcurrentHashMap.newKeySet();
+    private final Queue<Selector> workerSelectors = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<WorkerState> workerState = ThreadLocal.withInitial(WorkerState::new);
+
+    /**
+     * @return true if the running JVM supports unix domain socket channels
+     */
+    public static boolean isSupported() {
+        return openServerSocketChannel != null;
+    }
+
+    static boolean parseVirtualThreads(String value) {
+        if (value == null || value.trim().isEmpty() || value.trim().equalsIgnoreCase("false")) {
+            return false;
+        }
+        if (value.trim().equalsIgnoreCase("true")) {
+            return true;
+        }
+        throw new FunctionInitializationException("Invalid value for " + VIRTUAL_THREADS + " - it should be true or false :'" + value + "'");
+    }
+
+    /**
+     * @return a factory for named virtual threads, or null if the running JVM does not support them
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "fn-codec-vthread-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Construct a new NIOHTTPStreamCodec based on the environment
+     *
+     * @param env            an env map
+     * @param fdkVersion     the version to report to the runtime
+     * @param runtimeVersion underlying JVM version to report to the runtime
+     */
+    NIOHTTPStreamCodec(Map<String, String> env, String fdkVersion, String runtimeVersion) {
+        Objects.requireNonNull(env, "env");
+        this.fdkVersion = Objects.requireNonNull(fdkVersion, "fdkVersion");
+        this.runtimeVersion = Objects.requireNonNull(runtimeVersion, "runtimeVersion");
+        if (!isSupported()) {
+            throw new FunctionInitializationException("Unix domain socket channels are not supported by this JVM, they require Java 16 or later");
+        }
+
+        String listenerAddress = env.get(FN_LISTENER);
+        if (listenerAddress == null) {
+            throw new FunctionInitializationException("Required environment variable " + FN_LISTENER + " is not set - are you running a function outside of fn run?");
+        }
+        if (!listenerAddress.startsWith("unix:/")) {
+            throw new FunctionInitializationException("Invalid listener address - it should start with unix:/ :'" + listenerAddress + "'");
+        }
+        socketFile = new File(listenerAddress.substring("unix:".length()));
+        maxConcurrency = HTTPStreamCodec.parseMaxConcurrency(env.get(HTTPStreamCodec.MAX_CONCURRENCY));
+        ThreadFactory threads = null;
+        if (parseVirtualThreads(env.get(VIRTUAL_THREADS))) {
+            threads = virtualThreadFactory();
+            if (threads == null) {
+                System.err.println(VIRTUAL_THREADS + "=true requires Java 21 or later, using platform worker threads");
+            }
+        }
+        connectionThreads = threads;
+        int backlog = HTTPStreamCodec.parseListenBacklog(env.get(HTTPStreamCodec.LISTEN_BACKLOG), maxConcurrency);
+        bodyPolicy = RequestBodyPolicy.fromEnv(env);
+        enforceDeadlines = Deadlines.parseEnforced(env.get(Deadlines.ENFORCE_DEADLINES));
+        tempFile = new File(socketFile.getParentFile(), HTTPStreamCodec.randomString() + ".sock");
+
+        ServerSocketChannel channel = null;
+        Selector sel = null;
+        try {
+            channel = (ServerSocketChannel) openServerSocketChannel.invoke(null, unixProtocolFamily);
+            channel.bind((SocketAddress) unixDomainAddressOf.invoke(null, tempFile.getAbsolutePath()), backlog);
+            channel.configureBlocking(false);
+            sel = Selector.open();
+
+            // Adjust socket permissions and move file
+            Files.setPosixFilePermissions(tempFile.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+            Files.createSymbolicLink(socketFile.toPath(), tempFile.toPath().getFileName());
+        } catch (IOException | IllegalAccessException | InvocationTargetException e) {
+            closeQuietly(channel);
+            closeQuietly(sel);
+            tempFile.delete();
+            throw new FunctionInitializationException("Unable to bind to unix socket in " + socketFile, e instanceof InvocationTargetException ? e.getCause() : e);
+        }
+        serverChannel = channel;
+        selector = sel;
+    }
+
+    @Override
+    public void runCodec(Handler h) {
+        HttpCallDispatcher dispatcher = new HttpCallDispatcher(h, fdkVersion, runtimeVersion, bodyPolicy, enforceDeadlines);
+        if (connectionThreads != null) {
+            serveOnConnectionThreads(dispatcher);
+        } else {
+            serveOnWorkers(dispatcher);
+        }
+    }
+
+    /**
+     * Serves each connection from its own virtual thread using blocking I/O, up to the maximum concurrency at a time
+     */
+    private void serveOnConnectionThreads(HttpCallDispatcher dispatcher) {
+        Semaphore permits = new Semaphore(maxConcurrency);
+        try {
+            serverChannel.configureBlocking(true);
+            while (!stopping.get()) {
+                permits.acquireUninterruptibly();
+                SocketChannel channel;
+                try {
+                    // waits until a connection arrives or close() closes the channel
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    permits.release();
+                    throw e;
+                }
+                Connection c = new Connection(channel);
+                connections.add(c);
+                if (stopping.get()) {
+                    closeConnection(c);
+                    permits.release();
+                    continue;
+                }
+                connectionThreads.newThread(() -> {
+                    try {
+                        serveConnection(c, dispatcher);
+                    } finally {
+                        permits.release();
+                    }
+                }).start();
+            }
+        } catch (IOException e) {
+            if (!stopping.get()) {
+                throw new FunctionIOException("failed to accept connection from platform, terminating", e);
+            }
+        } finally {
+            // waits for the connections being served to finish
+            permits.acquireUninterruptibly(maxConcurrency);
+            for (Connection c : connections) {
+                closeConnection(c);
+            }
+            closeQuietly(selector);
+            stopped.complete(true);
+        }
+    }
+
+    /**
+     * Serves requests from a single connection until the platform closes it or the codec is stopped
+     */
+    private void serveConnection(Connection c, HttpCallDispatcher dispatcher) {
+        // the connection's thread blocks reading its next request, so it keeps its buffers until it is closed
+        ByteBuffer outputBuffer = DirectBufferPool.acquire();
+        try {
+            HttpConnectionInput input = c.takeInput();
+            HttpConnectionOutput out = new HttpConnectionOutput(c.io, outputBuffer);
+            boolean keepAlive = true;
+            while (keepAlive && !stopping.get() && input.readHead(c.head)) {
+                keepAlive = dispatcher.dispatch(c.head, input, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            reportError(e);
+        } finally {
+            closeConnection(c);
+            DirectBufferPool.release(outputBuffer);
+        }
+    }
+
+    /**
+     * Waits for requests on all connections from the selector thread, and serves them from the worker pool
+     */
+    private void serveOnWorkers(HttpCallDispatcher dispatcher) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(maxConcurrency, (r) -> {
+            Thread t = new Thread(r, "fn-codec-worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            while (!stopping.get()) {
+                selector.select();
+
+                Connection c;
+                while ((c = returned.poll()) != null) {
+                    if (c.channel.isOpen()) {
+                        c.key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                    } else if (key.isReadable()) {
+                        readRequest((Connection) key.attachment(), dispatcher, workers);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!stopping.get()) {
+                throw new FunctionIOException("failed to accept connection from platform, terminating", e);
+            }
+        } finally {
+            // functions that have not completed still need workers to write their responses
+            while (!inFlight.isEmpty()) {
+                for (CompletableFuture<Boolean> call : inFlight) {
+                    try {
+                        call.join();
+                    } catch (RuntimeException ignored) {
+                    }
+                }
+            }
+            workers.shutdown();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Connection c : connections) {
+                closeConnection(c);
+            }
+            Selector s;
+            while ((s = workerSelectors.poll()) != null) {
+                closeQuietly(s);
+            }
+            closeQuietly(selector);
+            stopped.complete(true);
+        }
+    }
+
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection c = new Connection(channel);
+            connections.add(c);
+            c.key = channel.register(selector, SelectionKey.OP_READ, c);
+            if (stopping.get()) {
+                closeConnection(c);
+            }
+        }
+    }
+
+    /**
+     * Reads what is available on a connection, dispatching a request to a worker once its head is complete
+     */
+    private void readRequest(Connection c, HttpCallDispatcher dispatcher, ExecutorService workers) {
+        try {
+            HttpConnectionInput input = c.takeInput();
+            int read = input.fill();
+            if (input.parseHead(c.head)) {
+                // the connection belongs to the worker until it is returned
+                c.key.interestOps(0);
+                c.io.blocking = true;
+                workers.execute(() -> serve(c, dispatcher, workers));
+            } else if (read < 0) {
+                closeConnection(c);
+            } else {
+                c.releaseIdleInput();
+            }
+        } catch (IOException e) {
+            // read errors and malformed requests
+            closeConnection(c);
+        }
+    }
+
+    /**
+     * Serves the request whose head has been read and any further requests already received on a connection
+     * <p>
+     * If a function completes asynchronously the worker is released, the connection is served again by the worker
+     * that writes the response.
+     */
+    private void serve(Connection c, HttpCallDispatcher dispatcher, Executor workers) {
+        boolean keepAlive = false;
+        try {
+            do {
+                CompletableFuture<Boolean> call = dispatcher.dispatchAsync(c.head, c.input, () -> new HttpConnectionOutput(c.io, workerState.get().outputBuffer), workers);
+                if (!call.isDone()) {
+                    inFlight.add(call);
+                    call.whenComplete((reuse, error) -> {
+                        inFlight.remove(call);
+                        resume(c, dispatcher, workers, error == null && reuse, error);
+                    });
+                    return;
+                }
+                keepAlive = call.join();
+            } while (hasNextRequest(c, keepAlive));
+        } catch (IOException | RuntimeException e) {
+            reportError(e);
+            keepAlive = false;
+        }
+        release(c, keepAlive);
+    }
+
+    private void resume(Connection c, HttpCallDispatcher dispatcher, Executor workers, boolean keepAlive, Throwable error) {
+        try {
+            if (error == null && hasNextRequest(c, keepAlive)) {
+                serve(c, dispatcher, workers);
+                return;
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        if (error != null) {
+            reportError(error);
+        }
+        release(c, error == null && keepAlive);
+    }
+
+    /**
+     * @return true if the head of another request has already been received on a connection
+     */
+    private boolean hasNextRequest(Connection c, boolean keepAlive) throws IOException {
+        return keepAlive && !stopping.get() && c.input.hasBuffered() && c.input.parseHead(c.head);
+    }
+
+    /**
+     * Hands a connection back to the selector to wait for its next request, or closes it
+     */
+    private void release(Connection c, boolean keepAlive) {
+        if (keepAlive && !stopping.get()) {
+            c.io.blocking = false;
+            c.releaseIdleInput();
+            returned.add(c);
+            selector.wakeup();
+        } else {
+            closeConnection(c);
+        }
+    }
+
+    private void reportError(Throwable e) {
+        if (!stopping.get()) {
+            if (e instanceof CompletionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            System.err.println("FDK Got Exception while handling HTTP request" + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void closeConnection(Connection c) {
+        if (connections.remove(c)) {
+            closeQuietly(c.channel);
+            c.releaseInput();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Per worker thread state
+     */
+    private final class WorkerState {
+        // used to wait for the connection being served to become readable or writable
+        final Selector selector;
+        final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+
+        WorkerState() {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new FunctionIOException("Unable to open selector", e);
+            }
+            workerSelectors.add(selector);
+        }
+    }
+
+    /**
+     * Presents a non-blocking socket channel as a blocking one while a worker is serving it
+     */
+    private final class ConnectionChannel implements ByteChannel, GatheringByteChannel, ScatteringByteChannel, OutputEvent.FileTransferChannel {
+        private final SocketChannel channel;
+        volatile boolean blocking;
+
+        ConnectionChannel(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            while (true) {
+                int read = channel.read(dst);
+                if (read != 0 || !blocking || !dst.hasRemaining()) {
+                    return read;
+                }
+                await(SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = 0;
+            while (src.hasRemaining()) {
+                int count = channel.write(src);
+                written += count;
+                if (count == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            while (true) {
+                long read = channel.read(dsts, offset, length);
+                if (read != 0 || !blocking || !hasRemaining(dsts, offset, length)) {
+                    return read;
+                }
+                await(SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) throws IOException {
+            return read(dsts, 0, dsts.length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long written = 0;
+            while (hasRemaining(srcs, offset, length)) {
+                long count = channel.write(srcs, offset, length);
+                written += count;
+                if (count == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            while (true) {
+                // the JDK sends files to its own socket channels with sendfile(2)
+                long sent = file.transferTo(position, count, channel);
+                if (sent != 0 || count == 0 || position >= file.size()) {
+                    return sent;
+                }
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private boolean hasRemaining(ByteBuffer[] bufs, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (bufs[i].hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void await(int op) throws IOException {
+            Selector sel = workerState.get().selector;
+            SelectionKey key = channel.keyFor(sel);
+            if (key == null) {
+                key = channel.register(sel, op);
+            } else {
+                key.interestOps(op);
+            }
+            try {
+                sel.select();
+                sel.selectedKeys().clear();
+            } finally {
+                // stop a ready key for this connection waking the worker while it serves others
+                if (key.isValid()) {
+                    key.interestOps(0);
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A connection from the platform, this is used by one thread at a time
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final ConnectionChannel io;
+        final HttpRequestHead head = new HttpRequestHead();
+        SelectionKey key;
+        // borrowed from the buffer pool while a request is being read, null while the connection is idle
+        HttpConnectionInput input;
+        private ByteBuffer inputBuffer;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.io = new ConnectionChannel(channel);
+        }
+
+        /**
+         * @return the input of the connection, taking a buffer for it if the connection was idle
+         */
+        HttpConnectionInput takeInput() {
+            if (input == null) {
+                inputBuffer = DirectBufferPool.acquire();
+                input = new HttpConnectionInput(io, inputBuffer);
+            }
+            return input;
+        }
+
+        /**
+         * Gives the input buffer back to the pool unless part of the next request has already been read into it
+         */
+        void releaseIdleInput() {
+            if (input != null && !input.hasBuffered()) {
+                releaseInput();
+            }
+        }
+
+        void releaseInput() {
+            if (input != null) {
+                input = null;
+                DirectBufferPool.release(inputBuffer);
+                inputBuffer = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (stopping.compareAndSet(false, true)) {
+            serverChannel.close();
+            for (Connection c : connections) {
+                // wakes up workers waiting for input, responses in progress are allowed to finish
+                try {
+                    c.channel.shutdownInput();
+                } catch (IOException ignored) {
+                }
+            }
+            selector.wakeup();
+
+            try {
+                stopped.get();
+            } catch (Exception ignored) {
+            }
+            socketFile.delete();
+            tempFile.delete();
+        }
+    }
+}
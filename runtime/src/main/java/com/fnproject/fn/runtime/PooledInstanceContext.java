@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.api.FunctionInvoker;
+import com.fnproject.fn.api.InputCoercion;
+import com.fnproject.fn.api.MethodWrapper;
+import com.fnproject.fn.api.OutputCoercion;
+import com.fnproject.fn.api.RuntimeContext;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The runtime context as the constructor and configuration methods of a further pooled instance see it
+ * <p>
+ * The function has already been configured by its first instance by then, so what these add to the context (coercions,
+ * invokers and attributes) is ignored rather than registered again once for each instance while calls are running.
+ */
+final class PooledInstanceContext implements RuntimeContext {
+    private final RuntimeContext delegate;
+
+    PooledInstanceContext(RuntimeContext delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String getAppID() {
+        return delegate.getAppID();
+    }
+
+    @Override
+    public String getFunctionID() {
+        return delegate.getFunctionID();
+    }
+
+    @Override
+    public String getAppName() {
+        return delegate.getAppName();
+    }
+
+    @Override
+    public String getFunctionName() {
+        return delegate.getFunctionName();
+    }
+
+    @Override
+    public Optional<Object> getInvokeInstance() {
+        return delegate.getInvokeInstance();
+    }
+
+    @Override
+    public MethodWrapper getMethod() {
+        return delegate.getMethod();
+    }
+
+    @Override
+    public Optional<String> getConfigurationByKey(String key) {
+        return delegate.getConfigurationByKey(key);
+    }
+
+    @Override
+    public Map<String, String> getConfiguration() {
+        return delegate.getConfiguration();
+    }
+
+    @Override
+    public <T> Optional<T> getAttribute(String att, Class<T> type) {
+        return delegate.getAttribute(att, type);
+    }
+
+    @Override
+    public void setAttribute(String att, Object val) {
+    }
+
+    @Override
+    public void addInputCoercion(InputCoercion ic) {
+    }
+
+    @Override
+    public List<InputCoercion> getInputCoercions(MethodWrapper targetMethod, int param) {
+        return delegate.getInputCoercions(targetMethod, param);
+    }
+
+    @Override
+    public void addOutputCoercion(OutputCoercion oc) {
+    }
+
+    @Override
+    public List<OutputCoercion> getOutputCoercions(Method method) {
+        return delegate.getOutputCoercions(method);
+    }
+
+    @Override
+    public void addInvoker(FunctionInvoker invoker, FunctionInvoker.Phase phase) {
+    }
+}
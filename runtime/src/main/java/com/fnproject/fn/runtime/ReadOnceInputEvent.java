@@ -20,12 +20,11 @@ import com.fnproject.fn.api.Headers;
 import com.fnproject.fn.api.InputEvent;
 import com.fnproject.fn.api.exception.FunctionInputHandlingException;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Instant;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.Function;
 
 /**
@@ -34,19 +33,35 @@ import java.util.function.Function;
  * This in
  */
 public class ReadOnceInputEvent implements InputEvent {
-    private final BufferedInputStream body;
-    private final AtomicBoolean consumed = new AtomicBoolean(false);
+    private static final AtomicIntegerFieldUpdater<ReadOnceInputEvent> CONSUMED = AtomicIntegerFieldUpdater.newUpdater(ReadOnceInputEvent.class, "consumed");
+
+    private final InputStream body;
+    // an updated field rather than an AtomicBoolean, so an event is a single allocation
+    private volatile int consumed;
     private final Headers headers;
     private final Instant deadline;
     private final String callID;
+    private final long contentLength;
 
 
     public ReadOnceInputEvent(InputStream body, Headers headers, String callID, Instant deadline) {
-        this.body = new BufferedInputStream(Objects.requireNonNull(body, "body"));
+        this(body, headers, callID, deadline, -1);
+    }
+
+    /**
+     * @param body          the body stream, this is read at most once and closed along with the event
+     * @param headers       the headers of the call
+     * @param callID        the ID of the call
+     * @param deadline      the time by which the call must complete
+     * @param contentLength the length of the body or -1 if it is not known
+     */
+    public ReadOnceInputEvent(InputStream body, Headers headers, String callID, Instant deadline, long contentLength) {
+        // not buffered here: the codecs already read through their own buffers and the coercions read in bulk
+        this.body = Objects.requireNonNull(body, "body");
         this.headers = Objects.requireNonNull(headers, "headers");
         this.callID = Objects.requireNonNull(callID, "callID");
         this.deadline = Objects.requireNonNull(deadline, "deadline");
-        body.mark(Integer.MAX_VALUE);
+        this.contentLength = contentLength;
     }
 
 
@@ -59,7 +74,7 @@ public class ReadOnceInputEvent implements InputEvent {
      */
     @Override
     public <T> T consumeBody(Function<InputStream, T> dest) {
-        if (consumed.compareAndSet(false, true)) {
+        if (CONSUMED.compareAndSet(this, 0, 1)) {
             try (InputStream rb = body) {
                 return dest.apply(rb);
             } catch (IOException e) {
@@ -72,6 +87,21 @@ public class ReadOnceInputEvent implements InputEvent {
     }
 
 
+    /**
+     * Takes the body stream so that it can be read after this returns
+     * <p>
+     * This counts as consuming the body, the stream is closed when the event is closed if not before
+     *
+     * @return the body
+     * @throws IllegalStateException if the input has been consumed
+     */
+    public InputStream detachBody() {
+        if (CONSUMED.compareAndSet(this, 0, 1)) {
+            return body;
+        }
+        throw new IllegalStateException("Body has already been consumed");
+    }
+
     @Override
     public String getCallID() {
         return callID;
@@ -87,6 +117,11 @@ public class ReadOnceInputEvent implements InputEvent {
         return headers;
     }
 
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
 
     @Override
     public void close() throws IOException {
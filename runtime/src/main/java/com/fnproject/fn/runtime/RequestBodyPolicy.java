@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.runtime.exception.FunctionInitializationException;
+
+/**
+ * Decides how the HTTP codecs hold request bodies
+ * <p>
+ * By default bodies are streamed to the function as they arrive. With env["FDK_BODY_SPILL_THRESHOLD"] set, bodies
+ * longer than that many bytes are first copied to a temporary file in env["FDK_BODY_SPILL_DIR"] (the JVM's temporary
+ * directory by default) and read by the function from that file, so they don't need to be held on the heap.
+ * Chunked bodies are held in memory until they pass the threshold.
+ * <p>
+ * env["FDK_MAX_BODY_SIZE"] limits the size of request bodies, requests that declare a longer body are rejected before it
+ * is read.
+ */
+final class RequestBodyPolicy {
+    static final String SPILL_THRESHOLD = "FDK_BODY_SPILL_THRESHOLD";
+    static final String SPILL_DIR = "FDK_BODY_SPILL_DIR";
+    static final String MAX_BODY_SIZE = "FDK_MAX_BODY_SIZE";
+
+    static final RequestBodyPolicy STREAMING = new RequestBodyPolicy(-1, -1, null);
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private final long spillThreshold;
+    private final long maxBodySize;
+    private final Path spillDir;
+
+    RequestBodyPolicy(long spillThreshold, long maxBodySize, Path spillDir) {
+        this.spillThreshold = spillThreshold;
+        this.maxBodySize = maxBodySize;
+        this.spillDir = spillDir;
+    }
+
+    static RequestBodyPolicy fromEnv(Map<String, String> env) {
+        long spillThreshold = parseSize(SPILL_THRESHOLD, env.get(SPILL_THRESHOLD));
+        long maxBodySize = parseSize(MAX_BODY_SIZE, env.get(MAX_BODY_SIZE));
+        String dir = env.get(SPILL_DIR);
+        Path spillDir = Paths.get(dir == null || dir.trim().isEmpty() ? System.getProperty("java.io.tmpdir") : dir.trim());
+        if (spillThreshold >= 0 && !Files.isDirectory(spillDir)) {
+            throw new FunctionInitializationException("Invalid value for " + SPILL_DIR + " - it should be a directory :'" + spillDir + "'");
+        }
+        return new RequestBodyPolicy(spillThreshold, maxBodySize, spillDir);
+    }
+
+    /**
+     * @return the size or -1 if it is not set
+     */
+    private static long parseSize(String name, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        long size;
+        try {
+            size = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new FunctionInitializationException("Invalid value for " + name + " - it should be a number of bytes :'" + value + "'");
+        }
+        if (size < 0) {
+            throw new FunctionInitializationException("Invalid value for " + name + " - it should be a number of bytes :'" + value + "'");
+        }
+        return size;
+    }
+
+    /**
+     * @param contentLength the declared length of a body or -1 if it is not known
+     * @return true if the body is known to be longer than the limit
+     */
+    boolean isTooLarge(long contentLength) {
+        return maxBodySize >= 0 && contentLength > maxBodySize;
+    }
+
+    long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Creates the input event for a request, reading its body first if it is to be spilled or held in memory
+     *
+     * @param body          the request body, this is read to its end if the body is read up front
+     * @param contentLength the declared length of the body or -1 if it is not known
+     * @return the event
+     * @throws BodyTooLargeException if a body of unknown length turned out to be over the limit
+     * @throws IOException           if the body could not be read or written to the temporary file
+     */
+    InputEvent createEvent(InputStream body, long contentLength, Headers headers, String callID, Instant deadline) throws IOException {
+        if (contentLength < 0 && maxBodySize >= 0) {
+            body = new LimitedInputStream(body, maxBodySize);
+        }
+        if (spillThreshold < 0 || (contentLength >= 0 && contentLength <= spillThreshold)) {
+            return new ReadOnceInputEvent(body, headers, callID, deadline, contentLength);
+        }
+
+        byte[] prefix = new byte[0];
+        int prefixLength = 0;
+        if (contentLength < 0) {
+            // find out whether a chunked body fits under the threshold before deciding where to put it
+            prefix = new byte[(int) Math.min(spillThreshold + 1, COPY_BUFFER_SIZE)];
+            while (prefixLength <= spillThreshold) {
+                if (prefixLength == prefix.length) {
+                    prefix = Arrays.copyOf(prefix, (int) Math.min(spillThreshold + 1, prefix.length * 2L));
+                }
+                int read = body.read(prefix, prefixLength, prefix.length - prefixLength);
+                if (read < 0) {
+                    return new ReadOnceInputEvent(new ByteArrayInputStream(prefix, 0, prefixLength), headers, callID, deadline, prefixLength);
+                }
+                prefixLength += read;
+            }
+        }
+        return SpilledInputEvent.spill(spillDir, prefix, prefixLength, body, headers, callID, deadline);
+    }
+
+    /**
+     * Thrown when a body of unknown length is found to be over the limit while it is being read
+     */
+    static final class BodyTooLargeException extends IOException {
+        BodyTooLargeException(long limit) {
+            super("Request body is larger than the limit of " + limit + " bytes");
+        }
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                counted(read);
+            }
+            return read;
+        }
+
+        private void counted(long n) throws BodyTooLargeException {
+            count += n;
+            if (count > limit) {
+                throw new BodyTooLargeException(limit);
+            }
+        }
+    }
+}
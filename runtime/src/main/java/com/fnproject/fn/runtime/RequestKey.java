@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.exception.FunctionInputHandlingException;
+import com.fnproject.fn.runtime.exception.FunctionInitializationException;
+
+/**
+ * Identifies requests with the same body and key headers by a SHA-256 digest of them, so that one call can be answered
+ * with the response to another
+ */
+final class RequestKey {
+    // the caller's credentials are part of the key so that one caller is never answered with a response meant for another
+    static final List<String> DEFAULT_KEY_HEADERS = Collections.unmodifiableList(Arrays.asList("Content-Type", "Accept", "Fn-Http-Method", "Fn-Http-Request-Url", "Fn-Http-H-Authorization", "Fn-Http-H-Cookie"));
+    static final long DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+
+    private final byte[] digest;
+    private final int hash;
+
+    private RequestKey(byte[] digest) {
+        this.digest = digest;
+        this.hash = Arrays.hashCode(digest);
+    }
+
+    /**
+     * @param value a comma separated list of header names, or null
+     * @return the headers in the list or the default key headers if it is not set
+     */
+    static List<String> parseHeaders(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_KEY_HEADERS;
+        }
+        List<String> headers = new ArrayList<>();
+        for (String header : value.split(",")) {
+            if (!header.trim().isEmpty()) {
+                headers.add(header.trim());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * @return the value of a setting that should be a number between 1 and max, or the default if it is not set
+     */
+    static long parseSetting(Map<String, String> config, String name, long defaultValue, long max, String description) {
+        String value = config.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        long result;
+        try {
+            result = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new FunctionInitializationException("Invalid value for " + name + " - it should be " + description + " :'" + value + "'");
+        }
+        if (result < 1 || result > max) {
+            throw new FunctionInitializationException("Invalid value for " + name + " - it should be " + description + " between 1 and " + max + " :'" + value + "'");
+        }
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof RequestKey && Arrays.equals(digest, ((RequestKey) other).digest);
+    }
+
+    /**
+     * Reads the bodies of requests in order to key them
+     * <p>
+     * Only bodies that the runtime reads as they arrive (i.e. that are not spilled to disk) and are no longer than the
+     * maximum are keyed. The body is read before the function is called, so the function is handed a new event that
+     * replays it.
+     */
+    static final class Reader {
+        private static final int READ_BUFFER_SIZE = 8192;
+
+        private final List<String> keyHeaders;
+        private final int maxBodySize;
+
+        /**
+         * @param keyHeaders  the headers whose values are part of the key in addition to the body
+         * @param maxBodySize the longest body that is keyed
+         */
+        Reader(List<String> keyHeaders, int maxBodySize) {
+            if (maxBodySize < 0) {
+                throw new IllegalArgumentException("Maximum body size must not be negative");
+            }
+            List<String> canonicalHeaders = new ArrayList<>(keyHeaders.size());
+            for (String header : keyHeaders) {
+                canonicalHeaders.add(Headers.canonicalKey(header));
+            }
+            this.keyHeaders = Collections.unmodifiableList(canonicalHeaders);
+            this.maxBodySize = maxBodySize;
+        }
+
+        /**
+         * @param evt the request, its body is consumed by this
+         * @return the key of the request, if it has one, and an event to pass to the function in place of evt
+         */
+        Request read(InputEvent evt) {
+            if (!(evt instanceof ReadOnceInputEvent) || evt.getContentLength() > maxBodySize) {
+                return new Request(null, evt);
+            }
+
+            InputStream in = ((ReadOnceInputEvent) evt).detachBody();
+            long contentLength = evt.getContentLength();
+            byte[] body = new byte[(int) (contentLength >= 0 ? contentLength + 1 : Math.min(maxBodySize + 1L, READ_BUFFER_SIZE))];
+            int length = 0;
+            try {
+                while (true) {
+                    if (length == body.length) {
+                        if (length > maxBodySize) {
+                            // too long to key, the function reads what has been read so far followed by the rest
+                            InputStream replay = new SequenceInputStream(new ByteArrayInputStream(body, 0, length), in);
+                            return new Request(null, new ReadOnceInputEvent(replay, evt.getHeaders(), evt.getCallID(), evt.getDeadline(), contentLength));
+                        }
+                        body = Arrays.copyOf(body, (int) Math.min(maxBodySize + 1L, body.length * 2L));
+                    }
+                    int read = in.read(body, length, body.length - length);
+                    if (read < 0) {
+                        break;
+                    }
+                    length += read;
+                }
+            } catch (IOException e) {
+                throw new FunctionInputHandlingException("Error reading input stream", e);
+            }
+
+            InputEvent replay = new ReadOnceInputEvent(new ByteArrayInputStream(body, 0, length), evt.getHeaders(), evt.getCallID(), evt.getDeadline(), length);
+            return new Request(key(body, length, evt.getHeaders()), replay);
+        }
+
+        private RequestKey key(byte[] body, int length, Headers headers) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+            // the length keeps the body apart from the headers that follow it
+            digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+            digest.update(body, 0, length);
+            for (int i = 0; i < keyHeaders.size(); i++) {
+                String name = keyHeaders.get(i);
+                digest.update((byte) 1);
+                digest.update(name.getBytes(StandardCharsets.UTF_8));
+                List<String> values = headers.getAllValues(name);
+                for (int j = 0; j < values.size(); j++) {
+                    digest.update((byte) 0);
+                    digest.update(values.get(j).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return new RequestKey(digest.digest());
+        }
+    }
+
+    /**
+     * A request that has been read by a {@link Reader}
+     */
+    static final class Request {
+        /**
+         * the key of the request, or null if it could not be keyed
+         */
+        final RequestKey key;
+        /**
+         * the event to pass on in place of the original
+         */
+        final InputEvent event;
+
+        Request(RequestKey key, InputEvent event) {
+            this.key = key;
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.InvocationContext;
+import com.fnproject.fn.api.OutputEvent;
+
+/**
+ * Caches the successful responses of a function in memory, keyed on a digest of the request body and selected headers
+ * <p>
+ * A call that matches a cached response is answered with the stored status, headers and body without calling the
+ * function. The cache is bounded by a number of entries, a time to live for each entry and a budget of bytes taken
+ * from the heap, the least recently used entries are evicted first.
+ * <p>
+ * Only requests whose body is read by the runtime as it arrives (i.e. is not spilled to disk) and whose body and
+ * response body are no larger than the item size are cached. Responses are captured as they are written so functions
+ * that stream their output are not buffered before they are written.
+ */
+final class ResultCache implements InvocationFilter {
+    static final String KEY_HEADERS = "FDK_RESULT_CACHE_HEADERS";
+    static final String MAX_ENTRIES = "FDK_RESULT_CACHE_MAX_ENTRIES";
+    static final String TTL_SECONDS = "FDK_RESULT_CACHE_TTL_SECONDS";
+    static final String HEAP_PERCENT = "FDK_RESULT_CACHE_HEAP_PERCENT";
+    static final String MAX_ITEM_SIZE = "FDK_RESULT_CACHE_MAX_ITEM_SIZE";
+
+    private static final long DEFAULT_MAX_ENTRIES = 1024;
+    private static final long DEFAULT_TTL_SECONDS = 300;
+    private static final long DEFAULT_HEAP_PERCENT = 10;
+    private static final long DEFAULT_MAX_ITEM_SIZE = RequestKey.DEFAULT_MAX_BODY_SIZE;
+    // a rough allowance for the key, the entry and the map's node, which are not counted byte by byte
+    private static final int ENTRY_OVERHEAD = 192;
+
+    private final RequestKey.Reader reader;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long maxBytes;
+    private final int maxItemSize;
+    private final LongSupplier clock;
+
+    private final Lock lock = new ReentrantLock();
+    // access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<RequestKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param keyHeaders  the headers whose values are part of the key in addition to the body
+     * @param maxEntries  the maximum number of cached responses
+     * @param ttlNanos    how long a response is served from the cache after it was stored
+     * @param maxBytes    the maximum number of bytes held by the cache
+     * @param maxItemSize the largest request or response body that is cached
+     * @param clock       a source of {@link System#nanoTime()}
+     */
+    ResultCache(List<String> keyHeaders, int maxEntries, long ttlNanos, long maxBytes, int maxItemSize, LongSupplier clock) {
+        if (maxEntries < 1 || ttlNanos <= 0 || maxBytes < 1 || maxItemSize < 0) {
+            throw new IllegalArgumentException("Result cache bounds must be positive");
+        }
+        this.reader = new RequestKey.Reader(keyHeaders, maxItemSize);
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        this.maxBytes = maxBytes;
+        this.maxItemSize = maxItemSize;
+        this.clock = clock;
+    }
+
+    static ResultCache fromConfig(Map<String, String> config) {
+        List<String> keyHeaders = RequestKey.parseHeaders(config.get(KEY_HEADERS));
+        long maxEntries = RequestKey.parseSetting(config, MAX_ENTRIES, DEFAULT_MAX_ENTRIES, Integer.MAX_VALUE, "a number of entries");
+        long ttlSeconds = RequestKey.parseSetting(config, TTL_SECONDS, DEFAULT_TTL_SECONDS, Long.MAX_VALUE / 1_000_000_000L, "a number of seconds");
+        long heapPercent = RequestKey.parseSetting(config, HEAP_PERCENT, DEFAULT_HEAP_PERCENT, 100, "a percentage of the heap");
+        long maxItemSize = RequestKey.parseSetting(config, MAX_ITEM_SIZE, DEFAULT_MAX_ITEM_SIZE, Integer.MAX_VALUE - 1, "a number of bytes");
+
+        long maxBytes = Runtime.getRuntime().maxMemory() / 100 * heapPercent;
+        return new ResultCache(keyHeaders, (int) maxEntries, TimeUnit.SECONDS.toNanos(ttlSeconds), maxBytes, (int) maxItemSize, System::nanoTime);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of bytes currently counted against the budget
+     */
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CompletionStage<OutputEvent> filter(InvocationContext ctx, InputEvent evt, Chain next) {
+        RequestKey.Request request = reader.read(evt);
+        RequestKey key = request.key;
+        if (key == null) {
+            return next.proceed(ctx, request.event);
+        }
+        OutputEvent cached = get(key);
+        if (cached != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+        misses.increment();
+
+        return next.proceed(ctx, request.event).thenApply((output) -> {
+            if (output == null || output.getStatus() != OutputEvent.Status.Success) {
+                return output;
+            }
+            return new CapturingOutputEvent(key, output, responseHeaders(ctx, output));
+        });
+    }
+
+    /**
+     * @return the headers of a response including those the function set on its context, which are added to the
+     * response after this
+     */
+    static Headers responseHeaders(InvocationContext ctx, OutputEvent output) {
+        Headers headers = output.getHeaders();
+        if (ctx instanceof FunctionInvocationContext) {
+            Map<String, List<String>> additionalHeaders = ((FunctionInvocationContext) ctx).getAdditionalResponseHeaders();
+            if (!additionalHeaders.isEmpty()) {
+                headers = headers.setHeaders(additionalHeaders);
+            }
+        }
+        return headers;
+    }
+
+    private OutputEvent get(RequestKey key) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (clock.getAsLong() - entry.storedAt >= ttlNanos) {
+                entries.remove(key);
+                bytes -= entry.size;
+                return null;
+            }
+            return entry.output;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(RequestKey key, Headers headers, byte[] body, int length, OutputEvent.Status status) {
+        long size = ENTRY_OVERHEAD + length;
+        for (String name : headers.keys()) {
+            size += 2L * name.length();
+            for (String value : headers.getAllValues(name)) {
+                size += 2L * value.length();
+            }
+        }
+        if (size > maxBytes) {
+            return;
+        }
+        ByteBuffer stored = ByteBuffer.wrap(Arrays.copyOf(body, length)).asReadOnlyBuffer();
+        Entry entry = new Entry(OutputEvent.fromByteBuffer(stored, status, null, headers), clock.getAsLong(), size);
+
+        lock.lock();
+        try {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries || bytes > maxBytes) {
+                bytes -= eldest.next().size;
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        private final OutputEvent output;
+        private final long storedAt;
+        private final long size;
+
+        Entry(OutputEvent output, long storedAt, long size) {
+            this.output = output;
+            this.storedAt = storedAt;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Passes a response through to the codec, storing it once it has been written in full
+     */
+    private final class CapturingOutputEvent implements OutputEvent {
+        private final RequestKey key;
+        private final OutputEvent output;
+        private final Headers storedHeaders;
+
+        CapturingOutputEvent(RequestKey key, OutputEvent output, Headers storedHeaders) {
+            this.key = key;
+            this.output = output;
+            this.storedHeaders = storedHeaders;
+        }
+
+        @Override
+        public Status getStatus() {
+            return output.getStatus();
+        }
+
+        @Override
+        public Headers getHeaders() {
+            return output.getHeaders();
+        }
+
+        @Override
+        public long getContentLength() {
+            return output.getContentLength();
+        }
+
+        @Override
+        public void writeToOutput(OutputStream out) throws IOException {
+            Capture capture = new Capture(out, null);
+            output.writeToOutput(capture);
+            capture.store();
+        }
+
+        @Override
+        public void writeToChannel(WritableByteChannel channel) throws IOException {
+            Capture capture = new Capture(channel instanceof OutputStream ? (OutputStream) channel : Channels.newOutputStream(channel), channel);
+            output.writeToChannel(capture);
+            capture.store();
+        }
+
+        /**
+         * Copies what is written to it until it has seen more than the item size
+         * <p>
+         * Files are still sent through the codec's own transfer when it has one, the bytes sent are read back from the
+         * file to capture them.
+         */
+        private final class Capture extends OutputStream implements OutputEvent.FileTransferChannel {
+            private final OutputStream out;
+            private final WritableByteChannel channel;
+            private final OutputEvent.FileTransferChannel transferChannel;
+            private byte[] captured = new byte[(int) Math.min(maxItemSize, Math.max(output.getContentLength(), 256))];
+            private int length;
+            private boolean overflowed;
+
+            Capture(OutputStream out, WritableByteChannel channel) {
+                this.out = out;
+                this.channel = channel;
+                this.transferChannel = channel instanceof OutputEvent.FileTransferChannel ? (OutputEvent.FileTransferChannel) channel : null;
+            }
+
+            /**
+             * @return true if there is room for len more bytes
+             */
+            private boolean reserve(int len) {
+                if (overflowed) {
+                    return false;
+                }
+                if (len > maxItemSize - length) {
+                    overflow();
+                    return false;
+                }
+                if (length + len > captured.length) {
+                    captured = Arrays.copyOf(captured, (int) Math.min(maxItemSize, Math.max(length + len, captured.length * 2L)));
+                }
+                return true;
+            }
+
+            private void overflow() {
+                overflowed = true;
+                captured = null;
+            }
+
+            private void capture(byte[] b, int off, int len) {
+                if (reserve(len)) {
+                    System.arraycopy(b, off, captured, length, len);
+                    length += len;
+                }
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                if (reserve(1)) {
+                    captured[length++] = (byte) b;
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                capture(b, off, len);
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                ByteBuffer written = src.duplicate();
+                int count;
+                if (channel != null) {
+                    count = channel.write(src);
+                } else {
+                    count = src.remaining();
+                    Channels.newChannel(out).write(src);
+                }
+                if (reserve(count)) {
+                    written.limit(written.position() + count);
+                    written.get(captured, length, count);
+                    length += count;
+                }
+                return count;
+            }
+
+            @Override
+            public long transferFrom(FileChannel file, long position, long count) throws IOException {
+                if (transferChannel == null) {
+                    // copied through write(ByteBuffer)
+                    return file.transferTo(position, count, this);
+                }
+                if (count > maxItemSize - length) {
+                    // the rest of the file won't fit, so it is sent without reading it back
+                    overflow();
+                }
+                long sent = transferChannel.transferFrom(file, position, count);
+                if (sent > 0 && reserve((int) sent)) {
+                    ByteBuffer dst = ByteBuffer.wrap(captured, length, (int) sent);
+                    while (dst.hasRemaining()) {
+                        if (file.read(dst, position + dst.position() - length) < 0) {
+                            throw new EOFException("File ended after it was sent");
+                        }
+                    }
+                    length += (int) sent;
+                }
+                return sent;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel == null || channel.isOpen();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() {
+                // the codec owns the connection
+            }
+
+            void store() {
+                if (!overflowed) {
+                    put(key, storedHeaders, captured, length, output.getStatus());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.api.RuntimeContext;
+import com.fnproject.fn.api.RuntimeFeature;
+import com.fnproject.fn.api.exception.FunctionConfigurationException;
+
+/**
+ * The result cache feature serves repeated calls to a function whose responses only depend on its input from memory,
+ * without calling the function. To use it add the following to the function class:
+ *
+ * <code>
+ * import com.fnproject.fn.api.FnFeature;
+ * import com.fnproject.fn.runtime.ResultCacheFeature;
+ *
+ * {@literal @}FnFeature(ResultCacheFeature.class)
+ * public class MyFunction {
+ *
+ *     public Price lookup(PriceQuery query){
+ *         ...
+ *     }
+ * }
+ * </code>
+ * <p>
+ * Successful responses are keyed on the request body and the headers listed in env["FDK_RESULT_CACHE_HEADERS"]
+ * (comma separated, by default Content-Type, Accept, Fn-Http-Method, Fn-Http-Request-Url, Fn-Http-H-Authorization and
+ * Fn-Http-H-Cookie, so that callers with different credentials are cached apart). The cache holds up to
+ * env["FDK_RESULT_CACHE_MAX_ENTRIES"] responses (1024) for env["FDK_RESULT_CACHE_TTL_SECONDS"] seconds (300) each,
+ * in up to env["FDK_RESULT_CACHE_HEAP_PERCENT"] percent of the maximum heap (10). Requests and responses with bodies
+ * longer than env["FDK_RESULT_CACHE_MAX_ITEM_SIZE"] bytes (1MiB) are not cached.
+ */
+public class ResultCacheFeature implements RuntimeFeature {
+    @Override
+    public void initialize(RuntimeContext context) {
+        if (!(context instanceof FunctionRuntimeContext)) {
+            throw new FunctionConfigurationException("The result cache is only supported by the FDK runtime");
+        }
+        FunctionRuntimeContext runtimeContext = (FunctionRuntimeContext) context;
+        runtimeContext.addInvocationFilter(ResultCache.fromConfig(runtimeContext.getConfiguration()));
+    }
+}
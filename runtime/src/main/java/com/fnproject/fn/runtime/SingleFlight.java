@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.InvocationContext;
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.api.exception.FunctionOutputHandlingException;
+
+/**
+ * Coalesces concurrent calls with the same request body and key headers into a single call to the function
+ * <p>
+ * The first call for a key runs the function, calls with the same key that arrive while it is running wait for it and
+ * are answered with a copy of its response, or fail as it does. The response is only buffered in memory if other calls
+ * are waiting for it. Requests are keyed as they are by the {@link ResultCache}, calls that can't be keyed run the
+ * function as usual.
+ * <p>
+ * The number of calls that ran the function and that were coalesced are written to the function's log every
+ * env["FDK_SINGLE_FLIGHT_REPORT_SECONDS"] seconds while it is being called.
+ */
+final class SingleFlight implements InvocationFilter {
+    static final String KEY_HEADERS = "FDK_SINGLE_FLIGHT_HEADERS";
+    static final String MAX_BODY_SIZE = "FDK_SINGLE_FLIGHT_MAX_BODY_SIZE";
+    static final String REPORT_SECONDS = "FDK_SINGLE_FLIGHT_REPORT_SECONDS";
+
+    private static final long DEFAULT_REPORT_SECONDS = 60;
+
+    private final RequestKey.Reader reader;
+    private final boolean deadlinesEnforced;
+    private final ConcurrentHashMap<RequestKey, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder unkeyed = new LongAdder();
+    private final long reportIntervalNanos;
+    private final AtomicLong nextReport;
+    private final LongSupplier clock;
+    private final PrintStream log;
+
+    /**
+     * @param reader              reads and keys requests
+     * @param deadlinesEnforced   whether a waiting call gives up at its own deadline
+     * @param reportIntervalNanos how often the counts of calls are logged
+     * @param clock               a source of {@link System#nanoTime()}
+     * @param log                 where counts are logged
+     */
+    SingleFlight(RequestKey.Reader reader, boolean deadlinesEnforced, long reportIntervalNanos, LongSupplier clock, PrintStream log) {
+        if (reportIntervalNanos <= 0) {
+            throw new IllegalArgumentException("Report interval must be positive");
+        }
+        this.reader = reader;
+        this.deadlinesEnforced = deadlinesEnforced;
+        this.reportIntervalNanos = reportIntervalNanos;
+        this.clock = clock;
+        this.log = log;
+        this.nextReport = new AtomicLong(clock.getAsLong() + reportIntervalNanos);
+    }
+
+    static SingleFlight fromConfig(Map<String, String> config, boolean deadlinesEnforced) {
+        RequestKey.Reader reader = new RequestKey.Reader(RequestKey.parseHeaders(config.get(KEY_HEADERS)),
+          (int) RequestKey.parseSetting(config, MAX_BODY_SIZE, RequestKey.DEFAULT_MAX_BODY_SIZE, Integer.MAX_VALUE - 1, "a number of bytes"));
+        long reportSeconds = RequestKey.parseSetting(config, REPORT_SECONDS, DEFAULT_REPORT_SECONDS, Long.MAX_VALUE / 1_000_000_000L, "a number of seconds");
+        return new SingleFlight(reader, deadlinesEnforced, TimeUnit.SECONDS.toNanos(reportSeconds), System::nanoTime, System.err);
+    }
+
+    /**
+     * @return the number of calls that ran the function
+     */
+    long getExecutions() {
+        return executions.sum();
+    }
+
+    /**
+     * @return the number of calls that were answered with the response to another call
+     */
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of calls that could not be keyed, these are also counted as executions
+     */
+    long getUnkeyed() {
+        return unkeyed.sum();
+    }
+
+    @Override
+    public CompletionStage<OutputEvent> filter(InvocationContext ctx, InputEvent evt, Chain next) {
+        report();
+        RequestKey.Request request = reader.read(evt);
+        RequestKey key = request.key;
+        if (key == null) {
+            unkeyed.increment();
+            executions.increment();
+            return next.proceed(ctx, request.event);
+        }
+
+        Flight flight = new Flight();
+        Flight running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            if (running.join()) {
+                coalesced.increment();
+                // a stage of its own, so that giving up on this call does not cancel the shared result
+                CompletionStage<OutputEvent> result = running.result.thenApply((output) -> output);
+                return deadlinesEnforced ? Deadlines.within(result, evt.getDeadline()) : result;
+            }
+            // the running call is completing and can't be joined, this one runs alone
+            flight = null;
+        }
+
+        executions.increment();
+        CompletionStage<OutputEvent> stage;
+        try {
+            stage = next.proceed(ctx, request.event);
+        } catch (RuntimeException | Error e) {
+            if (flight != null) {
+                flight.land();
+                flights.remove(key, flight);
+                flight.result.completeExceptionally(e);
+            }
+            throw e;
+        }
+        if (flight == null) {
+            return stage;
+        }
+
+        Flight leader = flight;
+        CompletableFuture<OutputEvent> result = new CompletableFuture<>();
+        stage.whenComplete((output, error) -> {
+            try {
+                result.complete(land(ctx, key, leader, output, error));
+            } catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Completes a flight, sharing its outcome with the calls waiting for it
+     *
+     * @return the response for the call that ran the function
+     */
+    private OutputEvent land(InvocationContext ctx, RequestKey key, Flight flight, OutputEvent output, Throwable error) {
+        int waiters = flight.land();
+        flights.remove(key, flight);
+        if (error != null) {
+            flight.result.completeExceptionally(error);
+            return rethrow(error);
+        }
+        if (waiters == 0 || output == null) {
+            flight.result.complete(output);
+            return output;
+        }
+
+        OutputEvent buffered;
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.max(output.getContentLength(), 256));
+            output.writeToOutput(body);
+            buffered = OutputEvent.fromByteBuffer(ByteBuffer.wrap(body.toByteArray()).asReadOnlyBuffer(), output.getStatus(), null, output.getHeaders());
+        } catch (IOException | RuntimeException e) {
+            FunctionOutputHandlingException failure = new FunctionOutputHandlingException("An exception was thrown while buffering a coalesced response: " + e.getMessage(), e);
+            flight.result.completeExceptionally(failure);
+            throw failure;
+        }
+        flight.result.complete(buffered.withHeaders(ResultCache.responseHeaders(ctx, output)));
+        return buffered;
+    }
+
+    private static OutputEvent rethrow(Throwable error) {
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        throw (RuntimeException) error;
+    }
+
+    private void report() {
+        long now = clock.getAsLong();
+        long next = nextReport.get();
+        if (now - next >= 0 && nextReport.compareAndSet(next, now + reportIntervalNanos)) {
+            log.println("FDK single-flight: " + executions.sum() + " calls ran the function, " + coalesced.sum()
+              + " calls were coalesced with a call that was already running, " + unkeyed.sum() + " calls could not be keyed");
+            log.flush();
+        }
+    }
+
+    /**
+     * A call that is running the function and the number of calls waiting for it
+     */
+    private static final class Flight {
+        final CompletableFuture<OutputEvent> result = new CompletableFuture<>();
+        private int waiters;
+        private boolean landed;
+
+        synchronized boolean join() {
+            if (landed) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        synchronized int land() {
+            landed = true;
+            return waiters;
+        }
+    }
+}
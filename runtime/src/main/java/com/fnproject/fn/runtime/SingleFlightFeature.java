@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.api.RuntimeContext;
+import com.fnproject.fn.api.RuntimeFeature;
+import com.fnproject.fn.api.exception.FunctionConfigurationException;
+
+/**
+ * The single-flight feature coalesces identical calls that arrive while the function is already handling one, so that
+ * the function runs once and each of the calls is answered with a copy of its response. This is useful for functions
+ * that serve concurrent calls (see env["FDK_MAX_CONCURRENCY"]) and make expensive requests to other services. To use it
+ * add the following to the function class:
+ *
+ * <code>
+ * import com.fnproject.fn.api.FnFeature;
+ * import com.fnproject.fn.runtime.SingleFlightFeature;
+ *
+ * {@literal @}FnFeature(SingleFlightFeature.class)
+ * public class MyFunction {
+ *
+ *     public Quote quote(QuoteRequest request){
+ *         ...
+ *     }
+ * }
+ * </code>
+ * <p>
+ * Calls are identical if their bodies and the headers listed in env["FDK_SINGLE_FLIGHT_HEADERS"] (comma separated, by
+ * default Content-Type, Accept, Fn-Http-Method, Fn-Http-Request-Url, Fn-Http-H-Authorization and Fn-Http-H-Cookie) are. Calls with bodies longer than
+ * env["FDK_SINGLE_FLIGHT_MAX_BODY_SIZE"] bytes (1MiB) are not coalesced. The numbers of calls that ran the function
+ * and that were coalesced are written to the function's log every env["FDK_SINGLE_FLIGHT_REPORT_SECONDS"] seconds
+ * (60) while it is being called.
+ * <p>
+ * When used with the {@link ResultCacheFeature} list the result cache first, so that cached responses are served
+ * without waiting for a running call.
+ */
+public class SingleFlightFeature implements RuntimeFeature {
+    @Override
+    public void initialize(RuntimeContext context) {
+        if (!(context instanceof FunctionRuntimeContext)) {
+            throw new FunctionConfigurationException("Coalescing calls is only supported by the FDK runtime");
+        }
+        FunctionRuntimeContext runtimeContext = (FunctionRuntimeContext) context;
+        runtimeContext.addInvocationFilter(SingleFlight.fromConfig(runtimeContext.getConfiguration(), runtimeContext.isDeadlineEnforced()));
+    }
+}
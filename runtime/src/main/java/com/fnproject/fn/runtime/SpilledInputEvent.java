@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.exception.FunctionInputHandlingException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * An input event whose body has been copied to a temporary file
+ * <p>
+ * The file is unlinked as soon as it is created so it is removed when the event is closed, even if the process dies.
+ * The body is read with positional reads of the file, which don't move the channel's position, so it may be read any
+ * number of times and nothing refers to the file once the event is closed.
+ */
+final class SpilledInputEvent implements InputEvent {
+    private static final int COPY_BUFFER_SIZE = 65536;
+    // some VMs reserve header words in arrays
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final FileChannel file;
+    private final long length;
+    private final Headers headers;
+    private final String callID;
+    private final Instant deadline;
+
+    private SpilledInputEvent(FileChannel file, long length, Headers headers, String callID, Instant deadline) {
+        this.file = file;
+        this.length = length;
+        this.headers = Objects.requireNonNull(headers, "headers");
+        this.callID = Objects.requireNonNull(callID, "callID");
+        this.deadline = Objects.requireNonNull(deadline, "deadline");
+    }
+
+    /**
+     * Copies a body to a new temporary file
+     *
+     * @param dir          the directory to create the file in
+     * @param prefix       bytes of the body that have already been read
+     * @param prefixLength the number of bytes in prefix
+     * @param rest         the remainder of the body, this is read to its end
+     * @return an event over the copy
+     * @throws IOException if the body could not be read or written
+     */
+    static SpilledInputEvent spill(Path dir, byte[] prefix, int prefixLength, InputStream rest, Headers headers, String callID, Instant deadline) throws IOException {
+        Path path = Files.createTempFile(dir, "fn-body-", ".tmp");
+        FileChannel file;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } finally {
+            Files.delete(path);
+        }
+        try {
+            writeFully(file, ByteBuffer.wrap(prefix, 0, prefixLength));
+            ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            int read;
+            while ((read = rest.read(buf.array(), 0, buf.capacity())) >= 0) {
+                buf.clear().limit(read);
+                writeFully(file, buf);
+            }
+            return new SpilledInputEvent(file, file.size(), headers, callID, deadline);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            file.write(buf);
+        }
+    }
+
+    @Override
+    public <T> T consumeBody(Function<InputStream, T> dest) {
+        try (InputStream rb = Channels.newInputStream(new PositionalReader())) {
+            return dest.apply(rb);
+        } catch (IOException e) {
+            throw new FunctionInputHandlingException("Error reading input stream", e);
+        }
+    }
+
+    /**
+     * @return a new buffer holding a copy of the file
+     * @throws FunctionInputHandlingException if the body could not be read or is too large to hold in an array
+     */
+    @Override
+    public ByteBuffer consumeBodyAsByteBuffer() {
+        if (length > MAX_ARRAY_SIZE) {
+            throw new FunctionInputHandlingException("Request body of " + length + " bytes is too large to read into a buffer");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) length);
+        try {
+            while (buf.hasRemaining()) {
+                if (file.read(buf, buf.position()) < 0) {
+                    throw new FunctionInputHandlingException("Request body file ended after " + buf.position() + " of " + length + " bytes");
+                }
+            }
+        } catch (IOException e) {
+            throw new FunctionInputHandlingException("Error reading input stream", e);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public String getCallID() {
+        return callID;
+    }
+
+    @Override
+    public Instant getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads the file from its start without moving the shared channel position, so that each reader sees the whole body
+     */
+    private final class PositionalReader implements ReadableByteChannel {
+        private long position;
+        private boolean open = true;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = file.read(dst, position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
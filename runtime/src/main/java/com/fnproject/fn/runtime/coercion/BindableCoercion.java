@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime.coercion;
+
+import com.fnproject.fn.api.InputCoercion;
+import com.fnproject.fn.api.MethodWrapper;
+import com.fnproject.fn.api.OutputCoercion;
+import com.fnproject.fn.api.RuntimeContext;
+
+/**
+ * A coercion that can resolve what it needs for one function method ahead of its calls
+ * <p>
+ * When the runtime resolves the coercions of the function method, once its configuration methods have run, coercions
+ * that implement this are replaced by the coercions they bind, which are then used for every call to that method.
+ */
+public interface BindableCoercion {
+
+    /**
+     * Binds the coercion to a parameter of a method
+     *
+     * @param runtimeContext the runtime context of the function
+     * @param method         the function method
+     * @param param          the index of the parameter
+     * @return a coercion that behaves as this one for that parameter
+     */
+    InputCoercion<?> bindParameter(RuntimeContext runtimeContext, MethodWrapper method, int param);
+
+    /**
+     * Binds the coercion to the result of a method
+     *
+     * @param runtimeContext the runtime context of the function
+     * @param method         the function method as output coercions see it
+     * @return a coercion that behaves as this one for results of that method
+     */
+    OutputCoercion bindResult(RuntimeContext runtimeContext, MethodWrapper method);
+}
@@ -18,9 +18,8 @@ package com.fnproject.fn.runtime.coercion;
 
 import com.fnproject.fn.api.*;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Optional;
 
 /**
@@ -35,29 +34,25 @@ public class ByteArrayCoercion implements InputCoercion<byte[]>, OutputCoercion
         }
     }
 
-    private byte[] toByteArray(InputStream is) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        byte[] data = new byte[1024];
-        while ((nRead = is.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+    private static byte[] toByteArray(ByteBuffer body) {
+        if (!body.hasArray()) {
+            byte[] copy = new byte[body.remaining()];
+            body.get(copy);
+            return copy;
         }
-
-        buffer.flush();
-        return buffer.toByteArray();
+        byte[] array = body.array();
+        int offset = body.arrayOffset() + body.position();
+        if (offset == 0 && body.remaining() == array.length) {
+            // the usual case when the length of the body is known
+            return array;
+        }
+        return Arrays.copyOfRange(array, offset, offset + body.remaining());
     }
 
     @Override
     public Optional<byte[]> tryCoerceParam(InvocationContext currentContext, int arg, InputEvent input, MethodWrapper method) {
         if (method.getParamType(arg).getParameterClass().equals(byte[].class)) {
-            return Optional.of(
-                    input.consumeBody(is -> {
-                        try {
-                            return toByteArray(is);
-                        } catch (IOException e) {
-                            throw new RuntimeException("Error reading input as bytes", e);
-                        }
-                    }));
+            return Optional.of(toByteArray(input.consumeBodyAsByteBuffer()));
         } else {
             return Optional.empty();
         }
@@ -17,9 +17,8 @@
 package com.fnproject.fn.runtime.coercion;
 
 import com.fnproject.fn.api.*;
-import org.apache.commons.io.IOUtils;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
@@ -36,14 +35,11 @@ public class StringCoercion implements InputCoercion<String>, OutputCoercion {
     @Override
     public Optional<String> tryCoerceParam(InvocationContext currentContext, int param, InputEvent input, MethodWrapper method) {
         if (method.getParamType(param).getParameterClass().equals(String.class)) {
-            return Optional.of(
-                    input.consumeBody(is -> {
-                        try {
-                            return IOUtils.toString(is, StandardCharsets.UTF_8);
-                        } catch (IOException e) {
-                            throw new RuntimeException("Error reading input as string");
-                        }
-                    }));
+            ByteBuffer body = input.consumeBodyAsByteBuffer();
+            if (!body.hasArray()) {
+                return Optional.of(StandardCharsets.UTF_8.decode(body).toString());
+            }
+            return Optional.of(new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), StandardCharsets.UTF_8));
         } else {
             return Optional.empty();
         }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime.coercion.jackson;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fnproject.fn.api.*;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Binary Jackson formats chosen by content negotiation
+ * <p>
+ * Parameters are read in CBOR, Smile or MessagePack when the request's Content-Type names that format, and results are
+ * written in the format the request's Accept header prefers, or in the request's format if there is no Accept header.
+ * Anything else is left to the JSON coercion.
+ * <p>
+ * Each format is used only if its Jackson data format module is on the function's classpath. Values are mapped with a
+ * copy of the function's JSON object mapper, so modules and mixins registered on it apply to every format. Copying a
+ * mapper with another factory needs Jackson 2.14 or later, with an older Jackson the binary formats are disabled.
+ */
+public class BinaryFormatCoercion implements InputCoercion<Object>, OutputCoercion {
+    private static final String BINDINGS_KEY = BinaryFormatCoercion.class.getCanonicalName() + ".bindings";
+
+    private static final BinaryFormatCoercion instance = new BinaryFormatCoercion(Arrays.asList(
+            Format.load("com.fasterxml.jackson.dataformat.cbor.CBORFactory", "application/cbor"),
+            Format.load("com.fasterxml.jackson.dataformat.smile.SmileFactory", "application/x-jackson-smile"),
+            Format.load("org.msgpack.jackson.dataformat.MessagePackFactory", "application/msgpack", "application/x-msgpack")));
+
+    private final List<Format> formats;
+
+    /**
+     * Return the global instance of this coercion
+     * @return a singleton instance of the binary format coercion for the VM
+     */
+    public static BinaryFormatCoercion instance() {
+        return instance;
+    }
+
+    BinaryFormatCoercion(List<Format> formats) {
+        List<Format> available = new ArrayList<>();
+        for (Format format : formats) {
+            if (format != null) {
+                available.add(format);
+            }
+        }
+        if (!available.isEmpty() && !canCopyMappers()) {
+            System.err.println("Jackson binary data formats are on the classpath but need Jackson 2.14 or later to share the function's object mapper configuration, they are disabled");
+            available.clear();
+        }
+        this.formats = Collections.unmodifiableList(available);
+    }
+
+    private static boolean canCopyMappers() {
+        try {
+            ObjectMapper.class.getDeclaredConstructor(ObjectMapper.class, JsonFactory.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A binary data format and the media types that name it
+     */
+    static final class Format {
+        private final Supplier<JsonFactory> factory;
+        private final List<String> mediaTypes;
+
+        Format(Supplier<JsonFactory> factory, String... mediaTypes) {
+            this.factory = factory;
+            this.mediaTypes = Arrays.asList(mediaTypes);
+        }
+
+        /**
+         * @return the format, or null if its factory class is not on the classpath
+         */
+        static Format load(String factoryClass, String... mediaTypes) {
+            Class<? extends JsonFactory> cls;
+            try {
+                cls = Class.forName(factoryClass).asSubclass(JsonFactory.class);
+            } catch (ClassNotFoundException | ClassCastException | LinkageError e) {
+                return null;
+            }
+            return new Format(() -> {
+                try {
+                    return cls.getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Unable to create " + factoryClass, e);
+                }
+            }, mediaTypes);
+        }
+
+        String getContentType() {
+            return mediaTypes.get(0);
+        }
+    }
+
+    private Format formatOf(String mediaType) {
+        for (int i = 0; i < formats.size(); i++) {
+            if (formats.get(i).mediaTypes.contains(mediaType)) {
+                return formats.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the media type of a Content-Type header, without parameters and in lower case
+     */
+    static String mediaType(String contentType) {
+        int semi = contentType.indexOf(';');
+        return (semi < 0 ? contentType : contentType.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Picks the format for a response from an Accept header
+     *
+     * @return the format with the highest quality, or null if a text type or wildcard is preferred
+     */
+    Format preferredFormat(String accept) {
+        Format best = null;
+        double bestQuality = 0;
+        for (String range : accept.split(",")) {
+            double quality = quality(range);
+            // earlier ranges win ties, JSON and anything else this can't write leave the choice to other coercions
+            if (quality > bestQuality) {
+                best = formatOf(mediaType(range));
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private static double quality(String range) {
+        for (String param : range.split(";")) {
+            String p = param.trim();
+            if (p.startsWith("q=") || p.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private JacksonBindings bindings(InvocationContext ctx, Format format) {
+        Optional<FormatBindings> existing = ctx.getRuntimeContext().getAttribute(BINDINGS_KEY, FormatBindings.class);
+        FormatBindings all = existing.orElse(null);
+        if (all == null) {
+            all = new FormatBindings();
+            ctx.getRuntimeContext().setAttribute(BINDINGS_KEY, all);
+        }
+        JacksonBindings bindings = all.byFormat.get(format);
+        if (bindings == null) {
+            bindings = new JacksonBindings(new FormatMapper(JacksonCoercion.objectMapper(ctx), format.factory.get()));
+            all.byFormat.putIfAbsent(format, bindings);
+        }
+        return bindings;
+    }
+
+    @Override
+    public Optional<Object> tryCoerceParam(InvocationContext currentContext, int param, InputEvent input, MethodWrapper method) {
+        if (formats.isEmpty()) {
+            return Optional.empty();
+        }
+        Optional<String> contentType = input.getHeaders().get(OutputEvent.CONTENT_TYPE_HEADER);
+        Format format = contentType.isPresent() ? formatOf(mediaType(contentType.get())) : null;
+        if (format == null) {
+            return Optional.empty();
+        }
+
+        Type type = method.getTargetMethod().getGenericParameterTypes()[param];
+        try {
+            return Optional.ofNullable(bindings(currentContext, format).read(type, input));
+        } catch (IOException e) {
+            throw JacksonCoercion.coercionFailed(type, e);
+        }
+    }
+
+    @Override
+    public Optional<OutputEvent> wrapFunctionResult(InvocationContext ctx, MethodWrapper method, Object value) {
+        if (formats.isEmpty()) {
+            return Optional.empty();
+        }
+        Headers headers = ctx.getRequestHeaders();
+        Optional<String> accept = headers.get("Accept");
+        Format format;
+        if (accept.isPresent()) {
+            format = preferredFormat(accept.get());
+        } else {
+            Optional<String> contentType = headers.get(OutputEvent.CONTENT_TYPE_HEADER);
+            format = contentType.isPresent() ? formatOf(mediaType(contentType.get())) : null;
+        }
+        if (format == null) {
+            return Optional.empty();
+        }
+        return Optional.of(bindings(ctx, format).toOutputEvent(value, format.getContentType()));
+    }
+
+    /**
+     * A copy of an object mapper with another factory
+     * <p>
+     * {@link ObjectMapper#copyWith(JsonFactory)} refuses to copy subclasses such as {@code JsonMapper}, the copy
+     * constructor it uses carries over the configuration of any mapper.
+     */
+    private static final class FormatMapper extends ObjectMapper {
+        FormatMapper(ObjectMapper src, JsonFactory factory) {
+            super(src, factory);
+        }
+    }
+
+    private static final class FormatBindings {
+        private final ConcurrentMap<Format, JacksonBindings> byFormat = new ConcurrentHashMap<>();
+    }
+}
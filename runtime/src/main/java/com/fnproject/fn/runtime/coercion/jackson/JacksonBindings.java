@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime.coercion.jackson;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.ReadOnceInputEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Readers and writers for the types a function reads and writes, all built from one object mapper
+ */
+final class JacksonBindings {
+    private final ObjectMapper mapper;
+    private final ObjectWriter untypedWriter;
+    private final ConcurrentMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Type, ObjectReader> elementReaders = new ConcurrentHashMap<>();
+    // keyed by the class of the result so that values are written as they would be by the mapper
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    JacksonBindings(ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.untypedWriter = mapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    ObjectReader reader(Type type) {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            reader = mapper.readerFor(mapper.constructType(type));
+            readers.putIfAbsent(type, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * @return a reader for the elements of a parameterized sequence type such as {@code Stream<T>}
+     */
+    ObjectReader elementReader(Type sequenceType) {
+        ObjectReader reader = elementReaders.get(sequenceType);
+        if (reader == null) {
+            reader = mapper.readerFor(mapper.constructType(sequenceType).containedTypeOrUnknown(0));
+            elementReaders.putIfAbsent(sequenceType, reader);
+        }
+        return reader;
+    }
+
+    ObjectWriter writer(Object value) {
+        if (value == null) {
+            return untypedWriter;
+        }
+        return writer(value.getClass());
+    }
+
+    ObjectWriter writer(Class<?> valueClass) {
+        ObjectWriter writer = writers.get(valueClass);
+        if (writer == null) {
+            writer = mapper.writerFor(valueClass).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            writers.putIfAbsent(valueClass, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Reads the body of an event as a value of a type
+     *
+     * @throws IOException if the body could not be read or parsed
+     * @see BodyReader#read(InputEvent)
+     */
+    Object read(Type type, InputEvent input) throws IOException {
+        return bodyReader(type).read(input);
+    }
+
+    /**
+     * @return a reader of bodies as values of a type, with the object reader for the type resolved up front
+     */
+    BodyReader bodyReader(Type type) {
+        Class<?> rawType = rawType(type);
+        if (rawType == Stream.class || rawType == Iterator.class) {
+            return new BodyReader(elementReader(type), rawType);
+        }
+        return new BodyReader(reader(type), null);
+    }
+
+    /**
+     * Reads event bodies as values of one type
+     */
+    static final class BodyReader {
+        private final ObjectReader reader;
+        // Stream or Iterator if the body is read as a sequence of values, otherwise null
+        private final Class<?> sequenceType;
+
+        private BodyReader(ObjectReader reader, Class<?> sequenceType) {
+            this.reader = reader;
+            this.sequenceType = sequenceType;
+        }
+
+        /**
+         * Reads the body of an event
+         * <p>
+         * {@link Stream} and {@link Iterator} parameters are parsed lazily, an element at a time, from a sequence or
+         * array of values. The body is closed when they are exhausted or closed, or otherwise when the event is closed.
+         *
+         * @throws IOException if the body could not be read or parsed
+         */
+        Object read(InputEvent input) throws IOException {
+            if (sequenceType != null) {
+                MappingIterator<Object> values = reader.readValues(openBody(input));
+                if (sequenceType == Iterator.class) {
+                    return values;
+                }
+                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(values, Spliterator.ORDERED), false)
+                        .onClose(() -> {
+                            try {
+                                values.close();
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+            }
+
+            if (input.getContentLength() >= 0) {
+                // read the body in one go at its declared size and parse it from the array
+                ByteBuffer body = input.consumeBodyAsByteBuffer();
+                if (!body.hasArray()) {
+                    return reader.readValue(new ByteBufferBackedInputStream(body));
+                }
+                return reader.readValue(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            }
+            try {
+                return input.consumeBody(inputStream -> {
+                    try {
+                        return reader.readValue(inputStream);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Opens the body of an event to be parsed after the coercion returns
+     * <p>
+     * Bodies read from the connection are parsed as they arrive, others are read from a buffer holding the whole body.
+     */
+    private static InputStream openBody(InputEvent input) {
+        if (input instanceof ReadOnceInputEvent) {
+            return ((ReadOnceInputEvent) input).detachBody();
+        }
+        ByteBuffer body = input.consumeBodyAsByteBuffer();
+        if (body.hasArray()) {
+            return new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        }
+        return new ByteBufferBackedInputStream(body);
+    }
+
+    private static Class<?> rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        } else if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        return null;
+    }
+
+    /**
+     * Creates an event that serializes a value as the response is written, without buffering the whole document
+     */
+    OutputEvent toOutputEvent(Object value, String contentType) {
+        return toOutputEvent(writer(value), value, contentType);
+    }
+
+    static OutputEvent toOutputEvent(ObjectWriter writer, Object value, String contentType) {
+        return OutputEvent.fromBodyWriter(out -> {
+            try {
+                writer.writeValue(out, value);
+            } catch (JsonProcessingException e) {
+                throw new IOException("Failed to render response to " + contentType, e);
+            }
+        }, OutputEvent.Status.Success, contentType);
+    }
+}
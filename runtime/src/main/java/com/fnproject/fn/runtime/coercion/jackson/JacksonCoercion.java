@@ -16,12 +16,16 @@
 
 package com.fnproject.fn.runtime.coercion.jackson;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.util.JsonRecyclerPools;
+import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fnproject.fn.api.*;
+import com.fnproject.fn.runtime.coercion.BindableCoercion;
 
 import java.io.IOException;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.util.Optional;
 
@@ -29,9 +33,22 @@ import java.util.Optional;
  * Jackson JSON Serialization feature -
  * <p>
  * This supports marshalling and unmarshalling of event parameters and responses to
+ * <p>
+ * The object mapper is taken from the runtime context when the function is first called, readers and writers bound to
+ * each parameter and result type are then built once and reused. For the function method these are resolved when its
+ * coercions are, after its configuration methods have run, so calls don't look them up. Results are serialized straight
+ * to the response as it is written. Setting the function configuration variable
+ * FDK_JACKSON_BYTECODE_ACCESSORS to true registers the Jackson Blackbird or Afterburner module, if either is on the
+ * classpath, with the default object mapper.
  */
-public class JacksonCoercion implements InputCoercion<Object>, OutputCoercion {
+public class JacksonCoercion implements InputCoercion<Object>, OutputCoercion, BindableCoercion {
     private static final String OM_KEY = JacksonCoercion.class.getCanonicalName() + ".om";
+    private static final String BINDINGS_KEY = JacksonCoercion.class.getCanonicalName() + ".bindings";
+    static final String BYTECODE_ACCESSORS = "FDK_JACKSON_BYTECODE_ACCESSORS";
+    private static final String[] ACCESSOR_MODULES = {
+            "com.fasterxml.jackson.module.blackbird.BlackbirdModule",
+            "com.fasterxml.jackson.module.afterburner.AfterburnerModule"
+    };
 
     private static final JacksonCoercion instance = new JacksonCoercion();
 
@@ -43,36 +60,75 @@ public class JacksonCoercion implements InputCoercion<Object>, OutputCoercion {
         return instance;
     }
 
-    private static ObjectMapper objectMapper(InvocationContext ctx) {
-        Optional<ObjectMapper> omo = ctx.getRuntimeContext().getAttribute(OM_KEY, ObjectMapper.class);
+    static ObjectMapper objectMapper(InvocationContext ctx) {
+        return objectMapper(ctx.getRuntimeContext());
+    }
+
+    static ObjectMapper objectMapper(RuntimeContext runtimeContext) {
+        Optional<ObjectMapper> omo = runtimeContext.getAttribute(OM_KEY, ObjectMapper.class);
         if (!omo.isPresent()) {
-            ObjectMapper om = new ObjectMapper();
+            ObjectMapper om = newObjectMapper(runtimeContext);
 
-            ctx.getRuntimeContext().setAttribute(OM_KEY, om);
+            runtimeContext.setAttribute(OM_KEY, om);
             return om;
         } else {
             return omo.get();
         }
     }
 
-    @Override
-    public Optional<Object> tryCoerceParam(InvocationContext currentContext, int param, InputEvent input, MethodWrapper method) {
-
-        Type type = method.getTargetMethod().getGenericParameterTypes()[param];
-        JavaType javaType = objectMapper(currentContext).constructType(type);
+    private static ObjectMapper newObjectMapper(RuntimeContext runtimeContext) {
+        ObjectMapper om;
+        try {
+            // calls may run on short-lived threads, so buffers are pooled across threads rather than per thread
+            om = new ObjectMapper(JsonFactory.builder().recyclerPool(JsonRecyclerPools.newConcurrentDequePool()).build());
+        } catch (LinkageError e) {
+            // an older Jackson on the function's classpath
+            om = new ObjectMapper();
+        }
+        if (Boolean.parseBoolean(runtimeContext.getConfigurationByKey(BYTECODE_ACCESSORS).orElse("false"))) {
+            registerAccessorModule(om);
+        }
+        return om;
+    }
 
-        return Optional.ofNullable(input.consumeBody(inputStream -> {
+    private static void registerAccessorModule(ObjectMapper om) {
+        for (String moduleClass : ACCESSOR_MODULES) {
             try {
-                return objectMapper(currentContext).readValue(inputStream, javaType);
-            } catch (IOException e) {
-                throw coercionFailed(type, e);
+                om.registerModule((Module) Class.forName(moduleClass).getDeclaredConstructor().newInstance());
+                return;
+            } catch (ReflectiveOperationException | LinkageError ignored) {
             }
-        }));
+        }
+        System.err.println(BYTECODE_ACCESSORS + " is set but neither the Jackson Blackbird nor the Afterburner module could be loaded, using reflective accessors");
+    }
+
+    private static JacksonBindings bindings(InvocationContext ctx) {
+        return bindings(ctx.getRuntimeContext());
+    }
+
+    private static JacksonBindings bindings(RuntimeContext runtimeContext) {
+        Optional<JacksonBindings> bindings = runtimeContext.getAttribute(BINDINGS_KEY, JacksonBindings.class);
+        if (bindings.isPresent()) {
+            return bindings.get();
+        }
+        JacksonBindings created = new JacksonBindings(objectMapper(runtimeContext));
+        runtimeContext.setAttribute(BINDINGS_KEY, created);
+        return created;
+    }
 
+    @Override
+    public Optional<Object> tryCoerceParam(InvocationContext currentContext, int param, InputEvent input, MethodWrapper method) {
+
+        Type type = method.getTargetMethod().getGenericParameterTypes()[param];
+        try {
+            return Optional.ofNullable(bindings(currentContext).read(type, input));
+        } catch (IOException e) {
+            throw coercionFailed(type, e);
+        }
     }
 
 
-    private static RuntimeException coercionFailed(Type paramType, Throwable cause) {
+    static RuntimeException coercionFailed(Type paramType, Throwable cause) {
         return new RuntimeException("Failed to coerce event to user function parameter type " + paramType, cause);
     }
 
@@ -82,15 +138,31 @@ public class JacksonCoercion implements InputCoercion<Object>, OutputCoercion {
 
     @Override
     public Optional<OutputEvent> wrapFunctionResult(InvocationContext ctx, MethodWrapper method, Object value) {
+        return Optional.of(bindings(ctx).toOutputEvent(value, "application/json"));
+    }
 
-        try {
-            return Optional.of(OutputEvent.fromBytes(objectMapper(ctx).writeValueAsBytes(value), OutputEvent.Status.Success,
-                    "application/json"));
+    @Override
+    public InputCoercion<Object> bindParameter(RuntimeContext runtimeContext, MethodWrapper method, int param) {
+        Type type = method.getTargetMethod().getGenericParameterTypes()[param];
+        JacksonBindings.BodyReader reader = bindings(runtimeContext).bodyReader(type);
+        return (currentContext, arg, input, methodWrapper) -> {
+            try {
+                return Optional.ofNullable(reader.read(input));
+            } catch (IOException e) {
+                throw coercionFailed(type, e);
+            }
+        };
+    }
 
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to render response to JSON", e);
+    @Override
+    public OutputCoercion bindResult(RuntimeContext runtimeContext, MethodWrapper method) {
+        JacksonBindings bindings = bindings(runtimeContext);
+        Class<?> resultClass = method.getReturnType().getParameterClass();
+        if (resultClass == null || resultClass.isPrimitive() || !Modifier.isFinal(resultClass.getModifiers())) {
+            // results are written as their runtime class, which is only known here if the declared class is final
+            return (ctx, m, value) -> Optional.of(bindings.toOutputEvent(value, "application/json"));
         }
-
+        ObjectWriter writer = bindings.writer(resultClass);
+        return (ctx, m, value) -> Optional.of(JacksonBindings.toOutputEvent(value == null ? bindings.writer(value) : writer, value, "application/json"));
     }
-
 }
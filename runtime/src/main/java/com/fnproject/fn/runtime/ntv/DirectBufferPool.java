@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime.ntv;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of fixed-size direct buffers used for socket I/O, by {@link UnixSocket} and by the NIO codec
+ * <p>
+ * Native reads and writes go through these buffers rather than through heap arrays so that the JVM does not have to copy
+ * whole arrays in and out of native memory on every call. Buffers are retained up to a fixed limit, any beyond that are
+ * left to the garbage collector.
+ */
+public final class DirectBufferPool {
+    public static final int BUFFER_SIZE = 65536;
+    private static final int MAX_POOLED = 32;
+
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private DirectBufferPool() {
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none are free
+     *
+     * @return a cleared direct buffer of {@link #BUFFER_SIZE} bytes
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buf = pool.poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool, the caller must not use the buffer after this
+     *
+     * @param buf a buffer previously obtained from {@link #acquire()}
+     */
+    public static void release(ByteBuffer buf) {
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(buf);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
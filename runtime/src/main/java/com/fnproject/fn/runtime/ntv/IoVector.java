@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime.ntv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The regions of up to {@link UnixSocketNative#MAX_IO_VECTORS} buffers for a single vectored read or write
+ * <p>
+ * Direct buffers are passed to the native code as they are, heap buffers are passed as their backing arrays. The
+ * native code copies at most 64KiB of the arrays' regions per call, so a transfer involving a large heap buffer is
+ * partial and is completed by further calls.
+ */
+final class IoVector {
+    private final Object[] bases = new Object[UnixSocketNative.MAX_IO_VECTORS];
+    private final int[] offsets = new int[UnixSocketNative.MAX_IO_VECTORS];
+    private final int[] lengths = new int[UnixSocketNative.MAX_IO_VECTORS];
+    private int count;
+
+    void clear() {
+        for (int i = 0; i < count; i++) {
+            bases[i] = null;
+        }
+        count = 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    boolean isFull() {
+        return count == bases.length;
+    }
+
+    /**
+     * Adds the remaining bytes of a buffer, which must have some remaining and must be direct or have an accessible array
+     */
+    void add(ByteBuffer buf) {
+        if (buf.isDirect()) {
+            bases[count] = buf;
+            offsets[count] = buf.position();
+        } else {
+            bases[count] = buf.array();
+            offsets[count] = buf.arrayOffset() + buf.position();
+        }
+        lengths[count] = buf.remaining();
+        count++;
+    }
+
+    long recv(int fd) throws IOException {
+        return UnixSocketNative.recvBuffers(fd, bases, offsets, lengths, count);
+    }
+
+    long send(int fd) throws IOException {
+        return UnixSocketNative.sendBuffers(fd, bases, offsets, lengths, count);
+    }
+
+    /**
+     * Moves the positions of buffers forward by the number of bytes transferred, filling or draining them in order
+     */
+    static void advance(ByteBuffer[] bufs, int offset, int length, long transferred) {
+        for (int i = offset; i < offset + length && transferred > 0; i++) {
+            int n = (int) Math.min(bufs[i].remaining(), transferred);
+            bufs[i].position(bufs[i].position() + n);
+            transferred -= n;
+        }
+    }
+}
@@ -19,19 +19,29 @@ package com.fnproject.fn.runtime.ntv;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketException;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * A listening unix socket
+ * <p>
+ * {@link #accept(long)} blocks in the kernel until a connection arrives, {@link #close()} wakes any thread waiting in it
+ * through a pipe that is polled together with the socket, so neither needs to poll on a timer.
+ * <p>
  * Created on 12/09/2018.
  * <p>
  * (c) 2018 Oracle Corporation
  */
 public class UnixServerSocket implements Closeable {
     private final int fd;
-    private final AtomicBoolean closed = new AtomicBoolean();
+    private final int wakeupReadFd;
+    private final int wakeupWriteFd;
+    // guarded by this, the descriptors are only closed once no thread is waiting in accept so their numbers can't be reused under it
+    private boolean closed;
+    private int accepting;
 
-    private UnixServerSocket(int fd)  {
+    private UnixServerSocket(int fd, int wakeupReadFd, int wakeupWriteFd) {
         this.fd = fd;
+        this.wakeupReadFd = wakeupReadFd;
+        this.wakeupWriteFd = wakeupWriteFd;
     }
 
 
@@ -52,27 +62,77 @@ public class UnixServerSocket implements Closeable {
             UnixSocketNative.close(fd);
             throw e;
         }
-        return new UnixServerSocket(fd);
+
+        int[] wakeup = new int[2];
+        try {
+            UnixSocketNative.pipe(wakeup);
+        } catch (IOException e) {
+            UnixSocketNative.close(fd);
+            throw e;
+        }
+        return new UnixServerSocket(fd, wakeup[0], wakeup[1]);
 
     }
 
+    /**
+     * Closes the socket, a thread waiting in {@link #accept(long)} returns null straight away
+     */
     @Override
     public void close() throws IOException {
-        if (closed.compareAndSet(false,true)) {
-            UnixSocketNative.close(fd);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (accepting > 0) {
+                // the last thread to leave accept closes the descriptors
+                UnixSocketNative.wakeup(wakeupWriteFd);
+                return;
+            }
         }
+        closeDescriptors();
     }
 
+    /**
+     * Waits for a connection
+     *
+     * @param timeoutMillis how long to wait, zero waits until a connection arrives or the socket is closed
+     * @return the accepted connection or null if the timeout expired or the socket was closed while waiting
+     * @throws IOException if the socket is closed or accepting failed
+     */
     public UnixSocket accept(long timeoutMillis) throws IOException {
-        if (closed.get()) {
-            throw new SocketException("accept on closed socket");
+        synchronized (this) {
+            if (closed) {
+                throw new SocketException("accept on closed socket");
+            }
+            accepting++;
+        }
+        int newFd;
+        boolean lastOut;
+        try {
+            newFd = UnixSocketNative.acceptOrWake(fd, wakeupReadFd, timeoutMillis);
+        } finally {
+            synchronized (this) {
+                lastOut = --accepting == 0 && closed;
+            }
+            if (lastOut) {
+                closeDescriptors();
+            }
         }
-        int newFd = UnixSocketNative.accept(fd, timeoutMillis);
         if (newFd == 0) {
             return null;
         }
         return new UnixSocket(newFd);
     }
 
+    private void closeDescriptors() throws IOException {
+        try {
+            UnixSocketNative.close(wakeupReadFd);
+            UnixSocketNative.close(wakeupWriteFd);
+        } finally {
+            UnixSocketNative.close(fd);
+        }
+    }
+
 
 }
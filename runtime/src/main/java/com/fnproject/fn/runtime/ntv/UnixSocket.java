@@ -16,12 +16,20 @@
 
 package com.fnproject.fn.runtime.ntv;
 
+import com.fnproject.fn.api.OutputEvent;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This approximates a Java.net.socket for many operations but not by any means all
@@ -121,6 +129,11 @@ public final class UnixSocket extends Socket {
 
     private final InputStream in;
     private final OutputStream out;
+    private final UsChannel channel;
+
+    // direct buffers borrowed from DirectBufferPool on first use, these are returned to the pool when the socket is closed
+    private final AtomicReference<ByteBuffer> readBuffer = new AtomicReference<>();
+    private final AtomicReference<ByteBuffer> writeBuffer = new AtomicReference<>();
 
 
     UnixSocket(int fd) throws SocketException {
@@ -128,20 +141,43 @@ public final class UnixSocket extends Socket {
         this.fd = fd;
         in = new UsInput();
         out = new UsOutput();
+        channel = new UsChannel();
+
+    }
 
+    /**
+     * Takes the buffer held in ref for the duration of a native call, so that a concurrent {@link #close()} can't hand it to another socket while it is in use
+     */
+    private ByteBuffer takeBuffer(AtomicReference<ByteBuffer> ref, boolean forRead) {
+        ByteBuffer buf = ref.getAndSet(null);
+        if (buf == null) {
+            buf = DirectBufferPool.acquire();
+            if (forRead) {
+                buf.limit(0);
+            }
+        }
+        return buf;
+    }
+
+    private void returnBuffer(AtomicReference<ByteBuffer> ref, ByteBuffer buf) {
+        if (closed.get() || !ref.compareAndSet(null, buf)) {
+            DirectBufferPool.release(buf);
+        }
     }
 
     private class UsInput extends InputStream {
 
         @Override
         public int read() throws IOException {
-
-            byte[] buf = new byte[1];
-            int rv = read(buf, 0, 1);
-            if (rv == -1) {
-                return -1;
+            ByteBuffer buf = fill();
+            try {
+                if (!buf.hasRemaining()) {
+                    return -1;
+                }
+                return buf.get() & 0xFF;
+            } finally {
+                returnBuffer(readBuffer, buf);
             }
-            return (int) buf[0];
         }
 
 
@@ -151,11 +187,54 @@ public final class UnixSocket extends Socket {
 
         @Override
         public int read(byte b[], int off, int len) throws IOException {
+            Objects.requireNonNull(b);
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            ByteBuffer buf = fill();
+            try {
+                if (!buf.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(len, buf.remaining());
+                buf.get(b, off, count);
+                return count;
+            } finally {
+                returnBuffer(readBuffer, buf);
+            }
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buf = readBuffer.get();
+            return buf == null ? 0 : buf.remaining();
+        }
+
+        /**
+         * Returns the read buffer, receiving more data from the socket if it is empty; the buffer has no remaining bytes on EOF
+         */
+        private ByteBuffer fill() throws IOException {
             if (inputClosed.get()) {
                 throw new UnixSocketException("Read on closed stream");
             }
-
-            return UnixSocketNative.recv(fd, b, off, len);
+            ByteBuffer buf = takeBuffer(readBuffer, true);
+            if (buf.hasRemaining()) {
+                return buf;
+            }
+            try {
+                int count = UnixSocketNative.recvBuffer(fd, buf, 0, buf.capacity());
+                buf.position(0);
+                buf.limit(Math.max(count, 0));
+                return buf;
+            } catch (IOException | RuntimeException e) {
+                buf.limit(0);
+                returnBuffer(readBuffer, buf);
+                throw e;
+            }
         }
 
         @Override
@@ -169,16 +248,44 @@ public final class UnixSocket extends Socket {
 
         @Override
         public void write(int b) throws IOException {
-            write(new byte[]{(byte) b}, 0, 1);
+            ByteBuffer buf = takeBuffer(writeBuffer, false);
+            try {
+                buf.clear();
+                buf.put((byte) b);
+                send(buf, 1);
+            } finally {
+                returnBuffer(writeBuffer, buf);
+            }
         }
 
         public void write(byte b[], int off, int len) throws IOException {
+            Objects.requireNonNull(b);
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            ByteBuffer buf = takeBuffer(writeBuffer, false);
+            try {
+                while (len > 0) {
+                    int count = Math.min(len, buf.capacity());
+                    buf.clear();
+                    buf.put(b, off, count);
+                    send(buf, count);
+                    off = off + count;
+                    len = len - count;
+                }
+            } finally {
+                returnBuffer(writeBuffer, buf);
+            }
+        }
+
+        private void send(ByteBuffer buf, int len) throws IOException {
             if (outputClosed.get()) {
                 throw new UnixSocketException("Write to closed stream");
             }
-            Objects.requireNonNull(b);
+            int off = 0;
             while (len > 0) {
-                int sent = UnixSocketNative.send(fd, b, off, len);
+                int sent = UnixSocketNative.sendBuffer(fd, buf, off, len);
 
                 if (sent == 0) {
                     throw new UnixSocketException("No data written to buffer");
@@ -195,6 +302,203 @@ public final class UnixSocket extends Socket {
     }
 
 
+    /**
+     * Reads and writes buffers straight to and from the socket without copying through the socket's own buffers
+     * <p>
+     * Reads and writes of several buffers are each made with a single readv or writev call where possible, and files
+     * are sent with sendfile(2) when their descriptor can be found.
+     */
+    private class UsChannel implements ByteChannel, GatheringByteChannel, ScatteringByteChannel, OutputEvent.FileTransferChannel {
+        // like the socket's streams, the channel supports one reader and one writer at a time
+        private final IoVector readVector = new IoVector();
+        private final IoVector writeVector = new IoVector();
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            checkInput();
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            int pos = dst.position();
+            int count;
+            if (dst.isDirect()) {
+                count = UnixSocketNative.recvBuffer(fd, dst, pos, dst.remaining());
+            } else {
+                count = UnixSocketNative.recv(fd, dst.array(), dst.arrayOffset() + pos, dst.remaining());
+            }
+            if (count > 0) {
+                dst.position(pos + count);
+            }
+            return count;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            checkBounds(dsts, offset, length);
+            checkInput();
+            IoVector vec = readVector;
+            vec.clear();
+            for (int i = offset; i < offset + length && !vec.isFull(); i++) {
+                if (dsts[i].hasRemaining()) {
+                    vec.add(dsts[i]);
+                }
+            }
+            if (vec.count() == 0) {
+                return 0;
+            }
+            long count;
+            try {
+                count = vec.recv(fd);
+            } finally {
+                vec.clear();
+            }
+            IoVector.advance(dsts, offset, length, count);
+            return count;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) throws IOException {
+            return read(dsts, 0, dsts.length);
+        }
+
+        @Override
+        public int write(ByteBuffer buf) throws IOException {
+            checkOutput();
+            // read-only heap buffers don't expose their arrays
+            ByteBuffer src = buf.isDirect() || buf.hasArray() ? buf : copyOf(buf);
+            int pos = src.position();
+            int len = src.remaining();
+            int off = 0;
+            while (off < len) {
+                int sent;
+                if (src.isDirect()) {
+                    sent = UnixSocketNative.sendBuffer(fd, src, pos + off, len - off);
+                } else {
+                    sent = UnixSocketNative.send(fd, src.array(), src.arrayOffset() + pos + off, len - off);
+                }
+                if (sent == 0) {
+                    throw new UnixSocketException("No data written to buffer");
+                }
+                off = off + sent;
+            }
+            buf.position(buf.position() + len);
+            return len;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            checkBounds(srcs, offset, length);
+            checkOutput();
+            IoVector vec = writeVector;
+            long total = 0;
+            int first = offset;
+            int end = offset + length;
+            while (true) {
+                while (first < end && !srcs[first].hasRemaining()) {
+                    first++;
+                }
+                if (first == end) {
+                    return total;
+                }
+                if (!srcs[first].isDirect() && !srcs[first].hasArray()) {
+                    // read-only heap buffers are copied and sent on their own
+                    total += write(srcs[first]);
+                    continue;
+                }
+                for (int i = first; i < end && !vec.isFull(); i++) {
+                    ByteBuffer src = srcs[i];
+                    if (!src.hasRemaining()) {
+                        continue;
+                    }
+                    if (!src.isDirect() && !src.hasArray()) {
+                        break;
+                    }
+                    vec.add(src);
+                }
+                long sent;
+                try {
+                    sent = vec.send(fd);
+                } finally {
+                    vec.clear();
+                }
+                if (sent == 0) {
+                    throw new UnixSocketException("No data written to buffer");
+                }
+                IoVector.advance(srcs, first, end - first, sent);
+                total += sent;
+            }
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            checkOutput();
+            if (count == 0) {
+                return 0;
+            }
+            int fileFd = UnixSocketNative.fileDescriptor(file);
+            if (fileFd >= 0) {
+                return UnixSocketNative.sendFile(fd, fileFd, position, count);
+            }
+
+            // not a JDK file channel, copy through a direct buffer instead
+            ByteBuffer buf = takeBuffer(writeBuffer, false);
+            try {
+                buf.clear();
+                buf.limit((int) Math.min(count, buf.capacity()));
+                int read = file.read(buf, position);
+                if (read <= 0) {
+                    return 0;
+                }
+                buf.flip();
+                write(buf);
+                return read;
+            } finally {
+                returnBuffer(writeBuffer, buf);
+            }
+        }
+
+        private void checkInput() throws UnixSocketException {
+            if (inputClosed.get()) {
+                throw new UnixSocketException("Read on closed stream");
+            }
+        }
+
+        private void checkOutput() throws UnixSocketException {
+            if (outputClosed.get()) {
+                throw new UnixSocketException("Write to closed stream");
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            UnixSocket.this.close();
+        }
+    }
+
+    private static void checkBounds(ByteBuffer[] bufs, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > bufs.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer src) {
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+
     public static UnixSocket connect(String destination) throws IOException {
         int fd = UnixSocketNative.socket();
         UnixSocketNative.connect(fd, destination);
@@ -211,6 +515,18 @@ public final class UnixSocket extends Socket {
         return out;
     }
 
+    /**
+     * Returns a channel over this socket, writes block until all of the given buffers have been sent
+     * <p>
+     * The channel does not share the buffering of {@link #getInputStream()} so a connection should be read through one or the other
+     *
+     * @return a channel that reads and writes this socket, this is also a {@link GatheringByteChannel}, a
+     * {@link ScatteringByteChannel} and an {@link OutputEvent.FileTransferChannel}
+     */
+    public ByteChannel getByteChannel() {
+        return channel;
+    }
+
 
     @Override
     public synchronized void setReceiveBufferSize(int size) throws SocketException {
@@ -328,9 +644,19 @@ public final class UnixSocket extends Socket {
     @Override
     public void close() throws IOException {
         if (closed.compareAndSet(false, true)) {
-            UnixSocketNative.close(fd);
+            try {
+                UnixSocketNative.close(fd);
+            } finally {
+                releaseBuffer(readBuffer);
+                releaseBuffer(writeBuffer);
+            }
         }
     }
 
-
+    private static void releaseBuffer(AtomicReference<ByteBuffer> ref) {
+        ByteBuffer buf = ref.getAndSet(null);
+        if (buf != null) {
+            DirectBufferPool.release(buf);
+        }
+    }
 }
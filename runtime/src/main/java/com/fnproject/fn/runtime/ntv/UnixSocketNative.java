@@ -18,6 +18,8 @@ package com.fnproject.fn.runtime.ntv;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Created on 12/09/2018.
@@ -54,10 +56,60 @@ class UnixSocketNative {
 
     public static native int accept(int socket, long timeoutMs) throws IOException;
 
+    /**
+     * Accept a connection, returning 0 without accepting one if the timeout expires or wakeFd becomes readable, a timeout of zero waits indefinitely
+     */
+    public static native int acceptOrWake(int socket, int wakeFd, long timeoutMs) throws IOException;
+
+    /**
+     * Create a pipe for waking up {@link #acceptOrWake}, filling fds with its read and write ends
+     */
+    public static native void pipe(int[] fds) throws IOException;
+
+    /**
+     * Make the read end of a pipe readable without blocking
+     */
+    public static native void wakeup(int pipeFd) throws IOException;
+
     public static native int recv(int socket, byte[] buffer, int offset, int length) throws IOException;
 
     public static native int send(int socket, byte[] buffer, int offset, int length) throws IOException;
 
+    public static native int recvBuffer(int socket, ByteBuffer buffer, int offset, int length) throws IOException;
+
+    public static native int sendBuffer(int socket, ByteBuffer buffer, int offset, int length) throws IOException;
+
+    /**
+     * The most buffers that may be passed to {@link #recvBuffers} or {@link #sendBuffers} in one call
+     */
+    public static final int MAX_IO_VECTORS = 16;
+
+    /**
+     * Scatter read into several regions with a single readv call, each buffer is either a direct ByteBuffer or a byte[]
+     * <p>
+     * At most 64KiB of a byte[] region is copied by one call, when a region is cut short the regions after it are not
+     * transferred by that call.
+     */
+    public static native long recvBuffers(int socket, Object[] buffers, int[] offsets, int[] lengths, int count) throws IOException;
+
+    /**
+     * Gather write from several regions with a single writev call, each buffer is either a direct ByteBuffer or a byte[]
+     * <p>
+     * At most 64KiB of a byte[] region is copied by one call, when a region is cut short the regions after it are not
+     * transferred by that call.
+     */
+    public static native long sendBuffers(int socket, Object[] buffers, int[] offsets, int[] lengths, int count) throws IOException;
+
+    /**
+     * Send part of a file with sendfile(2), returning the number of bytes sent which is zero at the end of the file
+     */
+    public static native long sendFile(int socket, int fileFd, long position, long count) throws IOException;
+
+    /**
+     * Returns the descriptor of a JDK file channel or -1 if the channel doesn't expose one
+     */
+    public static native int fileDescriptor(FileChannel channel);
+
     public static native void close(int socket) throws UnixSocketException;
 
     public static native void setSendTimeout(int socket, int timeout) throws UnixSocketException;
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.OutputEvent;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks how much memory the runtime allocates for each call, the target is a few hundred bytes plus the payload
+ */
+public class AllocationBudgetTest {
+    private static final int CALLS = 20000;
+
+    public static String echo(String input) {
+        return input;
+    }
+
+    @Test
+    public void shouldAllocateLittleMoreThanThePayloadPerCall() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        EventCodec.Handler[] handler = new EventCodec.Handler[1];
+        Map<String, String> config = new HashMap<>();
+        config.put("FN_FORMAT", "http-stream");
+        new EntryPoint().run(config, (h) -> handler[0] = h, System.err, AllocationBudgetTest.class.getName() + "::echo");
+
+        Headers headers = Headers.emptyHeaders().setHeader("Content-Type", "text/plain");
+        byte[] body = "hello".getBytes();
+        Instant deadline = Instant.now().plusSeconds(3600);
+
+        long perCall = Long.MAX_VALUE;
+        // the best of several rounds, so the measurement is taken once the call path is compiled
+        for (int round = 0; round < 5; round++) {
+            long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < CALLS; i++) {
+                OutputEvent out = handler[0].handle(new ReadOnceInputEvent(new ByteArrayInputStream(body), headers, "call", deadline, body.length));
+                out.writeToOutput(NullOutputStream.NULL_OUTPUT_STREAM);
+            }
+            perCall = Math.min(perCall, (allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / CALLS);
+        }
+
+        // this includes the test's own event and input stream, and the function's input and output strings
+        assertThat(perCall).isLessThan(768);
+    }
+}
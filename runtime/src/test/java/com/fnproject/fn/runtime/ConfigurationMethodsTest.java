@@ -17,11 +17,16 @@
 package com.fnproject.fn.runtime;
 
 import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.testfns.CustomDataBindingFnWithConfig;
 import com.fnproject.fn.runtime.testfns.TestFnWithConfigurationMethods;
+import com.fnproject.fn.runtime.testfns.coercions.StringReversalCoercion;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.util.HashMap;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * End-to-end tests for function configuration methods
@@ -31,6 +36,19 @@ public class ConfigurationMethodsTest {
     @Rule
     public final FnTestHarness fn = new FnTestHarness();
 
+    @Test
+    public void shouldResolveCoercionsOnceTheFunctionIsConfigured() {
+        FunctionRuntimeContext runtimeContext = new FunctionRuntimeContext(new DefaultMethodWrapper(CustomDataBindingFnWithConfig.class, "echo"), new HashMap<>());
+        new FunctionConfigurer().configure(runtimeContext);
+
+        assertThat(runtimeContext.getInputCoercionPlan(0)).first().isInstanceOf(StringReversalCoercion.class);
+        assertThatThrownBy(() -> runtimeContext.addInputCoercion(new StringReversalCoercion()))
+            .isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> runtimeContext.addOutputCoercion(new StringReversalCoercion()))
+            .isInstanceOf(IllegalStateException.class);
+        assertThat(runtimeContext.getInputCoercionPlan(0)).filteredOn(c -> c instanceof StringReversalCoercion).hasSize(1);
+    }
+
     @Test
     public void staticTargetWithNoConfigurationIsOK() throws Exception {
         fn.givenEvent().withBody("Hello World").enqueue();
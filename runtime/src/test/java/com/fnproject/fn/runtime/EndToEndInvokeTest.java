@@ -16,6 +16,8 @@
 
 package com.fnproject.fn.runtime;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
 
@@ -193,6 +195,51 @@ public class EndToEndInvokeTest {
     }
 
 
+    @Test
+    public void shouldCoerceTheResultOfAsynchronousFunctions() throws Exception {
+        fn.givenEvent().withBody("Hello World").enqueue();
+
+        fn.thenRun(TestFn.class, "fnCompletesAsynchronously");
+
+        assertThat(fn.getOnlyOutputAsString()).isEqualTo("HELLO WORLD");
+        assertThat(fn.exitStatus()).isZero();
+    }
+
+    @Test
+    public void shouldReportAsynchronousFunctionFailuresAsErrors() throws Exception {
+        fn.givenEvent().enqueue();
+
+        fn.thenRun(TestFn.class, "fnCompletesExceptionally");
+
+        assertThat(fn.getStdErrAsString()).startsWith("An error occurred in function:").contains("ERRTAG");
+        assertThat(fn.getOutputs()).hasSize(1).allSatisfy(testOutput -> assertThat(testOutput.getStatus()).isEqualTo(OutputEvent.Status.FunctionError));
+        assertThat(fn.exitStatus()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldInterruptFunctionsAtTheirDeadlineWhenEnforced() throws Exception {
+        fn.setConfig("FDK_ENFORCE_DEADLINES", "true");
+        fn.givenEvent().withDeadline(Instant.now().plusMillis(500)).enqueue();
+
+        fn.thenRun(TestFn.class, "fnSleeps");
+
+        assertThat((Duration) TestFn.getInput()).isGreaterThan(Duration.ZERO).isLessThanOrEqualTo(Duration.ofMillis(500));
+        assertThat(TestFn.getOutput()).isEqualTo("interrupted");
+        assertThat(fn.getOutputs()).hasSize(1).allSatisfy(testOutput -> assertThat(testOutput.getStatus()).isEqualTo(OutputEvent.Status.FunctionTimeout));
+        assertThat(fn.getStdErrAsString()).contains("exceeded while the function was running");
+    }
+
+    @Test
+    public void shouldNotCallFunctionsPastTheirDeadlineWhenEnforced() throws Exception {
+        fn.setConfig("FDK_ENFORCE_DEADLINES", "true");
+        fn.givenEvent().withBody("Hello World").withDeadline(Instant.now().minusSeconds(1)).enqueue();
+
+        fn.thenRun(TestFn.class, "fnStringInOut");
+
+        assertThat(TestFn.getInput()).isNotEqualTo("Hello World");
+        assertThat(fn.getOutputs()).hasSize(1).allSatisfy(testOutput -> assertThat(testOutput.getStatus()).isEqualTo(OutputEvent.Status.FunctionTimeout));
+    }
+
     @Test
     public void shouldReadJsonObject() throws Exception {
         fn.givenEvent()
@@ -102,6 +102,16 @@ public class FnTestHarness implements TestRule {
             return this;
         }
 
+        /**
+         * Set the deadline of the event
+         *
+         * @param deadline the time by which the event should be processed
+         */
+        public EventBuilder withDeadline(Instant deadline) {
+            this.deadline = Objects.requireNonNull(deadline, "deadline");
+            return this;
+        }
+
         /**
          * Add a series of headers to the input
          * This may override duplicate headers
@@ -16,13 +16,28 @@
 
 package com.fnproject.fn.runtime;
 
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
 import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.api.exception.FunctionConfigurationException;
 import com.fnproject.fn.runtime.testfns.TestFnConstructors;
 import org.assertj.core.api.Assertions;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * End-to-end tests for function configuration methods
@@ -101,6 +116,108 @@ public class FunctionConstructionTest {
         assertThat(fn.getStdErrAsString()).contains("cannot be instantiated as its constructor takes an unrecognized argument of type int");
     }
 
+    @Test
+    public void shouldReuseAPooledInstanceForSequentialCalls() {
+        TestFnConstructors.PooledInstances.constructed.set(0);
+        TestFnConstructors.PooledInstances.configured.set(0);
+        TestFnConstructors.PooledInstances.together = new CyclicBarrier(1);
+
+        for (int i = 0; i < 3; i++) {
+            fn.givenEvent().enqueue();
+        }
+        fn.thenRun(TestFnConstructors.PooledInstances.class, "invoke");
+
+        assertThat(fn.exitStatus()).isEqualTo(0);
+        assertThat(fn.getOutputs()).hasSize(3);
+        assertThat(TestFnConstructors.PooledInstances.constructed.get()).isEqualTo(1);
+        assertThat(TestFnConstructors.PooledInstances.configured.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldGiveConcurrentCallsTheirOwnConfiguredPooledInstances() throws Exception {
+        TestFnConstructors.PooledInstances.constructed.set(0);
+        TestFnConstructors.PooledInstances.configured.set(0);
+        TestFnConstructors.PooledInstances.overlapping.set(0);
+        // both instances must be in use at once for either call to complete
+        TestFnConstructors.PooledInstances.together = new CyclicBarrier(2);
+
+        FunctionRuntimeContext runtimeContext = new FunctionRuntimeContext(new DefaultMethodWrapper(TestFnConstructors.PooledInstances.class, "invoke"), new HashMap<>());
+        new FunctionConfigurer().configure(runtimeContext);
+
+        ExecutorService calls = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<OutputEvent>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(calls.submit(() -> {
+                    InputEvent evt = new ReadOnceInputEvent(new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "call", Instant.now());
+                    return runtimeContext.tryInvoke(evt, runtimeContext.newInvocationContext(evt));
+                }));
+            }
+            for (Future<OutputEvent> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(OutputEvent.Status.Success);
+            }
+        } finally {
+            calls.shutdownNow();
+        }
+
+        assertThat(TestFnConstructors.PooledInstances.constructed.get()).isEqualTo(2);
+        assertThat(TestFnConstructors.PooledInstances.configured.get()).isEqualTo(2);
+        assertThat(TestFnConstructors.PooledInstances.overlapping.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldConfigureTheFunctionOnceForAllOfItsPooledInstances() throws Exception {
+        TestFnConstructors.PooledInstancesWithConfiguration.configured.set(0);
+        TestFnConstructors.PooledInstancesWithConfiguration.invoked.set(0);
+        // all three instances must be in use at once for any call to complete
+        TestFnConstructors.PooledInstancesWithConfiguration.together = new CyclicBarrier(3);
+
+        FunctionRuntimeContext runtimeContext = new FunctionRuntimeContext(new DefaultMethodWrapper(TestFnConstructors.PooledInstancesWithConfiguration.class, "invoke"), new HashMap<>());
+        new FunctionConfigurer().configure(runtimeContext);
+        int inputCoercions = runtimeContext.getInputCoercions(runtimeContext.getMethod(), 0).size();
+
+        ExecutorService calls = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<OutputEvent>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                results.add(calls.submit(() -> {
+                    InputEvent evt = new ReadOnceInputEvent(new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "call", Instant.now());
+                    return runtimeContext.tryInvoke(evt, runtimeContext.newInvocationContext(evt));
+                }));
+            }
+            for (Future<OutputEvent> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(OutputEvent.Status.Success);
+            }
+        } finally {
+            calls.shutdownNow();
+        }
+
+        assertThat(TestFnConstructors.PooledInstancesWithConfiguration.configured.get()).isEqualTo(3);
+        assertThat(TestFnConstructors.PooledInstancesWithConfiguration.invoked.get()).isEqualTo(3);
+        assertThat(runtimeContext.getInputCoercions(runtimeContext.getMethod(), 0))
+          .hasSize(inputCoercions)
+          .containsOnlyOnce(TestFnConstructors.PooledInstancesWithConfiguration.coercion);
+    }
+
+    @Test
+    public void shouldFailFunctionWithAnEmptyInstancePool() {
+        fn.givenEvent().enqueue();
+        fn.thenRun(TestFnConstructors.BadEmptyInstancePool.class, "invoke");
+        assertThat(fn.exitStatus()).isEqualTo(2);
+        assertThat(fn.getStdErrAsString()).contains("The instance pool size of").contains("must be at least one");
+    }
+
+    @Test
+    public void shouldRejectAnEmptyInstancePoolWhenTheFunctionIsConfigured() {
+        FunctionRuntimeContext runtimeContext = new FunctionRuntimeContext(new DefaultMethodWrapper(TestFnConstructors.BadEmptyInstancePool.class, "invoke"), new HashMap<>());
+
+        assertThatThrownBy(() -> new FunctionConfigurer().configure(runtimeContext))
+            .isInstanceOf(FunctionConfigurationException.class)
+            .hasMessageContaining("must be at least one");
+        // a context that was never configured fails its first call in the same way
+        assertThatThrownBy(() -> runtimeContext.checkoutInstance(null))
+            .isInstanceOf(FunctionConfigurationException.class);
+    }
 
     @Test
     public void shouldFailNonStaticInnerClassWithANiceMessage(){
@@ -17,11 +17,15 @@
 package com.fnproject.fn.runtime;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.security.MessageDigest;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -29,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -36,12 +41,14 @@ import java.util.concurrent.atomic.AtomicReference;
 import com.fnproject.fn.api.Headers;
 import com.fnproject.fn.api.InputEvent;
 import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.exception.FunctionInitializationException;
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Result;
 import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamContentProvider;
 import org.eclipse.jetty.client.util.StringContentProvider;
 import org.eclipse.jetty.unixsocket.client.HttpClientTransportOverUnixSockets;
 import org.junit.After;
@@ -50,6 +57,7 @@ import org.junit.Test;
 import org.junit.rules.Timeout;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * This uses the Jetty client largely as witness of "good HTTP behaviour"
@@ -177,6 +185,7 @@ public class HTTPStreamCodecTest {
         assertThat(evt.getCallID()).isEqualTo("callID");
         assertThat(evt.getDeadline().toEpochMilli()).isEqualTo(1033552800992L);
         assertThat(evt.getHeaders()).isEqualTo(Headers.emptyHeaders().addHeader("Fn-Call-Id", "callID").addHeader("Fn-Deadline", "2002-10-02T10:00:00.992Z").addHeader("Custom-header", "v1", "v2").addHeader("Content-Type", "text/plain").addHeader("Content-Length", "6"));
+        assertThat(evt.getContentLength()).isEqualTo(6);
 
     }
 
@@ -286,6 +295,249 @@ public class HTTPStreamCodecTest {
         assertThat(readDigest.digest()).isEqualTo(inDigest);
     }
 
+    @Test
+    public void shouldStreamBodyWriterOutputWithoutBuffering() throws Exception {
+        byte[] part = randomBytes(8192);
+        int parts = 512;
+
+        File socket = startCodec(defaultEnv, (in) -> OutputEvent.fromBodyWriter((out) -> {
+            for (int i = 0; i < parts; i++) {
+                out.write(part);
+            }
+        }, OutputEvent.Status.Success, "application/octet-stream"));
+
+        HttpClient client = createClient(socket);
+
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<Result> cdl = new CompletableFuture<>();
+            AtomicInteger read = new AtomicInteger();
+            defaultRequest(client)
+                .onResponseContent((response, byteBuffer) -> read.addAndGet(byteBuffer.remaining()))
+                .send(cdl::complete);
+            Result r = cdl.get();
+            assertThat(r.getResponse().getStatus()).isEqualTo(200);
+            assertThat(r.getResponse().getHeaders().get("Transfer-Encoding")).isEqualTo("chunked");
+            assertThat(read.get()).isEqualTo(part.length * parts);
+        }
+    }
+
+    @Test
+    public void shouldSetContentLengthForFixedLengthOutput() throws Exception {
+        File socket = startCodec(defaultEnv, (in) -> OutputEvent.fromBytes("hello".getBytes(), OutputEvent.Status.Success, "text/plain"));
+
+        HttpClient client = createClient(socket);
+        ContentResponse resp = defaultRequest(client).send();
+
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getHeaders().get("Content-Length")).isEqualTo("5");
+        assertThat(resp.getContent()).isEqualTo("hello".getBytes());
+    }
+
+    @Test
+    public void shouldSendFileAndBufferOutput() throws Exception {
+        byte[] data = randomBytes(1024 * 1024 + 17);
+        Path file = Files.createTempFile("output", ".bin");
+        cleanups.add(() -> file.toFile().delete());
+        Files.write(file, data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+
+        File socket = startCodec(defaultEnv, (in) -> {
+            try {
+                if (in.getHeaders().get("Fn-Call-Id").get().equals("file")) {
+                    return OutputEvent.fromFile(file, OutputEvent.Status.Success, "application/octet-stream");
+                }
+                return OutputEvent.fromByteBuffer(direct, OutputEvent.Status.Success, "application/octet-stream");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        HttpClient client = createClient(socket);
+
+        for (String callId : new String[]{"file", "buffer", "file", "buffer"}) {
+            ContentResponse resp = defaultRequest(client).header("Fn-Call-Id", null).header("Fn-Call-Id", callId).send();
+
+            assertThat(resp.getStatus()).isEqualTo(200);
+            assertThat(resp.getHeaders().get("Content-Length")).isEqualTo(String.valueOf(data.length));
+            assertThat(resp.getContent()).isEqualTo(data);
+        }
+        assertThat(direct.remaining()).isEqualTo(data.length);
+    }
+
+    @Test
+    public void shouldServeConnectionsConcurrentlyWhenEnabled() throws Exception {
+        int concurrency = 4;
+        Map<String, String> env = new HashMap<>(defaultEnv);
+        env.put("FDK_MAX_CONCURRENCY", String.valueOf(concurrency));
+
+        // every call waits until all of them are in flight at once
+        CountDownLatch allStarted = new CountDownLatch(concurrency);
+        File socket = startCodec(env, (in) -> {
+            allStarted.countDown();
+            try {
+                if (!allStarted.await(10, TimeUnit.SECONDS)) {
+                    return OutputEvent.emptyResult(OutputEvent.Status.FunctionError);
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return OutputEvent.fromBytes(Thread.currentThread().getName().getBytes(), OutputEvent.Status.Success, "text/plain");
+        });
+
+        List<CompletableFuture<Result>> results = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            // a client each, one client may queue a request behind a connection that is still being opened
+            HttpClient client = createClient(socket);
+            CompletableFuture<Result> result = new CompletableFuture<>();
+            defaultRequest(client).send(result::complete);
+            results.add(result);
+        }
+
+        for (CompletableFuture<Result> result : results) {
+            assertThat(result.get().getResponse().getStatus()).isEqualTo(200);
+        }
+    }
+
+    @Test
+    public void shouldRejectInvalidConcurrency() {
+        for (String value : new String[]{"0", "-1", "lots"}) {
+            Map<String, String> env = new HashMap<>(defaultEnv);
+            env.put("FDK_MAX_CONCURRENCY", value);
+            env.put("FN_LISTENER", "unix:" + generateSocketFile().getAbsolutePath());
+
+            assertThatThrownBy(() -> new HTTPStreamCodec(env, VERSION, RUNTIME_VERSION))
+                .isInstanceOf(FunctionInitializationException.class)
+                .hasMessageContaining("FDK_MAX_CONCURRENCY");
+        }
+    }
+
+    @Test
+    public void shouldRejectInvalidListenBacklog() {
+        for (String value : new String[]{"0", "-1", "lots"}) {
+            Map<String, String> env = new HashMap<>(defaultEnv);
+            env.put("FDK_LISTEN_BACKLOG", value);
+            env.put("FN_LISTENER", "unix:" + generateSocketFile().getAbsolutePath());
+
+            assertThatThrownBy(() -> new HTTPStreamCodec(env, VERSION, RUNTIME_VERSION))
+                .isInstanceOf(FunctionInitializationException.class)
+                .hasMessageContaining("FDK_LISTEN_BACKLOG");
+        }
+    }
+
+    @Test
+    public void shouldRejectInvalidBodySizes() {
+        for (String name : new String[]{"FDK_BODY_SPILL_THRESHOLD", "FDK_MAX_BODY_SIZE"}) {
+            for (String value : new String[]{"-1", "lots"}) {
+                Map<String, String> env = new HashMap<>(defaultEnv);
+                env.put(name, value);
+                env.put("FN_LISTENER", "unix:" + generateSocketFile().getAbsolutePath());
+
+                assertThatThrownBy(() -> new HTTPStreamCodec(env, VERSION, RUNTIME_VERSION))
+                    .isInstanceOf(FunctionInitializationException.class)
+                    .hasMessageContaining(name);
+            }
+        }
+    }
+
+    @Test
+    public void shouldAnswerCallsPastTheirDeadlineWithoutCallingTheFunctionWhenEnforced() throws Exception {
+        Map<String, String> env = new HashMap<>(defaultEnv);
+        env.put("FDK_ENFORCE_DEADLINES", "true");
+        AtomicInteger calls = new AtomicInteger();
+
+        File socket = startCodec(env, (in) -> {
+            calls.incrementAndGet();
+            return OutputEvent.emptyResult(OutputEvent.Status.Success);
+        });
+
+        HttpClient client = createClient(socket);
+        ContentResponse resp = defaultRequest(client).send();
+        assertThat(resp.getStatus()).isEqualTo(504);
+        assertThat(resp.getContentAsString()).contains("Deadline exceeded");
+
+        resp = defaultRequest(client).header("Fn-Deadline", null).header("Fn-Deadline", Instant.now().plusSeconds(60).toString()).send();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRejectInvalidDeadlineSettings() {
+        Map<String, String> env = new HashMap<>(defaultEnv);
+        env.put("FDK_ENFORCE_DEADLINES", "sometimes");
+        env.put("FN_LISTENER", "unix:" + generateSocketFile().getAbsolutePath());
+
+        assertThatThrownBy(() -> new HTTPStreamCodec(env, VERSION, RUNTIME_VERSION))
+            .isInstanceOf(FunctionInitializationException.class)
+            .hasMessageContaining("FDK_ENFORCE_DEADLINES");
+    }
+
+    @Test
+    public void shouldSpillLargeBodiesToReReadableFiles() throws Exception {
+        Map<String, String> env = new HashMap<>(defaultEnv);
+        env.put("FDK_BODY_SPILL_THRESHOLD", "1024");
+        AtomicReference<Boolean> reread = new AtomicReference<>();
+
+        File socket = startCodec(env, (in) -> {
+            byte[] first = in.consumeBody((is) -> {
+                try {
+                    return IOUtils.toByteArray(is);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            if (first.length > 1024) {
+                ByteBuffer buf = in.consumeBodyAsByteBuffer();
+                reread.set(buf.equals(ByteBuffer.wrap(first)));
+            }
+            return OutputEvent.fromBytes(first, OutputEvent.Status.Success, "application/octet-stream");
+        });
+
+        HttpClient client = createClient(socket);
+        byte[] large = randomBytes(100 * 1024);
+        byte[] small = randomBytes(512);
+
+        ContentResponse resp = defaultRequest(client).content(new BytesContentProvider(large)).send();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getContent()).isEqualTo(large);
+        assertThat(reread.get()).isTrue();
+
+        // chunked bodies are spilled once they pass the threshold
+        resp = defaultRequest(client).content(new InputStreamContentProvider(new ByteArrayInputStream(large))).send();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getContent()).isEqualTo(large);
+        assertThat(reread.get()).isTrue();
+
+        // and held in memory if they end before it
+        resp = defaultRequest(client).content(new InputStreamContentProvider(new ByteArrayInputStream(small))).send();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getContent()).isEqualTo(small);
+    }
+
+    @Test
+    public void shouldRejectBodiesOverTheLimit() throws Exception {
+        Map<String, String> env = new HashMap<>(defaultEnv);
+        env.put("FDK_MAX_BODY_SIZE", "4096");
+        env.put("FDK_BODY_SPILL_THRESHOLD", "1024");
+        AtomicInteger calls = new AtomicInteger();
+
+        File socket = startCodec(env, (in) -> {
+            calls.incrementAndGet();
+            return OutputEvent.emptyResult(OutputEvent.Status.Success);
+        });
+
+        HttpClient client = createClient(socket);
+        ContentResponse resp = defaultRequest(client).content(new BytesContentProvider(randomBytes(4097))).send();
+        assertThat(resp.getStatus()).isEqualTo(413);
+        assertThat(resp.getContentAsString()).contains("Request body is too large");
+
+        resp = defaultRequest(client).content(new InputStreamContentProvider(new ByteArrayInputStream(randomBytes(4097)))).send();
+        assertThat(resp.getStatus()).isEqualTo(413);
+
+        resp = defaultRequest(client).content(new BytesContentProvider(randomBytes(4096))).send();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
     private byte[] randomBytes(int sz) {
         Random sr = new Random();
         byte[] part = new byte[997];
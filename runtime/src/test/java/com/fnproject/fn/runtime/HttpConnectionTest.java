@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.OutputEvent;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the HTTP framing used by the codecs
+ */
+public class HttpConnectionTest {
+
+    private static HttpConnectionInput input(String data, int bufferSize) {
+        return new HttpConnectionInput(Channels.newChannel(new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1))), ByteBuffer.allocate(bufferSize));
+    }
+
+    @Test
+    public void shouldParseRequestHeads() throws Exception {
+        HttpConnectionInput in = input("\r\nPOST /call?x=y HTTP/1.1\r\nFn-Call-Id: id\r\nCustom: v1\r\ncustom:  v2 \r\nContent-Length: 5\r\n\r\nhello", 1024);
+        HttpRequestHead head = new HttpRequestHead();
+
+        assertThat(in.readHead(head)).isTrue();
+        assertThat(head.getMethod()).isEqualTo("POST");
+        assertThat(head.getPath()).isEqualTo("/call");
+        assertThat(head.isHttp11()).isTrue();
+        assertThat(head.isKeepAlive()).isTrue();
+        assertThat(head.getContentLength()).isEqualTo(5);
+        assertThat(head.getHeaderCount()).isEqualTo(4);
+        assertThat(head.getHeaderName(2)).isEqualTo("custom");
+        assertThat(head.getHeaderValue(2)).isEqualTo("v2");
+        assertThat(head.getFirstHeader("CUSTOM")).isEqualTo("v1");
+        assertThat(head.getFirstHeader("missing")).isNull();
+
+        assertThat(IOUtils.toString(in.bodyStream(head), StandardCharsets.ISO_8859_1)).isEqualTo("hello");
+        assertThat(in.readHead(head)).isFalse();
+    }
+
+    @Test
+    public void shouldReadPipelinedRequestsAcrossSmallBuffers() throws Exception {
+        String req = "POST /call HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc";
+        HttpConnectionInput in = input(req + "POST /call HTTP/1.0\r\nContent-Length: 3\r\n\r\ndef", 48);
+        HttpRequestHead head = new HttpRequestHead();
+
+        assertThat(in.readHead(head)).isTrue();
+        InputStream body = in.bodyStream(head);
+        assertThat(body.read()).isEqualTo('a');
+        // unread input is skipped on close
+        body.close();
+
+        assertThat(in.readHead(head)).isTrue();
+        assertThat(head.isKeepAlive()).isFalse();
+        assertThat(IOUtils.toString(in.bodyStream(head), StandardCharsets.ISO_8859_1)).isEqualTo("def");
+    }
+
+    @Test
+    public void shouldDecodeChunkedBodies() throws Exception {
+        HttpConnectionInput in = input("POST /call HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n1;ext=1\r\n \r\nA \r\n0123456789\r\n0\r\nTrailer: x\r\n\r\nGET /next HTTP/1.1\r\n\r\n", 1024);
+        HttpRequestHead head = new HttpRequestHead();
+
+        assertThat(in.readHead(head)).isTrue();
+        assertThat(head.isChunked()).isTrue();
+        assertThat(IOUtils.toString(in.bodyStream(head), StandardCharsets.ISO_8859_1)).isEqualTo("hello 0123456789");
+
+        assertThat(in.readHead(head)).isTrue();
+        assertThat(head.getPath()).isEqualTo("/next");
+        assertThat(IOUtils.toByteArray(in.bodyStream(head))).isEmpty();
+    }
+
+    @Test
+    public void shouldRejectMalformedRequests() {
+        for (String req : new String[]{
+            "POST\r\n\r\n",
+            "POST /call HTTP/2.0\r\n\r\n",
+            "POST /call HTTP/1.1\r\nNoColon\r\n\r\n",
+            "POST /call HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+            "POST /call HTTP/1.1\r\nContent-Length: x\r\n\r\n",
+            "POST /call HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n",
+        }) {
+            assertThatThrownBy(() -> input(req, 1024).readHead(new HttpRequestHead()))
+                .as(req)
+                .isInstanceOf(ProtocolException.class);
+        }
+    }
+
+    @Test
+    public void shouldRejectOversizedAndTruncatedHeads() {
+        assertThatThrownBy(() -> input("POST /call HTTP/1.1\r\nX-Long: " + new String(new char[100]).replace('\0', 'x') + "\r\n\r\n", 64).readHead(new HttpRequestHead()))
+            .isInstanceOf(ProtocolException.class)
+            .hasMessageContaining("larger than");
+        assertThatThrownBy(() -> input("POST /call HTTP/1.1\r\nX-Part", 64).readHead(new HttpRequestHead()))
+            .isInstanceOf(ProtocolException.class);
+        assertThatThrownBy(() -> {
+            HttpConnectionInput in = input("POST /call HTTP/1.1\r\nContent-Length: 10\r\n\r\nshort", 64);
+            HttpRequestHead head = new HttpRequestHead();
+            in.readHead(head);
+            IOUtils.toByteArray(in.bodyStream(head));
+        }).isInstanceOf(ProtocolException.class);
+    }
+
+    private static String response(int bufferSize, long contentLength, byte[] body) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpConnectionOutput out = new HttpConnectionOutput(Channels.newChannel(bos), ByteBuffer.allocate(bufferSize));
+        out.writeStatus(200, "OK");
+        out.writeHeader("X-Test", "v");
+        OutputStream os = out.endHead(contentLength, false);
+        os.write(body);
+        out.finish();
+        return new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void shouldWriteFixedLengthResponses() throws Exception {
+        assertThat(response(1024, 5, "hello".getBytes())).isEqualTo("HTTP/1.1 200 OK\r\nX-Test: v\r\nContent-Length: 5\r\n\r\nhello");
+    }
+
+    @Test
+    public void shouldWriteChunkedResponses() throws Exception {
+        assertThat(response(1024, -1, "hello".getBytes())).isEqualTo("HTTP/1.1 200 OK\r\nX-Test: v\r\nTransfer-Encoding: chunked\r\n\r\n00000005\r\nhello\r\n0\r\n\r\n");
+        assertThat(response(1024, -1, new byte[0])).isEqualTo("HTTP/1.1 200 OK\r\nX-Test: v\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+
+        // bodies larger than the buffer are split into several chunks which decode back to the original
+        byte[] body = new byte[1000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        String resp = response(128, -1, body);
+        HttpConnectionInput in = input(resp.replaceFirst("HTTP/1.1 200 OK", "POST /call HTTP/1.1"), 128);
+        HttpRequestHead head = new HttpRequestHead();
+        assertThat(in.readHead(head)).isTrue();
+        assertThat(IOUtils.toByteArray(in.bodyStream(head))).isEqualTo(body);
+    }
+
+    @Test
+    public void shouldFrameLargeWritesTheSameWayWhenGathering() throws Exception {
+        byte[] body = new byte[3 * 64 * 1024 + 1000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+
+        for (long contentLength : new long[]{body.length + 2, -1}) {
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            ByteArrayOutputStream gathered = new ByteArrayOutputStream();
+            GatheringChannel gatheringChannel = new GatheringChannel(gathered);
+            for (ByteArrayOutputStream bos : new ByteArrayOutputStream[]{plain, gathered}) {
+                WritableByteChannel channel = bos == plain ? Channels.newChannel(bos) : gatheringChannel;
+                HttpConnectionOutput out = new HttpConnectionOutput(channel, ByteBuffer.allocate(128));
+                out.writeStatus(200, "OK");
+                OutputStream os = out.endHead(contentLength, false);
+                os.write('<');
+                os.write(body);
+                os.write('>');
+                out.finish();
+            }
+
+            assertThat(gatheringChannel.largestHeapSlice).isLessThanOrEqualTo(64 * 1024);
+
+            HttpConnectionInput in = input(new String(gathered.toByteArray(), StandardCharsets.ISO_8859_1).replaceFirst("HTTP/1.1 200 OK", "POST /call HTTP/1.1"), 128);
+            HttpRequestHead head = new HttpRequestHead();
+            assertThat(in.readHead(head)).isTrue();
+            assertThat(IOUtils.toString(in.bodyStream(head), StandardCharsets.ISO_8859_1)).isEqualTo("<" + new String(body, StandardCharsets.ISO_8859_1) + ">");
+            if (contentLength >= 0) {
+                assertThat(gathered.toByteArray()).isEqualTo(plain.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void shouldFrameFileBodiesTheSameWayAsWrites() throws Exception {
+        byte[] body = new byte[1000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        Path file = Files.createTempFile("body", ".bin");
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            fc.write(ByteBuffer.wrap(body));
+            OutputEvent evt = OutputEvent.fromFileChannel(fc, 100, 800, OutputEvent.Status.Success, null, Headers.emptyHeaders());
+            String expected = "<" + new String(body, 100, 800, StandardCharsets.ISO_8859_1) + ">";
+
+            for (long contentLength : new long[]{802, -1}) {
+                ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+                TransferChannel transferChannel = new TransferChannel(transferred);
+                for (ByteArrayOutputStream bos : new ByteArrayOutputStream[]{plain, transferred}) {
+                    WritableByteChannel channel = bos == plain ? Channels.newChannel(bos) : transferChannel;
+                    HttpConnectionOutput out = new HttpConnectionOutput(channel, ByteBuffer.allocate(128));
+                    out.writeStatus(200, "OK");
+                    OutputStream os = out.endHead(contentLength, false);
+                    os.write('<');
+                    evt.writeToChannel(out.bodyChannel());
+                    os.write('>');
+                    out.finish();
+                }
+
+                assertThat(transferChannel.transfers).isGreaterThan(1);
+                for (ByteArrayOutputStream bos : new ByteArrayOutputStream[]{plain, transferred}) {
+                    HttpConnectionInput in = input(new String(bos.toByteArray(), StandardCharsets.ISO_8859_1).replaceFirst("HTTP/1.1 200 OK", "POST /call HTTP/1.1"), 128);
+                    HttpRequestHead head = new HttpRequestHead();
+                    assertThat(in.readHead(head)).isTrue();
+                    assertThat(IOUtils.toString(in.bodyStream(head), StandardCharsets.ISO_8859_1)).isEqualTo(expected);
+                }
+                if (contentLength >= 0) {
+                    assertThat(transferred.toByteArray()).isEqualTo(plain.toByteArray());
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void shouldScatterLargeReadsIntoTheCallersArray() throws Exception {
+        String second = "POST /call HTTP/1.1\r\nContent-Length: 2\r\n\r\nok";
+        byte[] body = new byte[10000];
+        new java.util.Random().nextBytes(body);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(("POST /call HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        data.write(body);
+        data.write(second.getBytes(StandardCharsets.US_ASCII));
+
+        ScatteringChannel channel = new ScatteringChannel(data.toByteArray());
+        HttpConnectionInput in = new HttpConnectionInput(channel, ByteBuffer.allocate(64));
+        HttpRequestHead head = new HttpRequestHead();
+        assertThat(in.readHead(head)).isTrue();
+        assertThat(IOUtils.toByteArray(in.bodyStream(head))).isEqualTo(body);
+        assertThat(channel.scatteringReads).isPositive();
+
+        assertThat(in.readHead(head)).isTrue();
+        assertThat(IOUtils.toString(in.bodyStream(head), StandardCharsets.ISO_8859_1)).isEqualTo("ok");
+    }
+
+    @Test
+    public void shouldOnlyResetUncommittedResponses() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpConnectionOutput out = new HttpConnectionOutput(Channels.newChannel(bos), ByteBuffer.allocate(64));
+        out.writeStatus(200, "OK");
+        out.endHead(-1, false).write("small".getBytes());
+        assertThat(out.isCommitted()).isFalse();
+        out.reset();
+
+        out.writeStatus(500, "Internal Server Error");
+        out.endHead(0, true);
+        out.finish();
+        assertThat(new String(bos.toByteArray(), StandardCharsets.ISO_8859_1)).isEqualTo("HTTP/1.1 500 Internal Server Error\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+
+        out.writeStatus(200, "OK");
+        out.endHead(-1, false).write(new byte[100]);
+        assertThat(out.isCommitted()).isTrue();
+        assertThatThrownBy(out::reset).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldRejectBodiesThatDontMatchTheirLength() throws Exception {
+        HttpConnectionOutput out = new HttpConnectionOutput(Channels.newChannel(new ByteArrayOutputStream()), ByteBuffer.allocate(64));
+        out.writeStatus(200, "OK");
+        OutputStream body = out.endHead(3, false);
+        assertThatThrownBy(() -> body.write("toolong".getBytes())).isInstanceOf(IOException.class);
+
+        out.reset();
+        out.writeStatus(200, "OK");
+        out.endHead(3, false).write("ab".getBytes());
+        assertThatThrownBy(out::finish).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void shouldNotAllocateWhileFramingRequests() throws Exception {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        byte[] request = ("POST /call HTTP/1.1\r\nHost: localhost\r\nFn-Call-Id: 01ABCDEFGHJKMNPQRSTVWXYZ00\r\n" +
+            "Fn-Deadline: 2002-10-02T10:00:00.992Z\r\nContent-Type: application/json\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        HttpConnectionInput in = new HttpConnectionInput(new RepeatingChannel(request), ByteBuffer.allocateDirect(4096));
+        HttpConnectionOutput out = new HttpConnectionOutput(new DiscardingChannel(), ByteBuffer.allocateDirect(4096));
+        HttpRequestHead head = new HttpRequestHead();
+        byte[] statusLine = "HTTP/1.1 200 Success\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] fixedHeaders = "Content-Type: application/json\r\nFn-Fdk-Version: 1.0.0\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] body = "{\"result\":\"ok\"}".getBytes(StandardCharsets.US_ASCII);
+
+        int iterations = 100000;
+        long allocated = 0;
+        // the first pass warms up the JIT, only the second is measured
+        for (int pass = 0; pass < 2; pass++) {
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < iterations; i++) {
+                in.readHead(head);
+                if (!head.isPath("/call") || head.indexOfHeader("Fn-Call-Id") < 0 || head.getContentLength() != 0) {
+                    throw new AssertionError("Unexpected request");
+                }
+                out.writeStatusLine(statusLine);
+                out.writeHeader("X-Custom", "value");
+                out.writeHeaderLines(fixedHeaders);
+                out.endHead(body.length, false).write(body);
+                out.finish();
+            }
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        }
+
+        // allows for incidental allocation by the measurement itself
+        assertThat(allocated).isLessThan(iterations / 10);
+    }
+
+    /**
+     * Yields the same bytes over and over, without allocating
+     */
+    private static final class RepeatingChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private int pos;
+
+        RepeatingChannel(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int count = 0;
+            while (dst.hasRemaining()) {
+                dst.put(data[pos]);
+                pos = (pos + 1) % data.length;
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class GatheringChannel implements GatheringByteChannel {
+        private final WritableByteChannel out;
+        int largestHeapSlice;
+
+        GatheringChannel(OutputStream out) {
+            this.out = Channels.newChannel(out);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (!srcs[i].isDirect()) {
+                    largestHeapSlice = Math.max(largestHeapSlice, srcs[i].remaining());
+                }
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return out.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class TransferChannel implements OutputEvent.FileTransferChannel {
+        private final WritableByteChannel out;
+        int transfers;
+
+        TransferChannel(OutputStream out) {
+            this.out = Channels.newChannel(out);
+        }
+
+        @Override
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            transfers++;
+            // send in small steps like a socket with a full send buffer
+            return file.transferTo(position, Math.min(count, 300), out);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return out.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class ScatteringChannel implements ScatteringByteChannel {
+        private final ByteBuffer data;
+        int scatteringReads;
+
+        ScatteringChannel(byte[] data) {
+            this.data = ByteBuffer.wrap(data);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            scatteringReads++;
+            long read = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int count = read(dsts[i]);
+                if (count < 0) {
+                    return read == 0 ? -1 : read;
+                }
+                read += count;
+            }
+            return read;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) {
+            return read(dsts, 0, dsts.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            // short reads, like a socket
+            int count = Math.min(Math.min(dst.remaining(), data.remaining()), 3000);
+            ByteBuffer slice = data.slice();
+            slice.limit(count);
+            dst.put(slice);
+            data.position(data.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -16,28 +16,60 @@
 
 package com.fnproject.fn.runtime;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputCoercion;
 import com.fnproject.fn.api.InputEvent;
 import com.fnproject.fn.api.MethodWrapper;
+import com.fnproject.fn.api.OutputCoercion;
+import com.fnproject.fn.api.OutputEvent;
 import com.fnproject.fn.runtime.coercion.jackson.JacksonCoercion;
 import com.fnproject.fn.runtime.testfns.Animal;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 public class JacksonCoercionTest {
 
+    public static class Pet extends Animal {
+        public Pet(String name, int age) {
+            super(name, age);
+        }
+
+        public String getOwner() {
+            return "Jane";
+        }
+    }
+
+    public Animal animalMethod() {
+        return null;
+    }
+
     public String testMethod(List<Animal> ss) {
         // This method isn't actually called, it only exists to have its parameter types examined by the JacksonCoercion
         return ss.get(0).getName();
     }
 
+    public int streamMethod(Stream<Animal> animals) {
+        return (int) animals.count();
+    }
+
+    public int iteratorMethod(Iterator<Animal> animals) {
+        return 0;
+    }
+
     @Test
     public void listOfCustomObjects() throws NoSuchMethodException {
         JacksonCoercion jc = new JacksonCoercion();
@@ -85,4 +117,142 @@ public class JacksonCoercionTest {
         }
         Assert.assertTrue(causedExpectedError);
     }
+
+    @Test
+    public void shouldParseStreamParametersAsTheyAreRead() throws Exception {
+        JacksonCoercion jc = new JacksonCoercion();
+
+        MethodWrapper method = new DefaultMethodWrapper(JacksonCoercionTest.class, "streamMethod");
+        FunctionRuntimeContext frc = new FunctionRuntimeContext(method, new HashMap<>());
+        FunctionInvocationContext invocationContext = new FunctionInvocationContext(frc, new ReadOnceInputEvent(new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "callID", Instant.now()));
+
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 10000; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"name\":\"Spot\",\"age\":").append(i).append("}");
+        }
+        byte[] bytes = json.append("]").toString().getBytes();
+        AtomicBoolean closed = new AtomicBoolean();
+        ByteArrayInputStream body = new ByteArrayInputStream(bytes) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        InputEvent inputEvent = new ReadOnceInputEvent(body, Headers.emptyHeaders(), "call", Instant.now());
+
+        Stream<Animal> animals = (Stream<Animal>) jc.tryCoerceParam(invocationContext, 0, inputEvent, method).get();
+        Iterator<Animal> it = animals.iterator();
+
+        Assert.assertEquals(0, it.next().getAge());
+        Assert.assertTrue(body.available() > 0);
+        Assert.assertFalse(closed.get());
+
+        int count = 1;
+        while (it.hasNext()) {
+            Assert.assertEquals(count++, it.next().getAge());
+        }
+        Assert.assertEquals(10000, count);
+        Assert.assertTrue(closed.get());
+    }
+
+    @Test
+    public void shouldParseIteratorParametersFromBufferedBodies() throws Exception {
+        JacksonCoercion jc = new JacksonCoercion();
+
+        MethodWrapper method = new DefaultMethodWrapper(JacksonCoercionTest.class, "iteratorMethod");
+        FunctionRuntimeContext frc = new FunctionRuntimeContext(method, new HashMap<>());
+        FunctionInvocationContext invocationContext = new FunctionInvocationContext(frc, new ReadOnceInputEvent(new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "callID", Instant.now()));
+
+        byte[] body = "[{\"name\":\"Spot\",\"age\":6},{\"name\":\"Jason\",\"age\":16}]".getBytes();
+        try (InputEvent inputEvent = SpilledInputEvent.spill(Paths.get(System.getProperty("java.io.tmpdir")), body, body.length, new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "call", Instant.now())) {
+            Iterator<Animal> animals = (Iterator<Animal>) jc.tryCoerceParam(invocationContext, 0, inputEvent, method).get();
+
+            Assert.assertEquals("Spot", animals.next().getName());
+            Assert.assertEquals("Jason", animals.next().getName());
+            Assert.assertFalse(animals.hasNext());
+        }
+    }
+
+    @Test
+    public void shouldWriteResultsAsTheirRuntimeClass() throws Exception {
+        JacksonCoercion jc = new JacksonCoercion();
+
+        MethodWrapper method = new DefaultMethodWrapper(JacksonCoercionTest.class, "animalMethod");
+        FunctionRuntimeContext frc = new FunctionRuntimeContext(method, new HashMap<>());
+        FunctionInvocationContext invocationContext = new FunctionInvocationContext(frc, new ReadOnceInputEvent(new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "callID", Instant.now()));
+
+        for (int i = 0; i < 2; i++) {
+            OutputEvent out = jc.wrapFunctionResult(invocationContext, method, new Pet("Spot", 6)).get();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            out.writeToOutput(bos);
+
+            Assert.assertEquals("{\"name\":\"Spot\",\"age\":6,\"owner\":\"Jane\"}", bos.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void shouldUseTheConfiguredObjectMapper() throws NoSuchMethodException {
+        JacksonCoercion jc = new JacksonCoercion();
+
+        MethodWrapper method = new DefaultMethodWrapper(JacksonCoercionTest.class, "testMethod");
+        FunctionRuntimeContext frc = new FunctionRuntimeContext(method, new HashMap<>());
+        frc.setAttribute("com.fnproject.fn.runtime.coercion.jackson.JacksonCoercion.om", new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false));
+        FunctionInvocationContext invocationContext = new FunctionInvocationContext(frc, new ReadOnceInputEvent(new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "callID", Instant.now()));
+
+        ByteArrayInputStream body = new ByteArrayInputStream("[{\"name\":\"Spot\",\"age\":6,\"colour\":\"brown\"}]".getBytes());
+        InputEvent inputEvent = new ReadOnceInputEvent(body, Headers.emptyHeaders(), "call", Instant.now());
+
+        List<Animal> animals = (List<Animal>) jc.tryCoerceParam(invocationContext, 0, inputEvent, method).get();
+
+        Assert.assertEquals("Spot", animals.get(0).getName());
+    }
+
+    @Test
+    public void shouldBindReadersAndWritersToTheFunctionMethod() throws Exception {
+        MethodWrapper method = new DefaultMethodWrapper(JacksonCoercionTest.class, "testMethod");
+        FunctionRuntimeContext frc = new FunctionRuntimeContext(method, new HashMap<>());
+        frc.setAttribute("com.fnproject.fn.runtime.coercion.jackson.JacksonCoercion.om", new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false));
+        FunctionInvocationContext invocationContext = new FunctionInvocationContext(frc, new ReadOnceInputEvent(new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "callID", Instant.now()));
+
+        List<InputCoercion> params = frc.getInputCoercionPlan(0);
+        Assert.assertFalse(params.contains(JacksonCoercion.instance()));
+        InputCoercion<?> bound = params.get(params.size() - 1);
+        InputEvent inputEvent = new ReadOnceInputEvent(new ByteArrayInputStream("[{\"name\":\"Spot\",\"age\":6,\"colour\":\"brown\"}]".getBytes()), Headers.emptyHeaders(), "call", Instant.now());
+        List<Animal> animals = (List<Animal>) bound.tryCoerceParam(invocationContext, 0, inputEvent, method).get();
+        Assert.assertEquals("Spot", animals.get(0).getName());
+
+        MethodWrapper animalMethod = new DefaultMethodWrapper(JacksonCoercionTest.class, "animalMethod");
+        FunctionRuntimeContext animalContext = new FunctionRuntimeContext(animalMethod, new HashMap<>());
+        List<OutputCoercion> results = animalContext.getOutputCoercionPlan();
+        Assert.assertFalse(results.contains(JacksonCoercion.instance()));
+        OutputEvent out = results.get(results.size() - 1).wrapFunctionResult(invocationContext, animalMethod, new Pet("Spot", 6)).get();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.writeToOutput(bos);
+        Assert.assertEquals("{\"name\":\"Spot\",\"age\":6,\"owner\":\"Jane\"}", bos.toString("UTF-8"));
+    }
+
+    @Test
+    public void shouldStreamResultsWithoutClosingTheResponse() throws Exception {
+        JacksonCoercion jc = new JacksonCoercion();
+
+        MethodWrapper method = new DefaultMethodWrapper(JacksonCoercionTest.class, "animalMethod");
+        FunctionRuntimeContext frc = new FunctionRuntimeContext(method, new HashMap<>());
+        FunctionInvocationContext invocationContext = new FunctionInvocationContext(frc, new ReadOnceInputEvent(new ByteArrayInputStream(new byte[0]), Headers.emptyHeaders(), "callID", Instant.now()));
+
+        OutputEvent out = jc.wrapFunctionResult(invocationContext, method, new Animal("Spot", 6)).get();
+        Assert.assertEquals(-1, out.getContentLength());
+        Assert.assertEquals("application/json", out.getContentType().get());
+
+        AtomicBoolean closed = new AtomicBoolean();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        out.writeToOutput(bos);
+
+        Assert.assertEquals("{\"name\":\"Spot\",\"age\":6}", bos.toString("UTF-8"));
+        Assert.assertFalse(closed.get());
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MethodCallerTest {
+
+    public static class Target {
+        private int calls;
+
+        public static String concat(String a, int b) {
+            return a + b;
+        }
+
+        public long count(long by) {
+            return calls += by;
+        }
+
+        public void touch() {
+            calls++;
+        }
+
+        public String fail() throws Exception {
+            throw new Exception("failed");
+        }
+
+        public String join(String a, String b) {
+            return a + b;
+        }
+    }
+
+    static class HiddenTarget {
+        public static String greet(String name) {
+            return "hello " + name;
+        }
+    }
+
+    @Test
+    public void shouldCallPublicMethodsThroughSpunAccessors() throws Throwable {
+        assertThat(MethodCaller.forMethod(Target.class.getMethod("concat", String.class, int.class))).isNotInstanceOf(MethodCaller.HandleCaller.class);
+        assertThat(MethodCaller.forMethod(Target.class.getMethod("count", long.class))).isNotInstanceOf(MethodCaller.HandleCaller.class);
+        assertThat(MethodCaller.forMethod(Target.class.getMethod("touch"))).isNotInstanceOf(MethodCaller.HandleCaller.class);
+    }
+
+    @Test
+    public void shouldCallOtherMethodsThroughTheirHandles() throws Throwable {
+        MethodCaller hidden = MethodCaller.forMethod(HiddenTarget.class.getMethod("greet", String.class));
+        MethodCaller join = MethodCaller.forMethod(Target.class.getMethod("join", String.class, String.class));
+
+        assertThat(hidden).isInstanceOf(MethodCaller.HandleCaller.class);
+        assertThat(hidden.call(null, new Object[]{"fn"})).isEqualTo("hello fn");
+        assertThat(join).isInstanceOf(MethodCaller.HandleCaller.class);
+        assertThat(join.call(new Target(), new Object[]{"a", "b"})).isEqualTo("ab");
+    }
+
+    @Test
+    public void shouldCallStaticMethodsIgnoringTheReceiver() throws Throwable {
+        MethodCaller caller = MethodCaller.forMethod(Target.class.getMethod("concat", String.class, int.class));
+
+        assertThat(caller.call(null, new Object[]{"a", 1})).isEqualTo("a1");
+        assertThat(caller.call(new Target(), new Object[]{"b", 2})).isEqualTo("b2");
+    }
+
+    @Test
+    public void shouldBoxPrimitivesAndReturnNullFromVoidMethods() throws Throwable {
+        Target target = new Target();
+
+        assertThat(MethodCaller.forMethod(Target.class.getMethod("count", long.class)).call(target, new Object[]{2L})).isEqualTo(2L);
+        assertThat(MethodCaller.forMethod(Target.class.getMethod("touch")).call(target, new Object[0])).isNull();
+        assertThat(target.calls).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldThrowExceptionsFromTheMethodUnwrapped() throws Throwable {
+        MethodCaller caller = MethodCaller.forMethod(Target.class.getMethod("fail"));
+
+        assertThatThrownBy(() -> caller.call(new Target(), new Object[0]))
+            .isExactlyInstanceOf(Exception.class)
+            .hasMessage("failed");
+    }
+}
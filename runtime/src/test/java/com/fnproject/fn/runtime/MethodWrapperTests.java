@@ -59,6 +59,18 @@ public class MethodWrapperTests {
     }
 
 
+    @Test
+    public void testMethodTypesAreResolvedOnce() throws NoSuchMethodException {
+        MethodWrapper method = new DefaultMethodWrapper(srcClass, srcClass.getMethod(this.methodName, this.methodParameterTypes));
+
+        if (parameterIndex >= 0) {
+            assertThat(method.getParamType(parameterIndex)).isSameAs(method.getParamType(parameterIndex));
+        } else {
+            assertThat(method.getReturnType()).isSameAs(method.getReturnType());
+        }
+    }
+
+
     @Parameterized.Parameters
     public static Collection<Object[]> data() throws Exception {
         return Arrays.asList(new Object[][] {
@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.exception.FunctionInitializationException;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.DeferredContentProvider;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.unixsocket.client.HttpClientTransportOverUnixSockets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Exercises the NIO codec with the Jetty client as a witness of "good HTTP behaviour", these tests only run on JVMs with
+ * unix domain socket channels
+ */
+public class NIOHTTPStreamCodecTest {
+    private static final String VERSION = "FDK_TEST_VERSION";
+    private static final String RUNTIME_VERSION = "FDK_TEST_RUNTIME";
+    @Rule
+    public final Timeout to = Timeout.builder().withTimeout(60, TimeUnit.SECONDS).withLookingForStuckThread(true).build();
+
+    private static final Map<String, String> defaultEnv;
+    private final List<Runnable> cleanups = new ArrayList<>();
+
+    static {
+        System.setProperty("org.eclipse.jetty.util.log.class", "org.eclipse.jetty.util.log.StdErrLog");
+        System.setProperty("org.eclipse.jetty.LEVEL", "WARN");
+
+        Map<String, String> env = new HashMap<>();
+        env.put("FN_APP_NAME", "myapp");
+        env.put("FN_PATH", "mypath");
+
+        defaultEnv = Collections.unmodifiableMap(env);
+    }
+
+    private static File generateSocketFile() {
+        File f;
+        try {
+            f = File.createTempFile("socket", ".sock");
+            f.delete();
+            f.deleteOnExit();
+        } catch (IOException e) {
+            throw new RuntimeException("Error creating socket file", e);
+        }
+
+        return f;
+    }
+
+    @Before
+    public void requireUnixDomainChannels() {
+        if (Boolean.getBoolean("fdk.test.requireNio")) {
+            // set by the nio-transport-tests build profile, which should not pass by skipping every test
+            Assert.assertTrue("unix domain socket channels are not supported by this JVM: " + System.getProperty("java.version"), NIOHTTPStreamCodec.isSupported());
+        }
+        Assume.assumeTrue("unix domain socket channels are not supported by this JVM", NIOHTTPStreamCodec.isSupported());
+    }
+
+    @After
+    public void cleanup() {
+        cleanups.forEach(Runnable::run);
+    }
+
+    private HttpClient createClient(File unixSocket) throws Exception {
+        HttpClient client = new HttpClient(new HttpClientTransportOverUnixSockets(unixSocket.getAbsolutePath()), null);
+        client.start();
+        cleanups.add(0, () -> {
+            try {
+                client.stop();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        return client;
+    }
+
+    private Request defaultRequest(HttpClient httpClient) {
+        return httpClient.newRequest("http://localhost/call")
+            .method("POST")
+            .header("Fn-Call-Id", "callID")
+            .header("Fn-Deadline", "2002-10-02T10:00:00.992Z")
+            .header("Custom-header", "v1")
+            .header("Custom-header", "v2")
+            .header("Content-Type", "text/plain")
+            .content(new StringContentProvider("hello "));
+    }
+
+    File startCodec(Map<String, String> env, EventCodec.Handler h) {
+        Map<String, String> newEnv = new HashMap<>(env);
+        File socket = generateSocketFile();
+        newEnv.put("FN_LISTENER", "unix:" + socket.getAbsolutePath());
+
+        NIOHTTPStreamCodec codec = new NIOHTTPStreamCodec(newEnv, VERSION, RUNTIME_VERSION);
+
+        Thread t = new Thread(() -> codec.runCodec(h));
+        t.start();
+        cleanups.add(() -> {
+            try {
+                codec.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        return socket;
+    }
+
+    private static byte[] readBody(InputEvent in) {
+        return in.consumeBody((is) -> {
+            try {
+                return IOUtils.toByteArray(is);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private byte[] randomBytes(int sz) {
+        byte[] data = new byte[sz];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void shouldAcceptDataOnHttp() throws Exception {
+        CompletableFuture<InputEvent> lastEvent = new CompletableFuture<>();
+
+        File socketFile = startCodec(defaultEnv, (in) -> {
+            lastEvent.complete(in);
+            return OutputEvent.fromBytes("hello".getBytes(), OutputEvent.Status.Success, "text/plain", Headers.emptyHeaders().addHeader("x-test", "bar"));
+        });
+
+        HttpClient client = createClient(socketFile);
+        ContentResponse resp = defaultRequest(client).send();
+
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getContent()).isEqualTo("hello".getBytes());
+        assertThat(resp.getHeaders().get("x-test")).isEqualTo("bar");
+        assertThat(resp.getHeaders().get("Content-Type")).isEqualTo("text/plain");
+        assertThat(resp.getHeaders().get("fn-fdk-version")).isEqualTo(VERSION);
+        assertThat(resp.getHeaders().get("fn-fdk-runtime")).isEqualTo(RUNTIME_VERSION);
+
+        InputEvent evt = lastEvent.get(1, TimeUnit.MILLISECONDS);
+        assertThat(evt.getCallID()).isEqualTo("callID");
+        assertThat(evt.getDeadline().toEpochMilli()).isEqualTo(1033552800992L);
+        assertThat(evt.getHeaders()).isEqualTo(Headers.emptyHeaders().addHeader("Fn-Call-Id", "callID").addHeader("Fn-Deadline", "2002-10-02T10:00:00.992Z").addHeader("Custom-header", "v1", "v2").addHeader("Content-Type", "text/plain").addHeader("Content-Length", "6"));
+    }
+
+    @Test
+    public void shouldRejectFnMissingHeaders() throws Exception {
+        File socket = startCodec(defaultEnv, (in) -> OutputEvent.emptyResult(OutputEvent.Status.Success));
+        HttpClient client = createClient(socket);
+
+        ContentResponse resp = client.newRequest("http://localhost/call")
+            .method("POST")
+            .header("Fn-Call-Id", "callID")
+            .send();
+
+        assertThat(resp.getStatus()).isEqualTo(500);
+        assertThat(resp.getContentAsString()).contains("Fn-Deadline");
+    }
+
+    @Test
+    public void shouldRejectUnknownPaths() throws Exception {
+        File socket = startCodec(defaultEnv, (in) -> OutputEvent.emptyResult(OutputEvent.Status.Success));
+        HttpClient client = createClient(socket);
+
+        ContentResponse resp = defaultRequest(client).path("/other").send();
+
+        assertThat(resp.getStatus()).isEqualTo(404);
+    }
+
+    @Test
+    public void shouldHandleMultipleRequests() throws Exception {
+        File socket = startCodec(defaultEnv, (in) -> OutputEvent.fromBytes(readBody(in), OutputEvent.Status.Success, "application/octet-stream"));
+
+        HttpClient httpClient = createClient(socket);
+
+        for (int i = 0; i < 200; i++) {
+            byte[] body = randomBytes(i * 1997);
+            ContentResponse resp = defaultRequest(httpClient)
+                .content(new BytesContentProvider(body)).send();
+
+            assertThat(resp.getStatus()).isEqualTo(200);
+            assertThat(resp.getContent()).isEqualTo(body);
+        }
+    }
+
+    @Test
+    public void shouldSkipUnreadInput() throws Exception {
+        File socket = startCodec(defaultEnv, (in) -> OutputEvent.fromBytes("ignored".getBytes(), OutputEvent.Status.Success, "text/plain"));
+
+        HttpClient httpClient = createClient(socket);
+        for (int i = 0; i < 5; i++) {
+            ContentResponse resp = defaultRequest(httpClient)
+                .content(new BytesContentProvider(randomBytes(100000))).send();
+            assertThat(resp.getContentAsString()).isEqualTo("ignored");
+        }
+    }
+
+    @Test
+    public void shouldHandleLargeChunkedBodies() throws Exception {
+        byte[] part = randomBytes(1024 * 1024);
+        int parts = 10;
+        MessageDigest inDigest = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < parts; i++) {
+            inDigest.update(part);
+        }
+
+        File socket = startCodec(defaultEnv, (in) -> {
+            byte[] content = readBody(in);
+            // unknown length, the response is chunked
+            return OutputEvent.fromBodyWriter((out) -> out.write(content), OutputEvent.Status.Success, "application/octet-stream");
+        });
+
+        HttpClient client = createClient(socket);
+
+        DeferredContentProvider content = new DeferredContentProvider();
+        CompletableFuture<Result> cdl = new CompletableFuture<>();
+        MessageDigest readDigest = MessageDigest.getInstance("SHA-256");
+        defaultRequest(client)
+            .content(content)
+            .onResponseContent((response, byteBuffer) -> readDigest.update(byteBuffer))
+            .send(cdl::complete);
+        for (int i = 0; i < parts; i++) {
+            content.offer(java.nio.ByteBuffer.wrap(part));
+        }
+        content.close();
+
+        Result r = cdl.get();
+        assertThat(r.getResponse().getStatus()).isEqualTo(200);
+        assertThat(r.getResponse().getHeaders().get("Transfer-Encoding")).isEqualTo("chunked");
+        assertThat(readDigest.digest()).isEqualTo(inDigest.digest());
+    }
+
+    @Test
+    public void shouldReturnErrorWhenOutputFailsBeforeBeingSent() throws Exception {
+        File socket = startCodec(defaultEnv, (in) -> OutputEvent.fromBodyWriter((out) -> {
+            out.write("partial".getBytes());
+            throw new IOException("failed");
+        }, OutputEvent.Status.Success, "text/plain"));
+
+        HttpClient client = createClient(socket);
+        ContentResponse resp = defaultRequest(client).send();
+
+        assertThat(resp.getStatus()).isEqualTo(500);
+        assertThat(resp.getContentAsString()).contains("failed");
+    }
+
+    @Test
+    public void shouldServeConnectionsConcurrentlyWhenEnabled() throws Exception {
+        int concurrency = 4;
+        Map<String, String> env = new HashMap<>(defaultEnv);
+        env.put("FDK_MAX_CONCURRENCY", String.valueOf(concurrency));
+
+        // every call waits until all of them are in flight at once
+        CountDownLatch allStarted = new CountDownLatch(concurrency);
+        AtomicInteger calls = new AtomicInteger();
+        File socket = startCodec(env, (in) -> {
+            calls.incrementAndGet();
+            allStarted.countDown();
+            try {
+                if (!allStarted.await(10, TimeUnit.SECONDS)) {
+                    return OutputEvent.emptyResult(OutputEvent.Status.FunctionError);
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return OutputEvent.emptyResult(OutputEvent.Status.Success);
+        });
+
+        List<CompletableFuture<Result>> results = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            // a client each, one client may queue a request behind a connection that is still being opened
+            HttpClient client = createClient(socket);
+            CompletableFuture<Result> result = new CompletableFuture<>();
+            defaultRequest(client).send(result::complete);
+            results.add(result);
+        }
+
+        for (CompletableFuture<Result> result : results) {
+            assertThat(result.get().getResponse().getStatus()).isEqualTo(200);
+        }
+        assertThat(calls.get()).isEqualTo(concurrency);
+    }
+
+    @Test
+    public void shouldReleaseWorkersWhileFunctionsCompleteAsynchronously() throws Exception {
+        int calls = 4;
+
+        // a single worker accepts every call before any of them completes
+        List<CompletableFuture<OutputEvent>> pending = Collections.synchronizedList(new ArrayList<>());
+        File socket = startCodec(defaultEnv, new EventCodec.Handler() {
+            @Override
+            public OutputEvent handle(InputEvent event) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletionStage<OutputEvent> handleAsync(InputEvent event) {
+                CompletableFuture<OutputEvent> result = new CompletableFuture<>();
+                pending.add(result);
+                if (pending.size() == calls) {
+                    new Thread(() -> pending.forEach(f -> f.complete(OutputEvent.fromBytes("done".getBytes(), OutputEvent.Status.Success, "text/plain")))).start();
+                }
+                return result;
+            }
+        });
+
+        List<CompletableFuture<Result>> results = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            HttpClient client = createClient(socket);
+            CompletableFuture<Result> result = new CompletableFuture<>();
+            defaultRequest(client).send(result::complete);
+            results.add(result);
+        }
+
+        for (CompletableFuture<Result> result : results) {
+            assertThat(result.get().getResponse().getStatus()).isEqualTo(200);
+        }
+        assertThat(pending).hasSize(calls);
+    }
+
+    @Test
+    public void shouldServeConnectionsOnVirtualThreadsWhenEnabled() throws Exception {
+        Method isVirtual;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            Assume.assumeTrue("virtual threads are not supported by this JVM", false);
+            return;
+        }
+
+        int concurrency = 16;
+        Map<String, String> env = new HashMap<>(defaultEnv);
+        env.put("FDK_MAX_CONCURRENCY", String.valueOf(concurrency));
+        env.put("FDK_VIRTUAL_THREADS", "true");
+
+        // every call blocks until all of them are in flight at once
+        CountDownLatch allStarted = new CountDownLatch(concurrency);
+        AtomicInteger virtualCalls = new AtomicInteger();
+        File socket = startCodec(env, (in) -> {
+            try {
+                if ((Boolean) isVirtual.invoke(Thread.currentThread())) {
+                    virtualCalls.incrementAndGet();
+                }
+                allStarted.countDown();
+                if (!allStarted.await(10, TimeUnit.SECONDS)) {
+                    return OutputEvent.emptyResult(OutputEvent.Status.FunctionError);
+                }
+            } catch (ReflectiveOperationException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return OutputEvent.fromBytes(readBody(in), OutputEvent.Status.Success, "text/plain");
+        });
+
+        List<CompletableFuture<Result>> results = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            HttpClient client = createClient(socket);
+            CompletableFuture<Result> result = new CompletableFuture<>();
+            defaultRequest(client).send(new BufferingResponseListener() {
+                @Override
+                public void onComplete(Result r) {
+                    assertThat(getContentAsString()).isEqualTo("hello ");
+                    result.complete(r);
+                }
+            });
+            results.add(result);
+        }
+
+        for (CompletableFuture<Result> result : results) {
+            assertThat(result.get().getResponse().getStatus()).isEqualTo(200);
+        }
+        assertThat(virtualCalls.get()).isEqualTo(concurrency);
+    }
+
+    @Test
+    public void shouldRejectInvalidVirtualThreadSettings() {
+        assertThat(NIOHTTPStreamCodec.parseVirtualThreads(null)).isFalse();
+        assertThat(NIOHTTPStreamCodec.parseVirtualThreads(" TRUE ")).isTrue();
+        assertThatThrownBy(() -> NIOHTTPStreamCodec.parseVirtualThreads("yes"))
+            .isInstanceOf(FunctionInitializationException.class)
+            .hasMessageContaining("FDK_VIRTUAL_THREADS");
+    }
+}
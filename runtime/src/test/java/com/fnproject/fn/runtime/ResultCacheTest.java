@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fnproject.fn.api.FnFeature;
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.InvocationContext;
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.exception.FunctionInitializationException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ResultCacheTest {
+
+    @Rule
+    public final FnTestHarness fn = new FnTestHarness();
+
+    private final AtomicLong clock = new AtomicLong();
+    private final List<String> calls = new ArrayList<>();
+
+    @FnFeature(ResultCacheFeature.class)
+    public static class CachedFn {
+        static final AtomicInteger calls = new AtomicInteger();
+
+        public String lookup(String input, InvocationContext ctx) {
+            calls.incrementAndGet();
+            ctx.addResponseHeader("X-Looked-Up", input);
+            return input.toUpperCase();
+        }
+    }
+
+    @Test
+    public void shouldServeRepeatedCallsFromTheCacheWhenEnabled() throws Exception {
+        CachedFn.calls.set(0);
+        for (String body : Arrays.asList("paris", "paris", "london", "paris")) {
+            fn.givenEvent().withBody(body).enqueue();
+        }
+        fn.givenEvent().withHeader("Content-Type", "text/plain").withBody("paris").enqueue();
+
+        fn.thenRun(CachedFn.class, "lookup");
+
+        assertThat(CachedFn.calls.get()).isEqualTo(3);
+        assertThat(fn.getOutputs()).extracting(o -> new String(o.getBody(), StandardCharsets.UTF_8))
+          .containsExactly("PARIS", "PARIS", "LONDON", "PARIS", "PARIS");
+        FnTestHarness.TestOutput cached = fn.getOutputs().get(3);
+        assertThat(cached.getHeaders().get("X-Looked-Up")).contains("paris");
+        assertThat(cached.getContentType()).contains("text/plain");
+    }
+
+    @Test
+    public void shouldNotCallTheFunctionForACachedRequest() throws Exception {
+        ResultCache cache = newCache(10, 10_000, 1024);
+
+        assertThat(call(cache, "a")).isEqualTo("result 1 for a");
+        assertThat(call(cache, "a")).isEqualTo("result 1 for a");
+
+        assertThat(calls).containsExactly("a");
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCaptureResponsesWrittenToChannels() throws Exception {
+        ResultCache cache = newCache(10, 10_000, 1024);
+        InvocationFilter.Chain function = (ctx, evt) -> {
+            calls.add("a");
+            return CompletableFuture.completedFuture(OutputEvent.fromByteBuffer(ByteBuffer.wrap("buffered".getBytes()), OutputEvent.Status.Success, "text/plain"));
+        };
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            cache.filter(null, event("a", Headers.emptyHeaders()), function).toCompletableFuture().join().writeToChannel(Channels.newChannel(bos));
+            assertThat(bos.toString("UTF-8")).isEqualTo("buffered");
+        }
+        assertThat(calls).containsExactly("a");
+    }
+
+    @Test
+    public void shouldSendFileResponsesThroughTheCodecsTransferWhileCapturingThem() throws Exception {
+        Path small = Files.createTempFile("result-cache", ".txt");
+        Path large = Files.createTempFile("result-cache", ".txt");
+        try {
+            Files.write(small, "from a file".getBytes(StandardCharsets.UTF_8));
+            byte[] largeBody = new byte[4096];
+            Arrays.fill(largeBody, (byte) 'x');
+            Files.write(large, largeBody);
+            ResultCache cache = newCache(10, 10_000, 1024);
+
+            for (int i = 0; i < 2; i++) {
+                TransferChannel smallOut = new TransferChannel();
+                cache.filter(null, event("small", Headers.emptyHeaders()), fileFunction("small", small)).toCompletableFuture().join().writeToChannel(smallOut);
+                assertThat(smallOut.bos.toString("UTF-8")).isEqualTo("from a file");
+                // the cached response is written from memory
+                assertThat(smallOut.transfers).isEqualTo(i == 0 ? 1 : 0);
+
+                TransferChannel largeOut = new TransferChannel();
+                cache.filter(null, event("large", Headers.emptyHeaders()), fileFunction("large", large)).toCompletableFuture().join().writeToChannel(largeOut);
+                assertThat(largeOut.bos.toByteArray()).isEqualTo(largeBody);
+                assertThat(largeOut.transfers).isEqualTo(1);
+            }
+            assertThat(calls).containsExactly("small", "large", "large");
+        } finally {
+            Files.delete(small);
+            Files.delete(large);
+        }
+    }
+
+    private InvocationFilter.Chain fileFunction(String name, Path file) {
+        return (ctx, evt) -> {
+            calls.add(name);
+            try {
+                return CompletableFuture.completedFuture(OutputEvent.fromFile(file, OutputEvent.Status.Success, "text/plain"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    /**
+     * A codec channel that sends files itself, counting the transfers it makes
+     */
+    private static final class TransferChannel implements OutputEvent.FileTransferChannel {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        private final WritableByteChannel channel = Channels.newChannel(bos);
+        int transfers;
+
+        @Override
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            transfers++;
+            return file.transferTo(position, count, channel);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void shouldKeyOnTheSelectedHeaders() throws Exception {
+        ResultCache cache = newCache(10, 10_000, 1024);
+
+        call(cache, "a", Headers.emptyHeaders().setHeader("accept", "text/plain"));
+        call(cache, "a", Headers.emptyHeaders().setHeader("Accept", "text/plain").setHeader("Fn-Call-Id", "other"));
+        call(cache, "a", Headers.emptyHeaders().setHeader("Accept", "application/json"));
+        call(cache, "a", Headers.emptyHeaders());
+
+        assertThat(calls).containsExactly("a", "a", "a");
+    }
+
+    @Test
+    public void shouldKeepTheResponsesOfDifferentCallersApart() throws Exception {
+        ResultCache cache = newCache(10, 10_000, 1024);
+
+        String alice = call(cache, "a", Headers.emptyHeaders().setHeader("Fn-Http-H-Authorization", "Bearer alice"));
+        assertThat(call(cache, "a", Headers.emptyHeaders().setHeader("Fn-Http-H-Authorization", "Bearer bob"))).isNotEqualTo(alice);
+        call(cache, "a", Headers.emptyHeaders().setHeader("Fn-Http-H-Cookie", "session=alice"));
+        call(cache, "a", Headers.emptyHeaders());
+        assertThat(call(cache, "a", Headers.emptyHeaders().setHeader("Fn-Http-H-Authorization", "Bearer alice"))).isEqualTo(alice);
+
+        assertThat(calls).containsExactly("a", "a", "a", "a");
+    }
+
+    @Test
+    public void shouldExpireEntriesAfterTheirTimeToLive() throws Exception {
+        ResultCache cache = newCache(10, 10_000, 1024);
+
+        call(cache, "a");
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(60) - 1);
+        call(cache, "a");
+        clock.addAndGet(1);
+        assertThat(call(cache, "a")).isEqualTo("result 2 for a");
+
+        assertThat(calls).containsExactly("a", "a");
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedEntryWhenFull() throws Exception {
+        ResultCache cache = newCache(2, 10_000, 1024);
+
+        call(cache, "a");
+        call(cache, "b");
+        call(cache, "a");
+        call(cache, "c");
+        call(cache, "a");
+        call(cache, "b");
+
+        assertThat(calls).containsExactly("a", "b", "c", "b");
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldKeepWithinItsByteBudget() throws Exception {
+        ResultCache cache = newCache(100, 1000, 1024);
+
+        for (int i = 0; i < 20; i++) {
+            call(cache, "key " + i);
+        }
+
+        assertThat(cache.getBytes()).isLessThanOrEqualTo(1000);
+        assertThat(cache.size()).isBetween(1, 4);
+        call(cache, "key 19");
+        assertThat(calls).hasSize(20);
+    }
+
+    @Test
+    public void shouldPassLargeRequestsThroughWithoutCachingThem() throws Exception {
+        ResultCache cache = newCache(10, 100_000, 16);
+        String large = String.join("", Collections.nCopies(100, "large "));
+
+        assertThat(call(cache, large)).isEqualTo("result 1 for " + large);
+        assertThat(call(cache, large)).isEqualTo("result 2 for " + large);
+        assertThat(cache.getMisses()).isZero();
+    }
+
+    @Test
+    public void shouldNotCacheLargeResponses() throws Exception {
+        ResultCache cache = newCache(10, 100_000, 12);
+
+        call(cache, "a");
+        call(cache, "a");
+
+        assertThat(calls).containsExactly("a", "a");
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void shouldNotCacheFailures() throws Exception {
+        ResultCache cache = newCache(10, 10_000, 1024);
+        InvocationFilter.Chain failing = (ctx, evt) -> {
+            calls.add("failed");
+            return CompletableFuture.completedFuture(OutputEvent.fromBytes("no".getBytes(), OutputEvent.Status.FunctionError, "text/plain"));
+        };
+
+        write(cache.filter(null, event("a", Headers.emptyHeaders()), failing).toCompletableFuture().join());
+        write(cache.filter(null, event("a", Headers.emptyHeaders()), failing).toCompletableFuture().join());
+
+        assertThat(calls).hasSize(2);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void shouldRejectInvalidSettings() {
+        Map<String, String> config = new HashMap<>();
+        config.put(ResultCache.HEAP_PERCENT, "101");
+        assertThatThrownBy(() -> ResultCache.fromConfig(config)).isInstanceOf(FunctionInitializationException.class);
+
+        config.put(ResultCache.HEAP_PERCENT, "5");
+        config.put(ResultCache.TTL_SECONDS, "soon");
+        assertThatThrownBy(() -> ResultCache.fromConfig(config)).isInstanceOf(FunctionInitializationException.class);
+
+        config.put(ResultCache.TTL_SECONDS, "0");
+        assertThatThrownBy(() -> ResultCache.fromConfig(config)).isInstanceOf(FunctionInitializationException.class);
+
+        config.put(ResultCache.TTL_SECONDS, "10");
+        config.put(ResultCache.KEY_HEADERS, "Accept, X-Tenant");
+        assertThat(ResultCache.fromConfig(config)).isNotNull();
+    }
+
+    private ResultCache newCache(int maxEntries, long maxBytes, int maxItemSize) {
+        return new ResultCache(RequestKey.DEFAULT_KEY_HEADERS, maxEntries, TimeUnit.SECONDS.toNanos(60), maxBytes, maxItemSize, clock::get);
+    }
+
+    private String call(ResultCache cache, String body) throws IOException {
+        return call(cache, body, Headers.emptyHeaders());
+    }
+
+    /**
+     * Calls a function that numbers its results through the cache and writes the response
+     */
+    private String call(ResultCache cache, String body, Headers headers) throws IOException {
+        InvocationFilter.Chain function = (ctx, evt) -> {
+            String input = evt.consumeBody(is -> {
+                try {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    byte[] buf = new byte[64];
+                    int read;
+                    while ((read = is.read(buf)) >= 0) {
+                        bos.write(buf, 0, read);
+                    }
+                    return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            calls.add(input);
+            return CompletableFuture.completedFuture(OutputEvent.fromBytes(("result " + calls.size() + " for " + input).getBytes(StandardCharsets.UTF_8), OutputEvent.Status.Success, "text/plain"));
+        };
+        return write(cache.filter(null, event(body, headers), function).toCompletableFuture().join());
+    }
+
+    private static InputEvent event(String body, Headers headers) {
+        return new ReadOnceInputEvent(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), headers, "callID", Instant.now().plusSeconds(60));
+    }
+
+    private static String write(OutputEvent output) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        output.writeToOutput(bos);
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fnproject.fn.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.exception.FunctionInitializationException;
+import com.fnproject.fn.runtime.exception.InternalFunctionInvocationException;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SingleFlightTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final List<CompletableFuture<OutputEvent>> running = new ArrayList<>();
+    private final InvocationFilter.Chain function = (ctx, evt) -> {
+        CompletableFuture<OutputEvent> result = new CompletableFuture<>();
+        running.add(result);
+        return result;
+    };
+
+    @Test
+    public void shouldAnswerIdenticalConcurrentCallsWithOneExecution() throws Exception {
+        SingleFlight singleFlight = newSingleFlight(1024);
+
+        CompletionStage<OutputEvent> first = singleFlight.filter(null, event("a"), function);
+        CompletionStage<OutputEvent> second = singleFlight.filter(null, event("a"), function);
+        CompletionStage<OutputEvent> third = singleFlight.filter(null, event("a"), function);
+        assertThat(running).hasSize(1);
+
+        running.get(0).complete(OutputEvent.fromBytes("result".getBytes(), OutputEvent.Status.Success, "text/plain"));
+
+        for (CompletionStage<OutputEvent> call : Arrays.asList(first, second, third)) {
+            OutputEvent output = call.toCompletableFuture().join();
+            assertThat(body(output)).isEqualTo("result");
+            assertThat(output.getContentType()).contains("text/plain");
+        }
+        assertThat(singleFlight.getExecutions()).isEqualTo(1);
+        assertThat(singleFlight.getCoalesced()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRunDifferentCallsSeparately() {
+        SingleFlight singleFlight = newSingleFlight(1024);
+
+        singleFlight.filter(null, event("a"), function);
+        singleFlight.filter(null, event("b"), function);
+        singleFlight.filter(null, event("a", Headers.emptyHeaders().setHeader("Accept", "application/json")), function);
+
+        assertThat(running).hasSize(3);
+        assertThat(singleFlight.getCoalesced()).isZero();
+    }
+
+    @Test
+    public void shouldRunCallsThatArriveAfterTheFirstHasCompleted() {
+        SingleFlight singleFlight = newSingleFlight(1024);
+        OutputEvent output = OutputEvent.fromBytes("result".getBytes(), OutputEvent.Status.Success, "text/plain");
+
+        CompletionStage<OutputEvent> first = singleFlight.filter(null, event("a"), function);
+        running.get(0).complete(output);
+        singleFlight.filter(null, event("a"), function);
+
+        assertThat(first.toCompletableFuture().join()).isSameAs(output);
+        assertThat(running).hasSize(2);
+    }
+
+    @Test
+    public void shouldFailWaitingCallsAsTheFirstFails() {
+        SingleFlight singleFlight = newSingleFlight(1024);
+
+        CompletionStage<OutputEvent> first = singleFlight.filter(null, event("a"), function);
+        CompletionStage<OutputEvent> second = singleFlight.filter(null, event("a"), function);
+        running.get(0).completeExceptionally(new InternalFunctionInvocationException("failed", new RuntimeException()));
+
+        assertThatThrownBy(() -> first.toCompletableFuture().join()).isInstanceOf(CompletionException.class).hasCauseInstanceOf(InternalFunctionInvocationException.class);
+        assertThatThrownBy(() -> second.toCompletableFuture().join()).isInstanceOf(CompletionException.class).hasCauseInstanceOf(InternalFunctionInvocationException.class);
+    }
+
+    @Test
+    public void shouldNotCoalesceCallsWithLongBodies() {
+        SingleFlight singleFlight = newSingleFlight(4);
+
+        singleFlight.filter(null, event("longer"), function);
+        singleFlight.filter(null, event("longer"), function);
+
+        assertThat(running).hasSize(2);
+        assertThat(singleFlight.getUnkeyed()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldPeriodicallyLogHowOftenCallsAreCoalesced() {
+        SingleFlight singleFlight = newSingleFlight(1024);
+
+        singleFlight.filter(null, event("a"), function);
+        singleFlight.filter(null, event("a"), function);
+        assertThat(log.size()).isZero();
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        singleFlight.filter(null, event("b"), function);
+        singleFlight.filter(null, event("b"), function);
+
+        assertThat(new String(log.toByteArray(), StandardCharsets.UTF_8))
+          .isEqualTo("FDK single-flight: 1 calls ran the function, 1 calls were coalesced with a call that was already running, 0 calls could not be keyed\n");
+    }
+
+    @Test
+    public void shouldRejectInvalidSettings() {
+        Map<String, String> config = new HashMap<>();
+        config.put(SingleFlight.MAX_BODY_SIZE, "-1");
+        assertThatThrownBy(() -> SingleFlight.fromConfig(config, false)).isInstanceOf(FunctionInitializationException.class);
+
+        config.put(SingleFlight.MAX_BODY_SIZE, "4096");
+        config.put(SingleFlight.REPORT_SECONDS, "often");
+        assertThatThrownBy(() -> SingleFlight.fromConfig(config, false)).isInstanceOf(FunctionInitializationException.class);
+
+        config.put(SingleFlight.REPORT_SECONDS, "10");
+        assertThat(SingleFlight.fromConfig(config, false)).isNotNull();
+    }
+
+    private SingleFlight newSingleFlight(int maxBodySize) {
+        return new SingleFlight(new RequestKey.Reader(RequestKey.DEFAULT_KEY_HEADERS, maxBodySize), false, TimeUnit.SECONDS.toNanos(60), clock::get, new PrintStream(log, true));
+    }
+
+    private static InputEvent event(String body) {
+        return event(body, Headers.emptyHeaders());
+    }
+
+    private static InputEvent event(String body, Headers headers) {
+        return new ReadOnceInputEvent(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), headers, "callID", Instant.now().plusSeconds(60));
+    }
+
+    private static String body(OutputEvent output) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        output.writeToOutput(bos);
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fnproject.fn.runtime.coercion.jackson;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.InvocationContext;
+import com.fnproject.fn.api.MethodWrapper;
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.runtime.DefaultMethodWrapper;
+import com.fnproject.fn.runtime.FunctionRuntimeContext;
+import com.fnproject.fn.runtime.ReadOnceInputEvent;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BinaryFormatCoercionTest {
+
+    public static class Animal {
+        public String name;
+        public int age;
+
+        public Animal() {
+        }
+
+        Animal(String name, int age) {
+            this.name = name;
+            this.age = age;
+        }
+    }
+
+    public Animal echo(Animal animal) {
+        return animal;
+    }
+
+    // a stand-in binary format, written as JSON
+    private final BinaryFormatCoercion coercion = new BinaryFormatCoercion(Collections.singletonList(
+        new BinaryFormatCoercion.Format(JsonFactory::new, "application/x-test", "application/x-test-alias")));
+
+    private final MethodWrapper method = new DefaultMethodWrapper(BinaryFormatCoercionTest.class, "echo");
+
+    private InputEvent event(String body, Headers headers) {
+        return event(body.getBytes(), headers);
+    }
+
+    private InputEvent event(byte[] body, Headers headers) {
+        return new ReadOnceInputEvent(new ByteArrayInputStream(body), headers, "callID", Instant.now(), body.length);
+    }
+
+    private InvocationContext context(Headers headers) {
+        return new FunctionRuntimeContext(method, new HashMap<>()).newInvocationContext(event("", headers));
+    }
+
+    @Test
+    public void shouldPreferTheHighestQualityFormat() {
+        assertThat(coercion.preferredFormat("application/x-test")).isNotNull();
+        assertThat(coercion.preferredFormat("application/json;q=0.5, application/x-test-alias")).isNotNull();
+        assertThat(coercion.preferredFormat("application/json, application/x-test")).isNull();
+        assertThat(coercion.preferredFormat("*/*")).isNull();
+        assertThat(coercion.preferredFormat("application/x-test;q=0")).isNull();
+    }
+
+    @Test
+    public void shouldReadParametersInTheRequestFormat() {
+        Headers headers = Headers.emptyHeaders().setHeader("Content-Type", "Application/X-Test-Alias; charset=utf-8");
+        Optional<Object> animal = coercion.tryCoerceParam(context(headers), 0, event("{\"name\":\"Spot\",\"age\":6}", headers), method);
+
+        assertThat(animal).isPresent();
+        assertThat(((Animal) animal.get()).name).isEqualTo("Spot");
+
+        Headers json = Headers.emptyHeaders().setHeader("Content-Type", "application/json");
+        assertThat(coercion.tryCoerceParam(context(json), 0, event("{}", json), method)).isEmpty();
+    }
+
+    @Test
+    public void shouldWriteResultsInTheAcceptedFormat() throws Exception {
+        Animal animal = new Animal();
+        animal.name = "Spot";
+        animal.age = 6;
+
+        Optional<OutputEvent> out = coercion.wrapFunctionResult(context(Headers.emptyHeaders().setHeader("Accept", "application/x-test-alias")), method, animal);
+        assertThat(out).isPresent();
+        assertThat(out.get().getContentType()).contains("application/x-test");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.get().writeToOutput(bos);
+        assertThat(bos.toString("UTF-8")).isEqualTo("{\"name\":\"Spot\",\"age\":6}");
+
+        // without an Accept header the response is in the request's format
+        assertThat(coercion.wrapFunctionResult(context(Headers.emptyHeaders().setHeader("Content-Type", "application/x-test")), method, animal)).isPresent();
+        assertThat(coercion.wrapFunctionResult(context(Headers.emptyHeaders().setHeader("Accept", "application/json")), method, animal)).isEmpty();
+        assertThat(coercion.wrapFunctionResult(context(Headers.emptyHeaders()), method, animal)).isEmpty();
+    }
+
+    @Test
+    public void shouldRoundTripCbor() throws Exception {
+        BinaryFormatCoercion cbor = BinaryFormatCoercion.instance();
+        CBORMapper mapper = new CBORMapper();
+        Headers headers = Headers.emptyHeaders()
+            .setHeader("Content-Type", "application/cbor")
+            .setHeader("Accept", "application/json;q=0.5, application/cbor");
+
+        Animal animal = (Animal) cbor.tryCoerceParam(context(headers), 0, event(mapper.writeValueAsBytes(new Animal("Spot", 6)), headers), method).get();
+        assertThat(animal.name).isEqualTo("Spot");
+        assertThat(animal.age).isEqualTo(6);
+
+        OutputEvent out = cbor.wrapFunctionResult(context(headers), method, animal).get();
+        assertThat(out.getContentType()).contains("application/cbor");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.writeToOutput(bos);
+        Animal written = mapper.readValue(bos.toByteArray(), Animal.class);
+        assertThat(written.name).isEqualTo("Spot");
+        assertThat(written.age).isEqualTo(6);
+
+        // JSON is left to the JSON coercion when it is preferred
+        Headers preferJson = Headers.emptyHeaders().setHeader("Accept", "application/cbor;q=0.5, application/json");
+        assertThat(cbor.wrapFunctionResult(context(preferJson), method, animal)).isEmpty();
+    }
+
+    @Test
+    public void shouldReadCborWithTheFunctionsMapperConfiguration() throws Exception {
+        Map<String, Object> colouredAnimal = new HashMap<>();
+        colouredAnimal.put("name", "Spot");
+        colouredAnimal.put("colour", "brown");
+        byte[] body = new CBORMapper().writeValueAsBytes(colouredAnimal);
+        Headers headers = Headers.emptyHeaders().setHeader("Content-Type", "application/cbor");
+
+        FunctionRuntimeContext frc = new FunctionRuntimeContext(method, new HashMap<>());
+        // a JsonMapper can't be copied with ObjectMapper.copyWith
+        frc.setAttribute(JacksonCoercion.class.getCanonicalName() + ".om", JsonMapper.builder().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false).build());
+
+        Animal animal = (Animal) BinaryFormatCoercion.instance().tryCoerceParam(frc.newInvocationContext(event(body, headers)), 0, event(body, headers), method).get();
+        assertThat(animal.name).isEqualTo("Spot");
+    }
+}
@@ -18,10 +18,19 @@ package com.fnproject.fn.runtime.ntv;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
@@ -151,6 +160,28 @@ public class UnixSocketNativeTest {
         }
 
 
+        // accept is woken by its pipe without accepting
+        {
+            File serverSocket = createSocketFile();
+            int ss = UnixSocketNative.socket();
+            int[] pipe = new int[2];
+            UnixSocketNative.pipe(pipe);
+            try {
+                UnixSocketNative.bind(ss, serverSocket.getAbsolutePath());
+                UnixSocketNative.listen(ss, 1);
+                assertThat(UnixSocketNative.acceptOrWake(ss, pipe[0], 100)).isEqualTo(0);
+                UnixSocketNative.wakeup(pipe[1]);
+                long startTime = System.currentTimeMillis();
+                assertThat(UnixSocketNative.acceptOrWake(ss, pipe[0], 0)).isEqualTo(0);
+                assertThat(System.currentTimeMillis() - startTime).isLessThan(1000);
+            } finally {
+                UnixSocketNative.close(ss);
+                UnixSocketNative.close(pipe[0]);
+                UnixSocketNative.close(pipe[1]);
+            }
+        }
+
+
         // valid connect
         {
             CountDownLatch ready = new CountDownLatch(1);
@@ -341,6 +372,265 @@ public class UnixSocketNativeTest {
         }
     }
 
+    @Test
+    public void shouldHonorDirectBufferReadsAndWrites() throws Exception {
+        CountDownLatch ready = new CountDownLatch(1);
+        File serverSocket = createSocketFile();
+        CompletableFuture<byte[]> result = runServerLoop(() -> {
+            int ss = UnixSocketNative.socket();
+            try {
+                UnixSocketNative.bind(ss, serverSocket.getAbsolutePath());
+                UnixSocketNative.listen(ss, 1);
+                ready.countDown();
+                int cs = UnixSocketNative.accept(ss, 0);
+                ByteBuffer buf = ByteBuffer.allocateDirect(100);
+                int read = UnixSocketNative.recvBuffer(cs, buf, 10, 90);
+                byte[] got = new byte[read];
+                buf.position(10);
+                buf.get(got);
+                UnixSocketNative.close(cs);
+                return got;
+            } finally {
+                UnixSocketNative.close(ss);
+            }
+        });
+
+        ready.await();
+        int cs = UnixSocketNative.socket();
+        UnixSocketNative.connect(cs, serverSocket.getAbsolutePath());
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(10);
+        buf.put("xxhello".getBytes());
+
+        // must NPE  on buff
+        try {
+            UnixSocketNative.sendBuffer(cs, null, 0, 10);
+            fail("should have NPEd");
+        } catch (NullPointerException ignored) {
+        }
+
+        // heap buffers are rejected
+        try {
+            UnixSocketNative.sendBuffer(cs, ByteBuffer.allocate(10), 0, 10);
+            fail("should have IAEd");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        // invalid length beyond buffer
+        try {
+            UnixSocketNative.sendBuffer(cs, buf, 5, 10);
+            fail("should have IAEd");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        // invalid offset
+        try {
+            UnixSocketNative.recvBuffer(cs, buf, -1, 1);
+            fail("should have IAEd");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        assertThat(UnixSocketNative.sendBuffer(cs, buf, 2, 5)).isEqualTo(5);
+        assertThat(result.get()).isEqualTo("hello".getBytes());
+
+        // EOF once the peer has closed
+        assertThat(UnixSocketNative.recvBuffer(cs, buf, 0, 10)).isEqualTo(-1);
+        UnixSocketNative.close(cs);
+    }
+
+    @Test
+    public void shouldScatterAndGatherBuffers() throws Exception {
+        CountDownLatch ready = new CountDownLatch(1);
+        File serverSocket = createSocketFile();
+        CompletableFuture<byte[]> result = runServerLoop(() -> {
+            int ss = UnixSocketNative.socket();
+            try {
+                UnixSocketNative.bind(ss, serverSocket.getAbsolutePath());
+                UnixSocketNative.listen(ss, 1);
+                ready.countDown();
+                int cs = UnixSocketNative.accept(ss, 0);
+                // the first region is filled before the second
+                byte[] head = new byte[4];
+                ByteBuffer tail = ByteBuffer.allocateDirect(20);
+                int read = 0;
+                while (read < 11) {
+                    long count = read < head.length ?
+                        UnixSocketNative.recvBuffers(cs, new Object[]{head, tail}, new int[]{read, 0}, new int[]{head.length - read, 20}, 2) :
+                        UnixSocketNative.recvBuffer(cs, tail, read - head.length, 20 - (read - head.length));
+                    read += (int) count;
+                }
+                byte[] got = new byte[read];
+                System.arraycopy(head, 0, got, 0, head.length);
+                tail.get(got, head.length, read - head.length);
+                UnixSocketNative.close(cs);
+                return got;
+            } finally {
+                UnixSocketNative.close(ss);
+            }
+        });
+
+        ready.await();
+        int cs = UnixSocketNative.socket();
+        UnixSocketNative.connect(cs, serverSocket.getAbsolutePath());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(10);
+        direct.put("xxhello".getBytes());
+        byte[] heap = " world".getBytes();
+
+        // must NPE on null buffers
+        try {
+            UnixSocketNative.sendBuffers(cs, new Object[]{null}, new int[]{0}, new int[]{1}, 1);
+            fail("should have NPEd");
+        } catch (NullPointerException ignored) {
+        }
+
+        // heap buffers and other objects are rejected, byte arrays must be passed directly
+        try {
+            UnixSocketNative.sendBuffers(cs, new Object[]{ByteBuffer.allocate(10)}, new int[]{0}, new int[]{1}, 1);
+            fail("should have IAEd");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        // invalid length beyond an array
+        try {
+            UnixSocketNative.sendBuffers(cs, new Object[]{direct, heap}, new int[]{0, 1}, new int[]{1, 6}, 2);
+            fail("should have IAEd");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        // too many buffers
+        try {
+            int n = UnixSocketNative.MAX_IO_VECTORS + 1;
+            UnixSocketNative.sendBuffers(cs, new Object[n], new int[n], new int[n], n);
+            fail("should have IAEd");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        assertThat(UnixSocketNative.sendBuffers(cs, new Object[]{direct, heap}, new int[]{2, 0}, new int[]{5, heap.length}, 2)).isEqualTo(11);
+        assertThat(result.get()).isEqualTo("hello world".getBytes());
+
+        // EOF once the peer has closed
+        assertThat(UnixSocketNative.recvBuffers(cs, new Object[]{heap, direct}, new int[]{0, 0}, new int[]{1, 1}, 2)).isEqualTo(-1);
+        UnixSocketNative.close(cs);
+    }
+
+    @Test
+    public void shouldTransferLargeArraysInBoundedSlices() throws Exception {
+        byte[] body = new byte[1024 * 1024 + 3];
+        new Random(1).nextBytes(body);
+        CountDownLatch ready = new CountDownLatch(1);
+        File serverSocket = createSocketFile();
+        CompletableFuture<byte[]> result = runServerLoop(() -> {
+            int ss = UnixSocketNative.socket();
+            try {
+                UnixSocketNative.bind(ss, serverSocket.getAbsolutePath());
+                UnixSocketNative.listen(ss, 1);
+                ready.countDown();
+                int cs = UnixSocketNative.accept(ss, 0);
+                byte[] got = new byte[body.length + 2];
+                ByteBuffer trailer = ByteBuffer.allocateDirect(2);
+                int read = 0;
+                while (read < got.length) {
+                    long count = read < body.length ?
+                        UnixSocketNative.recvBuffers(cs, new Object[]{got, trailer}, new int[]{read, 0}, new int[]{body.length - read, 2}, 2) :
+                        UnixSocketNative.recvBuffer(cs, trailer, read - body.length, 2 - (read - body.length));
+                    assertThat(count).isBetween(1L, 65536L);
+                    read += (int) count;
+                }
+                trailer.get(got, body.length, 2);
+                UnixSocketNative.close(cs);
+                return got;
+            } finally {
+                UnixSocketNative.close(ss);
+            }
+        });
+
+        ready.await();
+        int cs = UnixSocketNative.socket();
+        UnixSocketNative.connect(cs, serverSocket.getAbsolutePath());
+        ByteBuffer trailer = ByteBuffer.allocateDirect(2);
+        trailer.put(new byte[]{'\r', '\n'});
+        int sent = 0;
+        while (sent < body.length + 2) {
+            long count = sent < body.length ?
+                UnixSocketNative.sendBuffers(cs, new Object[]{body, trailer}, new int[]{sent, 0}, new int[]{body.length - sent, 2}, 2) :
+                UnixSocketNative.sendBuffer(cs, trailer, sent - body.length, 2 - (sent - body.length));
+            // no more than a bounded slice of an array is copied, and nothing after a slice that was cut short is sent
+            assertThat(count).isBetween(1L, 65536L);
+            sent += (int) count;
+        }
+
+        byte[] expected = Arrays.copyOf(body, body.length + 2);
+        expected[body.length] = '\r';
+        expected[body.length + 1] = '\n';
+        assertThat(result.get()).isEqualTo(expected);
+        UnixSocketNative.close(cs);
+    }
+
+    @Test
+    public void shouldSendFiles() throws Exception {
+        CountDownLatch ready = new CountDownLatch(1);
+        File serverSocket = createSocketFile();
+        CompletableFuture<byte[]> result = runServerLoop(() -> {
+            int ss = UnixSocketNative.socket();
+            try {
+                UnixSocketNative.bind(ss, serverSocket.getAbsolutePath());
+                UnixSocketNative.listen(ss, 1);
+                ready.countDown();
+                int cs = UnixSocketNative.accept(ss, 0);
+                byte[] buf = new byte[20];
+                int read = 0;
+                while (read < 5) {
+                    read += UnixSocketNative.recv(cs, buf, read, buf.length - read);
+                }
+                UnixSocketNative.close(cs);
+                byte[] got = new byte[read];
+                System.arraycopy(buf, 0, got, 0, read);
+                return got;
+            } finally {
+                UnixSocketNative.close(ss);
+            }
+        });
+
+        ready.await();
+        int cs = UnixSocketNative.socket();
+        UnixSocketNative.connect(cs, serverSocket.getAbsolutePath());
+
+        Path file = Files.createTempFile("sendfile", ".txt");
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            fc.write(ByteBuffer.wrap("xxhello".getBytes()));
+            int fileFd = UnixSocketNative.fileDescriptor(fc);
+            assertThat(fileFd).isGreaterThanOrEqualTo(0);
+
+            try {
+                UnixSocketNative.sendFile(cs, fileFd, -1, 1);
+                fail("should have IAEd");
+            } catch (IllegalArgumentException ignored) {
+            }
+
+            assertThat(UnixSocketNative.sendFile(cs, fileFd, 2, 100)).isEqualTo(5);
+            // the channel's position is not moved, and there is nothing more to send at the end of the file
+            assertThat(fc.position()).isEqualTo(7);
+            assertThat(UnixSocketNative.sendFile(cs, fileFd, 7, 100)).isEqualTo(0);
+            assertThat(result.get()).isEqualTo("hello".getBytes());
+        } finally {
+            UnixSocketNative.close(cs);
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void shouldOnlyReadDescriptorsOfJdkFileChannels() throws Exception {
+        // a channel that isn't the JDK's, even with a descriptor field of the same name, has no usable descriptor
+        ForeignFileChannel channel = Mockito.mock(ForeignFileChannel.class, Mockito.withSettings().useConstructor());
+        assertThat(channel.fd).isNotNull();
+        assertThat(UnixSocketNative.fileDescriptor(channel)).isEqualTo(-1);
+    }
+
+    abstract static class ForeignFileChannel extends FileChannel {
+        final FileDescriptor fd = FileDescriptor.out;
+    }
+
     @Test
     public void shouldSetSocketOpts() throws Exception {
 
@@ -23,9 +23,15 @@ import org.junit.Test;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created on 12/09/2018.
@@ -87,6 +93,48 @@ public class UnixSocketTest {
         }
     }
 
+    @Test
+    public void shouldWakeAcceptWhenClosed() throws Exception {
+        File f = createSocketFile();
+        UnixServerSocket ss = UnixServerSocket.listen(f.getPath(), 1);
+        CompletableFuture<UnixSocket> accepted = new CompletableFuture<>();
+        CountDownLatch started = new CountDownLatch(1);
+        Thread acceptor = new Thread(() -> {
+            try {
+                started.countDown();
+                accepted.complete(ss.accept(0));
+            } catch (Exception e) {
+                accepted.completeExceptionally(e);
+            }
+        });
+        acceptor.start();
+
+        started.await();
+        Thread.sleep(100);
+        Assertions.assertThat(accepted).isNotDone();
+        ss.close();
+        Assertions.assertThat(accepted.get(1, TimeUnit.SECONDS)).isNull();
+        Assertions.assertThatThrownBy(() -> ss.accept(0)).isInstanceOf(SocketException.class);
+    }
+
+    @Test
+    public void shouldAcceptWithoutTimeout() throws Exception {
+        File f = createSocketFile();
+        try (UnixServerSocket ss = UnixServerSocket.listen(f.getPath(), 1)) {
+            CompletableFuture<UnixSocket> accepted = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return ss.accept(0);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            try (UnixSocket client = UnixSocket.connect(f.getPath()); UnixSocket server = accepted.get(1, TimeUnit.SECONDS)) {
+                client.getOutputStream().write('x');
+                Assertions.assertThat(server.getInputStream().read()).isEqualTo('x');
+            }
+        }
+    }
+
     @Test
     public void shouldHandleEmptyData() throws Exception {
         byte[] data = "hello".getBytes();
@@ -110,4 +158,74 @@ public class UnixSocketTest {
         Assertions.assertThat(roundTripViaEcho(data)).isEqualTo(data);
 
     }
+
+    @Test
+    public void shouldReadSingleBytesAsUnsigned() throws Exception {
+        File f = createSocketFile();
+        try (UnixServerSocket ss = UnixServerSocket.listen(f.getPath(), 1)) {
+            Thread server = new Thread(() -> {
+                try (UnixSocket in = ss.accept(1000)) {
+                    in.getOutputStream().write(new byte[]{(byte) 0xFF, 1});
+                } catch (IOException ignored) {
+                }
+            });
+            server.start();
+
+            try (UnixSocket us = UnixSocket.connect(f.getPath())) {
+                Assertions.assertThat(us.getInputStream().read()).isEqualTo(255);
+                Assertions.assertThat(us.getInputStream().read()).isEqualTo(1);
+                Assertions.assertThat(us.getInputStream().read()).isEqualTo(-1);
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadAndWriteThroughChannel() throws Exception {
+        File f = createSocketFile();
+        try (UnixServerSocket ss = UnixServerSocket.listen(f.getPath(), 1)) {
+            Thread server = new Thread(() -> {
+                try (UnixSocket in = ss.accept(1000)) {
+                    byte[] buf = new byte[5];
+                    new DataInputStream(in.getInputStream()).readFully(buf);
+                    in.getOutputStream().write(buf);
+                    in.getOutputStream().write(buf);
+                } catch (IOException ignored) {
+                }
+            });
+            server.start();
+
+            try (UnixSocket us = UnixSocket.connect(f.getPath())) {
+                ByteChannel channel = us.getByteChannel();
+                ByteBuffer direct = ByteBuffer.allocateDirect(16);
+                direct.put("hel".getBytes());
+                direct.flip();
+                Assertions.assertThat(channel.write(direct)).isEqualTo(3);
+                // a gathering write, including a buffer that doesn't expose its array
+                Assertions.assertThat(((GatheringByteChannel) channel).write(new ByteBuffer[]{ByteBuffer.wrap("l".getBytes()), ByteBuffer.wrap("o".getBytes()).asReadOnlyBuffer()})).isEqualTo(2);
+
+                // reads land at the buffer's position whether or not it is direct
+                ByteBuffer heap = ByteBuffer.allocate(6);
+                heap.put((byte) '>');
+                while (heap.hasRemaining()) {
+                    channel.read(heap);
+                }
+                Assertions.assertThat(new String(heap.array())).isEqualTo(">hello");
+
+                // a scattering read fills each buffer in turn
+                ByteBuffer first = ByteBuffer.allocate(2);
+                direct.clear();
+                direct.limit(3);
+                while (direct.hasRemaining()) {
+                    ((ScatteringByteChannel) channel).read(new ByteBuffer[]{first, direct});
+                }
+                direct.flip();
+                byte[] second = new byte[3];
+                direct.get(second);
+                Assertions.assertThat(new String(first.array()) + new String(second)).isEqualTo("hello");
+
+                direct.clear();
+                Assertions.assertThat(channel.read(direct)).isEqualTo(-1);
+            }
+        }
+    }
 }
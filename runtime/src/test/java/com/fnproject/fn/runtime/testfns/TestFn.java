@@ -25,6 +25,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Test function class for e2e tests
@@ -75,6 +77,27 @@ public class TestFn {
     }
 
 
+    public static CompletionStage<String> fnCompletesAsynchronously(String in) {
+        return CompletableFuture.supplyAsync(() -> in.toUpperCase());
+    }
+
+    public static CompletableFuture<Void> fnCompletesExceptionally() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        new Thread(() -> result.completeExceptionally(new RuntimeException("ERRTAG"))).start();
+        return result;
+    }
+
+    public static String fnSleeps(InvocationContext ctx) {
+        input = ctx.getRemainingTime();
+        try {
+            Thread.sleep(10000);
+            return "slept";
+        } catch (InterruptedException e) {
+            output = "interrupted";
+            return "interrupted";
+        }
+    }
+
     public static void fnReadsRawJson(List<String> strings) {
         input = strings;
     }
@@ -154,6 +177,10 @@ public class TestFn {
     }
 
 
+    public static Object getOutput() {
+        return output;
+    }
+
     public static Object getInput() {
         return input;
     }
@@ -16,9 +16,18 @@
 
 package com.fnproject.fn.runtime.testfns;
 
+import com.fnproject.fn.api.FnConfiguration;
+import com.fnproject.fn.api.FnInstancePool;
+import com.fnproject.fn.api.FunctionInvoker;
+import com.fnproject.fn.api.InputCoercion;
 import com.fnproject.fn.api.RuntimeContext;
 
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestFnConstructors {
 
@@ -55,6 +64,64 @@ public class TestFnConstructors {
 
     }
 
+    @FnInstancePool(2)
+    public static class PooledInstances {
+        public static final AtomicInteger constructed = new AtomicInteger();
+        public static final AtomicInteger configured = new AtomicInteger();
+        public static final AtomicInteger overlapping = new AtomicInteger();
+        public static CyclicBarrier together = new CyclicBarrier(1);
+
+        private final AtomicBoolean inUse = new AtomicBoolean();
+
+        public PooledInstances() {
+            constructed.incrementAndGet();
+        }
+
+        @FnConfiguration
+        public void config() {
+            configured.incrementAndGet();
+        }
+
+        public String invoke() throws Exception {
+            if (!inUse.compareAndSet(false, true)) {
+                overlapping.incrementAndGet();
+            }
+            together.await(5, TimeUnit.SECONDS);
+            inUse.set(false);
+            return "OK";
+        }
+    }
+
+    @FnInstancePool(3)
+    public static class PooledInstancesWithConfiguration {
+        public static final AtomicInteger configured = new AtomicInteger();
+        public static final AtomicInteger invoked = new AtomicInteger();
+        public static final InputCoercion<String> coercion = (ctx, arg, input, method) -> Optional.empty();
+        public static CyclicBarrier together = new CyclicBarrier(1);
+
+        @FnConfiguration
+        public void config(RuntimeContext ctx) {
+            configured.incrementAndGet();
+            ctx.addInputCoercion(coercion);
+            ctx.addInvoker((invocationContext, evt) -> {
+                invoked.incrementAndGet();
+                return Optional.empty();
+            }, FunctionInvoker.Phase.PreCall);
+        }
+
+        public String invoke(String input) throws Exception {
+            together.await(5, TimeUnit.SECONDS);
+            return "OK";
+        }
+    }
+
+    @FnInstancePool(0)
+    public static class BadEmptyInstancePool {
+        public String invoke() {
+            throw new RuntimeException("should not run");
+        }
+    }
+
     public static class BadConstructorThrowsException {
 
         public BadConstructorThrowsException() {
@@ -72,7 +72,7 @@ public class FnHttpEventBuilder {
 
 
     public InputEvent buildEvent() {
-        return new ReadOnceInputEvent(new ByteArrayInputStream(bodyBytes), headers, "callId", deadline);
+        return new ReadOnceInputEvent(new ByteArrayInputStream(bodyBytes), headers, "callId", deadline, bodyBytes.length);
     }
 
 